@@ -0,0 +1,172 @@
+/*
+ * DepthBookBenchmark.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.*;
+import java.util.zip.DataFormatException;
+
+import Microssa.DepthBook;
+import Microssa.Order;
+
+/**
+ * Measures the cost of the DepthBook operations as the number of price
+ * points in the book grows.  Prints the average nanoseconds per
+ * operation for each book depth.  Run with "make bench".
+ *
+ * @see DepthBook
+ */
+public class DepthBookBenchmark {
+
+    /** Book depths, in price points, to measure. */
+    private static final int[] Depths = { 10, 100, 1000, 10000, 100000 };
+
+    /** Operations timed per measurement. */
+    private static final int Operations = 200000;
+
+    /** Number of untimed rounds to let the JIT settle. */
+    private static final int WarmupRounds = 3;
+
+    /** Keeps the JIT from discarding MatchOrder results. */
+    private static int Sink;
+
+    /**
+     * Builds one offer book per depth and times adding and removing
+     * orders on new price points, on existing price points, and
+     * exact matches against existing price points.
+     *
+     * @param args Unused
+     * @throws DataFormatException Never, every OrderID is set
+     */
+    public static void main ( String args[] ) throws DataFormatException
+    {
+        System.out.println( String.format( "%10s %14s %14s %14s",
+            "levels", "new level ns", "same level ns", "match ns" ) );
+
+        for ( int i = 0; i < Depths.length; i++ )
+        {
+            int Depth = Depths[i];
+            double[] Result = null;
+
+            for ( int r = 0; r <= WarmupRounds; r++ )
+                Result = Measure( Depth );
+
+            System.out.println( String.format( "%10d %14.1f %14.1f %14.1f",
+                Depth, Result[0], Result[1], Result[2] ) );
+        }
+
+        if ( Sink == 42 )
+            System.out.println();
+    }
+
+    /**
+     * Runs one measurement round for a single depth.
+     *
+     * @param Depth Number of price points resting in the book
+     * @return Nanoseconds per operation for new level, same level and
+     * match operations
+     * @throws DataFormatException Never, every OrderID is set
+     */
+    private static double[] Measure ( int Depth ) throws DataFormatException
+    {
+        Random Rand = new Random( 17 );
+        DepthBook Book = new DepthBook( true );
+        DepthBook.Cursor Walk = new DepthBook.Cursor();
+        Order Probe = Resting( "P" );
+        long[] Resting = new long[Depth];
+
+        // resting prices are even ticks, probes use the odd ticks in between
+        for ( int i = 0; i < Depth; i++ )
+            Resting[i] = 100 + 2 * i;
+
+        Shuffle( Resting, Rand );
+
+        for ( int i = 0; i < Depth; i++ )
+            Book.AddOrder( Resting[i], Resting( "R" + i ) );
+
+        long[] NewPrices = new long[1024];
+        long[] OldPrices = new long[1024];
+
+        for ( int i = 0; i < NewPrices.length; i++ )
+        {
+            int Tick = Rand.nextInt( Depth );
+            NewPrices[i] = 100 + 2 * Tick + 1;
+            OldPrices[i] = 100 + 2 * Tick;
+        }
+
+        double[] Result = new double[3];
+        long Start;
+
+        Start = System.nanoTime();
+        for ( int i = 0; i < Operations; i++ )
+        {
+            long Price = NewPrices[i & 1023];
+            Book.RemoveOrder( Book.AddOrder( Price, Probe ) );
+        }
+        Result[0] = ( System.nanoTime() - Start ) / ( 2D * Operations );
+
+        Start = System.nanoTime();
+        for ( int i = 0; i < Operations; i++ )
+        {
+            long Price = OldPrices[i & 1023];
+            Book.RemoveOrder( Book.AddOrder( Price, Probe ) );
+        }
+        Result[1] = ( System.nanoTime() - Start ) / ( 2D * Operations );
+
+        Start = System.nanoTime();
+        for ( int i = 0; i < Operations; i++ )
+            Sink += Book.MatchOrder( OldPrices[i & 1023], true, Walk ).getOrderID().length();
+        Result[2] = ( System.nanoTime() - Start ) / ( (double) Operations );
+
+        return Result;
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @return A blank Order with only its OrderID, all the book reads
+     * when matching without a filter
+     * @throws DataFormatException Never, OrderID is not blank
+     */
+    private static Order Resting ( String OrderID ) throws DataFormatException
+    {
+        Order o = new Order();
+
+        o.setOrderID( OrderID );
+
+        return o;
+    }
+
+    /**
+     * Fisher-Yates shuffle so the book is not built in price order.
+     *
+     * @param Values Array to shuffle in place
+     * @param Rand Random source
+     */
+    private static void Shuffle ( long[] Values, Random Rand )
+    {
+        for ( int i = Values.length - 1; i > 0; i-- )
+        {
+            int j = Rand.nextInt( i + 1 );
+            long t = Values[i];
+            Values[i] = Values[j];
+            Values[j] = t;
+        }
+    }
+}
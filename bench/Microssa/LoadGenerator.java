@@ -0,0 +1,749 @@
+/*
+ * LoadGenerator.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import Microssa.LatencyHistogram;
+
+/**
+ * Sends order flow to a running Microssa through the OrderSocket and
+ * measures, through the OrderSocket and PriceSocket, how long each
+ * reply takes.  Run with "make loadgen LOADARGS=...".
+ *
+ * Requests are sent on an open-loop schedule: request i is due at
+ * start + i / rate, whether or not earlier replies have arrived.  Every
+ * latency is measured from the time its request was due, not from when
+ * it was actually sent, so a stall in Microssa (or in this tool) shows
+ * up in the latencies of every request that had to wait behind it.
+ * This corrects for coordinated omission.
+ *
+ * Replies are timed against the request that caused them:
+ *
+ *      NEW, AMEND, CANCEL      the request for that OrderID
+ *      REJECT...               the request for that OrderID
+ *      MATCH, COMPLETED,       the latest request acknowledged for the
+ *      EXPIRED                 order's Symbol, i.e. the aggressor
+ *      SNAPSHOT, DELTA         the oldest request for the Symbol not yet
+ *                              seen in market data
+ *
+ * Market data timing is exact with MDMODE = INCREMENTAL, which sends
+ * one DELTA per request.  In SNAPSHOT mode a request that changes the
+ * book several times sends several snapshots; the extra ones are timed
+ * against the same request.
+ *
+ * The flow is shaped by the options below.  Symbols are chosen with a
+ * Zipf distribution, so a few Symbols carry most of the flow.  Each
+ * Symbol's mid price takes a random walk; passive orders rest a
+ * geometrically distributed number of ticks behind it and a fraction of
+ * orders cross it.  Cancels and amends pick a random live order.
+ *
+ *      -host localhost     -orderport 2500     -priceport 2501
+ *      -rate 1000          requests per second
+ *      -seconds 30         length of the run, after a warmup
+ *      -warmup 5           seconds sent but not measured
+ *      -symbols 20         number of Symbols
+ *      -zipf 1.0           Symbol skew, 0 for uniform
+ *      -cancel 0.4         fraction of requests that are cancels
+ *      -amend 0.1          fraction of requests that are amends
+ *      -cross 0.05         fraction of new orders that cross the mid
+ *      -depth 0.3          chance a passive order rests one more tick away
+ *      -maxlive 10000      cancel instead of adding above this many orders
+ *      -md yes             subscribe to every Symbol and time market data
+ *      -histograms no      print the full percentile distributions
+ *
+ * @see LatencyHistogram
+ */
+public class LoadGenerator {
+
+    /**
+     * A request waiting for its reply.
+     */
+    private static class Request {
+
+        /** Time the request was due, in nanoseconds. */
+        private final long Due;
+
+        /** Symbol of the request. */
+        private final String Symbol;
+
+        /**
+         * @param d Due
+         * @param s Symbol
+         */
+        private Request ( long d, String s )
+        {
+            Due = d;
+            Symbol = s;
+        }
+    }
+
+    /**
+     * An order this tool believes is resting.
+     */
+    private static class Live {
+
+        /** The OrderID. */
+        private final String OrderID;
+
+        /** Index of the Symbol. */
+        private final int Symbol;
+
+        /** B or S. */
+        private final char Side;
+
+        /** Price in ticks. */
+        private long Price;
+
+        /** Quantity in lots. */
+        private long Quantity;
+
+        /** Position in the live list. */
+        private int Index;
+
+        /**
+         * @param id OrderID
+         * @param s Symbol index
+         * @param side Side
+         * @param p Price in ticks
+         * @param q Quantity in lots
+         */
+        private Live ( String id, int s, char side, long p, long q )
+        {
+            OrderID = id;
+            Symbol = s;
+            Side = side;
+            Price = p;
+            Quantity = q;
+        }
+    }
+
+    /** Reply types measured, in report order. */
+    private static final String[] Types =
+        { "NEW", "AMEND", "CANCEL", "MATCH", "COMPLETED", "EXPIRED", "REJECT", "MARKETDATA" };
+
+    /** Value of one tick. */
+    private static final double TickSize = 0.01;
+
+    /** Options and their defaults. */
+    private HashMap<String, String> Options;
+
+    /** Names of the Symbols. */
+    private String[] Symbols;
+
+    /** Cumulative Zipf probabilities of the Symbols. */
+    private double[] SymbolWeights;
+
+    /** Mid price of each Symbol, in ticks. */
+    private long[] Mids;
+
+    /** Latency of each reply type, in nanoseconds. */
+    private LatencyHistogram[] Latency;
+
+    /** Requests waiting for their reply, by OrderID. */
+    private HashMap<String, ArrayDeque<Request>> Pending;
+
+    /** Symbol of every order sent, by OrderID. */
+    private HashMap<String, String> SymbolOf;
+
+    /** Latest request acknowledged, by Symbol. */
+    private HashMap<String, Request> Current;
+
+    /** Requests not yet seen in market data, by Symbol. */
+    private HashMap<String, ArrayDeque<Request>> Unpublished;
+
+    /** Latest request seen in market data, by Symbol. */
+    private HashMap<String, Request> Published;
+
+    /** Orders this tool believes are resting. */
+    private ArrayList<Live> LiveOrders;
+
+    /** Live orders, by OrderID. */
+    private HashMap<String, Live> LiveByID;
+
+    /** Replies before this time are not measured. */
+    private volatile long MeasureFrom;
+
+    /** Requests sent. */
+    private long Sent;
+
+    /** Replies that could not be matched to a request. */
+    private long Unmatched;
+
+    /** Largest gap between a request's due time and its send time. */
+    private long MaxSendLag;
+
+    /**
+     * @param args Options, see the class description
+     */
+    private LoadGenerator ( String args[] )
+    {
+        Options = new HashMap<>();
+
+        Options.put( "host", "localhost" );
+        Options.put( "orderport", "2500" );
+        Options.put( "priceport", "2501" );
+        Options.put( "rate", "1000" );
+        Options.put( "seconds", "30" );
+        Options.put( "warmup", "5" );
+        Options.put( "symbols", "20" );
+        Options.put( "zipf", "1.0" );
+        Options.put( "cancel", "0.4" );
+        Options.put( "amend", "0.1" );
+        Options.put( "cross", "0.05" );
+        Options.put( "depth", "0.3" );
+        Options.put( "maxlive", "10000" );
+        Options.put( "md", "yes" );
+        Options.put( "histograms", "no" );
+
+        for ( int i = 0; i + 1 < args.length; i += 2 )
+        {
+            String Key = args[i].replaceFirst( "^-+", "" );
+
+            if ( !Options.containsKey( Key ) )
+                throw new IllegalArgumentException( "Unknown option " + args[i] );
+
+            Options.put( Key, args[i + 1] );
+        }
+
+        int n = Math.max( getInt( "symbols" ), 1 );
+        double Skew = getDouble( "zipf" );
+        double Sum = 0D;
+
+        Symbols = new String[n];
+        SymbolWeights = new double[n];
+        Mids = new long[n];
+
+        for ( int i = 0; i < n; i++ )
+        {
+            Symbols[i] = "LG" + i;
+            Sum += 1D / Math.pow( i + 1, Skew );
+            SymbolWeights[i] = Sum;
+            Mids[i] = 10000;
+        }
+
+        for ( int i = 0; i < n; i++ )
+            SymbolWeights[i] /= Sum;
+
+        Latency = new LatencyHistogram[Types.length];
+
+        for ( int i = 0; i < Types.length; i++ )
+            Latency[i] = new LatencyHistogram();
+
+        Pending = new HashMap<>();
+        SymbolOf = new HashMap<>();
+        Current = new HashMap<>();
+        Unpublished = new HashMap<>();
+        Published = new HashMap<>();
+        LiveOrders = new ArrayList<>();
+        LiveByID = new HashMap<>();
+        MeasureFrom = Long.MAX_VALUE;
+        Sent = 0;
+        Unmatched = 0;
+        MaxSendLag = 0;
+    }
+
+    /**
+     * @param Key Option name
+     * @return Its value as an int
+     */
+    private int getInt ( String Key )
+    {
+        return Integer.parseInt( Options.get( Key ) );
+    }
+
+    /**
+     * @param Key Option name
+     * @return Its value as a double
+     */
+    private double getDouble ( String Key )
+    {
+        return Double.parseDouble( Options.get( Key ) );
+    }
+
+    /**
+     * Connects, runs the schedule, waits for the last replies and
+     * prints the report.
+     *
+     * @param args Options, see the class description
+     * @throws Exception If a connection fails
+     */
+    public static void main ( String args[] ) throws Exception
+    {
+        new LoadGenerator( args ).Run();
+    }
+
+    /**
+     * @throws Exception If a connection fails
+     */
+    private void Run () throws Exception
+    {
+        String Host = Options.get( "host" );
+        boolean MarketData = Options.get( "md" ).toLowerCase().startsWith( "y" );
+
+        Socket OrderPort = new Socket( Host, getInt( "orderport" ) );
+        OrderPort.setTcpNoDelay( true );
+
+        OutputStream Out = OrderPort.getOutputStream();
+        Thread OrderReader = Reader( OrderPort, false );
+
+        Socket PricePort = null;
+
+        if ( MarketData )
+        {
+            PricePort = new Socket( Host, getInt( "priceport" ) );
+            PricePort.setTcpNoDelay( true );
+
+            OutputStream PriceOut = PricePort.getOutputStream();
+
+            for ( int i = 0; i < Symbols.length; i++ )
+                PriceOut.write( ( "SUB," + Symbols[i] + "\r\n" ).getBytes( StandardCharsets.US_ASCII ) );
+
+            PriceOut.flush();
+            Reader( PricePort, true );
+        }
+
+        Thread.sleep( 500 );
+
+        Schedule( Out, MarketData );
+
+        // give the last replies time to arrive
+        Thread.sleep( 2000 );
+
+        synchronized ( this )
+        {
+            Report();
+        }
+
+        OrderPort.close();
+
+        if ( PricePort != null )
+            PricePort.close();
+
+        System.exit( 0 );
+    }
+
+    /**
+     * Sends every request at its due time.  A request that is already
+     * late is sent at once.
+     *
+     * @param Out The OrderSocket connection
+     * @param MarketData True to expect market data for each request
+     * @throws IOException If a send fails
+     */
+    private void Schedule ( OutputStream Out, boolean MarketData ) throws IOException
+    {
+        Random Rand = new Random( 42 );
+        double Rate = getDouble( "rate" );
+        long Warmup = (long) ( getDouble( "warmup" ) * Rate );
+        long Total = Warmup + (long) ( getDouble( "seconds" ) * Rate );
+        double CancelRatio = getDouble( "cancel" );
+        double AmendRatio = getDouble( "amend" );
+        double CrossRatio = getDouble( "cross" );
+        double DepthRatio = getDouble( "depth" );
+        int MaxLive = getInt( "maxlive" );
+        long Start = System.nanoTime();
+        StringBuilder Message = new StringBuilder( 200 );
+
+        for ( long i = 0; i < Total; i++ )
+        {
+            long Due = Start + (long) ( i * 1e9 / Rate );
+
+            if ( i == Warmup )
+                MeasureFrom = Due;
+
+            Message.setLength( 0 );
+
+            Request r;
+
+            synchronized ( this )
+            {
+                r = Next( Message, Rand, Due, CancelRatio, AmendRatio, CrossRatio, DepthRatio, MaxLive );
+
+                if ( MarketData )
+                    Unpublished.computeIfAbsent( r.Symbol, k -> new ArrayDeque<>() ).add( r );
+            }
+
+            long Now = System.nanoTime();
+
+            while ( Now < Due )
+            {
+                LockSupport.parkNanos( Due - Now );
+                Now = System.nanoTime();
+            }
+
+            if ( i >= Warmup )
+                MaxSendLag = Math.max( MaxSendLag, Now - Due );
+
+            Out.write( Message.append( "\r\n" ).toString().getBytes( StandardCharsets.US_ASCII ) );
+            Out.flush();
+
+            Sent++;
+        }
+    }
+
+    /**
+     * Builds the next request and registers it as pending.
+     *
+     * @return The request
+     */
+    private Request Next ( StringBuilder Message, Random Rand, long Due, double CancelRatio,
+                           double AmendRatio, double CrossRatio, double DepthRatio, int MaxLive )
+    {
+        double Kind = Rand.nextDouble();
+        Live l = null;
+
+        if ( !LiveOrders.isEmpty() && ( Kind < CancelRatio + AmendRatio || LiveOrders.size() >= MaxLive ) )
+            l = LiveOrders.get( Rand.nextInt( LiveOrders.size() ) );
+
+        if ( l != null && Kind >= CancelRatio && Kind < CancelRatio + AmendRatio &&
+             LiveOrders.size() < MaxLive )
+        {
+            // amend the price one tick and the quantity
+            l.Price += ( l.Side == 'B' ) ? -1 : 1;
+            l.Quantity = 1 + Rand.nextInt( 100 );
+
+            Append( Message, "AMEND", l.OrderID, Symbols[l.Symbol], l.Side, l.Price, l.Quantity );
+        }
+        else if ( l != null )
+        {
+            Append( Message, "CANCEL", l.OrderID, Symbols[l.Symbol], l.Side, l.Price, l.Quantity );
+            Remove( l.OrderID );
+        }
+        else
+        {
+            int s = PickSymbol( Rand.nextDouble() );
+            char Side = Rand.nextBoolean() ? 'B' : 'S';
+            int Sign = ( Side == 'B' ) ? 1 : -1;
+
+            // random walk of the mid
+            if ( Rand.nextInt( 10 ) == 0 )
+                Mids[s] += Rand.nextBoolean() ? 1 : -1;
+
+            long Price;
+
+            if ( Rand.nextDouble() < CrossRatio )
+            {
+                Price = Mids[s] + Sign * ( 1 + Rand.nextInt( 3 ) );
+            }
+            else
+            {
+                long Away = 1;
+
+                while ( Rand.nextDouble() < DepthRatio && Away < 1000 )
+                    Away++;
+
+                Price = Mids[s] - Sign * Away;
+            }
+
+            long Quantity = 1 + Rand.nextInt( 100 );
+
+            l = new Live( "LG" + Sent, s, Side, Price, Quantity );
+            l.Index = LiveOrders.size();
+            LiveOrders.add( l );
+            LiveByID.put( l.OrderID, l );
+            SymbolOf.put( l.OrderID, Symbols[s] );
+
+            Append( Message, "NEW", l.OrderID, Symbols[s], Side, Price, Quantity );
+        }
+
+        Request r = new Request( Due, Symbols[l.Symbol] );
+
+        Pending.computeIfAbsent( l.OrderID, k -> new ArrayDeque<>() ).add( r );
+
+        return r;
+    }
+
+    /**
+     * @param x Uniform random number
+     * @return Index of the Symbol it picks
+     */
+    private int PickSymbol ( double x )
+    {
+        int lo = 0;
+        int hi = SymbolWeights.length - 1;
+
+        while ( lo < hi )
+        {
+            int mid = ( lo + hi ) / 2;
+
+            if ( SymbolWeights[mid] < x )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+
+    /**
+     * Appends an OrderSocket request.
+     */
+    private static void Append ( StringBuilder Message, String Type, String OrderID, String Symbol,
+                                 char Side, long Price, long Quantity )
+    {
+        Message.append( Type )
+               .append( ",OrderID=" ).append( OrderID )
+               .append( ",Symbol=" ).append( Symbol )
+               .append( ",Customer=LOADGEN,TIF=DAY" )
+               .append( ",Price=" ).append( String.format( "%.2f", Price * TickSize ) )
+               .append( ",Quantity=" ).append( Quantity ).append( ".0" )
+               .append( ",Side=" ).append( Side );
+    }
+
+    /**
+     * Forgets a live order.
+     *
+     * @param OrderID The OrderID
+     */
+    private void Remove ( String OrderID )
+    {
+        Live l = LiveByID.remove( OrderID );
+
+        if ( l == null )
+            return;
+
+        Live Last = LiveOrders.remove( LiveOrders.size() - 1 );
+
+        if ( Last != l )
+        {
+            LiveOrders.set( l.Index, Last );
+            Last.Index = l.Index;
+        }
+    }
+
+    /**
+     * Starts a Thread that reads one connection and times its replies.
+     *
+     * @param s The connection
+     * @param Price True for the PriceSocket
+     * @return The Thread
+     * @throws IOException If the connection cannot be read
+     */
+    private Thread Reader ( Socket s, boolean Price ) throws IOException
+    {
+        BufferedReader In = new BufferedReader(
+            new InputStreamReader( s.getInputStream(), StandardCharsets.US_ASCII ) );
+
+        Thread t = new Thread( () -> {
+            try
+            {
+                String Line;
+
+                while ( ( Line = In.readLine() ) != null )
+                {
+                    long Now = System.nanoTime();
+
+                    synchronized ( this )
+                    {
+                        if ( Price )
+                            PriceReply( Line, Now );
+                        else
+                            OrderReply( Line, Now );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                // connection closed
+            }
+        }, Price ? "LOADGEN-PS" : "LOADGEN-OS" );
+
+        t.setDaemon( true );
+        t.start();
+
+        return t;
+    }
+
+    /**
+     * Times one OrderSocket reply.
+     *
+     * @param Line The reply
+     * @param Now Time it arrived
+     */
+    private void OrderReply ( String Line, long Now )
+    {
+        int Comma = Line.indexOf( ',' );
+
+        if ( Comma < 0 || !Line.startsWith( "OrderID=", Comma + 1 ) )
+            return;
+
+        String Type = Line.substring( 0, Comma );
+        int End = Line.indexOf( ',', Comma + 9 );
+        String OrderID = Line.substring( Comma + 9, End < 0 ? Line.length() : End );
+        Request r = null;
+
+        if ( Type.equals( "NEW" ) || Type.equals( "AMEND" ) || Type.equals( "CANCEL" ) ||
+             Type.startsWith( "REJECT" ) )
+        {
+            ArrayDeque<Request> q = Pending.get( OrderID );
+
+            if ( q != null )
+                r = q.poll();
+
+            if ( r == null )
+            {
+                Unmatched++;
+                return;
+            }
+
+            if ( q.isEmpty() )
+                Pending.remove( OrderID );
+
+            if ( Type.startsWith( "REJECT" ) )
+            {
+                // a rejected request changes no market data
+                ArrayDeque<Request> u = Unpublished.get( r.Symbol );
+
+                if ( u != null )
+                    u.remove( r );
+
+                if ( Type.equals( "REJECTNEW" ) )
+                    Remove( OrderID );
+
+                Type = "REJECT";
+            }
+            else
+            {
+                Current.put( r.Symbol, r );
+            }
+        }
+        else if ( Type.equals( "MATCH" ) || Type.equals( "COMPLETED" ) || Type.equals( "EXPIRED" ) )
+        {
+            String Symbol = SymbolOf.get( OrderID );
+
+            if ( Symbol != null )
+                r = Current.get( Symbol );
+
+            if ( r == null )
+            {
+                Unmatched++;
+                return;
+            }
+
+            if ( !Type.equals( "MATCH" ) )
+            {
+                Remove( OrderID );
+                SymbolOf.remove( OrderID );
+            }
+        }
+        else
+        {
+            return;
+        }
+
+        if ( Type.equals( "CANCEL" ) )
+            SymbolOf.remove( OrderID );
+
+        Measure( Type, r, Now );
+    }
+
+    /**
+     * Times one PriceSocket message.
+     *
+     * @param Line The message
+     * @param Now Time it arrived
+     */
+    private void PriceReply ( String Line, long Now )
+    {
+        if ( !Line.startsWith( "SNAPSHOT," ) && !Line.startsWith( "DELTA," ) )
+            return;
+
+        int Start = Line.indexOf( ',' ) + 1;
+        int End = Line.indexOf( ',', Start );
+        String Symbol = Line.substring( Start, End < 0 ? Line.length() : End );
+        ArrayDeque<Request> u = Unpublished.get( Symbol );
+        Request r = ( u == null ) ? null : u.poll();
+
+        if ( r == null )
+            r = Published.get( Symbol );
+        else
+            Published.put( Symbol, r );
+
+        if ( r != null )
+            Measure( "MARKETDATA", r, Now );
+    }
+
+    /**
+     * Records a latency, unless its request was due during warmup.
+     *
+     * @param Type Reply type
+     * @param r The request
+     * @param Now Time the reply arrived
+     */
+    private void Measure ( String Type, Request r, long Now )
+    {
+        if ( r.Due < MeasureFrom )
+            return;
+
+        for ( int i = 0; i < Types.length; i++ )
+            if ( Types[i].equals( Type ) )
+                Latency[i].Record( Now - r.Due );
+    }
+
+    /**
+     * Prints a summary line per reply type, then the percentile
+     * distributions if asked for.
+     */
+    private void Report ()
+    {
+        System.out.println( String.format( "Sent %d requests at %s/s, latest send %.1fus behind schedule, " +
+                                           "%d replies unmatched", Sent, Options.get( "rate" ),
+                                           MaxSendLag / 1000D, Unmatched ) );
+        System.out.println();
+        System.out.println( String.format( "%-10s %10s %10s %10s %10s %10s %10s %10s %10s",
+            "reply us", "count", "p50", "p90", "p99", "p99.9", "p99.99", "max", "mean" ) );
+
+        for ( int i = 0; i < Types.length; i++ )
+        {
+            LatencyHistogram h = Latency[i];
+
+            System.out.println( String.format( "%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f",
+                Types[i], h.getCount(),
+                h.getValueAtPercentile( 50 ) / 1000D, h.getValueAtPercentile( 90 ) / 1000D,
+                h.getValueAtPercentile( 99 ) / 1000D, h.getValueAtPercentile( 99.9 ) / 1000D,
+                h.getValueAtPercentile( 99.99 ) / 1000D, h.getMax() / 1000D, h.getMean() / 1000D ) );
+        }
+
+        if ( !Options.get( "histograms" ).toLowerCase().startsWith( "y" ) )
+            return;
+
+        for ( int i = 0; i < Types.length; i++ )
+        {
+            if ( Latency[i].getCount() == 0 )
+                continue;
+
+            System.out.println();
+            System.out.println( "# " + Types[i] + " latency in microseconds" );
+            Latency[i].PrintPercentiles( System.out, 1000D );
+        }
+    }
+}
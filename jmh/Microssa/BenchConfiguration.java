@@ -0,0 +1,114 @@
+/*
+ * BenchConfiguration.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.HashMap;
+
+import Microssa.Configuration;
+
+/**
+ * A Configuration for the benchmarks that holds the out-of-the-box
+ * settings in memory, so no configuration file is read.
+ *
+ * @see Configuration
+ */
+public class BenchConfiguration extends Configuration {
+
+    /** Configuration items and values. */
+    private HashMap<String, String> Values;
+
+    /**
+     * Fills in the shipped settings the matching path reads.
+     */
+    private BenchConfiguration ()
+    {
+        Values = new HashMap<>();
+
+        Values.put( "LOGFILE", "Microssa.log" );
+        Values.put( "MATCHREPORT", "NO" );
+        Values.put( "MATCHREPORTFILE", "MatchReports.log" );
+        Values.put( "LOGMODE", "SYNC" );
+        Values.put( "LOGDURABILITY", "WRITE" );
+        Values.put( "LOGCOMMITMS", "10" );
+        Values.put( "LOGQUEUESIZE", "65536" );
+        Values.put( "PRICEPORT", "2501" );
+        Values.put( "PINGMS", "5000" );
+        Values.put( "MDQUEUESIZE", "10000" );
+        Values.put( "MDMODE", "SNAPSHOT" );
+        Values.put( "BOOKLAYOUT", "LINKED" );
+        Values.put( "NODEPOOLSIZE", "1024" );
+        Values.put( "DARKPOOL", "NO" );
+        Values.put( "DEFAULTCURRENCY", "USD" );
+        Values.put( "TICKSCALE", "8" );
+        Values.put( "LOTSCALE", "8" );
+        Values.put( "TRADESCALE", "2" );
+    }
+
+    /**
+     * Replaces the Configuration instance with the shipped settings
+     * and any overrides.
+     *
+     * @param Settings Pairs of configuration items and values
+     */
+    public static void install ( String... Settings )
+    {
+        BenchConfiguration c = new BenchConfiguration();
+
+        for ( int i = 0; i + 1 < Settings.length; i += 2 )
+            c.Values.put( Settings[i], Settings[i + 1] );
+
+        ConfigurationInstance = c;
+    }
+
+    /**
+     * @param key String containing the parameter key.
+     * @return String value of the configuration item, null if not set
+     */
+    @Override
+    public String getString ( String key )
+    {
+        return Values.get( key );
+    }
+
+    /**
+     * @param key String containing the parameter key.
+     * @return Integer value of the configuration item, -1 if not set
+     */
+    @Override
+    public int getInt ( String key )
+    {
+        String v = Values.get( key );
+
+        return ( v == null ) ? -1 : Integer.parseInt( v );
+    }
+
+    /**
+     * @param key String containing the parameter key.
+     * @return Double value of the configuration item, -1.0 if not set
+     */
+    @Override
+    public double getDouble ( String key )
+    {
+        String v = Values.get( key );
+
+        return ( v == null ) ? -1D : Double.parseDouble( v );
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * BenchLogger.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import Microssa.Logger;
+
+/**
+ * A Logger for the benchmarks that drops every line, so the runs
+ * measure the matching path rather than the disk.  The lines are still
+ * built by the callers, as they are in production.
+ *
+ * @see Logger
+ */
+public class BenchLogger extends Logger {
+
+    /**
+     * Makes a BenchLogger the Logger instance.  BenchConfiguration must
+     * be installed first.
+     */
+    public static void install ()
+    {
+        if ( LoggerInstance == null )
+            LoggerInstance = new BenchLogger();
+    }
+
+    /**
+     * @param s Dropped
+     */
+    @Override
+    public void write ( String s )
+    {
+    }
+
+    /**
+     * @param s Dropped
+     */
+    @Override
+    public void writeMatch ( String s )
+    {
+    }
+
+    /**
+     * Nothing to close.
+     */
+    @Override
+    public void close ()
+    {
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * BenchPriceSocket.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import Microssa.MatchingEngine;
+import Microssa.PriceSocket;
+
+/**
+ * A PriceSocket for the benchmarks with no connections.  It keeps the
+ * last reply so the MatchingEngine's market data messages can be
+ * measured without a network.
+ *
+ * @see PriceSocket
+ */
+public class BenchPriceSocket extends PriceSocket {
+
+    /** The last message sent to a single connection. */
+    public String Last;
+
+    /**
+     * The Thread is never started.
+     *
+     * @param me The MatchingEngine
+     */
+    public BenchPriceSocket ( MatchingEngine me )
+    {
+        super( "PS-BENCH", me );
+
+        Last = null;
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @return False, nobody is subscribed
+     */
+    @Override
+    public boolean HasSubscribers ( String Symbol )
+    {
+        return false;
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @param s Dropped
+     */
+    @Override
+    public void Publish ( String Symbol, String s )
+    {
+    }
+
+    /**
+     * @param s Kept in Last
+     * @param Connection Ignored
+     */
+    @Override
+    public void WriteReply ( String s, int Connection )
+    {
+        Last = s;
+    }
+}
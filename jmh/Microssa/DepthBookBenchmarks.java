@@ -0,0 +1,247 @@
+/*
+ * DepthBookBenchmarks.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import Microssa.DepthBook;
+import Microssa.Order;
+
+/**
+ * JMH benchmarks of the DepthBook operations, by the number of price
+ * points in the book (Levels) and the number of orders resting at each
+ * price point (QueueLength).  Run with "make jmh".
+ *
+ * The offer book rests on the even ticks from 100.  New price points are
+ * probed on the odd ticks in between, so each add and remove leaves the
+ * book as it found it.
+ *
+ * @see DepthBook
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DepthBookBenchmarks {
+
+    /** Price points resting in the book. */
+    @Param( { "10", "1000", "100000" } )
+    public int Levels;
+
+    /** Orders resting at each price point. */
+    @Param( { "1", "16" } )
+    public int QueueLength;
+
+    /** Price points crossed by MatchWalk. */
+    private static final int WalkLevels = 8;
+
+    /** Price points read by Depth. */
+    private static final int DepthLevels = 10;
+
+    /** The offer book. */
+    private DepthBook Book;
+
+    /** Odd ticks between the resting price points. */
+    private long[] NewPrices;
+
+    /** Resting price points. */
+    private long[] OldPrices;
+
+    /** Order added and removed by the AddRemove benchmarks. */
+    private Order Probe;
+
+    /** Cursor of the matching benchmarks. */
+    private DepthBook.Cursor Walk;
+
+    /** Position in the price arrays. */
+    private int Next;
+
+    /** Receive the prices, quantities and counts read by Depth. */
+    private long[] DepthPrices;
+    private long[] DepthLots;
+    private int[] DepthCounts;
+
+    /**
+     * Builds the book, adding the price points in random order.
+     *
+     * @throws DataFormatException Never, every OrderID is set
+     */
+    @Setup( Level.Trial )
+    public void Build () throws DataFormatException
+    {
+        Random Rand = new Random( 17 );
+        long[] Resting = new long[Levels];
+
+        Book = new DepthBook( true );
+
+        for ( int i = 0; i < Levels; i++ )
+            Resting[i] = 100 + 2 * i;
+
+        for ( int i = Levels - 1; i > 0; i-- )
+        {
+            int j = Rand.nextInt( i + 1 );
+            long t = Resting[i];
+            Resting[i] = Resting[j];
+            Resting[j] = t;
+        }
+
+        for ( int q = 0; q < QueueLength; q++ )
+            for ( int i = 0; i < Levels; i++ )
+                Book.AddOrder( Resting[i], Resting( "R" + i + "-" + q ) );
+
+        NewPrices = new long[1024];
+        OldPrices = new long[1024];
+
+        for ( int i = 0; i < NewPrices.length; i++ )
+        {
+            int Tick = Rand.nextInt( Levels );
+            NewPrices[i] = 100 + 2 * Tick + 1;
+            OldPrices[i] = 100 + 2 * Tick;
+        }
+
+        Probe = Resting( "P" );
+        Walk = new DepthBook.Cursor();
+        Next = 0;
+
+        DepthPrices = new long[DepthLevels];
+        DepthLots = new long[DepthLevels];
+        DepthCounts = new int[DepthLevels];
+    }
+
+    /**
+     * Adds an order on a new price point, then removes it by handle.
+     *
+     * @return The handle
+     */
+    @Benchmark
+    public DepthBook.PriceNode AddRemoveNewLevel ()
+    {
+        DepthBook.PriceNode n = Book.AddOrder( NewPrices[ Next++ & 1023 ], Probe );
+
+        Book.RemoveOrder( n );
+
+        return n;
+    }
+
+    /**
+     * Adds an order behind the queue of an existing price point, then
+     * removes it by handle.
+     *
+     * @return The handle
+     */
+    @Benchmark
+    public DepthBook.PriceNode AddRemoveSameLevel ()
+    {
+        DepthBook.PriceNode n = Book.AddOrder( OldPrices[ Next++ & 1023 ], Probe );
+
+        Book.RemoveOrder( n );
+
+        return n;
+    }
+
+    /**
+     * Adds an order behind the queue of an existing price point, then
+     * removes it by Price and OrderID, which searches the queue.
+     */
+    @Benchmark
+    public void AddRemoveByPrice ()
+    {
+        long Price = OldPrices[ Next++ & 1023 ];
+
+        Book.AddOrder( Price, Probe );
+        Book.RemoveOrder( Price, "P" );
+    }
+
+    /**
+     * Finds the first order at an existing price point.
+     *
+     * @return Its Order
+     */
+    @Benchmark
+    public Order MatchExact ()
+    {
+        return Book.MatchOrder( OldPrices[ Next++ & 1023 ], true, Walk );
+    }
+
+    /**
+     * Checks whether a passive buy one tick below the best offer
+     * crosses, as Execute does before matching.
+     *
+     * @return False
+     */
+    @Benchmark
+    public boolean NoCross ()
+    {
+        return Book.Crosses( 99 );
+    }
+
+    /**
+     * Reads the aggregated depth of the best DepthLevels price points.
+     *
+     * @return Price points read
+     */
+    @Benchmark
+    public int Depth ()
+    {
+        return Book.getDepth( DepthPrices, DepthLots, DepthCounts );
+    }
+
+    /**
+     * Walks every order an aggressive buy crossing the best WalkLevels
+     * price points would match, with MatchOrder and MatchNextOrder.
+     *
+     * @param bh Consumes the Orders
+     */
+    @Benchmark
+    public void MatchWalk ( Blackhole bh )
+    {
+        long Price = 100 + 2 * ( Math.min( WalkLevels, Levels ) - 1 );
+        Order o = Book.MatchOrder( Price, false, Walk );
+
+        while ( o != null )
+        {
+            bh.consume( o );
+            o = Book.MatchNextOrder( Price, false, Walk );
+        }
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @return A blank Order with only its OrderID, all the book reads
+     * when matching without a filter
+     * @throws DataFormatException Never, OrderID is not blank
+     */
+    private static Order Resting ( String OrderID ) throws DataFormatException
+    {
+        Order o = new Order();
+
+        o.setOrderID( OrderID );
+
+        return o;
+    }
+}
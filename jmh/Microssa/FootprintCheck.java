@@ -0,0 +1,126 @@
+/*
+ * FootprintCheck.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+import Microssa.BenchConfiguration;
+import Microssa.BenchLogger;
+import Microssa.MatchingEngine;
+import Microssa.Order;
+import Microssa.OrderPool;
+
+/**
+ * Reports the memory each resting order takes in one BOOKLAYOUT, on
+ * the Java heap and outside it.  Rests Orders that never cross on one
+ * MatchingEngine, with Configuration and Logger stubbed out and the
+ * reports off, then compares the memory in use after a full garbage
+ * collection with that before.  Run with "make footprint", which
+ * checks each layout in a JVM of its own.
+ *
+ * Usage: FootprintCheck [layout [orders]], by default LINKED and one
+ * million Orders over ten Symbols, a hundred Customers and two hundred
+ * price points a side.
+ *
+ * @see OrderStore
+ * @see DepthBook
+ */
+public class FootprintCheck {
+
+    /** Symbols the Orders are spread over. */
+    private static final int Symbols = 10;
+
+    /** Customers the Orders are spread over. */
+    private static final int Customers = 100;
+
+    /** Price points on each side of each Symbol. */
+    private static final int Levels = 200;
+
+    /**
+     * Rests the Orders and prints the memory they take.
+     *
+     * @param args Layout and number of Orders, both optional
+     * @throws Exception If the engine refuses a request
+     */
+    public static void main ( String args[] ) throws Exception
+    {
+        String Layout = ( args.length > 0 ) ? args[0] : "LINKED";
+        int Orders = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : 1000000;
+
+        BenchConfiguration.install( "BOOKLAYOUT", Layout );
+        BenchLogger.install();
+
+        MatchingEngine ME = new MatchingEngine();
+        ME.SetReplaying( true );
+
+        long Heap = HeapUsed();
+        long Direct = DirectUsed();
+
+        for ( int i = 0; i < Orders; i++ )
+        {
+            char Side = ( i % 2 == 0 ) ? 'B' : 'S';
+            int Level = ( i / 2 ) % Levels;
+
+            // bids below 1000, offers above, so nothing crosses
+            double Price = ( Side == 'B' ) ? 999D - Level : 1001D + Level;
+
+            ME.NewOrder( OrderPool.Take( "F" + i, "SYM" + ( i % Symbols ),
+                                         "CUST" + ( i % Customers ), "BENCH", "20170101",
+                                         Price, 10D, 10D, Side, "DAY", "USD", 0D ) );
+        }
+
+        Heap = HeapUsed() - Heap;
+        Direct = DirectUsed() - Direct;
+
+        System.out.println( String.format( "%-8s %10d orders  heap %8.1f  off-heap %8.1f  total %8.1f bytes/order",
+                                           Layout, Orders, Heap / (double) Orders,
+                                           Direct / (double) Orders,
+                                           ( Heap + Direct ) / (double) Orders ) );
+
+        // keeps the book reachable until measured
+        if ( ME.getMatches() != 0 )
+            System.exit( 1 );
+    }
+
+    /**
+     * @return Bytes of heap in use after a full garbage collection
+     */
+    private static long HeapUsed ()
+    {
+        for ( int i = 0; i < 3; i++ )
+            System.gc();
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return Bytes of direct buffers in use
+     */
+    private static long DirectUsed ()
+    {
+        for ( BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans( BufferPoolMXBean.class ) )
+            if ( b.getName().equals("direct") )
+                return b.getMemoryUsed();
+
+        return 0;
+    }
+}
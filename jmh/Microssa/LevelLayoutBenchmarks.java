@@ -0,0 +1,203 @@
+/*
+ * LevelLayoutBenchmarks.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import Microssa.DepthBook;
+import Microssa.Order;
+
+/**
+ * JMH benchmarks of the two layouts of a DepthBook price point, linked
+ * PriceNodes (LINKED) and a ring array per price point (ARRAY), on deep
+ * price points.  Run with "make jmh JMHARGS=LevelLayout".
+ *
+ * The offer book rests Depth orders on each of Levels price points.
+ * The orders are added a price point at a time in turn, then churned
+ * by canceling and re-adding random orders, so the linked PriceNodes
+ * of one price point are spread over the heap as they are in a book
+ * that has been trading for a while.
+ *
+ * @see DepthBook
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class LevelLayoutBenchmarks {
+
+    /** Layout of each price point, LINKED or ARRAY. */
+    @Param( { "LINKED", "ARRAY" } )
+    public String Layout;
+
+    /** Orders resting at each price point. */
+    @Param( { "1000" } )
+    public int Depth;
+
+    /** Price points resting in the book. */
+    private static final int Levels = 64;
+
+    /** The offer book. */
+    private DepthBook Book;
+
+    /**
+     * Handle of every resting order, by price point, each price point
+     * a ring in time priority from Oldest.  Holding on to the handle of
+     * a removed order would keep every later linked PriceNode alive, so
+     * the handles are always replaced.
+     */
+    private DepthBook.PriceNode[][] Handles;
+
+    /** Position of the oldest handle of each price point. */
+    private int[] Oldest;
+
+    /** Cursor of Sweep and of putting the handles in order. */
+    private DepthBook.Cursor Walk;
+
+    /** Random order to cancel, by CancelMiddle. */
+    private Random Rand;
+
+    /** Count of orders added, to name them. */
+    private int Added;
+
+    /**
+     * Builds and churns the book.
+     *
+     * @throws DataFormatException Never, every OrderID is set
+     */
+    @Setup( Level.Trial )
+    public void Build () throws DataFormatException
+    {
+        Book = new DepthBook( true, Layout.equals("ARRAY") );
+        Walk = new DepthBook.Cursor();
+        Handles = new DepthBook.PriceNode[Levels][Depth];
+        Rand = new Random( 17 );
+        Added = 0;
+
+        for ( int q = 0; q < Depth; q++ )
+            for ( int l = 0; l < Levels; l++ )
+                Handles[l][q] = Book.AddOrder( 100 + l, Resting( "R" + Added++ ) );
+
+        for ( int i = 0; i < Levels * Depth; i++ )
+            CancelMiddle();
+
+        // put each price point's handles back in time priority
+        HashMap<String, DepthBook.PriceNode> ByID = new HashMap<>();
+        Oldest = new int[Levels];
+
+        for ( int l = 0; l < Levels; l++ )
+        {
+            for ( int q = 0; q < Depth; q++ )
+                ByID.put( Handles[l][q].OrderID, Handles[l][q] );
+
+            Order o = Book.MatchOrder( 100 + l, true, Walk );
+
+            for ( int q = 0; q < Depth; q++ )
+            {
+                Handles[l][q] = ByID.get( o.getOrderID() );
+                o = Book.MatchNextOrder( 100 + l, true, Walk );
+            }
+
+            ByID.clear();
+        }
+    }
+
+    /**
+     * Walks every order of one price point with MatchOrder and
+     * MatchNextOrder, as a sweep of a busy price point does.
+     *
+     * @param bh Consumes the Orders
+     */
+    @Benchmark
+    public void Sweep ( Blackhole bh )
+    {
+        Order o = Book.MatchOrder( 100, true, Walk );
+
+        while ( o != null )
+        {
+            bh.consume( o );
+            o = Book.MatchNextOrder( 100, true, Walk );
+        }
+    }
+
+    /**
+     * Removes the oldest order of a price point and adds another at
+     * its end, as a fill followed by a new order does.
+     *
+     * @return The new handle
+     * @throws DataFormatException Never, the OrderID is set
+     */
+    @Benchmark
+    public DepthBook.PriceNode FillAndRefill () throws DataFormatException
+    {
+        int l = Added & ( Levels - 1 );
+        int q = Oldest[l];
+
+        Book.RemoveOrder( Handles[l][q] );
+        Handles[l][q] = Book.AddOrder( 100 + l, Resting( "R" + Added++ ) );
+        Oldest[l] = ( q + 1 ) % Depth;
+
+        return Handles[l][q];
+    }
+
+    /**
+     * Cancels a random order of a random price point and adds another
+     * at its end.  Leaves the handles out of time priority, which only
+     * FillAndRefill relies on, and each benchmark builds its own book.
+     *
+     * @return The new handle
+     * @throws DataFormatException Never, the OrderID is set
+     */
+    @Benchmark
+    public DepthBook.PriceNode CancelMiddle () throws DataFormatException
+    {
+        int l = Rand.nextInt( Levels );
+        int q = Rand.nextInt( Depth );
+
+        Book.RemoveOrder( Handles[l][q] );
+        Handles[l][q] = Book.AddOrder( 100 + l, Resting( "R" + Added++ ) );
+
+        return Handles[l][q];
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @return A blank Order with only its OrderID, all the book reads
+     * when matching without a filter
+     * @throws DataFormatException Never, OrderID is not blank
+     */
+    private static Order Resting ( String OrderID ) throws DataFormatException
+    {
+        Order o = new Order();
+
+        o.setOrderID( OrderID );
+
+        return o;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * MarketDataBenchmarks.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Microssa.BenchConfiguration;
+import Microssa.BenchLogger;
+import Microssa.BenchPriceSocket;
+import Microssa.FixedPoint;
+import Microssa.MatchingEngine;
+import Microssa.Order;
+
+/**
+ * JMH benchmark of building the market data message a new subscriber
+ * receives, by the number of orders resting on each side and by MDMODE.
+ * SNAPSHOT lists every order, INCREMENTAL every price level.  Run with
+ * "make jmh".
+ *
+ * @see MatchingEngine
+ * @see MarketDepth
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MarketDataBenchmarks {
+
+    /** Orders resting on each side of the book. */
+    @Param( { "10", "100", "1000" } )
+    public int Orders;
+
+    /** MDMODE. */
+    @Param( { "SNAPSHOT", "INCREMENTAL" } )
+    public String Mode;
+
+    /** The Symbol of every order. */
+    private static final String Symbol = "BTC";
+
+    /** Orders resting at each price level. */
+    private static final int QueueLength = 4;
+
+    /** The MatchingEngine. */
+    private MatchingEngine ME;
+
+    /** Receives the message. */
+    private BenchPriceSocket PS;
+
+    /**
+     * Installs the stubs and builds the book.
+     *
+     * @throws Exception If a price does not fit the scale
+     */
+    @Setup( Level.Trial )
+    public void Build () throws Exception
+    {
+        BenchConfiguration.install( "MDMODE", Mode );
+        BenchLogger.install();
+
+        FixedPoint Scale = FixedPoint.getScale( Symbol );
+        long Tick = Scale.ToTicks( 0.01 );
+        long Bid = Scale.ToTicks( 99.99 );
+        long Offer = Scale.ToTicks( 100.01 );
+        long Lot = Scale.ToLots( 1D );
+
+        ME = new MatchingEngine();
+        PS = new BenchPriceSocket( ME );
+        ME.SetPriceSocket( PS );
+
+        for ( int i = 0; i < Orders; i++ )
+        {
+            long Level = ( i / QueueLength ) * Tick;
+
+            ME.NewOrder( new Order( "B" + i, "B" + i + "ME", Symbol, "BENCH", "BENCH", "20170101",
+                                    Bid - Level, Lot, Lot, 'B', "DAY", "USD", 0 ) );
+            ME.NewOrder( new Order( "S" + i, "S" + i + "ME", Symbol, "BENCH", "BENCH", "20170101",
+                                    Offer + Level, Lot, Lot, 'S', "DAY", "USD", 0 ) );
+        }
+    }
+
+    /**
+     * Builds the message sent to a new subscriber.
+     *
+     * @return The message
+     */
+    @Benchmark
+    public String Snapshot ()
+    {
+        ME.MarketDataRefresh( Symbol, 1 );
+
+        return PS.Last;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * MatchingEngineBenchmarks.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import Microssa.BenchConfiguration;
+import Microssa.BenchLogger;
+import Microssa.FixedPoint;
+import Microssa.MatchingEngine;
+import Microssa.Order;
+
+/**
+ * JMH benchmarks of MatchingEngine.NewOrder on a single thread, with
+ * Configuration and Logger stubbed out.  Run with "make jmh".
+ *
+ * Every benchmark leaves the book as it found it, so each operation
+ * includes the requests that set up and clear its scenario:
+ *
+ *      Rest        a new order that rests, and its cancel
+ *      SingleFill  a resting sell, and a buy that fills it
+ *      Sweep       SweepLevels resting sells one tick apart, and an IOC
+ *                  buy that fills them all
+ *      PastForeign a resting sell SweepLevels ticks up, and a buy that
+ *                  fills it
+ *
+ * Depth orders rest on each side away from the benchmark prices, so the
+ * book is not empty.  Foreign sells in another Currency rest over the
+ * SweepLevels price points from the benchmark price, where no buy can
+ * trade with them, so every buy has to get past them; compare with
+ * -p Foreign=1000.
+ *
+ * @see MatchingEngine
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MatchingEngineBenchmarks {
+
+    /** Orders resting on each side of the book, on their own prices. */
+    @Param( { "0", "1000" } )
+    public int Depth;
+
+    /** Price points filled by Sweep. */
+    @Param( { "5" } )
+    public int SweepLevels;
+
+    /** Sells in another Currency resting at the benchmark prices. */
+    @Param( { "0" } )
+    public int Foreign;
+
+    /** BOOKLAYOUT of the engine; compare with -p Layout=ARRAY,OFFHEAP. */
+    @Param( { "LINKED" } )
+    public String Layout;
+
+    /** The Symbol of every order. */
+    private static final String Symbol = "BTC";
+
+    /** The MatchingEngine, alone on this thread. */
+    private MatchingEngine ME;
+
+    /** Price the benchmark orders trade at, in ticks. */
+    private long Price;
+
+    /** One tick, in ticks. */
+    private long Tick;
+
+    /** One lot, in lots. */
+    private long Lot;
+
+    /** OrderIDs of the sweep's resting sells. */
+    private String[] SweepIDs;
+
+    /**
+     * Installs the stubs and builds the book.
+     *
+     * @throws Exception If a price does not fit the scale
+     */
+    @Setup( Level.Trial )
+    public void Build () throws Exception
+    {
+        BenchConfiguration.install( "BOOKLAYOUT", Layout );
+        BenchLogger.install();
+
+        FixedPoint Scale = FixedPoint.getScale( Symbol );
+
+        ME = new MatchingEngine();
+        Price = Scale.ToTicks( 100D );
+        Tick = Scale.ToTicks( 0.01 );
+        Lot = Scale.ToLots( 1D );
+
+        // depth rests below 50 and above 150, out of reach of the benchmarks
+        for ( int i = 0; i < Depth; i++ )
+        {
+            ME.NewOrder( Make( "DB" + i, 'B', Scale.ToTicks( 50D ) - i * Tick, Lot, "DAY" ) );
+            ME.NewOrder( Make( "DS" + i, 'S', Scale.ToTicks( 150D ) + i * Tick, Lot, "DAY" ) );
+        }
+
+        for ( int i = 0; i < Foreign; i++ )
+            ME.NewOrder( new Order( "F" + i, "F" + i + "ME", Symbol, "BENCH", "BENCH", "20170101",
+                                    Price + ( i % SweepLevels ) * Tick, Lot, Lot, 'S', "DAY",
+                                    "EUR", 0 ) );
+
+        SweepIDs = new String[SweepLevels];
+
+        for ( int i = 0; i < SweepLevels; i++ )
+            SweepIDs[i] = "S" + i;
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @param Side B or S
+     * @param p Price in ticks
+     * @param q Quantity in lots
+     * @param TIF DAY or IOC
+     * @return A new Order for Symbol
+     */
+    private static Order Make ( String OrderID, char Side, long p, long q, String TIF )
+    {
+        return new Order( OrderID, OrderID + "ME", Symbol, "BENCH", "BENCH", "20170101",
+                          p, q, q, Side, TIF, "USD", 0 );
+    }
+
+    /**
+     * A buy that rests below the best offer, then its cancel.
+     *
+     * @param bh Consumes the reject texts
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    @Benchmark
+    public void Rest ( Blackhole bh ) throws IOException
+    {
+        Order o = Make( "R", 'B', Price, Lot, "DAY" );
+
+        bh.consume( ME.NewOrder( o ) );
+        bh.consume( ME.CancelOrder( o ) );
+    }
+
+    /**
+     * A sell that rests, then a buy at the same price that fills it.
+     *
+     * @param bh Consumes the reject texts
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    @Benchmark
+    public void SingleFill ( Blackhole bh ) throws IOException
+    {
+        bh.consume( ME.NewOrder( Make( "P", 'S', Price, Lot, "DAY" ) ) );
+        bh.consume( ME.NewOrder( Make( "A", 'B', Price, Lot, "DAY" ) ) );
+    }
+
+    /**
+     * SweepLevels sells one tick apart, then an IOC buy that fills them
+     * all.
+     *
+     * @param bh Consumes the reject texts
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    @Benchmark
+    public void Sweep ( Blackhole bh ) throws IOException
+    {
+        for ( int i = 0; i < SweepLevels; i++ )
+            bh.consume( ME.NewOrder( Make( SweepIDs[i], 'S', Price + i * Tick, Lot, "DAY" ) ) );
+
+        bh.consume( ME.NewOrder( Make( "A", 'B', Price + ( SweepLevels - 1 ) * Tick,
+                                       SweepLevels * Lot, "IOC" ) ) );
+    }
+
+    /**
+     * A sell that rests past the Foreign sells, then a buy that fills
+     * it, having passed over them all.
+     *
+     * @param bh Consumes the reject texts
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    @Benchmark
+    public void PastForeign ( Blackhole bh ) throws IOException
+    {
+        bh.consume( ME.NewOrder( Make( "P", 'S', Price + SweepLevels * Tick, Lot, "DAY" ) ) );
+        bh.consume( ME.NewOrder( Make( "A", 'B', Price + SweepLevels * Tick, Lot, "DAY" ) ) );
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * ReplayAllocationCheck.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.lang.management.ManagementFactory;
+
+import Microssa.BenchConfiguration;
+import Microssa.BenchLogger;
+import Microssa.MatchingEngine;
+import Microssa.Order;
+import Microssa.OrderPool;
+
+/**
+ * Checks that, with ORDERPOOL = YES, order requests replayed from the
+ * journal allocate nothing once warmed up, the book reusing the nodes
+ * of removed orders.  This is a replay-only check: it drives one
+ * MatchingEngine on this thread with SetReplaying( true ), so no
+ * report is built, and it says nothing of live traffic, where every
+ * report is a new line of text.  Configuration and Logger are stubbed
+ * out.  Counts the bytes this thread allocates per request and exits
+ * with status 1 if any checked scenario allocated.  Run with
+ * "make replayalloccheck", which checks LINKED and ARRAY in a JVM of
+ * its own each.  OFFHEAP is not checked, as every Order it loads from
+ * a record builds its OrderID afresh.
+ *
+ * Usage: ReplayAllocationCheck [layout], by default LINKED.
+ *
+ *      TAKE        an IOC buy that fills against a deep resting sell
+ *      EXPIRE      an IOC buy that does not cross, and expires
+ *      REJECT      a cancel and an amend of an unknown order
+ *      REST        a buy that rests at a new price, and its cancel
+ *
+ * @see OrderPool
+ * @see MatchingEngine
+ */
+public class ReplayAllocationCheck {
+
+    /** The Symbol of every order. */
+    private static final String Symbol = "BTC";
+
+    /** Scenario names, in order. */
+    private static final String[] Names = { "TAKE", "EXPIRE", "REJECT", "REST" };
+
+    /** Whether each scenario must allocate nothing. */
+    private static final boolean[] Checked = { true, true, true, true };
+
+    /** Requests per warm-up round. */
+    private static final int WarmupRequests = 20000;
+
+    /** Number of warm-up rounds. */
+    private static final int WarmupRounds = 10;
+
+    /** Requests measured per scenario. */
+    private static final int Requests = 100000;
+
+    /** Per-thread allocation counter of the JVM. */
+    private static com.sun.management.ThreadMXBean Threads;
+
+    /** The MatchingEngine, alone on this thread. */
+    private static MatchingEngine ME;
+
+    /** Price every scenario trades around. */
+    private static final double Price = 100D;
+
+    /**
+     * Builds the book, warms every scenario up, then measures each.
+     *
+     * @param args Layout, optional
+     * @throws Exception If the engine refuses a request
+     */
+    public static void main ( String args[] ) throws Exception
+    {
+        String Layout = ( args.length > 0 ) ? args[0] : "LINKED";
+
+        BenchConfiguration.install( "ORDERPOOL", "YES", "ORDERPOOLSIZE", "1024",
+                                    "BOOKLAYOUT", Layout );
+        BenchLogger.install();
+
+        Threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Threads.setThreadAllocatedMemoryEnabled( true );
+
+        ME = new MatchingEngine();
+        // as during journal replay, no reports are built
+        ME.SetReplaying( true );
+
+        // enough to fill every TAKE of every round
+        ME.NewOrder( Take( "DEEP", 'S', Price, 1000000D, "DAY" ) );
+
+        for ( int r = 0; r < WarmupRounds; r++ )
+            for ( int s = 0; s < Names.length; s++ )
+                for ( int i = 0; i < WarmupRequests; i++ )
+                    Request( s );
+
+        boolean Failed = false;
+
+        System.out.println( Layout );
+        System.out.println( String.format( "%-10s %10s %14s %8s", "scenario", "requests",
+                                           "bytes/request", "result" ) );
+
+        for ( int s = 0; s < Names.length; s++ )
+        {
+            double Bytes = Measure( s );
+            String Result = !Checked[s] ? "-" : ( Bytes == 0D ) ? "PASS" : "FAIL";
+
+            if ( Checked[s] && Bytes != 0D )
+                Failed = true;
+
+            System.out.println( String.format( "%-10s %10d %14.1f %8s", Names[s], Requests,
+                                               Bytes, Result ) );
+        }
+
+        System.out.println( "free orders in pool: " + OrderPool.getFree() );
+
+        if ( Failed )
+            System.exit( 1 );
+    }
+
+    /**
+     * @param s Scenario index
+     * @return Bytes allocated by this thread per request of s
+     * @throws Exception If the engine refuses a request
+     */
+    private static double Measure ( int s ) throws Exception
+    {
+        long Self = Thread.currentThread().getId();
+
+        // what reading the counter costs, taken off the measurement
+        long Before = Threads.getThreadAllocatedBytes( Self );
+        long Overhead = Threads.getThreadAllocatedBytes( Self ) - Before;
+
+        Before = Threads.getThreadAllocatedBytes( Self );
+
+        for ( int i = 0; i < Requests; i++ )
+            Request( s );
+
+        long Bytes = Threads.getThreadAllocatedBytes( Self ) - Before - Overhead;
+
+        return Math.max( Bytes, 0 ) / (double) Requests;
+    }
+
+    /**
+     * Sends one request of a scenario, its Orders taken from the pool
+     * as the gateways take them.
+     *
+     * @param s Scenario index
+     * @throws Exception If the engine refuses a request
+     */
+    private static void Request ( int s ) throws Exception
+    {
+        switch ( s )
+        {
+            case 0: ME.NewOrder( Take( "T", 'B', Price, 1D, "IOC" ) );
+                    break;
+            case 1: ME.NewOrder( Take( "E", 'B', Price - 1D, 1D, "IOC" ) );
+                    break;
+            case 2: ME.CancelOrder( Take( "U", 'B', Price, 1D, "DAY" ) );
+                    ME.AmendOrder( Take( "U", 'B', Price, 1D, "DAY" ) );
+                    break;
+            case 3: ME.NewOrder( Take( "R", 'B', Price - 1D, 1D, "DAY" ) );
+                    ME.CancelOrder( Take( "R", 'B', Price - 1D, 1D, "DAY" ) );
+                    break;
+            default:
+        }
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @param Side B or S
+     * @param p Price
+     * @param q Quantity
+     * @param TIF DAY or IOC
+     * @return An Order for Symbol from the pool
+     * @throws Exception If a value does not fit the scale
+     */
+    private static Order Take ( String OrderID, char Side, double p, double q, String TIF )
+        throws Exception
+    {
+        return OrderPool.Take( OrderID, Symbol, "BENCH", "BENCH", "20170101",
+                               p, q, q, Side, TIF, "USD", 0D );
+    }
+}
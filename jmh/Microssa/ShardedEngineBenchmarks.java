@@ -0,0 +1,165 @@
+/*
+ * ShardedEngineBenchmarks.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import Microssa.BenchConfiguration;
+import Microssa.BenchLogger;
+import Microssa.FixedPoint;
+import Microssa.Order;
+import Microssa.ShardedMatchingEngine;
+
+/**
+ * JMH benchmark of the requests per second a ShardedMatchingEngine
+ * applies with each number of shards, with Configuration and Logger
+ * stubbed out and no Journal.  Run with "make jmh".
+ *
+ *      Match       Batch pairs of a resting sell and a buy that fills
+ *                  it, spread evenly over Symbols, published from this
+ *                  thread; the operation ends once every shard has
+ *                  applied them
+ *
+ * Each request is one operation.  The Orders are built before each
+ * batch, so only publishing and matching are measured.  Shards only
+ * help with a core for each of them and one for the publisher.
+ *
+ * @see ShardedMatchingEngine
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ShardedEngineBenchmarks {
+
+    /** Pairs of orders published per operation. */
+    private static final int Batch = 4096;
+
+    /** Number of shards. */
+    @Param( { "1", "2", "4" } )
+    public int Shards;
+
+    /** Number of Symbols the orders are spread over. */
+    @Param( { "64" } )
+    public int Symbols;
+
+    /** The engine under test. */
+    private ShardedMatchingEngine ME;
+
+    /** The Symbols. */
+    private String[] Names;
+
+    /** Price every order trades at, in ticks. */
+    private long Price;
+
+    /** One lot, in lots. */
+    private long Lot;
+
+    /** Resting sells of the next batch. */
+    private Order[] Sells;
+
+    /** Buys of the next batch, each filling the sell of its index. */
+    private Order[] Buys;
+
+    /** Number of the next OrderID. */
+    private long NextID;
+
+    /**
+     * Installs the stubs and starts the shards.
+     *
+     * @throws Exception If a price does not fit the scale
+     */
+    @Setup( Level.Trial )
+    public void Build () throws Exception
+    {
+        BenchConfiguration.install( "SEQUENCERSIZE", "65536", "JOURNAL", "NO",
+                                    "CHECKPOINTSECONDS", "0" );
+        BenchLogger.install();
+
+        Names = new String[Symbols];
+
+        for ( int i = 0; i < Symbols; i++ )
+            Names[i] = "SYM" + i;
+
+        FixedPoint Scale = FixedPoint.getScale( Names[0] );
+
+        Price = Scale.ToTicks( 100D );
+        Lot = Scale.ToLots( 1D );
+        Sells = new Order[Batch];
+        Buys = new Order[Batch];
+        NextID = 0;
+
+        ME = new ShardedMatchingEngine( Shards );
+        ME.start();
+    }
+
+    /**
+     * Builds the Orders of the next batch.
+     */
+    @Setup( Level.Invocation )
+    public void Fill ()
+    {
+        for ( int i = 0; i < Batch; i++ )
+        {
+            String Symbol = Names[ i % Symbols ];
+
+            Sells[i] = Make( "S" + NextID, Symbol, 'S' );
+            Buys[i] = Make( "B" + NextID, Symbol, 'B' );
+            NextID++;
+        }
+    }
+
+    /**
+     * @param OrderID OrderID
+     * @param Symbol Symbol
+     * @param Side B or S
+     * @return A new DAY Order for one lot at Price
+     */
+    private Order Make ( String OrderID, String Symbol, char Side )
+    {
+        return new Order( OrderID, OrderID + "ME", Symbol, "BENCH", "BENCH", "20170101",
+                          Price, Lot, Lot, Side, "DAY", "USD", 0 );
+    }
+
+    /**
+     * Publishes the batch, then waits for every shard to apply it.
+     *
+     * @throws IOException Never, the requests are only published
+     */
+    @Benchmark
+    @OperationsPerInvocation( 2 * Batch )
+    public void Match () throws IOException
+    {
+        for ( int i = 0; i < Batch; i++ )
+        {
+            ME.NewOrder( Sells[i] );
+            ME.NewOrder( Buys[i] );
+        }
+
+        while ( ME.getSequencerDepth() > 0 )
+            Thread.yield();
+    }
+}
@@ -0,0 +1,689 @@
+/*
+ * Checkpoint.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import Microssa.Configuration;
+import Microssa.Journal;
+import Microssa.Logger;
+import Microssa.Order;
+import Microssa.OrderPool;
+import Microssa.ShardedMatchingEngine;
+
+/**
+ * A copy of every resting Order, taken every CHECKPOINTSECONDS so a
+ * restart rebuilds the books from the newest Checkpoint and replays
+ * only the Journal records after it.
+ *
+ * Taking a Checkpoint does not stop matching.  This class's Thread
+ * publishes a checkpoint request to the Sequencer like any order
+ * request.  The Journal notes where in the journal the request falls,
+ * and each shard, on reaching it, copies the references of its resting
+ * Orders in priority order, with the few fields that change after
+ * entry.  The shards then carry on while this Thread writes the copy to
+ * a temporary file and renames it over the previous Checkpoint, so the
+ * file is always a whole Checkpoint.
+ *
+ * The file starts with an eight byte header, then:
+ *
+ *      long    journal sequence number of the next record
+ *      long    byte offset of that record in the journal
+ *      int     next internal number for new Orders
+ *      int     next FIX ExecID
+ *      long    number of Orders
+ *
+ * then one record per Order, by Symbol and Side in priority order:
+ *
+ *      int     length of the rest of the record
+ *      byte    Side
+ *      long    Price in ticks
+ *      long    Quantity in lots
+ *      long    AvailableQuantity in lots
+ *      long    MinFillQuantity in lots
+ *      long    CumulativeQuantity in lots
+ *      double  AveragePrice
+ *      string  OrderID, InternalID, Symbol, Customer, Source,
+ *              ArriveDate, TIF, Currency
+ *
+ * and ends with the CRC32 of everything before it, as a long.  Strings
+ * are written as in the Journal.
+ *
+ * @see Journal
+ * @see ShardedMatchingEngine
+ */
+public class Checkpoint implements Runnable {
+
+    /**
+     * Receives the Orders read back by Restore.
+     */
+    public interface Handler {
+
+        /**
+         * @param o A resting Order, in priority order for its Symbol
+         * and Side
+         */
+        void Restore ( Order o );
+    }
+
+    /**
+     * The resting Orders of one shard, copied by its own Thread.
+     */
+    static class Part {
+
+        /** The Orders, in priority order per Symbol and Side. */
+        private Order[] Orders;
+
+        /** AvailableQuantity of each Order when copied, in lots. */
+        private long[] Available;
+
+        /** CumulativeQuantity of each Order when copied, in lots. */
+        private long[] Cumulative;
+
+        /** AveragePrice of each Order when copied. */
+        private double[] Average;
+
+        /** Number of Orders copied. */
+        private int Size;
+
+        /**
+         * @param n Expected number of Orders
+         */
+        Part ( int n )
+        {
+            n = Math.max( n, 16 );
+
+            Orders = new Order[n];
+            Available = new long[n];
+            Cumulative = new long[n];
+            Average = new double[n];
+            Size = 0;
+        }
+
+        /**
+         * @param o The next resting Order
+         */
+        void Add ( Order o )
+        {
+            if ( Size == Orders.length )
+            {
+                int n = Size * 2;
+
+                Orders = Arrays.copyOf( Orders, n );
+                Available = Arrays.copyOf( Available, n );
+                Cumulative = Arrays.copyOf( Cumulative, n );
+                Average = Arrays.copyOf( Average, n );
+            }
+
+            // a pooled Order may be refilled before the Checkpoint is written
+            Orders[Size] = OrderPool.Enabled ? o.Detach() : o;
+            Available[Size] = o.getAvailableLots();
+            Cumulative[Size] = o.getCumulativeLots();
+            Average[Size] = o.getAveragePrice();
+            Size++;
+        }
+    }
+
+    /** First bytes of every checkpoint file. */
+    private static final byte[] Header = "MSSACKP1".getBytes( StandardCharsets.US_ASCII );
+
+    /** Size of the header and the fields after it. */
+    private static final int HeaderSize = 8 + 8 + 8 + 4 + 4 + 8;
+
+    /** Size of the read and write buffers. */
+    private static final int BufferSize = 1 << 20;
+
+    /** Fixed part of a record after its length. */
+    private static final int FixedSize = 1 + 8 * 6;
+
+    /** Longest possible record after its length. */
+    private static final int MaxRecord = FixedSize + 8 * ( 2 + 0xffff );
+
+    /** Thread object for this class. */
+    private Thread T;
+
+    /** Label of the Thread. */
+    private String ThreadName;
+
+    /** Path of the checkpoint file. */
+    private Path FileName;
+
+    /** Path the next checkpoint is written to before it is renamed. */
+    private Path TempName;
+
+    /** The engine whose shards are copied. */
+    private ShardedMatchingEngine ME;
+
+    /** Number of shards that copy their books. */
+    private int Shards;
+
+    /** Time between Checkpoints, in milliseconds. */
+    private long IntervalMS;
+
+    /** Parts copied by the shards for the Checkpoint being taken. */
+    private ArrayList<Part> Parts;
+
+    /** Counted down by each shard once its Part is copied. */
+    private CountDownLatch Copied;
+
+    /** Journal sequence number of the next record, set by the Journal. */
+    private volatile long JournalCount;
+
+    /** Journal byte offset of the next record, set by the Journal. */
+    private volatile long JournalOffset;
+
+    /** Next internal number of the Checkpoint written or read. */
+    private int NextInternalID;
+
+    /** Next FIX ExecID of the Checkpoint written or read. */
+    private int ExecID;
+
+    /** Number of Orders in the Checkpoint read by Open. */
+    private long Orders;
+
+    /** Journal sequence number of the last Checkpoint written or read. */
+    private long Written;
+
+    /**
+     * The constructor stores information for when the Thread is started,
+     * but does not start it on its own.
+     *
+     * @param name A string identifier for the future Thread
+     * @param me The engine to copy
+     * @param shards Number of shards in me
+     */
+    public Checkpoint ( String name, ShardedMatchingEngine me, int shards )
+    {
+        T = null;
+        ThreadName = name;
+        ME = me;
+        Shards = shards;
+        Parts = new ArrayList<>( shards );
+        Copied = null;
+        JournalCount = 0;
+        JournalOffset = -1;
+        NextInternalID = 1;
+        ExecID = 1;
+        Orders = 0;
+        Written = -1;
+
+        String Name = Configuration.getInstance().getString("CHECKPOINTFILE");
+
+        FileName = Paths.get( "../log/" + Name );
+        TempName = Paths.get( "../log/" + Name + ".tmp" );
+        IntervalMS = 1000L * Configuration.getInstance().getInt("CHECKPOINTSECONDS");
+    }
+
+    /**
+     * @return Journal sequence number of the first record after the
+     * Checkpoint read by Open
+     */
+    public long getJournalCount ()
+    {
+        return JournalCount;
+    }
+
+    /**
+     * @return Journal byte offset of that record
+     */
+    public long getJournalOffset ()
+    {
+        return JournalOffset;
+    }
+
+    /**
+     * @return Next FIX ExecID of the Checkpoint read by Open
+     */
+    public int getExecID ()
+    {
+        return ExecID;
+    }
+
+    /**
+     * Called by the Journal when it reaches the checkpoint request.
+     *
+     * @param Count Journal sequence number of the next record
+     * @param Offset Byte offset of the next record
+     */
+    void SetJournal ( long Count, long Offset )
+    {
+        JournalCount = Count;
+        JournalOffset = Offset;
+    }
+
+    /**
+     * Called by each shard once it has copied its books.
+     *
+     * @param p The shard's resting Orders
+     */
+    void Captured ( Part p )
+    {
+        synchronized ( Parts )
+        {
+            Parts.add( p );
+        }
+
+        Copied.countDown();
+    }
+
+    /**
+     * Reads the header of the checkpoint file, after checking the whole
+     * file against its CRC32.
+     *
+     * @return False if there is no usable checkpoint file
+     * @throws IOException If the file cannot be read
+     */
+    public boolean Open () throws IOException
+    {
+        if ( !Files.exists( FileName ) )
+            return false;
+
+        try ( FileChannel File = FileChannel.open( FileName, StandardOpenOption.READ ) )
+        {
+            long Size = File.size();
+
+            if ( Size < HeaderSize + 8 )
+                return Damaged();
+
+            ByteBuffer In = ByteBuffer.allocate( BufferSize );
+            CRC32 Sum = new CRC32();
+            long Left = Size - 8;
+
+            while ( Left > 0 )
+            {
+                In.clear();
+                In.limit( (int) Math.min( Left, In.capacity() ) );
+
+                int n = File.read( In );
+
+                if ( n < 0 )
+                    return Damaged();
+
+                Sum.update( In.array(), 0, n );
+                Left -= n;
+            }
+
+            In.clear();
+            In.limit( 0 );
+
+            if ( !Journal.ReadAtLeast( File, In, 8 ) || In.getLong() != Sum.getValue() )
+                return Damaged();
+
+            File.position( 0 );
+            In.clear();
+            In.limit( 0 );
+
+            if ( !Journal.ReadAtLeast( File, In, HeaderSize ) )
+                return Damaged();
+
+            for ( int i = 0; i < Header.length; i++ )
+                if ( In.get() != Header[i] )
+                    return Damaged();
+
+            JournalCount = In.getLong();
+            JournalOffset = In.getLong();
+            NextInternalID = In.getInt();
+            ExecID = In.getInt();
+            Orders = In.getLong();
+            Written = JournalCount;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return False, after logging that the checkpoint file is ignored
+     * @throws IOException Passthrough from Logger
+     */
+    private boolean Damaged () throws IOException
+    {
+        Logger.getInstance().write( "Ignoring damaged checkpoint " + FileName );
+
+        return false;
+    }
+
+    /**
+     * Hands every Order in the checkpoint file to Target, in the order
+     * written.  Must be called after Open.
+     *
+     * @param Target Receives each Order
+     * @return Number of Orders restored
+     * @throws IOException If the file cannot be read
+     */
+    public long Restore ( Handler Target ) throws IOException
+    {
+        Order.ReserveInternalID( NextInternalID );
+
+        try ( FileChannel File = FileChannel.open( FileName, StandardOpenOption.READ ) )
+        {
+            ByteBuffer In = ByteBuffer.allocate( BufferSize );
+
+            File.position( HeaderSize );
+            In.limit( 0 );
+
+            for ( long n = 0; n < Orders; n++ )
+            {
+                if ( !Journal.ReadAtLeast( File, In, 4 ) )
+                    throw new IOException( FileName + " ends after " + n + " orders." );
+
+                int Length = In.getInt();
+
+                if ( Length < FixedSize || Length > MaxRecord ||
+                     !Journal.ReadAtLeast( File, In, Length ) )
+                    throw new IOException( FileName + " ends after " + n + " orders." );
+
+                int Limit = In.limit();
+
+                // decode within the record only
+                In.limit( In.position() + Length );
+
+                Order o = Decode( In );
+
+                In.limit( Limit );
+
+                if ( o == null )
+                    throw new IOException( FileName + " has a bad record after " + n + " orders." );
+
+                Target.Restore( o );
+            }
+        }
+
+        return Orders;
+    }
+
+    /**
+     * Reads one record, after its length.
+     *
+     * @param In The read buffer, limited to the record
+     * @return The Order, or null if the record is not valid
+     */
+    private Order Decode ( ByteBuffer In )
+    {
+        char Side = (char) In.get();
+        long Price = In.getLong();
+        long Quantity = In.getLong();
+        long Available = In.getLong();
+        long MinFill = In.getLong();
+        long Cumulative = In.getLong();
+        double Average = In.getDouble();
+
+        String OrderID    = Journal.GetString( In );
+        String InternalID = Journal.GetString( In );
+        String Symbol     = Journal.GetString( In );
+        String Customer   = Journal.GetString( In );
+        String Source     = Journal.GetString( In );
+        String ArriveDate = Journal.GetString( In );
+        String TIF        = Journal.GetString( In );
+        String Currency   = Journal.GetString( In );
+
+        if ( OrderID == null || InternalID == null || Symbol == null || Customer == null ||
+             Source == null || ArriveDate == null || TIF == null || Currency == null ||
+             In.hasRemaining() )
+            return null;
+
+        Order o = new Order( OrderID, InternalID, Symbol, Customer, Source, ArriveDate,
+                             Price, Quantity, Available, Side, TIF, Currency, MinFill );
+
+        o.setExecuted( Cumulative, Average );
+
+        Order.ReserveInternalID( InternalID );
+
+        return o;
+    }
+
+    /**
+     * Takes a Checkpoint every IntervalMS until the Thread is
+     * interrupted.  A failed Checkpoint is reported and the previous
+     * one is kept.
+     */
+    public void run ()
+    {
+        while ( true )
+        {
+            try
+            {
+                Thread.sleep( IntervalMS );
+                Take();
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+            catch ( IOException e )
+            {
+                System.err.println( ThreadName + " failed to write checkpoint: " + e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Has every shard copy its books, then writes the copy.  Nothing is
+     * written if no order request arrived since the last Checkpoint.
+     *
+     * @throws IOException If the file cannot be written
+     * @throws InterruptedException If the Thread is interrupted
+     */
+    private void Take () throws IOException, InterruptedException
+    {
+        long Start = System.currentTimeMillis();
+
+        Parts.clear();
+        Copied = new CountDownLatch( Shards );
+        JournalOffset = -1;
+
+        ME.PublishCheckpoint( this );
+        Copied.await();
+
+        try
+        {
+            // a halted Journal leaves the request unplaced
+            if ( JournalOffset < 0 || JournalCount == Written )
+                return;
+
+            // read after every shard passed the request, so both are at
+            // least as high as anything the Checkpoint holds
+            NextInternalID = Order.getNextInternalID();
+            ExecID = ME.getExecID();
+
+            long Count = Write();
+
+            Written = JournalCount;
+
+            Logger.getInstance().write( "Checkpoint of " + Count + " orders at journal record " +
+                                        JournalCount + " in " +
+                                        ( System.currentTimeMillis() - Start ) + "ms" );
+        }
+        finally
+        {
+            Parts.clear();
+        }
+    }
+
+    /**
+     * Writes the copied Parts to the temporary file, then renames it
+     * over the checkpoint file.
+     *
+     * @return Number of Orders written
+     * @throws IOException If the file cannot be written
+     */
+    private long Write () throws IOException
+    {
+        ByteBuffer Out = ByteBuffer.allocateDirect( BufferSize );
+        CRC32 Sum = new CRC32();
+        long Count = 0;
+
+        for ( int i = 0; i < Parts.size(); i++ )
+            Count += Parts.get( i ).Size;
+
+        try ( FileChannel File = FileChannel.open( TempName, StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.WRITE ) )
+        {
+            Out.put( Header );
+            Out.putLong( JournalCount );
+            Out.putLong( JournalOffset );
+            Out.putInt( NextInternalID );
+            Out.putInt( ExecID );
+            Out.putLong( Count );
+
+            for ( int i = 0; i < Parts.size(); i++ )
+            {
+                Part p = Parts.get( i );
+
+                for ( int j = 0; j < p.Size; j++ )
+                    Append( File, Out, Sum, p, j );
+            }
+
+            Drain( File, Out, Sum );
+
+            Out.putLong( Sum.getValue() );
+
+            Drain( File, Out, null );
+
+            File.force( true );
+        }
+
+        Files.move( TempName, FileName, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING );
+
+        return Count;
+    }
+
+    /**
+     * Adds one Order to the write buffer, writing the buffer out first
+     * if it is too full.
+     *
+     * @param File The temporary file
+     * @param Out The write buffer
+     * @param Sum CRC32 of the bytes written so far
+     * @param p The Part holding the Order
+     * @param i Index of the Order in p
+     * @throws IOException If a write fails
+     */
+    private static void Append ( FileChannel File, ByteBuffer Out, CRC32 Sum, Part p, int i )
+        throws IOException
+    {
+        Order o = p.Orders[i];
+
+        byte[] OrderID    = Journal.Bytes( o.getOrderID() );
+        byte[] InternalID = Journal.Bytes( o.getInternalID() );
+        byte[] Symbol     = Journal.Bytes( o.getSymbol() );
+        byte[] Customer   = Journal.Bytes( o.getCustomer() );
+        byte[] Source     = Journal.Bytes( o.getSource() );
+        byte[] ArriveDate = Journal.Bytes( o.getArriveDate() );
+        byte[] TIF        = Journal.Bytes( o.getTIF() );
+        byte[] Currency   = Journal.Bytes( o.getCurrency() );
+
+        int Length = FixedSize + 16 + OrderID.length + InternalID.length + Symbol.length +
+                     Customer.length + Source.length + ArriveDate.length + TIF.length +
+                     Currency.length;
+
+        if ( Out.remaining() < 4 + Length )
+            Drain( File, Out, Sum );
+
+        Out.putInt( Length );
+        Out.put( (byte) o.getSide() );
+        Out.putLong( o.getPriceTicks() );
+        Out.putLong( o.getQuantityLots() );
+        Out.putLong( p.Available[i] );
+        Out.putLong( o.getMinFillLots() );
+        Out.putLong( p.Cumulative[i] );
+        Out.putDouble( p.Average[i] );
+
+        PutString( Out, OrderID );
+        PutString( Out, InternalID );
+        PutString( Out, Symbol );
+        PutString( Out, Customer );
+        PutString( Out, Source );
+        PutString( Out, ArriveDate );
+        PutString( Out, TIF );
+        PutString( Out, Currency );
+    }
+
+    /**
+     * @param Out The write buffer
+     * @param b Bytes of a string
+     */
+    private static void PutString ( ByteBuffer Out, byte[] b )
+    {
+        Out.putChar( (char) b.length );
+        Out.put( b );
+    }
+
+    /**
+     * Writes the buffer to the file and empties it.
+     *
+     * @param File The temporary file
+     * @param Out The write buffer
+     * @param Sum Updated with the bytes written, or null
+     * @throws IOException If the write fails
+     */
+    private static void Drain ( FileChannel File, ByteBuffer Out, CRC32 Sum ) throws IOException
+    {
+        Out.flip();
+
+        if ( Sum != null )
+            Sum.update( Out.duplicate() );
+
+        while ( Out.hasRemaining() )
+            File.write( Out );
+
+        Out.clear();
+    }
+
+    /**
+     * Starts the Thread.  Sends a message to Logger to indicate
+     * successful start.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void start () throws IOException
+    {
+        if ( T == null )
+        {
+            try
+            {
+                Logger.getInstance().write("Checkpointing to " + FileName + " every " +
+                                           ( IntervalMS / 1000 ) + "s");
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+
+            T = new Thread( this, ThreadName );
+            T.setDaemon( true );
+            T.start();
+        }
+    }
+}
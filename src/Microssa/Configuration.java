@@ -135,6 +135,18 @@ public class Configuration {
          if ( !ConfigValues.containsKey( "MATCHREPORTFILE" ) )
             ConfigValues.put( "MATCHREPORTFILE" , "MatchReports.log" );
 
+         if ( !ConfigValues.containsKey( "LOGMODE" ) )
+            ConfigValues.put( "LOGMODE" , "SYNC" );
+
+         if ( !ConfigValues.containsKey( "LOGDURABILITY" ) )
+            ConfigValues.put( "LOGDURABILITY" , "WRITE" );
+
+         if ( !ConfigValues.containsKey( "LOGCOMMITMS" ) )
+            ConfigValues.put( "LOGCOMMITMS" , "10" );
+
+         if ( !ConfigValues.containsKey( "LOGQUEUESIZE" ) )
+            ConfigValues.put( "LOGQUEUESIZE" , "65536" );
+
          if ( !ConfigValues.containsKey( "DARKPOOL" ) )
             ConfigValues.put( "DARKPOOL" , "NO" );
 
@@ -144,12 +156,84 @@ public class Configuration {
          if ( !ConfigValues.containsKey( "DBSCAN" ) )
             ConfigValues.put( "DBSCAN" , "30" );
 
+         if ( !ConfigValues.containsKey( "DBURL" ) )
+            ConfigValues.put( "DBURL" , "" );
+
+         if ( !ConfigValues.containsKey( "DBBATCHSIZE" ) )
+            ConfigValues.put( "DBBATCHSIZE" , "500" );
+
+         if ( !ConfigValues.containsKey( "DBFLUSHMS" ) )
+            ConfigValues.put( "DBFLUSHMS" , "50" );
+
+         if ( !ConfigValues.containsKey( "DBQUEUESIZE" ) )
+            ConfigValues.put( "DBQUEUESIZE" , "100000" );
+
          if ( !ConfigValues.containsKey( "USEFIX" ) )
             ConfigValues.put( "USEFIX" , "FALSE" );
 
          if ( !ConfigValues.containsKey( "DEFAULTFIXCUST" ) )
             ConfigValues.put( "DEFAULTFIXCUST" , "FIX" );
 
+         if ( !ConfigValues.containsKey( "TICKSCALE" ) )
+            ConfigValues.put( "TICKSCALE" , "8" );
+
+         if ( !ConfigValues.containsKey( "LOTSCALE" ) )
+            ConfigValues.put( "LOTSCALE" , "8" );
+
+         if ( !ConfigValues.containsKey( "TRADESCALE" ) )
+            ConfigValues.put( "TRADESCALE" , "2" );
+
+         if ( !ConfigValues.containsKey( "SHARDS" ) )
+            ConfigValues.put( "SHARDS" , "1" );
+
+         if ( !ConfigValues.containsKey( "SEQUENCERSIZE" ) )
+            ConfigValues.put( "SEQUENCERSIZE" , "65536" );
+
+         if ( !ConfigValues.containsKey( "JOURNAL" ) )
+            ConfigValues.put( "JOURNAL" , "NO" );
+
+         if ( !ConfigValues.containsKey( "JOURNALFILE" ) )
+            ConfigValues.put( "JOURNALFILE" , "Microssa.journal" );
+
+         if ( !ConfigValues.containsKey( "JOURNALDURABILITY" ) )
+            ConfigValues.put( "JOURNALDURABILITY" , "WRITE" );
+
+         if ( !ConfigValues.containsKey( "CHECKPOINTSECONDS" ) )
+            ConfigValues.put( "CHECKPOINTSECONDS" , "0" );
+
+         if ( !ConfigValues.containsKey( "CHECKPOINTFILE" ) )
+            ConfigValues.put( "CHECKPOINTFILE" , "Microssa.checkpoint" );
+
+         if ( !ConfigValues.containsKey( "METRICS" ) )
+            ConfigValues.put( "METRICS" , "NO" );
+
+         if ( !ConfigValues.containsKey( "METRICSSECONDS" ) )
+            ConfigValues.put( "METRICSSECONDS" , "10" );
+
+         if ( !ConfigValues.containsKey( "METRICSFILE" ) )
+            ConfigValues.put( "METRICSFILE" , "Microssa.metrics" );
+
+         if ( !ConfigValues.containsKey( "ORDERPOOL" ) )
+            ConfigValues.put( "ORDERPOOL" , "NO" );
+
+         if ( !ConfigValues.containsKey( "ORDERPOOLSIZE" ) )
+            ConfigValues.put( "ORDERPOOLSIZE" , "65536" );
+
+         if ( !ConfigValues.containsKey( "BOOKLAYOUT" ) )
+            ConfigValues.put( "BOOKLAYOUT" , "LINKED" );
+
+         if ( !ConfigValues.containsKey( "NODEPOOLSIZE" ) )
+            ConfigValues.put( "NODEPOOLSIZE" , "1024" );
+
+         if ( !ConfigValues.containsKey( "MDQUEUESIZE" ) )
+            ConfigValues.put( "MDQUEUESIZE" , "10000" );
+
+         if ( !ConfigValues.containsKey( "ORDERQUEUEBYTES" ) )
+            ConfigValues.put( "ORDERQUEUEBYTES" , "16777216" );
+
+         if ( !ConfigValues.containsKey( "MDMODE" ) )
+            ConfigValues.put( "MDMODE" , "SNAPSHOT" );
+
      }
     
     /**
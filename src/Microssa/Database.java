@@ -26,10 +26,13 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import Microssa.Configuration;
 import Microssa.Logger;
 import Microssa.Order;
+import Microssa.OrderPool;
+import Microssa.TradeWriter;
 
 /**
  * This class is responsible for writing MatchingEngine events to
@@ -47,15 +50,20 @@ public class Database implements Runnable {
     /** Whether we are able to write to the database connection. */
     private boolean Connected;
 
-    /** Reference to MatchingEngine object. */
-    private MatchingEngine ME;
+    /** Reference to the Engine. */
+    private Engine ME;
     
     /** Database Connection. */
     private Connection DbConnection;
 
+    /** Writes matches on its own Thread and Connection. */
+    private TradeWriter Writer;
+
     /** How often to scan the database for new orders, in milliseconds */
     private int DbScan;
 
+    /** Order actions read from inbound_orders since start. */
+    private final AtomicLong Received;
 
     /**
      * The constructor stores information for when the Thread is started,
@@ -65,72 +73,33 @@ public class Database implements Runnable {
      * @param me A reference to the MatchingEngine this socket is
      * supposed to connect
      */
-    public Database ( String name, MatchingEngine me )
+    public Database ( String name, Engine me )
     {
         T = null;
+        Writer = null;
         Connected = false;
         ME = me;
         ThreadName = name;
+        Received = new AtomicLong( 0 );
 
         DbScan = Configuration.getInstance().getInt("DBSCAN") * 1000;
     }
     
+    /**
+     * Queues a match for the TradeWriter, which inserts one trades row
+     * for each side.  Returns at once.
+     *
+     * @param a Aggressive order
+     * @param p Passive order
+     * @param px Trade price
+     * @param qty Trade quantity
+     */
     public void WriteMatch ( Order a, Order p, double px, double qty ) {
         
         if ( !Connected )
             return;
 
-        String OrderID, InternalID, Symbol, Customer, Currency, Query;
-        char Side, Role;
-        Double Price, Quantity;
-        
-        // insert aggressive order
-        OrderID = a.getOrderID();
-        InternalID = a.getInternalID();
-        Symbol = a.getSymbol();
-        Customer = a.getCustomer();
-        Currency = a.getCurrency();
-        Side = a.getSide();
-        Role = 'A';
-        Price = px;
-        Quantity = qty;
-        
-        Query = "insert into trades (order_id,internal_id, symbol,customer,currency," +
-        "side,price,quantity,role) values ('" + OrderID + "','" + InternalID + "','" +
-        Symbol + "','" + Customer + "','" + Currency  + "','" +  Side +
-        "','" + Price + "','" + Quantity + "','" + Role + "')";
-        
-        try {
-            Statement stmt = DbConnection.createStatement();
-            stmt.execute( Query );
-        }
-        catch ( SQLException e ) {
-            // do nothing for now
-            System.out.println( "WARNING: " + e.getMessage() );
-        }
-        
-        // insert passive order
-        OrderID = p.getOrderID();
-        InternalID = p.getInternalID();
-        Symbol = p.getSymbol();
-        Customer = p.getCustomer();
-        Currency = p.getCurrency();
-        Side = p.getSide();
-        Role = 'P';
-        
-        Query = "insert into trades (order_id,internal_id, symbol,customer,currency," +
-        "side,price,quantity,role) values ('" + OrderID + "','"  + InternalID + "','" +
-        Symbol + "','" + Customer + "','" + Currency  + "','" +  Side +
-        "','" + Price + "','" + Quantity + "','" + Role + "')";
-        
-        try {
-            Statement stmt = DbConnection.createStatement();
-            stmt.execute( Query );
-        }
-        catch ( SQLException e ) {
-            // do nothing for now
-            System.out.println( "WARNING: " + e.getMessage() );
-        }
+        Writer.Enqueue( a, p, px, qty );
     }
 
     /**
@@ -192,10 +161,12 @@ public class Database implements Runnable {
                     if ( rs.wasNull() )
                         MinFillQuantity = 0D;
                     
-                    Order o = new Order(OrderID,Symbol,Customer,Source,ArriveDate,
+                    Order o = OrderPool.Take(OrderID,Symbol,Customer,Source,ArriveDate,
                                         Price,Quantity,AvailableQuantity,Side,TIF,
                                         Currency,MinFillQuantity);
                     
+                    Received.incrementAndGet();
+
                     switch ( Action ) {
                         case 'N': ME.NewOrder(o);
                                   break;
@@ -242,26 +213,20 @@ public class Database implements Runnable {
         
         if ( T == null )
         {
-            // gather credentials
-            String DbType     = Configuration.getInstance().getString("DBTYPE");
-            String DbUsername = Configuration.getInstance().getString("DBUSERNAME");
-            String DbPassword = Configuration.getInstance().getString("DBPASSWORD");
-            String DbServer   = Configuration.getInstance().getString("DBSERVER");
-            String DbSchema   = Configuration.getInstance().getString("DBSCHEMA");
+            Connection WriterConnection;
 
-            // attempt to connect
+            // attempt to connect, once for scanning and once for writing
             try
             {
-                DbConnection =
-                DriverManager.getConnection("jdbc:" + DbType + "://"+
-                    DbServer + "/"+ DbSchema + "?user=" + DbUsername +
-                    "&password=" + DbPassword );
+                DbConnection = Connect();
+                WriterConnection = Connect();
 
                 Connected = true;
             }
             catch ( SQLException e ) {
                 
                 ErrorMessage = e.getMessage();
+                WriterConnection = null;
                 Connected = false;
                 
             }
@@ -271,6 +236,9 @@ public class Database implements Runnable {
                 throw new SQLException("FATAL: Unable to connect to database - " + ErrorMessage);
                 
             }
+
+            Writer = new TradeWriter( ThreadName + "-WRITER", WriterConnection );
+            Writer.start();
             
             try
             {
@@ -286,4 +254,57 @@ public class Database implements Runnable {
         }
     }
 
+    /**
+     * Writes every queued match before shutdown.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void stop () throws IOException
+    {
+        if ( Writer != null )
+            Writer.stop();
+    }
+
+    /**
+     * @return The TradeWriter, or null before start
+     */
+    public TradeWriter getTradeWriter ()
+    {
+        return Writer;
+    }
+
+    /**
+     * @return Order actions read from inbound_orders since start
+     */
+    public long getReceived ()
+    {
+        return Received.get();
+    }
+
+    /**
+     * Opens a Connection with the configured credentials, or to DBURL
+     * when it is set.
+     *
+     * @return A new Connection
+     * @throws SQLException Failure to connect to database
+     */
+    private Connection Connect () throws SQLException
+    {
+        String DbUrl = Configuration.getInstance().getString("DBURL");
+
+        if ( !DbUrl.equals("") )
+            return DriverManager.getConnection( DbUrl );
+
+        // gather credentials
+        String DbType     = Configuration.getInstance().getString("DBTYPE");
+        String DbUsername = Configuration.getInstance().getString("DBUSERNAME");
+        String DbPassword = Configuration.getInstance().getString("DBPASSWORD");
+        String DbServer   = Configuration.getInstance().getString("DBSERVER");
+        String DbSchema   = Configuration.getInstance().getString("DBSCHEMA");
+
+        return DriverManager.getConnection("jdbc:" + DbType + "://"+
+            DbServer + "/"+ DbSchema + "?user=" + DbUsername +
+            "&password=" + DbPassword );
+    }
+
 }
@@ -22,35 +22,236 @@ package Microssa;
 
 import java.util.*;
 
+import Microssa.Dictionary;
+import Microssa.Order;
+import Microssa.OrderStore;
+
 /**
- * This class implements a modified SkipList to keep track of a single
- * side (Bid or Offer) of OrderIDs for a Symbol, and their relative
- * order to each other based on Price and arrival order: first in, first
- * out.
+ * This class implements a SkipList to keep track of a single side (Bid
+ * or Offer) of OrderIDs for a Symbol, and their relative order to each
+ * other based on Price and arrival order: first in, first out.
+ *
+ * There is one SkipNode per price point.  SkipNodes are linked on
+ * several levels, where each level skips over roughly three out of
+ * four nodes of the level below it, so finding a price point takes
+ * logarithmic rather than linear time in the number of price points.
+ *
+ * The MatchingEngine adds each resting Order itself, so matching hands
+ * back the Order and needs no lookup by OrderID.
+ *
+ * The orders of a price point are kept in one of two layouts.  By
+ * default every PriceNode is linked to the next, across the whole
+ * book.  A DepthBook built with Queued set instead keeps each price
+ * point's PriceNodes in a LevelQueue, a ring array in time priority, so
+ * sweeping a busy price point reads one array in order rather than
+ * following a reference from node to node.
+ *
+ * A DepthBook built with an OrderStore keeps no PriceNodes at all: each
+ * price point links the records of its Orders by slot number, through
+ * their Prev and Next fields, so only the SkipNodes are on the heap.
+ * Such a book only takes Orders, which the MatchingEngine has already
+ * put in the OrderStore, and hands back copies loaded from the records.
+ *
+ * Given a pool size, the book keeps that many removed PriceNodes, and
+ * as many removed SkipNodes, to reuse for the next orders and price
+ * points, so adding and removing orders in a steady state allocates
+ * nothing.  SkipNodes are pooled by their number of levels, each with
+ * its LevelQueue.  A handle is then no longer the caller's once its
+ * order is removed.
+ *
+ * Matching walks the book with a Cursor, which every caller of
+ * MatchOrder and MatchNextOrder brings its own of, so a nested walk of
+ * the same book, such as a Hook looking for matches, leaves the
+ * engine's place alone.  The book still belongs to one Thread.
+ *
+ * A Cursor may be given the terms of the contra order, its Currency
+ * and minimum and available quantities, and then only stops at orders
+ * that could trade with it, still in time priority.  Each price point
+ * keeps a summary of its orders, their Currencies and bounds on their
+ * quantities, so a price point with none that could trade is passed
+ * over without visiting its orders.  Adding an order widens the
+ * summary; a filtered walk that visits every order of a price point
+ * sets it to exactly the orders it saw.
  */
 public class DepthBook {
 
+    /** Maximum number of SkipNode levels.  Enough for 4^16 prices. */
+    private static final int MaxLevel = 16;
+
+    /** Slots in a new LevelQueue, a power of two. */
+    private static final int InitialSlots = 8;
+
+    /**
+     * A place in a walk of a DepthBook by MatchOrder and
+     * MatchNextOrder.  Reset by every MatchOrder, so one Cursor serves
+     * every match of a caller, in any book, without allocating.
+     * MatchNextOrder carries on in the book of the last MatchOrder.
+     *
+     * A Cursor steps past each order as it hands it back and keeps the
+     * next one instead, so the order just matched, and its price point
+     * if that empties, may be removed and its nodes reused before the
+     * next MatchNextOrder.  Any other order removed in between must not be
+     * the next one.
+     */
+    public static class Cursor {
+
+        /** Price point of the next order, null once the walk is over. */
+        SkipNode Level;
+
+        /** True if the next order is the oldest of Level, read when
+         *  reached, false if it is Next or Slot. */
+        boolean Fresh;
+
+        /** In a linked DepthBook, the next order. */
+        PriceNode Next;
+
+        /** In a Queued DepthBook, the LevelQueue position of the next
+         *  order.  In an off-heap DepthBook, its record's slot. */
+        int Slot;
+
+        /** Price point of the order just matched. */
+        SkipNode MatchedLevel;
+
+        /** In a linked DepthBook, the order just matched. */
+        PriceNode Matched;
+
+        /** Position or slot of the order just matched. */
+        int MatchedSlot;
+
+        /** Currency a match must be in, null if the Cursor has no
+         *  filter. */
+        String Currency;
+
+        /** Dictionary.Currencies ID of Currency, -1 if no order has had
+         *  it. */
+        int CurrencyID;
+
+        /** Bit of CurrencyID in the Currencies of a SkipNode. */
+        long CurrencyBit;
+
+        /** True while a filtered walk has visited every order of Level
+         *  so far, from its oldest. */
+        boolean Whole;
+
+        /** Currencies, greatest available quantity and least
+         *  MinFillQuantity of the orders of Level visited while Whole. */
+        long SeenCurrencies;
+        long SeenMaxLots;
+        long SeenMinFill;
+
+        /** Least available quantity of a match, in lots. */
+        long MinFillLots;
+
+        /** Greatest MinFillQuantity of a match, in lots. */
+        long AvailableLots;
+
+        /**
+         * Creates a Cursor at the end of a walk, so MatchNextOrder
+         * finds nothing until MatchOrder, and with no filter.
+         */
+        public Cursor ()
+        {
+            Level = MatchedLevel = null;
+            Fresh = false;
+            Next = Matched = null;
+            Slot = MatchedSlot = 0;
+            ClearFilter();
+        }
+
+        /**
+         * Only stops at orders that could trade with a contra order,
+         * as the MatchingEngine would check them.
+         *
+         * @param ccy The contra Currency
+         * @param MinFill The contra MinFillQuantity, in lots
+         * @param Available The contra AvailableQuantity, in lots
+         */
+        public void setFilter ( String ccy, long MinFill, long Available )
+        {
+            Currency = ccy;
+            CurrencyID = Dictionary.Currencies.FindID( ccy );
+            CurrencyBit = ( CurrencyID < 0 ) ? 0 : CurrencyBit( CurrencyID );
+            Whole = false;
+            MinFillLots = MinFill;
+            AvailableLots = Available;
+        }
+
+        /**
+         * Updates the contra AvailableQuantity as the contra order
+         * fills, keeping the rest of the filter.
+         *
+         * @param Available The contra AvailableQuantity, in lots
+         */
+        public void setAvailableLots ( long Available )
+        {
+            AvailableLots = Available;
+        }
+
+        /**
+         * Stops at every order again.
+         */
+        public void ClearFilter ()
+        {
+            Currency = null;
+            CurrencyID = -1;
+            CurrencyBit = -1L;
+            Whole = false;
+            MinFillLots = 0;
+            AvailableLots = Long.MAX_VALUE;
+        }
+    }
+
     /**
-     * Represents the single skip layer where there is one SkipNode
-     * per price point.  Each skip node points to a PriceNode, which is
-     * the oldest OrderID at that Price point.  Prev should be null
-     * or a SkipNode with a better Price, and Next should be null or a
-     * Skipnode with a worse price.
+     * Represents a price point in the skip layers.  Each skip node
+     * points to a PriceNode, which is the oldest OrderID at that Price
+     * point, and to the newest OrderID at that Price point.  Prev should
+     * be null or a SkipNode with a better Price, and Forward[0] should
+     * be null or a Skipnode with a worse price.  The higher Forward
+     * references skip ahead to SkipNodes further down the book.
+     * Lots and Orders are the running totals of the price point, so
+     * depth is read one SkipNode per price rather than one PriceNode
+     * per order.  For a filtered Cursor, Currencies has the CurrencyBit
+     * of every order, MaxLots is at least the largest available quantity
+     * and MinFill at most the smallest MinFillQuantity, in lots.  They
+     * are widened as orders are added, and set exactly by a filtered
+     * walk over the whole price point, so orders that have left stop
+     * counting.  In a Queued DepthBook, Queue holds the PriceNodes and
+     * Lower and Last are not used.  In an off-heap DepthBook, Oldest and
+     * Newest are the slots of the first and last records instead.
      */
     class SkipNode {
         public SkipNode Prev;
-        public SkipNode Next;
+        public SkipNode[] Forward;
         public PriceNode Lower;
-        public Double Price;
+        public PriceNode Last;
+        public LevelQueue Queue;
+        public long Price;
+        public long Lots;
+        public int Orders;
+        public int Oldest;
+        public int Newest;
+        public long Currencies;
+        public long MaxLots;
+        public long MinFill;
 
         /**
-         * Sets references to null and Price to zero.
+         * Sets references to null and Price and totals to zero.
+         *
+         * @param Levels The number of levels this SkipNode is linked on
          */
-        public SkipNode ()
+        public SkipNode ( int Levels )
         {
-            Next = Prev = null;
-            Lower = null;
-            Price = 0D;
+            Prev = null;
+            Forward = new SkipNode[Levels];
+            Lower = Last = null;
+            Queue = null;
+            Price = 0;
+            Lots = 0;
+            Orders = 0;
+            Oldest = Newest = -1;
+            Currencies = 0;
+            MaxLots = 0;
+            MinFill = Long.MAX_VALUE;
         }
 
         /**
@@ -59,7 +260,7 @@ public class DepthBook {
          */
         public void Print ()
         {
-            System.out.println ( "SN " + Price );
+            System.out.println ( "SN " + Price + " L" + Forward.length );
         }
     }
 
@@ -68,14 +269,24 @@ public class DepthBook {
      * Prev should null, or a PriceNode that is the same Price but arrived
      * earlier, or a PriceNode with a better price.  Next should be null,
      * or a PriceNode that is the same Price but arrived later, or a
-     * PriceNode with a worse Price.
+     * PriceNode with a worse Price.  Level is the SkipNode of the
+     * PriceNode's Price, or null once the PriceNode is removed.
+     *
+     * AddOrder hands the PriceNode back to the caller as a handle, so
+     * the order can later be removed without searching for it.  Owner
+     * is the Order, or null once the PriceNode is removed.  In a Queued DepthBook, Slot is the
+     * PriceNode's position in its LevelQueue, and Prev and Next are not
+     * used.
      */
     class PriceNode {
 
         public PriceNode Prev;
         public PriceNode Next;
-        public Double Price;
+        public SkipNode Level;
+        public long Price;
         public String OrderID;
+        public Order Owner;
+        public int Slot;
 
         /**
          * Sets references to null, Price to zero, and OrderID to a blank
@@ -84,8 +295,11 @@ public class DepthBook {
         public PriceNode ()
         {
             Next = Prev = null;
-            Price = 0D;
+            Level = null;
+            Price = 0;
             OrderID = "";
+            Owner = null;
+            Slot = 0;
         }
 
         /**
@@ -98,451 +312,1422 @@ public class DepthBook {
         }
     }
 
-    /** Reference to the first PriceNode in our book. */
-    private PriceNode PriceHead;
-
-    /** Reference to the first SkipNode in our book. */
-    private SkipNode SkipHead;
-
-    /**
-     * Sets the Direction: false is descending prices (Buy/Bid book)
-     * and true is ascending prices (Sell/Offer book).
-     */
-    private Boolean Direction;
-
-    /** Last price node found by Match, used by MatchNext. */
-    private PriceNode LastPriceNode;
-
-    /** Last skip node found by Match, used by MatchNext. */
-    private SkipNode LastSkipNode;
-
-    /**
-     * Initializes the PriceNode and SkipNode head references to null.
-     * Sets the Direction.
-     *
-     * @param d The sort direction of the prices
-     */
-    public DepthBook ( Boolean d )
-    {
-        PriceHead = null;
-        SkipHead = null;
-        LastSkipNode = null;
-        LastPriceNode = null;
-        Direction = d;
-    }
-
     /**
-     * Add a PriceNode with the matching Price and OrderID.  PriceNodes
-     * are added FIFO, and by Price order determined by Direction (false
-     * is descending and true is ascending.  Will also add a
-     * SkipNode for that Price if it does not exist.
+     * The PriceNodes of one price point in time priority, held in a
+     * ring array.  The OrderID and Owner of each PriceNode are copied
+     * into arrays beside it, so a match reads the three arrays in
+     * order and never visits the PriceNodes themselves.
      *
-     * @param Price The Order's price
-     * @param OrderID The Order's ID
+     * Positions count up for ever and are masked to find the slot, so
+     * a PriceNode's Slot stays valid as the ring wraps.  Removing a
+     * PriceNode leaves a null tombstone in its slot; Head skips over
+     * tombstones at the front at once, and the rest are squeezed out
+     * when Add finds the ring full, growing it only if more than half
+     * the slots are still live.  Only Add moves PriceNodes, so a match
+     * may remove as it goes.
      */
-    public void AddOrder ( Double Price, String OrderID )
-    {
-        SkipNode SkipPrevPtr = null;
-        SkipNode SkipPtr = SkipHead;
+    class LevelQueue {
 
-        PriceNode TempPtr = null;
-        PriceNode Ptr = null;
+        public PriceNode[] Nodes;
+        public String[] OrderIDs;
+        public Order[] Owners;
+        public int Mask;
+        public int Head;
+        public int Tail;
 
-        while ( SkipPtr != null && PriceMatch( Price, SkipPtr.Price ) )
+        /**
+         * Creates an empty LevelQueue of InitialSlots slots.
+         */
+        public LevelQueue ()
         {
-            SkipPrevPtr = SkipPtr;
-            SkipPtr = SkipPtr.Next;
+            Nodes = new PriceNode[InitialSlots];
+            OrderIDs = new String[InitialSlots];
+            Owners = new Order[InitialSlots];
+            Mask = InitialSlots - 1;
+            Head = Tail = 0;
         }
 
-        if ( SkipPtr == null )
+        /**
+         * Appends a PriceNode as the newest of the price point.
+         *
+         * @param Ptr The PriceNode, its OrderID and Owner set
+         * @param Live Number of PriceNodes held, tombstones excepted
+         */
+        public void Add ( PriceNode Ptr, int Live )
         {
-            // we reached the end of the skip list
-            SkipPtr = new SkipNode();
-            SkipPtr.Price = Price;
+            if ( Tail - Head == Nodes.length )
+                Compact( ( Live * 2 > Nodes.length ) ? Nodes.length * 2 : Nodes.length );
 
-            if ( SkipPrevPtr == null )
-            {
-                // this is a completly new list
-                SkipHead = SkipPtr;
-            }
-            else
-            {
-                // we're at the end of existing list
-                SkipPrevPtr.Next = SkipPtr;
-                SkipPtr.Prev = SkipPrevPtr;
-            }
+            int i = Tail & Mask;
 
+            Ptr.Slot = Tail;
+            Nodes[i] = Ptr;
+            OrderIDs[i] = Ptr.OrderID;
+            Owners[i] = Ptr.Owner;
+            Tail++;
         }
-        else
-        {
-            // at the beginning or inside of the list
-            if ( Double.compare(Price, SkipPtr.Price) == 0 )
-            {
-                // we found a skip node with our price, so start our
-                // order pointer there
-                Ptr = SkipPtr.Lower;
-            }
-            else
-            {
-                // Didn't find our price point, make a new skip node
-                // and connect it
 
-                SkipNode TempSkipPtr = new SkipNode();
-                TempSkipPtr.Price = Price;
-
-                SkipPtr.Prev = TempSkipPtr;
-                TempSkipPtr.Next = SkipPtr;
+        /**
+         * Leaves a tombstone in a PriceNode's slot.
+         *
+         * @param Ptr The PriceNode, which must be in this LevelQueue
+         */
+        public void Remove ( PriceNode Ptr )
+        {
+            int i = Ptr.Slot & Mask;
 
-                if ( SkipPrevPtr == null )
-                {
-                    // beginning of list
-                    SkipHead = TempSkipPtr;
-                }
-                else
-                {
-                    // inside of list
-                    SkipPrevPtr.Next = TempSkipPtr;
-                    TempSkipPtr.Prev = SkipPrevPtr;
-                }
+            Nodes[i] = null;
+            OrderIDs[i] = null;
+            Owners[i] = null;
 
-                SkipPtr = TempSkipPtr;
-            }
+            while ( Head != Tail && Nodes[Head & Mask] == null )
+                Head++;
         }
 
-        if ( Ptr == null )
+        /**
+         * Finds the oldest PriceNode at or after a position.  Every
+         * position before Head is a tombstone already passed.
+         *
+         * @param From The position
+         * @return Position of the PriceNode, Tail if there is none
+         */
+        public int Find ( int From )
         {
-            // new price so we need to connect the list
-            Boolean connected = false;
-
-            Ptr = new PriceNode();
-            Ptr.Price = Price;
-            Ptr.OrderID = OrderID;
-
-            SkipPtr.Lower = Ptr;
+            int i = ( From - Head > 0 ) ? From : Head;
 
-            if ( SkipPrevPtr == null )
-            {
-                // head of list
-                PriceHead = Ptr;
+            while ( i - Tail < 0 && Nodes[i & Mask] == null )
+                i++;
 
-                if ( SkipPtr.Next != null ) {
-                    TempPtr = SkipPtr.Next.Lower;
+            return i;
+        }
 
-                    TempPtr.Prev = Ptr;
-                    Ptr.Next = TempPtr;
-                }
+        /**
+         * Moves the live PriceNodes together from Head, dropping the
+         * tombstones, into a ring of Length slots.
+         *
+         * @param Length New number of slots, a power of two
+         */
+        private void Compact ( int Length )
+        {
+            PriceNode[] OldNodes = Nodes;
+            String[] OldIDs = OrderIDs;
+            Order[] OldOwners = Owners;
+            int OldMask = Mask;
+            int Next = Head;
 
+            if ( Length != OldNodes.length )
+            {
+                Nodes = new PriceNode[Length];
+                OrderIDs = new String[Length];
+                Owners = new Order[Length];
+                Mask = Length - 1;
             }
-            else
+
+            // moving towards Head never overwrites a slot still to read
+            for ( int i = Head; i - Tail < 0; i++ )
             {
-                // middle or end
-                TempPtr = SkipPrevPtr.Lower;
-                Double TempPrice = TempPtr.Price;
+                int From = i & OldMask;
+                PriceNode Ptr = OldNodes[From];
+
+                if ( Ptr == null )
+                    continue;
 
-                while ( TempPtr.Next != null && Double.compare( TempPtr.Next.Price, TempPrice ) == 0 )
-                    TempPtr = TempPtr.Next;
+                int To = Next & Mask;
 
-                if ( TempPtr.Next != null )
+                if ( Nodes == OldNodes )
                 {
-                    // middle of list
-                    TempPtr.Next.Prev = Ptr;
-                    Ptr.Next = TempPtr.Next;
+                    OldNodes[From] = null;
+                    OldIDs[From] = null;
+                    OldOwners[From] = null;
                 }
 
-                TempPtr.Next = Ptr;
-                Ptr.Prev = TempPtr;
+                Ptr.Slot = Next;
+                Nodes[To] = Ptr;
+                OrderIDs[To] = Ptr.OrderID;
+                Owners[To] = Ptr.Owner;
+                Next++;
             }
+
+            Tail = Next;
         }
-        else
-        {
-            // price found, append new order to end of matching prices
-            TempPtr = Ptr;
+    }
 
-            Ptr = new PriceNode();
-            Ptr.Price = Price;
-            Ptr.OrderID = OrderID;
+    /** Reference to the first PriceNode in our book. */
+    private PriceNode PriceHead;
 
-            while ( TempPtr.Next != null && Double.compare( TempPtr.Next.Price, Price ) == 0 )
-                TempPtr = TempPtr.Next;
+    /**
+     * Sentinel SkipNode linked on every level.  Header.Forward[0] is
+     * the first SkipNode in our book.
+     */
+    private SkipNode Header;
 
-            if ( TempPtr.Next != null )
-            {
-                // middle of list
-                TempPtr.Next.Prev = Ptr;
-                Ptr.Next = TempPtr.Next;
-            }
+    /**
+     * The SkipNode of the best price point, null if the book is empty.
+     * Always Header.Forward[0], kept apart so the best price and the
+     * crossing check read one field.
+     */
+    private SkipNode Best;
 
-            // middle or end
-            TempPtr.Next = Ptr;
-            Ptr.Prev = TempPtr;
+    /** Number of levels currently in use, at least one. */
+    private int Height;
 
-        }
+    /**
+     * Scratch array filled by FindLevel with the last SkipNode before
+     * the searched price on each level.  Kept to avoid an allocation
+     * on every AddOrder and RemoveOrder.
+     */
+    private SkipNode[] Update;
 
-    }
+    /** State of the generator used to pick SkipNode levels. */
+    private int Seed;
 
     /**
-     * Removes the PriceNode with matching Price and OrderID.  Will
-     * remove the SkipNode above if there are no more PriceNodes
-     * underneath it.
-     *
-     * @param Price The Order's price
-     * @param OrderID The Order's ID
+     * Sets the Direction: false is descending prices (Buy/Bid book)
+     * and true is ascending prices (Sell/Offer book).
      */
-    public void RemoveOrder ( Double Price, String OrderID )
-    {
-        SkipNode SkipPtr = SkipHead;
-        PriceNode Ptr = null;
+    private boolean Direction;
 
-        while ( SkipPtr != null && Double.compare( SkipPtr.Price, Price ) != 0 )
-            SkipPtr = SkipPtr.Next;
+    /**
+     * True if each price point keeps its PriceNodes in a LevelQueue,
+     * false if they are linked.
+     */
+    private boolean Queued;
 
-        if ( SkipPtr != null )
-        {
-            // found a matching skip node
-            Ptr = SkipPtr.Lower;
+    /**
+     * Holds the records of an off-heap DepthBook, null if the book
+     * keeps PriceNodes.
+     */
+    private OrderStore Store;
 
-            while ( Ptr != null && Double.compare( Ptr.Price, Price ) == 0 &&
-                    !Ptr.OrderID.equals(OrderID) )
-                Ptr = Ptr.Next;
+    /** Number of PriceNodes in the book. */
+    private int OrderCount;
 
-            if ( Ptr != null && Double.compare( Ptr.Price, Price ) == 0 ) {
-                // found a matching price node
-                PriceNode TempPrev = Ptr.Prev;
-                PriceNode TempNext = Ptr.Next;
+    /** Number of SkipNodes, one per price point, in the book. */
+    private int LevelCount;
 
-                if ( TempPrev != null && TempNext != null )
-                {
-                    // nodes before and after
-                    TempPrev.Next = TempNext;
-                    TempNext.Prev = TempPrev;
-                }
-                else if ( TempNext != null )
-                {
-                    // only a node after
-                    TempNext.Prev = null;
+    /** Available quantity resting in the book, in lots, kept by the
+     *  MatchingEngine through ChangeLots. */
+    private long Lots;
 
-                    if ( PriceHead.OrderID.equals( Ptr.OrderID ) )
-                    {
-                        PriceHead = TempNext;
-                    }
-                }
-                else if ( TempPrev != null )
-                {
-                    // only a node before
-                    TempPrev.Next = null;
-                }
+    /** Most removed PriceNodes, and most removed SkipNodes, kept for
+     *  reuse.  Zero keeps none. */
+    private int PoolSize;
 
-                if ( PriceHead.OrderID.equals( Ptr.OrderID ) )
-                {
-                    if ( TempNext != null )
-                        PriceHead = TempNext;
-                    else
-                        PriceHead = null;
-                }
+    /** Removed PriceNodes kept for reuse, chained through Prev. */
+    private PriceNode FreeNodes;
 
-                if ( SkipPtr.Lower.OrderID.equals( Ptr.OrderID ) )
-                {
-                    // we deleted the price lower, possibly remove skip
-                    if ( TempNext != null && Double.compare ( TempNext.Price, Price ) == 0 )
-                    {
-                        // next node price match, make it lower
-                        SkipPtr.Lower = TempNext;
-                    }
-                    else
-                    {
-                        // no matching price nodes, delete skip node
-                        SkipNode TempSkipPrev = SkipPtr.Prev;
-                        SkipNode TempSkipNext = SkipPtr.Next;
-
-                        if ( TempSkipPrev != null && TempSkipNext != null )
-                        {
-                            // nodes before and after
-                            TempSkipPrev.Next = TempSkipNext;
-                            TempSkipNext.Prev = TempSkipPrev;
-                        }
-                        else if ( TempSkipNext != null )
-                        {
-                            // only a node after
-                            TempSkipNext.Prev = null;
-
-                            if ( Double.compare( SkipHead.Price, SkipPtr.Price ) == 0 )
-                            {
-                                SkipHead = TempSkipNext;
-                            }
-                        }
-                        else if ( TempSkipPrev != null )
-                        {
-                            // only a node before
-                            TempSkipPrev.Next = null;
-                        }
-
-                        if ( Double.compare( SkipHead.Price, SkipPtr.Price ) == 0 )
-                        {
-                            if ( TempSkipNext != null)
-                                SkipHead = TempSkipNext;
-                            else
-                                SkipHead = null;
-                        }
-
-                    }
-                }
+    /** Number of PriceNodes in FreeNodes. */
+    private int FreeNodeCount;
 
-            }
-        }
+    /** Removed SkipNodes kept for reuse, by number of levels less one,
+     *  each chained through Prev. */
+    private SkipNode[] FreeLevels;
 
-    }
+    /** Number of SkipNodes in FreeLevels. */
+    private int FreeLevelCount;
+
+    /** Nodes taken from the pools. */
+    private long PoolHits;
+
+    /** Nodes allocated because the pool was empty. */
+    private long PoolMisses;
 
     /**
-     * Determines if the book is empty.
+     * Initializes the PriceNode and SkipNode head references to null.
+     * Sets the Direction.  PriceNodes are linked.
      *
-     * @return True if there are no SkipNodes, false otherwise
+     * @param d The sort direction of the prices
      */
-     public Boolean IsEmpty () {
-         return ( SkipHead == null );
-     }
+    public DepthBook ( boolean d )
+    {
+        this( d, false );
+    }
 
     /**
-     * Finds an OrderID of an order who's price is able to match.
-     * Will return a match that can qualify for price improvement if
-     * Exact is false, identical match if Exact is true, a or blank
-     * string if no such order qualifies.
+     * Initializes the PriceNode and SkipNode head references to null.
+     * Sets the Direction and the layout of each price point.
      *
-     * @param Price The price-point the calling function is looking to
-     * match on
-     * @param Exact If true, return matches with the exact
-     * same Price.  If false, return matches that would qualify for
-     * price improvement.  Meaning, buy price is greater than sellers'
-     * price or sell price is less than buyers'.
-     * @return OrderID of valid match, blank otherwise
+     * @param d The sort direction of the prices
+     * @param q True to keep each price point in a LevelQueue
      */
-    public String Match ( Double Price, Boolean Exact )
+    public DepthBook ( boolean d, boolean q )
     {
-        SkipNode SkipPtr = SkipHead;
-
-        while ( SkipPtr != null && ( Double.compare( SkipPtr.Price, Price ) != 0 &&
-            ( !PriceMatch( Price, SkipPtr.Price ) || Exact ) ) ){
-            SkipPtr = SkipPtr.Next;
-        }
-
-        if ( SkipPtr != null )
-        {
-            LastSkipNode = SkipPtr;
-            LastPriceNode = SkipPtr.Lower;
-            return LastPriceNode.OrderID;
-        }
-        
-        LastSkipNode = null;
-        LastPriceNode = null;
-
-        return "";
+        PriceHead = null;
+        Header = new SkipNode( MaxLevel );
+        Best = null;
+        Height = 1;
+        Update = new SkipNode[MaxLevel];
+        Seed = 0x2545F491;
+        Direction = d;
+        Queued = q;
+        Store = null;
+        OrderCount = 0;
+        LevelCount = 0;
+        Lots = 0;
+        PoolSize = 0;
+        FreeNodes = null;
+        FreeNodeCount = 0;
+        FreeLevels = new SkipNode[MaxLevel];
+        FreeLevelCount = 0;
+        PoolHits = 0;
+        PoolMisses = 0;
     }
 
     /**
-     * As the function Match, but continues where the search finished.
+     * Initializes an off-heap DepthBook, whose orders are records of
+     * an OrderStore.  Sets the Direction.
      *
-     * @param Price The price-point the calling function is looking to
-     * match on
-     * @param Exact If true, return matches with the exact
-     * same Price.  If false, return matches that would qualify for
-     * price improvement.  Meaning, buy price is greater than sellers'
-     * price or sell price is less than buyers'.
-     * @return OrderID of valid match, blank otherwise
+     * @param d The sort direction of the prices
+     * @param s The OrderStore holding the records
      */
-    public String MatchNext ( Double Price, Boolean Exact )
+    public DepthBook ( boolean d, OrderStore s )
     {
-        if ( LastPriceNode == null || LastSkipNode == null )
-            return "";
-        
-        if ( LastPriceNode.Next != null ) {
-            LastPriceNode = LastPriceNode.Next;
-            return LastPriceNode.OrderID;
-        }
-        
-        SkipNode SkipPtr = LastSkipNode.Next;
+        this( d, false );
+        Store = s;
+    }
 
-        while ( SkipPtr != null && ( Double.compare( SkipPtr.Price, Price ) != 0 &&
-            ( !PriceMatch( Price, SkipPtr.Price ) || Exact ) ) ){
-            SkipPtr = SkipPtr.Next;
-        }
+    /**
+     * Sets how many removed nodes of each kind are kept for reuse.
+     * Nodes already kept beyond a smaller size stay until taken.
+     *
+     * @param n Most PriceNodes, and most SkipNodes, kept; zero for none
+     */
+    public void setPoolSize ( int n )
+    {
+        PoolSize = Math.max( n, 0 );
+    }
 
-        if ( SkipPtr != null )
+    /**
+     * Add a PriceNode for the Order at the matching Price.  PriceNodes
+     * are added FIFO, and by Price order determined by Direction (false
+     * is descending and true is ascending.  Will also add a
+     * SkipNode for that Price if it does not exist.  The Order itself
+     * is kept so MatchOrder can hand it back.  In an off-heap DepthBook
+     * the Order must already have a record in the OrderStore, which is
+     * linked in its place instead.
+     *
+     * @param Price The Order's price, in ticks
+     * @param o The Order
+     * @return Handle to pass to RemoveOrder, null in an off-heap
+     * DepthBook
+     */
+    public PriceNode AddOrder ( long Price, Order o )
+    {
+        if ( Store != null )
         {
-            LastSkipNode = SkipPtr;
-            LastPriceNode = SkipPtr.Lower;
-            return LastPriceNode.OrderID;
+            Summarize( AddRecord( Price, o.getSlot() ), o );
+            return null;
         }
 
-        LastSkipNode = null;
-        LastPriceNode = null;
+        PriceNode Ptr = AddNode( Price, o );
+        Summarize( Ptr.Level, o );
 
-        return "";
+        return Ptr;
     }
 
     /**
-     * Gets a list of all OrderIDs in the DepthBook.  This will be used
-     * by the MatchingEngine to provide market data.
+     * Widens the summary of a price point to cover an order added.
      *
-     * @return String list of all OrderIDs
+     * @param SkipPtr The order's SkipNode
+     * @param o The Order
      */
-    public List getOrderIDs ()
+    private void Summarize ( SkipNode SkipPtr, Order o )
     {
-        List<String> OrderIDs = new ArrayList<>();
-        PriceNode Ptr = PriceHead;
-
-        while (Ptr != null)
-        {
-            OrderIDs.add( Ptr.OrderID );
-            Ptr = Ptr.Next;
-        }
+        SkipPtr.Currencies |= CurrencyBit( o.getCurrencyID() );
+        SkipPtr.MaxLots = Math.max( SkipPtr.MaxLots, o.getAvailableLots() );
+        SkipPtr.MinFill = Math.min( SkipPtr.MinFill, o.getMinFillLots() );
+    }
 
-        return OrderIDs;
+    /**
+     * @param ID Dictionary.Currencies ID of a Currency, or -1
+     * @return The bit of the ID, the 64th and later Currencies sharing
+     * the last one, every bit for -1
+     */
+    private static long CurrencyBit ( int ID )
+    {
+        return ( ID < 0 ) ? -1L : 1L << Math.min( ID, 63 );
     }
 
     /**
-     * Prints a list of SkipNodes and their PriceNodes underneath to
-     * standard out.  This is provided as a diagnostic tool for use
-     * during development cycles.
+     * Adds a PriceNode, for AddOrder outside an off-heap DepthBook.
+     *
+     * @param Price The Order's price, in ticks
+     * @param o The Order
+     * @return Handle to pass to RemoveOrder
      */
-    public void PrintNodes ()
+    private PriceNode AddNode ( long Price, Order o )
     {
-        SkipNode SkipPtr = SkipHead;
-        PriceNode Ptr = PriceHead;
+        SkipNode SkipPtr = FindLevel( Price );
 
-        Double Price;
+        PriceNode Ptr = TakeNode();
+        Ptr.Price = Price;
+        Ptr.OrderID = o.getOrderID();
+        Ptr.Owner = o;
 
-        while ( SkipPtr != null )
+        if ( Queued )
         {
-            Ptr = SkipPtr.Lower;
-            Price = Ptr.Price;
+            if ( SkipPtr == null )
+                SkipPtr = InsertLevel( Price );
 
-            SkipPtr.Print();
+            // a pooled SkipNode keeps its emptied LevelQueue
+            if ( SkipPtr.Queue == null )
+                SkipPtr.Queue = new LevelQueue();
 
-            while ( Ptr != null && Double.compare( Price, Ptr.Price) == 0 )
-            {
-                Ptr.Print();
-                Ptr = Ptr.Next;
-            }
+            SkipPtr.Queue.Add( Ptr, SkipPtr.Orders );
+            SkipPtr.Orders++;
+            Ptr.Level = SkipPtr;
+            OrderCount++;
+
+            return Ptr;
+        }
+
+        if ( SkipPtr == null )
+        {
+            // Didn't find our price point, make a new skip node and
+            // connect our order after the last order of the better price
+            SkipPtr = InsertLevel( Price );
+
+            if ( SkipPtr.Prev == null )
+                LinkPriceNode( null, Ptr );
+            else
+                LinkPriceNode( SkipPtr.Prev.Last, Ptr );
 
-            SkipPtr = SkipPtr.Next;
+            SkipPtr.Lower = Ptr;
+        }
+        else
+        {
+            // price found, append new order to end of matching prices
+            LinkPriceNode( SkipPtr.Last, Ptr );
         }
+
+        SkipPtr.Last = Ptr;
+        SkipPtr.Orders++;
+        Ptr.Level = SkipPtr;
+        OrderCount++;
+
+        return Ptr;
     }
 
     /**
-     * Price comparitor configured on whether the list is sorted
-     * ascending or descending.
+     * Links a record as the newest of its price point, for AddOrder in
+     * an off-heap DepthBook.
      *
-     * @param Price Target price
-     * @param NodePrice Contra price
-     * @return True if Price is before NodePrice, false if it is after
+     * @param Price The Order's price, in ticks
+     * @param Slot The record, its Prev and Next unset
+     * @return The record's SkipNode
      */
-    private Boolean PriceMatch ( Double Price, Double NodePrice )
+    private SkipNode AddRecord ( long Price, int Slot )
     {
-        if ( Direction )
-            return ( Double.compare( Price, NodePrice ) > 0 );
-        else
-            return ( Double.compare( Price, NodePrice ) < 0 );
-    }
-
+        SkipNode SkipPtr = FindLevel( Price );
 
-}
+        if ( SkipPtr == null )
+        {
+            SkipPtr = InsertLevel( Price );
+            SkipPtr.Oldest = Slot;
+        }
+        else
+        {
+            Store.setNext( SkipPtr.Newest, Slot );
+            Store.setPrev( Slot, SkipPtr.Newest );
+        }
+
+        SkipPtr.Newest = Slot;
+        SkipPtr.Orders++;
+        OrderCount++;
+
+        return SkipPtr;
+    }
+
+    /**
+     * Unlinks a record from its price point, for RemoveOrder in an
+     * off-heap DepthBook.  A record has no reference to its SkipNode, so
+     * this searches the skip levels, in logarithmic time.
+     *
+     * @param Price The Order's price, in ticks
+     * @param Slot The record
+     */
+    private void RemoveRecord ( long Price, int Slot )
+    {
+        SkipNode SkipPtr = FindLevel( Price );
+
+        if ( SkipPtr == null )
+            return;
+
+        int Prev = Store.getPrev( Slot );
+        int Next = Store.getNext( Slot );
+
+        if ( Prev == -1 )
+            SkipPtr.Oldest = Next;
+        else
+            Store.setNext( Prev, Next );
+
+        if ( Next == -1 )
+            SkipPtr.Newest = Prev;
+        else
+            Store.setPrev( Next, Prev );
+
+        SkipPtr.Orders--;
+        OrderCount--;
+
+        if ( SkipPtr.Orders == 0 )
+            RemoveLevel( SkipPtr );
+    }
+
+    /**
+     * Removes the PriceNode with matching Price and OrderID.  Prefer
+     * RemoveOrder with the handle returned by AddOrder, as this has to
+     * search the orders at Price.
+     *
+     * @param Price The Order's price, in ticks
+     * @param OrderID The Order's ID
+     */
+    public void RemoveOrder ( long Price, String OrderID )
+    {
+        SkipNode SkipPtr = FindLevel( Price );
+
+        if ( SkipPtr == null )
+            return;
+
+        if ( Store != null )
+        {
+            for ( int Slot = SkipPtr.Oldest; Slot != -1; Slot = Store.getNext( Slot ) )
+            {
+                if ( Store.getOrderID( Slot ).equals(OrderID) )
+                {
+                    RemoveRecord( Price, Slot );
+                    return;
+                }
+            }
+
+            return;
+        }
+
+        if ( Queued )
+        {
+            LevelQueue Queue = SkipPtr.Queue;
+
+            for ( int i = Queue.Find( Queue.Head ); i - Queue.Tail < 0; i = Queue.Find( i + 1 ) )
+            {
+                if ( Queue.OrderIDs[i & Queue.Mask].equals(OrderID) )
+                {
+                    RemoveOrder( Queue.Nodes[i & Queue.Mask] );
+                    return;
+                }
+            }
+
+            return;
+        }
+
+        PriceNode Ptr = SkipPtr.Lower;
+
+        while ( Ptr != SkipPtr.Last && !Ptr.OrderID.equals(OrderID) )
+            Ptr = Ptr.Next;
+
+        if ( Ptr.OrderID.equals(OrderID) )
+            RemoveOrder( Ptr );
+    }
+
+    /**
+     * Removes a PriceNode returned by AddOrder.  Will remove the
+     * SkipNode above if there are no more PriceNodes underneath it.
+     * Only removing the last order of a price point has to search
+     * the skip levels, otherwise this takes constant time.
+     *
+     * The removed nodes go back to the pools at once, and Ptr must not
+     * be used again.  A Cursor has already stepped past the order it
+     * last matched, so MatchNextOrder carries on.
+     *
+     * @param Ptr The PriceNode to remove
+     */
+    public void RemoveOrder ( PriceNode Ptr )
+    {
+        SkipNode SkipPtr = Ptr.Level;
+
+        // already removed
+        if ( SkipPtr == null )
+            return;
+
+        Ptr.Level = null;
+        Ptr.Owner = null;
+        SkipPtr.Orders--;
+        OrderCount--;
+
+        if ( Queued )
+        {
+            SkipPtr.Queue.Remove( Ptr );
+
+            if ( SkipPtr.Orders == 0 )
+            {
+                FindLevel( SkipPtr.Price );
+                RemoveLevel( SkipPtr );
+            }
+
+            GiveNode( Ptr );
+            return;
+        }
+
+        if ( Ptr.Prev != null )
+            Ptr.Prev.Next = Ptr.Next;
+        else
+            PriceHead = Ptr.Next;
+
+        if ( Ptr.Next != null )
+            Ptr.Next.Prev = Ptr.Prev;
+
+        if ( SkipPtr.Lower == SkipPtr.Last )
+        {
+            // no matching price nodes, delete skip node
+            FindLevel( SkipPtr.Price );
+            RemoveLevel( SkipPtr );
+        }
+        else if ( SkipPtr.Lower == Ptr )
+        {
+            // next node price match, make it lower
+            SkipPtr.Lower = Ptr.Next;
+        }
+        else if ( SkipPtr.Last == Ptr )
+        {
+            SkipPtr.Last = Ptr.Prev;
+        }
+
+        GiveNode( Ptr );
+    }
+
+    /**
+     * Removes an Order added with AddOrder, by its handle or, in an
+     * off-heap DepthBook, its record.
+     *
+     * @param o The Order
+     */
+    public void RemoveOrder ( Order o )
+    {
+        if ( Store != null )
+            RemoveRecord( o.getPriceTicks(), o.getSlot() );
+        else
+            RemoveOrder( o.getBookNode() );
+    }
+
+    /**
+     * Determines if the book is empty.
+     *
+     * @return True if there are no SkipNodes, false otherwise
+     */
+     public Boolean IsEmpty () {
+         return ( Best == null );
+     }
+
+    /**
+     * @return Number of orders in the book
+     */
+    public int getOrders ()
+    {
+        return OrderCount;
+    }
+
+    /**
+     * @return Number of price points in the book
+     */
+    public int getLevels ()
+    {
+        return LevelCount;
+    }
+
+    /**
+     * @return Number of PriceNodes and SkipNodes taken from the pools
+     */
+    public long getPoolHits ()
+    {
+        return PoolHits;
+    }
+
+    /**
+     * @return Number of PriceNodes and SkipNodes allocated because
+     * their pool was empty
+     */
+    public long getPoolMisses ()
+    {
+        return PoolMisses;
+    }
+
+    /**
+     * @return Price of the best price point, in ticks, or zero if the
+     * book is empty
+     */
+    public long getBestPrice ()
+    {
+        return ( Best == null ) ? 0 : Best.Price;
+    }
+
+    /**
+     * Checks the best price point alone, so a price that cannot match
+     * costs the same however deep the book is.
+     *
+     * @param Price The contra price, in ticks
+     * @return True if an order at Price would match the best price
+     * point, false if it would not or the book is empty
+     */
+    public boolean Crosses ( long Price )
+    {
+        return Best != null && ( Best.Price == Price || PriceMatch( Price, Best.Price ) );
+    }
+
+    /**
+     * @return Available quantity resting in the book, in lots
+     */
+    public long getLots ()
+    {
+        return Lots;
+    }
+
+    /**
+     * Adjusts the available quantity resting at an order's price point
+     * and in the book.  The book does not know quantities, so the
+     * MatchingEngine reports every order entered, filled or removed,
+     * while the order is still in the book.
+     *
+     * @param Ptr Handle of the order, returned by AddOrder
+     * @param Delta Lots added, negative for lots removed
+     */
+    public void ChangeLots ( PriceNode Ptr, long Delta )
+    {
+        Ptr.Level.Lots += Delta;
+        Lots += Delta;
+    }
+
+    /**
+     * As ChangeLots with a handle, for an Order added with AddOrder.
+     * In an off-heap DepthBook the price point is found by the Order's
+     * price, at once if it is the best.
+     *
+     * @param o The Order, still in the book
+     * @param Delta Lots added, negative for lots removed
+     */
+    public void ChangeLots ( Order o, long Delta )
+    {
+        if ( Store == null )
+        {
+            ChangeLots( o.getBookNode(), Delta );
+            return;
+        }
+
+        long Price = o.getPriceTicks();
+        SkipNode SkipPtr = ( Best != null && Best.Price == Price ) ? Best : FindLevel( Price );
+
+        SkipPtr.Lots += Delta;
+        Lots += Delta;
+    }
+
+    /**
+     * Copies the aggregated depth of the book, best price first, one
+     * entry per price point, up to the length of the arrays.  Reads
+     * one SkipNode per price point and allocates nothing.
+     *
+     * @param Prices Receives the Price of each price point, in ticks
+     * @param Quantities Receives the available quantity of each price
+     * point, in lots
+     * @param Counts Receives the number of orders at each price point,
+     * or null if not wanted
+     * @return Number of price points copied
+     */
+    public int getDepth ( long[] Prices, long[] Quantities, int[] Counts )
+    {
+        int n = 0;
+
+        for ( SkipNode SkipPtr = Best; SkipPtr != null && n < Prices.length;
+              SkipPtr = SkipPtr.Forward[0] )
+        {
+            Prices[n] = SkipPtr.Price;
+            Quantities[n] = SkipPtr.Lots;
+
+            if ( Counts != null )
+                Counts[n] = SkipPtr.Orders;
+
+            n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * Copies the price and available quantity of every order, best
+     * price first and oldest first within a price, as getOrderList
+     * lists them, up to the length of the arrays.  An off-heap
+     * DepthBook reads each record in place, so nothing is allocated.
+     *
+     * @param Prices Receives the Price of each order, in ticks
+     * @param Quantities Receives the available quantity of each order,
+     * in lots
+     * @return Number of orders copied
+     */
+    public int getOrderDepth ( long[] Prices, long[] Quantities )
+    {
+        int n = 0;
+
+        if ( Store != null )
+        {
+            for ( SkipNode SkipPtr = Best; SkipPtr != null; SkipPtr = SkipPtr.Forward[0] )
+                for ( int Slot = SkipPtr.Oldest; Slot != -1 && n < Prices.length; Slot = Store.getNext( Slot ) )
+                {
+                    Prices[n] = SkipPtr.Price;
+                    Quantities[n] = Store.getAvailableLots( Slot );
+                    n++;
+                }
+
+            return n;
+        }
+
+        for ( PriceNode Ptr = FirstNode(); Ptr != null && n < Prices.length; Ptr = NextNode( Ptr ) )
+        {
+            Prices[n] = Ptr.Owner.getPriceTicks();
+            Quantities[n] = Ptr.Owner.getAvailableLots();
+            n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * @param Price A price point, in ticks
+     * @return Available quantity resting at Price, in lots, zero if the
+     * book has no such price point
+     */
+    public long getLevelLots ( long Price )
+    {
+        SkipNode SkipPtr = ( Best != null && Best.Price == Price ) ? Best : FindLevel( Price );
+
+        return ( SkipPtr == null ) ? 0 : SkipPtr.Lots;
+    }
+
+    /**
+     * Totals the available quantity an order at Price could reach,
+     * reading one SkipNode per price point it crosses.  The basis of a
+     * cost to fill or fill or kill check; orders the contra order
+     * could not trade with, such as another currency or a larger
+     * MinFillQuantity, are still counted.
+     *
+     * @param Price The contra price, in ticks
+     * @param Limit Stop counting once this many lots are reached
+     * @return Lots resting at crossing price points, at most Limit if
+     * that was reached
+     */
+    public long getCrossingLots ( long Price, long Limit )
+    {
+        long Total = 0;
+
+        for ( SkipNode SkipPtr = Best; SkipPtr != null && Total < Limit &&
+              ( SkipPtr.Price == Price || PriceMatch( Price, SkipPtr.Price ) );
+              SkipPtr = SkipPtr.Forward[0] )
+            Total += SkipPtr.Lots;
+
+        return Math.min( Total, Limit );
+    }
+
+    /**
+     * Finds the Order of an order who's price is able to match.
+     * Will return a match that can qualify for price improvement if
+     * Exact is false, identical match if Exact is true, or null if no
+     * such order qualifies.  An off-heap DepthBook returns a copy
+     * loaded from the record and taken from OrderPool, for the caller
+     * to give back.
+     *
+     * @param Price The price-point, in ticks, the calling function is
+     * looking to match on
+     * @param Exact If true, return matches with the exact
+     * same Price.  If false, return matches that would qualify for
+     * price improvement.  Meaning, buy price is greater than sellers'
+     * price or sell price is less than buyers'.
+     * @param c The caller's Cursor, reset to keep the place
+     * @return Order of valid match, null otherwise
+     */
+    public Order MatchOrder ( long Price, boolean Exact, Cursor c )
+    {
+        return MatchFirst( Price, Exact, c ) ? MatchedOwner( c ) : null;
+    }
+
+    /**
+     * As the function MatchOrder, but continues where the search
+     * finished, from the caller's Cursor.
+     *
+     * @param Price The price-point, in ticks, the calling function is
+     * looking to match on
+     * @param Exact If true, return matches with the exact same Price
+     * @param c The Cursor of the last MatchOrder in this book
+     * @return Order of valid match, null otherwise
+     */
+    public Order MatchNextOrder ( long Price, boolean Exact, Cursor c )
+    {
+        return MatchFollowing( Price, Exact, c ) ? MatchedOwner( c ) : null;
+    }
+
+    /**
+     * Gets a list of all OrderIDs in the DepthBook.  This will be used
+     * by the MatchingEngine to provide market data.
+     *
+     * @return String list of all OrderIDs
+     */
+    public List getOrderIDs ()
+    {
+        List<String> OrderIDs = new ArrayList<>();
+
+        if ( Store != null )
+        {
+            for ( SkipNode SkipPtr = Best; SkipPtr != null; SkipPtr = SkipPtr.Forward[0] )
+                for ( int Slot = SkipPtr.Oldest; Slot != -1; Slot = Store.getNext( Slot ) )
+                    OrderIDs.add( Store.getOrderID( Slot ) );
+
+            return OrderIDs;
+        }
+
+        PriceNode Ptr = FirstNode();
+
+        while (Ptr != null)
+        {
+            OrderIDs.add( Ptr.OrderID );
+            Ptr = NextNode( Ptr );
+        }
+
+        return OrderIDs;
+    }
+
+    /**
+     * Gets a list of all Orders added with AddOrder, best price first
+     * and oldest first within a price.  An off-heap DepthBook loads a
+     * new copy of each record, which the caller may keep.
+     *
+     * @return List of the Orders
+     */
+    public List<Order> getOrderList ()
+    {
+        List<Order> Orders = new ArrayList<>( OrderCount );
+
+        if ( Store != null )
+        {
+            for ( SkipNode SkipPtr = Best; SkipPtr != null; SkipPtr = SkipPtr.Forward[0] )
+                for ( int Slot = SkipPtr.Oldest; Slot != -1; Slot = Store.getNext( Slot ) )
+                    Orders.add( Store.Load( Slot, new Order() ) );
 
+            return Orders;
+        }
+
+        PriceNode Ptr = FirstNode();
+
+        while (Ptr != null)
+        {
+            Orders.add( Ptr.Owner );
+            Ptr = NextNode( Ptr );
+        }
+
+        return Orders;
+    }
+
+    /**
+     * Prints a list of SkipNodes and their PriceNodes underneath to
+     * standard out.  This is provided as a diagnostic tool for use
+     * during development cycles.
+     */
+    public void PrintNodes ()
+    {
+        SkipNode SkipPtr = Header.Forward[0];
+        PriceNode Ptr;
+
+        while ( SkipPtr != null )
+        {
+            SkipPtr.Print();
+
+            if ( Store != null )
+            {
+                for ( int Slot = SkipPtr.Oldest; Slot != -1; Slot = Store.getNext( Slot ) )
+                    System.out.println ( "-->RS " + Store.getOrderID( Slot ) + " " + SkipPtr.Price );
+
+                SkipPtr = SkipPtr.Forward[0];
+                continue;
+            }
+
+            for ( Ptr = LevelFirst( SkipPtr ); Ptr != null && Ptr.Level == SkipPtr;
+                  Ptr = NextNode( Ptr ) )
+                Ptr.Print();
+
+            SkipPtr = SkipPtr.Forward[0];
+        }
+    }
+
+    /**
+     * @return The PriceNode of the best price that arrived first, null
+     * if the book is empty
+     */
+    private PriceNode FirstNode ()
+    {
+        return ( Best == null ) ? null : LevelFirst( Best );
+    }
+
+    /**
+     * @param SkipPtr A SkipNode in the book
+     * @return The oldest PriceNode of SkipPtr
+     */
+    private PriceNode LevelFirst ( SkipNode SkipPtr )
+    {
+        if ( !Queued )
+            return SkipPtr.Lower;
+
+        LevelQueue Queue = SkipPtr.Queue;
+
+        return ( Queue.Head == Queue.Tail ) ? null : Queue.Nodes[Queue.Head & Queue.Mask];
+    }
+
+    /**
+     * Steps through every PriceNode of the book in priority order.
+     *
+     * @param Ptr A PriceNode in the book
+     * @return The PriceNode after Ptr, null if Ptr is the last
+     */
+    private PriceNode NextNode ( PriceNode Ptr )
+    {
+        if ( !Queued )
+            return Ptr.Next;
+
+        LevelQueue Queue = Ptr.Level.Queue;
+        int i = Queue.Find( Ptr.Slot + 1 );
+
+        if ( i != Queue.Tail )
+            return Queue.Nodes[i & Queue.Mask];
+
+        return ( Ptr.Level.Forward[0] == null ) ? null : LevelFirst( Ptr.Level.Forward[0] );
+    }
+
+    /**
+     * Finds the SkipNode for a Price.  Fills Update with the last
+     * SkipNode before Price on every level in use, which is where
+     * InsertLevel and RemoveLevel need to relink.
+     *
+     * @param Price Target price
+     * @return The SkipNode with Price, null if there is none
+     */
+    private SkipNode FindLevel ( long Price )
+    {
+        SkipNode SkipPtr = Header;
+
+        for ( int i = Height - 1; i >= 0; i-- )
+        {
+            while ( SkipPtr.Forward[i] != null && PriceMatch( Price, SkipPtr.Forward[i].Price ) )
+                SkipPtr = SkipPtr.Forward[i];
+
+            Update[i] = SkipPtr;
+        }
+
+        SkipPtr = SkipPtr.Forward[0];
+
+        if ( SkipPtr != null && SkipPtr.Price == Price )
+            return SkipPtr;
+
+        return null;
+    }
+
+    /**
+     * Creates a SkipNode for Price and links it on a random number of
+     * levels.  Must directly follow a FindLevel for the same Price.
+     *
+     * @param Price The new price point
+     * @return The new SkipNode
+     */
+    private SkipNode InsertLevel ( long Price )
+    {
+        int Levels = RandomLevels();
+
+        if ( Levels > Height )
+        {
+            for ( int i = Height; i < Levels; i++ )
+                Update[i] = Header;
+
+            Height = Levels;
+        }
+
+        SkipNode SkipPtr = TakeLevel( Levels );
+        SkipPtr.Price = Price;
+        LevelCount++;
+
+        for ( int i = 0; i < Levels; i++ )
+        {
+            SkipPtr.Forward[i] = Update[i].Forward[i];
+            Update[i].Forward[i] = SkipPtr;
+        }
+
+        if ( Update[0] != Header )
+            SkipPtr.Prev = Update[0];
+
+        if ( SkipPtr.Forward[0] != null )
+            SkipPtr.Forward[0].Prev = SkipPtr;
+
+        Best = Header.Forward[0];
+
+        return SkipPtr;
+    }
+
+    /**
+     * Unlinks a SkipNode from every level and gives it back to the
+     * pool.  Must directly follow a FindLevel for the same Price.
+     *
+     * @param SkipPtr The SkipNode to unlink
+     */
+    private void RemoveLevel ( SkipNode SkipPtr )
+    {
+        for ( int i = 0; i < SkipPtr.Forward.length; i++ )
+        {
+            if ( Update[i].Forward[i] == SkipPtr )
+                Update[i].Forward[i] = SkipPtr.Forward[i];
+        }
+
+        if ( SkipPtr.Forward[0] != null )
+            SkipPtr.Forward[0].Prev = SkipPtr.Prev;
+
+        Best = Header.Forward[0];
+        LevelCount--;
+
+        while ( Height > 1 && Header.Forward[Height - 1] == null )
+            Height--;
+
+        GiveLevel( SkipPtr );
+    }
+
+    /**
+     * @return A PriceNode from the pool, or a new one, its links null
+     */
+    private PriceNode TakeNode ()
+    {
+        PriceNode Ptr = FreeNodes;
+
+        if ( Ptr == null )
+        {
+            PoolMisses++;
+            return new PriceNode();
+        }
+
+        FreeNodes = Ptr.Prev;
+        FreeNodeCount--;
+        PoolHits++;
+        Ptr.Prev = null;
+
+        return Ptr;
+    }
+
+    /**
+     * Keeps a removed PriceNode for reuse, if the pool has room.
+     *
+     * @param Ptr The PriceNode, removed
+     */
+    private void GiveNode ( PriceNode Ptr )
+    {
+        if ( FreeNodeCount >= PoolSize )
+            return;
+
+        Ptr.Next = null;
+        Ptr.OrderID = "";
+        Ptr.Prev = FreeNodes;
+        FreeNodes = Ptr;
+        FreeNodeCount++;
+    }
+
+    /**
+     * @param Levels The number of levels the SkipNode is linked on
+     * @return A SkipNode with Levels levels from the pool, or a new
+     * one, empty and unlinked
+     */
+    private SkipNode TakeLevel ( int Levels )
+    {
+        SkipNode SkipPtr = FreeLevels[Levels - 1];
+
+        if ( SkipPtr == null )
+        {
+            PoolMisses++;
+            return new SkipNode( Levels );
+        }
+
+        FreeLevels[Levels - 1] = SkipPtr.Prev;
+        FreeLevelCount--;
+        PoolHits++;
+        SkipPtr.Prev = null;
+
+        return SkipPtr;
+    }
+
+    /**
+     * Empties a removed SkipNode and keeps it for reuse, if the pool
+     * has room.  Its LevelQueue, all tombstones by now, is kept with
+     * it.
+     *
+     * @param SkipPtr The SkipNode, removed
+     */
+    private void GiveLevel ( SkipNode SkipPtr )
+    {
+        if ( FreeLevelCount >= PoolSize )
+            return;
+
+        Arrays.fill( SkipPtr.Forward, null );
+        SkipPtr.Lower = SkipPtr.Last = null;
+        SkipPtr.Lots = 0;
+        SkipPtr.Oldest = SkipPtr.Newest = -1;
+        SkipPtr.Currencies = 0;
+        SkipPtr.MaxLots = 0;
+        SkipPtr.MinFill = Long.MAX_VALUE;
+
+        if ( SkipPtr.Queue != null )
+            SkipPtr.Queue.Head = SkipPtr.Queue.Tail = 0;
+
+        SkipPtr.Prev = FreeLevels[SkipPtr.Forward.length - 1];
+        FreeLevels[SkipPtr.Forward.length - 1] = SkipPtr;
+        FreeLevelCount++;
+    }
+
+    /**
+     * Links a PriceNode into the list of all PriceNodes.
+     *
+     * @param Prev The PriceNode to link after, null for the head
+     * @param Ptr The PriceNode to link
+     */
+    private void LinkPriceNode ( PriceNode Prev, PriceNode Ptr )
+    {
+        if ( Prev == null )
+        {
+            Ptr.Next = PriceHead;
+            PriceHead = Ptr;
+        }
+        else
+        {
+            Ptr.Next = Prev.Next;
+            Prev.Next = Ptr;
+        }
+
+        if ( Ptr.Next != null )
+            Ptr.Next.Prev = Ptr;
+
+        Ptr.Prev = Prev;
+    }
+
+    /**
+     * @param c The Cursor of the last match, which must exist
+     * @return Order of the last match
+     */
+    private Order MatchedOwner ( Cursor c )
+    {
+        if ( Store != null )
+            return Store.Load( c.MatchedSlot );
+
+        if ( Queued )
+            return c.MatchedLevel.Queue.Owners[c.MatchedSlot & c.MatchedLevel.Queue.Mask];
+
+        return c.Matched.Owner;
+    }
+
+    /**
+     * Finds the first order able to match, for MatchOrder.
+     *
+     * @param Price The price-point, in ticks, the calling function is
+     * looking to match on
+     * @param Exact If true, only the exact same Price qualifies
+     * @param c The Cursor, reset to the first order
+     * @return True if a valid match was found
+     */
+    private boolean MatchFirst ( long Price, boolean Exact, Cursor c )
+    {
+        if ( Exact )
+            c.Level = FindLevel( Price );
+        else
+            c.Level = Best;
+
+        c.Fresh = true;
+
+        return MatchFollowing( Price, Exact, c );
+    }
+
+    /**
+     * Takes the Cursor's next order if its price qualifies, passing
+     * over any its filter rules out, then steps the Cursor past it,
+     * for MatchOrder and MatchNextOrder.
+     *
+     * @param Price The price-point, in ticks, the calling function is
+     * looking to match on
+     * @param Exact If true, only the exact same Price qualifies
+     * @param c The Cursor
+     * @return True if a valid match was found
+     */
+    private boolean MatchFollowing ( long Price, boolean Exact, Cursor c )
+    {
+        while ( true )
+        {
+            SkipNode SkipPtr = c.Level;
+
+            // SkipNodes are sorted best price first, so if this one does
+            // not qualify then none of the following ones will, and an
+            // exact match ends with its price point
+            if ( SkipPtr == null || ( SkipPtr.Price != Price &&
+                 ( Exact || !PriceMatch( Price, SkipPtr.Price ) ) ) )
+            {
+                c.Level = null;
+                return false;
+            }
+
+            // no order here could trade, go straight to the next price
+            if ( c.Fresh && c.Currency != null &&
+                 ( ( SkipPtr.Currencies & c.CurrencyBit ) == 0 ||
+                   SkipPtr.MaxLots < c.MinFillLots || SkipPtr.MinFill > c.AvailableLots ) )
+            {
+                c.Level = SkipPtr.Forward[0];
+                continue;
+            }
+
+            // a filtered walk from the oldest order sums up the price
+            // point as it goes, to make its summary exact at the end
+            if ( c.Fresh )
+            {
+                c.Whole = ( c.Currency != null );
+                c.SeenCurrencies = 0;
+                c.SeenMaxLots = 0;
+                c.SeenMinFill = Long.MAX_VALUE;
+            }
+
+            boolean Eligible;
+
+            c.MatchedLevel = SkipPtr;
+
+            // Head of a price point in the book is never a tombstone
+            if ( Store != null )
+            {
+                int Slot = c.Fresh ? SkipPtr.Oldest : c.Slot;
+                int Next = Store.getNext( Slot );
+
+                Eligible = c.Currency == null ||
+                    Store.Eligible( Slot, c.CurrencyID, c.MinFillLots, c.AvailableLots );
+
+                if ( c.Whole )
+                    See( c, Store.getCurrencyID( Slot ), Store.getAvailableLots( Slot ),
+                         Store.getMinFillLots( Slot ) );
+
+                c.MatchedSlot = Slot;
+                c.Slot = Next;
+                c.Fresh = ( Next == -1 );
+            }
+            else if ( Queued )
+            {
+                LevelQueue Queue = SkipPtr.Queue;
+                int i = c.Fresh ? Queue.Head : c.Slot;
+                int Next = Queue.Find( i + 1 );
+
+                Order o = Queue.Owners[i & Queue.Mask];
+
+                Eligible = Eligible( o, c );
+
+                if ( c.Whole )
+                    See( c, o.getCurrencyID(), o.getAvailableLots(), o.getMinFillLots() );
+
+                c.MatchedSlot = i;
+                c.Slot = Next;
+                c.Fresh = ( Next == Queue.Tail );
+            }
+            else
+            {
+                PriceNode Ptr = c.Fresh ? SkipPtr.Lower : c.Next;
+                PriceNode Next = Ptr.Next;
+
+                Eligible = Eligible( Ptr.Owner, c );
+
+                if ( c.Whole )
+                    See( c, Ptr.Owner.getCurrencyID(), Ptr.Owner.getAvailableLots(),
+                         Ptr.Owner.getMinFillLots() );
+
+                c.Matched = Ptr;
+                c.Next = ( Next != null && Next.Level == SkipPtr ) ? Next : null;
+                c.Fresh = ( c.Next == null );
+            }
+
+            // the price point is exhausted, carry on at the next one
+            if ( c.Fresh )
+            {
+                if ( c.Whole )
+                {
+                    SkipPtr.Currencies = c.SeenCurrencies;
+                    SkipPtr.MaxLots = c.SeenMaxLots;
+                    SkipPtr.MinFill = c.SeenMinFill;
+                }
+
+                c.Level = SkipPtr.Forward[0];
+            }
+
+            if ( Eligible )
+                return true;
+        }
+    }
+
+    /**
+     * @param o A resting Order
+     * @param c The Cursor
+     * @return True if the Cursor has no filter, or o could trade with
+     * the contra order of the filter
+     */
+    private static boolean Eligible ( Order o, Cursor c )
+    {
+        return c.Currency == null ||
+               ( o.getCurrencyID() == c.CurrencyID &&
+                 o.getAvailableLots() >= c.MinFillLots &&
+                 o.getMinFillLots() <= c.AvailableLots );
+    }
+
+    /**
+     * Adds an order visited by a filtered walk to the Cursor's sum of
+     * its price point.
+     *
+     * @param c The Cursor
+     * @param CurrencyID Dictionary.Currencies ID of the order's Currency
+     * @param AvailableLots The order's AvailableQuantity, in lots
+     * @param MinFillLots The order's MinFillQuantity, in lots
+     */
+    private static void See ( Cursor c, int CurrencyID, long AvailableLots, long MinFillLots )
+    {
+        c.SeenCurrencies |= CurrencyBit( CurrencyID );
+        c.SeenMaxLots = Math.max( c.SeenMaxLots, AvailableLots );
+        c.SeenMinFill = Math.min( c.SeenMinFill, MinFillLots );
+    }
+
+    /**
+     * Picks how many levels a new SkipNode is linked on.  Each extra
+     * level is taken with a one in four chance.
+     *
+     * @return Number of levels, between one and MaxLevel
+     */
+    private int RandomLevels ()
+    {
+        int Levels = 1;
+
+        // xorshift, no need for a shared Random in the matching path
+        Seed ^= Seed << 13;
+        Seed ^= Seed >>> 17;
+        Seed ^= Seed << 5;
+
+        int Bits = Seed;
+
+        while ( Levels < MaxLevel && ( Bits & 3 ) == 0 )
+        {
+            Levels++;
+            Bits >>>= 2;
+        }
+
+        return Levels;
+    }
+
+    /**
+     * Price comparitor configured on whether the list is sorted
+     * ascending or descending.
+     *
+     * @param Price Target price
+     * @param NodePrice Contra price
+     * @return True if Price sorts after NodePrice, false if it is the
+     * same or sorts before
+     */
+    private boolean PriceMatch ( long Price, long NodePrice )
+    {
+        if ( Direction )
+            return ( Price > NodePrice );
+        else
+            return ( Price < NodePrice );
+    }
+
+
+}
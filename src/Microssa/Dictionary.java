@@ -0,0 +1,122 @@
+/*
+ * Dictionary.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every name a small int the first time it is seen: 0 for the
+ * first name, 1 for the next, and so on.  There is one Dictionary per
+ * kind of name.  An Order takes the ID of its Symbol from Symbols and
+ * of its Currency from Currencies when they are set, so the
+ * MatchingEngine can compare and hash Symbols as ints, and a DepthBook
+ * can compare Currencies as ints and keep the Currencies of a price
+ * point as bits.
+ *
+ * IDs are never reused or forgotten, and are only good for the life of
+ * the process; the Journal and Checkpoint keep Symbols and Currencies
+ * as text.  Safe to use from every Thread.
+ *
+ * @see Order
+ * @see OrderIndex
+ * @see OrderStore
+ * @see DepthBook
+ */
+public class Dictionary {
+
+    /** IDs of Symbols. */
+    public static final Dictionary Symbols = new Dictionary();
+
+    /** IDs of Currencies. */
+    public static final Dictionary Currencies = new Dictionary();
+
+    /** IDs given so far.  Key is name. */
+    private final ConcurrentHashMap<String, Integer> IDs = new ConcurrentHashMap<>();
+
+    /**
+     * Name of each ID given so far.  Replaced by a longer copy when
+     * full; an ID is only handed out once its name is in place.
+     */
+    private volatile String[] Names = new String[64];
+
+    /**
+     * Only Symbols and Currencies are made.
+     */
+    private Dictionary ()
+    {
+    }
+
+    /**
+     * @param Name The name, or null
+     * @return The ID of Name, given now if it has none, -1 for null
+     */
+    public int getID ( String Name )
+    {
+        if ( Name == null )
+            return -1;
+
+        Integer ID = IDs.get( Name );
+
+        if ( ID == null )
+        {
+            synchronized ( IDs )
+            {
+                ID = IDs.get( Name );
+
+                if ( ID == null )
+                {
+                    ID = IDs.size();
+
+                    if ( ID == Names.length )
+                        Names = Arrays.copyOf( Names, ID * 2 );
+
+                    Names[ID] = Name;
+                    IDs.put( Name, ID );
+                }
+            }
+        }
+
+        return ID;
+    }
+
+    /**
+     * Looks up a name without giving it an ID.
+     *
+     * @param Name The name, or null
+     * @return The ID of Name, or -1 if it has none or is null
+     */
+    public int FindID ( String Name )
+    {
+        Integer ID = ( Name == null ) ? null : IDs.get( Name );
+
+        return ( ID == null ) ? -1 : ID;
+    }
+
+    /**
+     * @param ID An ID given by getID, or -1
+     * @return The name with that ID, null for -1
+     */
+    public String getName ( int ID )
+    {
+        return ( ID < 0 ) ? null : Names[ID];
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Engine.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import quickfix.SessionID;
+
+import Microssa.Database;
+import Microssa.FIXInterface;
+import Microssa.Order;
+import Microssa.OrderSocket;
+import Microssa.PriceSocket;
+
+/**
+ * What the interfaces see of a matching engine: order requests, market
+ * data requests, order lookups, and the references replies go out
+ * through.  A MatchingEngine applies each request on the calling
+ * Thread; a ShardedMatchingEngine hands it to the shard owning its
+ * Symbol and returns at once.
+ *
+ * @see MatchingEngine
+ * @see ShardedMatchingEngine
+ */
+public interface Engine {
+
+    /**
+     * Enters a new Order, not from a FIX session.
+     *
+     * @param o The new Order
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String NewOrder ( Order o ) throws IOException;
+
+    /**
+     * Enters a new Order.
+     *
+     * @param o The new Order
+     * @param session FIX session, or null
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String NewOrder ( Order o, SessionID session ) throws IOException;
+
+    /**
+     * Cancels a resting Order, not from a FIX session.
+     *
+     * @param o The Order to cancel
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String CancelOrder ( Order o ) throws IOException;
+
+    /**
+     * Cancels a resting Order.
+     *
+     * @param o The Order to cancel
+     * @param session FIX session, or null
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String CancelOrder ( Order o, SessionID session ) throws IOException;
+
+    /**
+     * Amends a resting Order with the same OrderID, not from a FIX
+     * session.
+     *
+     * @param o The amended Order
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String AmendOrder ( Order o ) throws IOException;
+
+    /**
+     * Amends a resting Order.
+     *
+     * @param o The amended Order
+     * @param OrigOrderID The OrderID being amended, blank if unchanged
+     * @param session FIX session, or null
+     * @return An error message, or blank if successful
+     * @throws IOException Passthrough from Logger
+     */
+    String AmendOrder ( Order o, String OrigOrderID, SessionID session ) throws IOException;
+
+    /**
+     * Subscribes a PriceSocket connection to a Symbol.
+     *
+     * @param Symbol The name to subscribe
+     * @param Connection The PriceSocket connection
+     */
+    void MarketDataSubscribe ( String Symbol, int Connection );
+
+    /**
+     * Sends a PriceSocket connection the whole book of a Symbol again.
+     *
+     * @param Symbol The name to send
+     * @param Connection The PriceSocket connection
+     */
+    void MarketDataRefresh ( String Symbol, int Connection );
+
+    /**
+     * Unsubscribes a PriceSocket connection from a Symbol.
+     *
+     * @param Symbol The name to unsubscribe
+     * @param Connection The PriceSocket connection
+     */
+    void MarketDataUnsubscribe ( String Symbol, int Connection );
+
+    /**
+     * Looks up a resting Order.
+     *
+     * @param OrderID The OrderID
+     * @param Symbol The Symbol
+     * @return The Order, or null if not found
+     * @throws IOException If the lookup could not be answered in time
+     */
+    Order FindOrder ( String OrderID, String Symbol ) throws IOException;
+
+    /**
+     * Sets the OrderSocket reference.
+     *
+     * @param os OrderSocket
+     */
+    void SetOrderSocket ( OrderSocket os );
+
+    /**
+     * Sets the PriceSocket reference.
+     *
+     * @param ps PriceSocket
+     */
+    void SetPriceSocket ( PriceSocket ps );
+
+    /**
+     * Sets the Database reference.
+     *
+     * @param db Database
+     */
+    void SetDatabase ( Database db );
+
+    /**
+     * Sets the FIXInterface reference.
+     *
+     * @param fi FIXInterface
+     */
+    void SetFIXInterface ( FIXInterface fi );
+}
@@ -0,0 +1,308 @@
+/*
+ * EngineCommand.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import quickfix.SessionID;
+
+import Microssa.Checkpoint;
+import Microssa.MatchingEngine;
+import Microssa.Metrics;
+import Microssa.Order;
+import Microssa.OrderPool;
+import Microssa.Statistics;
+
+/**
+ * A request for a MatchingEngine, published by an interface thread and
+ * applied later by the thread that owns the MatchingEngine.  Instances
+ * are pre-allocated by the Sequencer and reused, so a command must not
+ * be kept once it has been applied.
+ *
+ * @see Sequencer
+ * @see MatchingEngineShard
+ */
+public class EngineCommand {
+
+    /** Type of a new order request. */
+    public static final char NEW = 'N';
+
+    /** Type of an amend request. */
+    public static final char AMEND = 'A';
+
+    /** Type of a cancel request. */
+    public static final char CANCEL = 'C';
+
+    /** Type of a market data subscribe request. */
+    public static final char SUBSCRIBE = 'S';
+
+    /** Type of a market data unsubscribe request. */
+    public static final char UNSUBSCRIBE = 'U';
+
+    /** Type of an order lookup, answered through Result. */
+    public static final char FIND = 'F';
+
+    /** Type of a market data book request. */
+    public static final char REFRESH = 'R';
+
+    /** Type of a Checkpoint request, applied by every shard. */
+    public static final char CHECKPOINT = 'K';
+
+    /** Type of a Metrics request, applied by every shard. */
+    public static final char METRICS = 'M';
+
+    /** Type of a Statistics request, applied by every shard. */
+    public static final char STATISTICS = 'T';
+
+    /** Shard of a command every shard applies. */
+    public static final int ALL = -1;
+
+    /** Sequence number given by the Sequencer. */
+    public long Sequence;
+
+    /** The shard that applies this command. */
+    public int Shard;
+
+    /** One of the type constants above. */
+    public char Type;
+
+    /** The Order of a new, amend or cancel request. */
+    public Order Order;
+
+    /** The OrderID being amended, blank to use the Order's own. */
+    public String OrigOrderID;
+
+    /** The FIX session of the request, null if not from FIX. */
+    public SessionID Session;
+
+    /** The Symbol of a market data request or lookup. */
+    public String Symbol;
+
+    /** The OrderID of a lookup. */
+    public String OrderID;
+
+    /** The PriceSocket connection of a market data request. */
+    public int Connection;
+
+    /** Completed with the found Order, or null, for a lookup. */
+    public CompletableFuture<Order> Result;
+
+    /** The Checkpoint of a checkpoint request. */
+    public Checkpoint Snapshot;
+
+    /** The Metrics of a metrics request. */
+    public Metrics Report;
+
+    /** The Snapshot of a statistics request. */
+    public Statistics.Snapshot Census;
+
+    /**
+     * Sets the fields of a new, amend or cancel request.
+     *
+     * @param t Type
+     * @param o Order
+     * @param orig OrigOrderID
+     * @param session FIX session or null
+     * @return This EngineCommand
+     */
+    public EngineCommand SetOrder ( char t, Order o, String orig, SessionID session )
+    {
+        Type = t;
+        Order = o;
+        OrigOrderID = orig;
+        Session = session;
+        Symbol = o.getSymbol();
+        OrderID = null;
+        Connection = 0;
+        Result = null;
+        Snapshot = null;
+        Report = null;
+        Census = null;
+
+        return this;
+    }
+
+    /**
+     * Sets every field but Sequence to those of another command, for
+     * the Journal to hand a written request on to its shard.
+     *
+     * @param c The command to copy
+     * @return This EngineCommand
+     */
+    public EngineCommand CopyOf ( EngineCommand c )
+    {
+        Shard = c.Shard;
+        Type = c.Type;
+        Order = c.Order;
+        OrigOrderID = c.OrigOrderID;
+        Session = c.Session;
+        Symbol = c.Symbol;
+        OrderID = c.OrderID;
+        Connection = c.Connection;
+        Result = c.Result;
+        Snapshot = c.Snapshot;
+        Report = c.Report;
+        Census = c.Census;
+
+        return this;
+    }
+
+    /**
+     * Sets the fields of a market data request or lookup.
+     *
+     * @param t Type
+     * @param s Symbol
+     * @param oID OrderID of a lookup, otherwise null
+     * @param conn PriceSocket connection of a market data request
+     * @param r Future for the lookup result, otherwise null
+     * @return This EngineCommand
+     */
+    public EngineCommand SetSymbol ( char t, String s, String oID, int conn, CompletableFuture<Order> r )
+    {
+        Type = t;
+        Order = null;
+        OrigOrderID = null;
+        Session = null;
+        Symbol = s;
+        OrderID = oID;
+        Connection = conn;
+        Result = r;
+        Snapshot = null;
+        Report = null;
+        Census = null;
+
+        return this;
+    }
+
+    /**
+     * Sets the fields of a checkpoint request.
+     *
+     * @param cp The Checkpoint each shard copies its books into
+     * @return This EngineCommand
+     */
+    public EngineCommand SetCheckpoint ( Checkpoint cp )
+    {
+        Type = CHECKPOINT;
+        Order = null;
+        OrigOrderID = null;
+        Session = null;
+        Symbol = null;
+        OrderID = null;
+        Connection = 0;
+        Result = null;
+        Snapshot = cp;
+        Report = null;
+        Census = null;
+
+        return this;
+    }
+
+    /**
+     * Sets the fields of a metrics request.
+     *
+     * @param m The Metrics each shard hands its measurements to
+     * @return This EngineCommand
+     */
+    public EngineCommand SetMetrics ( Metrics m )
+    {
+        Type = METRICS;
+        Order = null;
+        OrigOrderID = null;
+        Session = null;
+        Symbol = null;
+        OrderID = null;
+        Connection = 0;
+        Result = null;
+        Snapshot = null;
+        Report = m;
+        Census = null;
+
+        return this;
+    }
+
+    /**
+     * Sets the fields of a statistics request.
+     *
+     * @param s The Snapshot each shard copies its book counts into
+     * @return This EngineCommand
+     */
+    public EngineCommand SetStatistics ( Statistics.Snapshot s )
+    {
+        Type = STATISTICS;
+        Order = null;
+        OrigOrderID = null;
+        Session = null;
+        Symbol = null;
+        OrderID = null;
+        Connection = 0;
+        Result = null;
+        Snapshot = null;
+        Report = null;
+        Census = s;
+
+        return this;
+    }
+
+    /**
+     * @param o An Order found for a lookup, or null
+     * @return o, or a copy of it if o may be recycled before the
+     * requester reads it
+     */
+    private static Order Found ( Order o )
+    {
+        return ( o != null && OrderPool.Enabled ) ? o.Detach() : o;
+    }
+
+    /**
+     * Applies this request to a MatchingEngine.  Must be called from
+     * the thread that owns the MatchingEngine.
+     *
+     * @param ME The MatchingEngine
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    public void Apply ( MatchingEngine ME ) throws IOException
+    {
+        switch ( Type )
+        {
+            case NEW:           ME.NewOrder( Order, Session );
+                                break;
+            case AMEND:         ME.AmendOrder( Order, OrigOrderID, Session );
+                                break;
+            case CANCEL:        ME.CancelOrder( Order, Session );
+                                break;
+            case SUBSCRIBE:     ME.MarketDataSubscribe( Symbol, Connection );
+                                break;
+            case UNSUBSCRIBE:   ME.MarketDataUnsubscribe( Symbol, Connection );
+                                break;
+            case REFRESH:       ME.MarketDataRefresh( Symbol, Connection );
+                                break;
+            case FIND:          Result.complete( Found( ME.FindOrder( OrderID, Symbol ) ) );
+                                break;
+            case CHECKPOINT:    ME.Capture( Snapshot );
+                                break;
+            case METRICS:       ME.CaptureMetrics( Report );
+                                break;
+            case STATISTICS:    ME.CaptureStatistics( Census );
+                                break;
+            default:
+        }
+    }
+}
@@ -25,10 +25,13 @@ import quickfix.*;
 import quickfix.field.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import Microssa.Configuration;
 import Microssa.Logger;
 import Microssa.Order;
+import Microssa.OrderPool;
 
 /**
  * This class is responsible for reading orders and writing matches
@@ -40,28 +43,56 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
     /** A reference to the FIX Session */
     private SessionID session;
 
-    /** Reference to MatchingEngine object. */
-    private MatchingEngine ME;
+    /** Reference to the Engine. */
+    private Engine ME;
     
     /** Default FIX customer if one is not specified in the Account (tag 1) field. */
     private String DefaultCustomer;
     
     /** Execution ID for 35=8 messages*/
-    private int execID;
+    private AtomicInteger execID;
+
+    /** Application messages received since start, from every session. */
+    private final AtomicLong Received;
     
     /** Constructor */
-    public FIXInterface ( MatchingEngine me ) {
+    public FIXInterface ( Engine me ) {
         session = null;
         
         ME = me;
 
+        execID = new AtomicInteger( 1 );
+        Received = new AtomicLong( 0 );
+
         ME.SetFIXInterface( this );
         
         DefaultCustomer = Configuration.getInstance().getString("DEFAULTFIXCUST");
         
         //OrderSessionMap = new HashMap<>();
-        
-        execID = 1;
+    }
+
+    /**
+     * @return The ExecID the next execution report will use
+     */
+    public int getExecID () {
+        return execID.get();
+    }
+
+    /**
+     * @return Application messages received since start
+     */
+    public long getReceived () {
+        return Received.get();
+    }
+
+    /**
+     * Makes sure execution reports never reuse an ExecID sent before a
+     * restart.
+     *
+     * @param next The first ExecID that may be used
+     */
+    public void ReserveExecID ( int next ) {
+        execID.accumulateAndGet( next, Math::max );
     }
 
     /**
@@ -100,6 +131,7 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
     
     public void fromApp(Message message, SessionID sessionId) throws FieldNotFound, IncorrectDataFormat, IncorrectTagValue, UnsupportedMessageType  {
         
+        Received.incrementAndGet();
         crack(message, sessionId);
     
     }
@@ -138,12 +170,12 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
 		
         String orderID, symbol, customer, source, arriveDate, TIF;
         String currency, origOrderID, RejectText;
-        double price, quantity, availableQuantity, minFillQuantity;
+        String price, quantity, availableQuantity, minFillQuantity;
         char side;
 
         orderID = symbol = customer = arriveDate = TIF = "";
         currency = origOrderID = RejectText = "";
-        price = quantity = availableQuantity = minFillQuantity = 0D;
+        price = quantity = availableQuantity = minFillQuantity = "0";
         side = ' ';
         
         source = "FIX";
@@ -201,25 +233,19 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
             currency = c.getValue();
         }
         
-        // Price
-        Price p = new Price();
-        if( message.isSetField(p) ) {
-            message.getField(p);
-            price = p.getValue();
+        // Price, Quantity and MinFillQuantity are read as the decimal
+        // text sent, so the Order converts them exactly, as it does for
+        // the order port; a double only holds about 16 digits
+        if( message.isSetField(Price.FIELD) ) {
+            price = message.getString(Price.FIELD);
         }
         
-        // Quantity
-        OrderQty oq = new OrderQty();
-        if ( message.isSetField(oq) ) {
-			message.getField(oq);
-			quantity = oq.getValue();
+        if ( message.isSetField(OrderQty.FIELD) ) {
+			quantity = message.getString(OrderQty.FIELD);
 		}
         
-        // MinFillQuantity
-        MinQty mq = new MinQty();
-        if( message.isSetField(mq) ){
-            message.getField(mq);
-            minFillQuantity = mq.getValue();
+        if( message.isSetField(MinQty.FIELD) ){
+            minFillQuantity = message.getString(MinQty.FIELD);
         }
         
         // Side
@@ -241,11 +267,21 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
             origOrderID = ocoi.getValue();
         }
 
-        // AvailableQuantity
-        Order oldOrder = ME.FindOrder( origOrderID, symbol );
+        // AvailableQuantity, from the resting order of a cancel or
+        // replace; a new order has none to look up
+        Order oldOrder = null;
+
+        if ( operation != 'N' && !origOrderID.equals("") ) {
+            try {
+                oldOrder = ME.FindOrder( origOrderID, symbol );
+            } catch ( IOException e ) {
+                SendReject( orderID, e.getMessage(), sessionID );
+                return;
+            }
+        }
         
         if ( oldOrder != null ) {
-			availableQuantity = oldOrder.getAvailableQuantity();
+			availableQuantity = oldOrder.getScale().FormatLots( oldOrder.getAvailableLots() );
 		} else {
 			availableQuantity = quantity;
 		}
@@ -253,7 +289,7 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
         // Create order and send to matching engine
 		if ( operation == 'C'  ) {
 			try {
-				Order o = new Order(origOrderID,symbol,customer,source,arriveDate,
+				Order o = OrderPool.Take(origOrderID,symbol,customer,source,arriveDate,
 									price,quantity,availableQuantity,side,TIF,
 									currency,minFillQuantity);
 
@@ -266,7 +302,7 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
 
 		if ( operation == 'A' ) {
 			try {
-				Order o = new Order(orderID,symbol,customer,source,arriveDate,
+				Order o = OrderPool.Take(orderID,symbol,customer,source,arriveDate,
 									price,quantity,availableQuantity,side,TIF,
 									currency,minFillQuantity);
 									
@@ -282,7 +318,7 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
 		if ( operation == 'N'  ) {
 			try {
 				
-				Order o = new Order(orderID,symbol,customer,source,arriveDate,
+				Order o = OrderPool.Take(orderID,symbol,customer,source,arriveDate,
 									price,quantity,availableQuantity,side,TIF,
 									currency,minFillQuantity);
 			
@@ -319,7 +355,7 @@ public class FIXInterface extends quickfix.MessageCracker implements quickfix.Ap
 
 		reply.set( new ClOrdID( o.getOrderID() ) );
 		reply.set( new OrderID( o.getInternalID() ) );
-		reply.set( new ExecID( Integer.toString( execID++ ) ) );
+		reply.set( new ExecID( Integer.toString( execID.getAndIncrement() ) ) );
 		reply.set( new Side( o.getSide() ) );
 		reply.set( new LeavesQty( o.getAvailableQuantity() ) );
 		reply.set( new CumQty( o.getCumulativeQuantity() ) );
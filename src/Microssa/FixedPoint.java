@@ -0,0 +1,383 @@
+/*
+ * FixedPoint.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import Microssa.Configuration;
+
+/**
+ * Converts between the decimal prices and quantities used by the
+ * interfaces and the scaled integers used by the matching engine.
+ * Prices are kept as a whole number of ticks and quantities as a whole
+ * number of lots, so comparing and adding them is exact.
+ *
+ * Every Symbol has a tick scale and a lot scale, which are the number
+ * of decimal places kept for its prices and quantities.  They are read
+ * from TICKSCALE and LOTSCALE, and may be set per Symbol with
+ * TICKSCALE.Symbol and LOTSCALE.Symbol.
+ *
+ * Values written out in text, as the OrderSocket and FIXInterface
+ * receive them, are read digit by digit straight into a whole number
+ * of units, so they are exact up to 10^18 units, for example
+ * 10,000,000,000 at a scale of 8.  Values that arrive as a double,
+ * from the Database, are only exact up to 2^53 units, about 90,071,992
+ * at a scale of 8, and larger ones are rejected.
+ */
+public class FixedPoint {
+
+    /** Largest number of ticks or lots read from text. */
+    private static final long MaxUnits = 1000000000000000000L;
+
+    /**
+     * Largest number of ticks or lots converted from a double.  Beyond
+     * this a double cannot hold every whole number, so conversions
+     * would not be exact.
+     */
+    private static final long MaxDoubleUnits = 1L << 53;
+
+    /** Scales already looked up.  Key is Symbol. */
+    private static final ConcurrentHashMap<String, FixedPoint> Scales =
+        new ConcurrentHashMap<>();
+
+    /** Decimal places kept for prices. */
+    private final int TickScale;
+
+    /** Decimal places kept for quantities. */
+    private final int LotScale;
+
+    /** Ticks per one unit of price. */
+    private final long TickFactor;
+
+    /** Lots per one unit of quantity. */
+    private final long LotFactor;
+
+    /** Trade prices are rounded down to a multiple of this many ticks. */
+    private final long TradeIncrement;
+
+    /**
+     * Builds the scale of a Symbol from the configuration.
+     *
+     * @param Symbol The Symbol to look up
+     */
+    private FixedPoint ( String Symbol )
+    {
+        TickScale = ScaleSetting( "TICKSCALE", Symbol );
+        LotScale = ScaleSetting( "LOTSCALE", Symbol );
+        int TradeScale = Configuration.getInstance().getInt( "TRADESCALE" );
+
+        TickFactor = PowerOfTen( TickScale );
+        LotFactor = PowerOfTen( LotScale );
+
+        if ( TradeScale < TickScale )
+            TradeIncrement = PowerOfTen( TickScale - TradeScale );
+        else
+            TradeIncrement = 1;
+    }
+
+    /**
+     * Accessor for the scale of a Symbol.
+     *
+     * @param Symbol The Symbol
+     * @return The Symbol's FixedPoint scale
+     */
+    public static FixedPoint getScale ( String Symbol )
+    {
+        FixedPoint Scale = Scales.get( Symbol );
+
+        if ( Scale == null )
+            Scale = Scales.computeIfAbsent( Symbol, FixedPoint::new );
+
+        return Scale;
+    }
+
+    /**
+     * @param Price Decimal price
+     * @return Price in ticks
+     * @throws DataFormatException If Price is not a whole number of
+     * ticks or too large
+     */
+    public long ToTicks ( double Price ) throws DataFormatException
+    {
+        return ToUnits( Price, TickFactor, TickScale, "Price" );
+    }
+
+    /**
+     * @param Quantity Decimal quantity
+     * @return Quantity in lots
+     * @throws DataFormatException If Quantity is not a whole number of
+     * lots or too large
+     */
+    public long ToLots ( double Quantity ) throws DataFormatException
+    {
+        return ToUnits( Quantity, LotFactor, LotScale, "Quantity" );
+    }
+
+    /**
+     * @param Price Decimal price as text, such as 100.25
+     * @return Price in ticks
+     * @throws DataFormatException If Price is not a number, not a whole
+     * number of ticks, or too large
+     */
+    public long ToTicks ( String Price ) throws DataFormatException
+    {
+        return ParseUnits( Price, TickScale, "Price" );
+    }
+
+    /**
+     * @param Quantity Decimal quantity as text, such as 1.5 or 1e8
+     * @return Quantity in lots
+     * @throws DataFormatException If Quantity is not a number, not a
+     * whole number of lots, or too large
+     */
+    public long ToLots ( String Quantity ) throws DataFormatException
+    {
+        return ParseUnits( Quantity, LotScale, "Quantity" );
+    }
+
+    /**
+     * @param Ticks Price in ticks
+     * @return Decimal price
+     */
+    public double FromTicks ( long Ticks )
+    {
+        return Ticks / (double) TickFactor;
+    }
+
+    /**
+     * @param Lots Quantity in lots
+     * @return Decimal quantity
+     */
+    public double FromLots ( long Lots )
+    {
+        return Lots / (double) LotFactor;
+    }
+
+    /**
+     * @param Lots Quantity in lots
+     * @return Decimal quantity as text, which ToLots reads back exactly
+     */
+    public String FormatLots ( long Lots )
+    {
+        return BigDecimal.valueOf( Lots, LotScale ).toPlainString();
+    }
+
+    /**
+     * Rounds a trade price down to TRADESCALE decimal places.
+     *
+     * @param Ticks Price in ticks
+     * @return Rounded price in ticks
+     */
+    public long RoundTradePrice ( long Ticks )
+    {
+        return Ticks - ( Ticks % TradeIncrement );
+    }
+
+    /**
+     * Scales a decimal value and checks nothing was lost.
+     *
+     * @param Value Decimal value
+     * @param Factor Units per one
+     * @param Scale Decimal places of Factor
+     * @param Name Name of the value for the error message
+     * @return Value in units
+     * @throws DataFormatException If Value is not a whole number of
+     * units or too large
+     */
+    private long ToUnits ( double Value, long Factor, int Scale, String Name ) throws DataFormatException
+    {
+        double Scaled = Value * Factor;
+
+        if ( Math.abs( Scaled ) >= MaxDoubleUnits )
+            throw new DataFormatException( Name + " " + Value + " is too large" );
+
+        long Units = Math.round( Scaled );
+
+        // allow for the rounding error of the multiplication itself
+        if ( Math.abs( Scaled - Units ) > Math.max( 1E-6, 2 * Math.ulp( Scaled ) ) )
+            throw new DataFormatException( Name + " " + Value + " has more than " +
+                Scale + " decimal places" );
+
+        return Units;
+    }
+
+    /**
+     * Reads a decimal number in text, with an optional sign, decimal
+     * point and exponent, into a whole number of units.  The digits
+     * are gathered in a long, then moved by the exponent, the decimal
+     * places and Scale, so nothing is ever rounded.
+     *
+     * @param Text Decimal value
+     * @param Scale Decimal places of a unit
+     * @param Name Name of the value for the error message
+     * @return Value in units
+     * @throws DataFormatException If Text is not a number, not a whole
+     * number of units, or more than MaxUnits
+     */
+    private static long ParseUnits ( String Text, int Scale, String Name ) throws DataFormatException
+    {
+        String t = Text.trim();
+        int Length = t.length();
+        int i = 0;
+        boolean Negative = false;
+        boolean Point = false;
+        int Digits = 0;
+        int Places = 0;
+        int Exponent = 0;
+        long Mantissa = 0;
+
+        // zeros after the last other digit, held back so that Mantissa
+        // never ends in a zero
+        int Zeros = 0;
+
+        // more digits than Mantissa holds, only their places are counted
+        boolean Overflow = false;
+
+        if ( i < Length && ( t.charAt( i ) == '-' || t.charAt( i ) == '+' ) )
+            Negative = ( t.charAt( i++ ) == '-' );
+
+        for ( ; i < Length; i++ )
+        {
+            char ch = t.charAt( i );
+
+            if ( ch == '.' && !Point )
+            {
+                Point = true;
+                continue;
+            }
+
+            if ( ch < '0' || ch > '9' )
+                break;
+
+            Digits++;
+
+            if ( Point )
+                Places++;
+
+            if ( ch == '0' )
+            {
+                if ( Mantissa != 0 )
+                    Zeros++;
+
+                continue;
+            }
+
+            for ( ; Zeros >= 0 && !Overflow; Zeros-- )
+            {
+                if ( Mantissa > MaxUnits / 10 )
+                    Overflow = true;
+                else
+                    Mantissa *= 10;
+            }
+
+            if ( !Overflow )
+                Mantissa += ch - '0';
+
+            Zeros = 0;
+        }
+
+        if ( Digits > 0 && i < Length && ( t.charAt( i ) == 'e' || t.charAt( i ) == 'E' ) )
+        {
+            boolean NegativeExponent = false;
+            int ExponentDigits = 0;
+
+            if ( ++i < Length && ( t.charAt( i ) == '-' || t.charAt( i ) == '+' ) )
+                NegativeExponent = ( t.charAt( i++ ) == '-' );
+
+            for ( ; i < Length && t.charAt( i ) >= '0' && t.charAt( i ) <= '9'; i++ )
+            {
+                ExponentDigits++;
+
+                // far past any scale, only needs to stay clear of overflow
+                Exponent = Math.min( Exponent * 10 + ( t.charAt( i ) - '0' ), 1000 );
+            }
+
+            if ( ExponentDigits == 0 )
+                Digits = 0;
+
+            if ( NegativeExponent )
+                Exponent = -Exponent;
+        }
+
+        if ( Digits == 0 || i < Length )
+            throw new DataFormatException( Name + " " + Text + " is not a number" );
+
+        if ( Mantissa == 0 )
+            return 0;
+
+        // where the last digit other than zero falls, counting from a unit
+        int Shift = Zeros + Exponent - Places + Scale;
+
+        // Mantissa does not end in a zero, so it cannot be divided
+        if ( Shift < 0 )
+            throw new DataFormatException( Name + " " + Text + " has more than " +
+                Scale + " decimal places" );
+
+        if ( Overflow )
+            throw new DataFormatException( Name + " " + Text + " is too large" );
+
+        for ( ; Shift > 0; Shift-- )
+        {
+            if ( Mantissa > MaxUnits / 10 )
+                throw new DataFormatException( Name + " " + Text + " is too large" );
+
+            Mantissa *= 10;
+        }
+
+        if ( Mantissa > MaxUnits )
+            throw new DataFormatException( Name + " " + Text + " is too large" );
+
+        return Negative ? -Mantissa : Mantissa;
+    }
+
+    /**
+     * Reads a scale setting, preferring the Symbol's own.
+     *
+     * @param Key Setting name
+     * @param Symbol The Symbol
+     * @return Number of decimal places
+     */
+    private static int ScaleSetting ( String Key, String Symbol )
+    {
+        String Value = Configuration.getInstance().getString( Key + "." + Symbol );
+
+        if ( Value == null )
+            return Configuration.getInstance().getInt( Key );
+
+        return Integer.parseInt( Value );
+    }
+
+    /**
+     * @param Exponent Between zero and eighteen
+     * @return Ten to the power of Exponent
+     */
+    private static long PowerOfTen ( int Exponent )
+    {
+        long Result = 1;
+
+        for ( int i = 0; i < Exponent; i++ )
+            Result *= 10;
+
+        return Result;
+    }
+}
@@ -0,0 +1,838 @@
+/*
+ * Journal.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import Microssa.Checkpoint;
+import Microssa.Configuration;
+import Microssa.EngineCommand;
+import Microssa.Logger;
+import Microssa.Order;
+import Microssa.OrderPool;
+import Microssa.Sequencer;
+
+/**
+ * A binary, append-only record of every new, amend and cancel request,
+ * in the order the MatchingEngine applied them.  Replaying it through
+ * an empty MatchingEngine rebuilds the same books.
+ *
+ * The Journal is a Sequencer consumer with its own Thread.  It writes
+ * each batch of commands with one FileChannel write, forced to disk
+ * with JOURNALDURABILITY = FSYNC, and only then hands each command on
+ * to the Sequencer of its shard and releases the batch, so a request
+ * is on file before it is applied, and every shard applies its
+ * requests in journal order.
+ *
+ * A batch that fails to write is cut from the file and written again,
+ * up to WriteTries times.  If it still fails the Journal halts: the
+ * requests of the batch are reported and never applied, and from then
+ * on no new, amend or cancel request reaches the shards, nor does the
+ * ShardedMatchingEngine accept one.  Market data requests, lookups
+ * and statistics still go through, and checkpoints are skipped.
+ *
+ * The file starts with an eight byte header, then one record per
+ * request:
+ *
+ *      int     length of the rest of the record
+ *      long    journal sequence number, counting from zero
+ *      byte    EngineCommand type
+ *      byte    Side
+ *      long    Price in ticks
+ *      long    Quantity in lots
+ *      long    AvailableQuantity in lots
+ *      long    MinFillQuantity in lots
+ *      string  OrderID, OrigOrderID, InternalID, Symbol, Customer,
+ *              Source, ArriveDate, TIF, Currency
+ *      int     CRC32 of the record from its length on
+ *
+ * Each string is an unsigned short byte count and UTF-8 bytes.  On
+ * replay, a last record cut short by a crash, or whose CRC32 does not
+ * match and which ends the file, is dropped from the file.  A record
+ * anywhere else that does not check or decode stops the start, and the
+ * file is left as it is.
+ *
+ * A Checkpoint records the sequence number and byte offset of the next
+ * record when it was taken, so a restart replays only the records
+ * after it.
+ *
+ * @see ShardedMatchingEngine
+ * @see Checkpoint
+ */
+public class Journal implements Runnable {
+
+    /**
+     * Receives the requests read back by Replay.
+     */
+    public interface Handler {
+
+        /**
+         * @param c A replayed request.  Reused for the next request.
+         * @throws IOException Passthrough from MatchingEngine
+         */
+        void Replay ( EngineCommand c ) throws IOException;
+    }
+
+    /** First bytes of every journal file. */
+    private static final byte[] Header = "MSSAJNL2".getBytes( StandardCharsets.US_ASCII );
+
+    /** Size of the read and write buffers. */
+    private static final int BufferSize = 1 << 20;
+
+    /** First bytes of a journal file written before records had a
+     *  CRC32. */
+    private static final byte[] OldHeader = "MSSAJNL1".getBytes( StandardCharsets.US_ASCII );
+
+    /** Fixed part of a record after its length. */
+    private static final int FixedSize = 8 + 1 + 1 + 8 * 4;
+
+    /** Size of the CRC32 that ends a record. */
+    private static final int CheckSize = 4;
+
+    /** Times a batch is written before the Journal halts. */
+    private static final int WriteTries = 3;
+
+    /** Milliseconds to wait before writing a failed batch again. */
+    private static final long RetryMS = 100;
+
+    /** Longest possible record after its length. */
+    private static final int MaxRecord = FixedSize + 9 * ( 2 + 0xffff );
+
+    /** Thread object for this class. */
+    private Thread T;
+
+    /** Label of the Thread. */
+    private String ThreadName;
+
+    /** Path of the journal file. */
+    private Path FileName;
+
+    /** The journal file, open for appending after Replay. */
+    private FileChannel File;
+
+    /** The ring this Journal reads commands from. */
+    private Sequencer Ring;
+
+    /** This Journal's consumer number in the Sequencer. */
+    private int Consumer;
+
+    /** The Sequencer of each shard, which written commands go on to. */
+    private Sequencer[] Shards;
+
+    /** Records waiting to be written. */
+    private ByteBuffer Buffer;
+
+    /** Computes the CRC32 of each record written or read. */
+    private CRC32 Sum;
+
+    /** True to force every batch to disk. */
+    private boolean Fsync;
+
+    /** Journal sequence number of the next record. */
+    private long Count;
+
+    /** True once a batch could not be written. */
+    private volatile boolean Halted;
+
+    /**
+     * The constructor registers with the Sequencer, but does not open
+     * the file or start the Thread on its own.
+     *
+     * @param name A string identifier for the future Thread
+     * @param ring The Sequencer to read
+     * @param shards The Sequencer of each shard, by shard number
+     */
+    public Journal ( String name, Sequencer ring, Sequencer[] shards )
+    {
+        T = null;
+        ThreadName = name;
+        Ring = ring;
+        Shards = shards;
+        Consumer = Ring.AddConsumer();
+        File = null;
+        Count = 0;
+        Halted = false;
+
+        FileName = Paths.get( "../log/" + Configuration.getInstance().getString("JOURNALFILE") );
+        Fsync = Configuration.getInstance().getString("JOURNALDURABILITY").toUpperCase().equals("FSYNC");
+        Buffer = ByteBuffer.allocateDirect( BufferSize );
+        Sum = new CRC32();
+    }
+
+    /**
+     * @return This Journal's consumer number, for the shards to follow
+     */
+    public int getConsumer ()
+    {
+        return Consumer;
+    }
+
+    /**
+     * @return True once a batch could not be written, and no request
+     * that changes a book is applied any more
+     */
+    public boolean IsHalted ()
+    {
+        return Halted;
+    }
+
+    /**
+     * @return Number of requests in the journal
+     */
+    public long getCount ()
+    {
+        return Count;
+    }
+
+    /**
+     * Opens the journal file, creating it if there is none.
+     *
+     * @throws IOException If the file cannot be read or is not a journal
+     */
+    private void Open () throws IOException
+    {
+        if ( File != null )
+            return;
+
+        File = FileChannel.open( FileName, StandardOpenOption.CREATE,
+                                 StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+        if ( File.size() == 0 )
+        {
+            File.write( ByteBuffer.wrap( Header ) );
+            File.force( true );
+            return;
+        }
+
+        ByteBuffer In = ByteBuffer.allocate( Header.length );
+
+        File.position( 0 );
+        In.limit( 0 );
+
+        boolean Valid = ReadAtLeast( File, In, Header.length );
+
+        boolean Old = Valid;
+
+        for ( int i = 0; Valid && i < Header.length; i++ )
+        {
+            byte b = In.get();
+
+            Valid = ( b == Header[i] );
+            Old = Old && ( b == OldHeader[i] );
+        }
+
+        if ( Old )
+            throw new IOException( FileName + " was written without record checksums by an older Microssa." );
+
+        if ( !Valid )
+            throw new IOException( FileName + " is not a Microssa journal." );
+    }
+
+    /**
+     * Checks that a position recorded by a Checkpoint is still in the
+     * journal file: either its end, or the start of record From.
+     *
+     * @param From Journal sequence number of the record at Offset
+     * @param Offset Byte offset in the file
+     * @return True if Replay may start at Offset
+     * @throws IOException If the file cannot be read or is not a journal
+     */
+    public boolean Contains ( long From, long Offset ) throws IOException
+    {
+        Open();
+
+        if ( Offset < Header.length || Offset > File.size() )
+            return false;
+
+        if ( Offset == File.size() )
+            return true;
+
+        ByteBuffer In = ByteBuffer.allocate( 12 );
+
+        File.position( Offset );
+        In.limit( 0 );
+
+        return ReadAtLeast( File, In, 12 ) && In.getLong( 4 ) == From;
+    }
+
+    /**
+     * Reads every request in the journal file, in order, and hands it
+     * to Replay.  Creates the file if there is none, drops a torn last
+     * record, and leaves the file open for appending.  Must be called
+     * once, before start.
+     *
+     * @param Target Receives each request
+     * @return Number of requests replayed
+     * @throws IOException If the file cannot be read, is not a journal,
+     * or has a bad record before its last
+     */
+    public long Replay ( Handler Target ) throws IOException
+    {
+        return Replay( Target, 0, Header.length );
+    }
+
+    /**
+     * Reads the requests in the journal file from record From on, as
+     * Replay( Target ) does.  Used after a Checkpoint has restored the
+     * books up to record From.
+     *
+     * @param Target Receives each request
+     * @param From Journal sequence number of the record at Offset
+     * @param Offset Byte offset of record From, checked by Contains
+     * @return Number of requests in the journal, From included
+     * @throws IOException If the file cannot be read, is not a journal,
+     * or has a bad record before its last
+     */
+    public long Replay ( Handler Target, long From, long Offset ) throws IOException
+    {
+        Open();
+
+        ByteBuffer In = ByteBuffer.allocate( BufferSize );
+        EngineCommand c = new EngineCommand();
+        long Size = File.size();
+        long End = Offset;
+
+        Count = From;
+        File.position( Offset );
+        In.limit( 0 );
+
+        while ( End < Size )
+        {
+            // a torn last record: the file ends inside it
+            if ( Size - End < 4 )
+                break;
+
+            if ( !ReadAtLeast( File, In, 4 ) )
+                throw Corrupt( End, "the file is shorter than when replay started" );
+
+            int Length = In.getInt( In.position() );
+
+            if ( Length < FixedSize || Length > MaxRecord )
+                throw Corrupt( End, "the record length " + Length + " is not valid" );
+
+            int Record = 4 + Length + CheckSize;
+
+            if ( Size - End < Record )
+                break;
+
+            if ( !ReadAtLeast( File, In, Record ) )
+                throw Corrupt( End, "the file is shorter than when replay started" );
+
+            Sum.reset();
+            Sum.update( In.array(), In.arrayOffset() + In.position(), 4 + Length );
+
+            if ( In.getInt( In.position() + 4 + Length ) != (int) Sum.getValue() )
+            {
+                // a torn last record: its length was written, not all of the rest
+                if ( Size - End == Record )
+                    break;
+
+                throw Corrupt( End, "the CRC32 does not match" );
+            }
+
+            int Limit = In.limit();
+
+            // decode within the record only
+            In.limit( In.position() + 4 + Length );
+            In.position( In.position() + 4 );
+
+            boolean Decoded = Decode( In, c ) && !In.hasRemaining();
+
+            In.limit( Limit );
+
+            if ( !Decoded )
+                throw Corrupt( End, "the record does not decode" );
+
+            In.position( In.position() + CheckSize );
+
+            Target.Replay( c );
+
+            End += Record;
+            Count++;
+        }
+
+        if ( End < Size )
+        {
+            Logger.getInstance().write( "Dropping " + ( Size - End ) +
+                                        " bytes of a torn record after journal record " + Count );
+            File.truncate( End );
+        }
+
+        File.position( End );
+
+        return Count;
+    }
+
+    /**
+     * @param Offset Byte offset of the bad record
+     * @param Reason What is wrong with it
+     * @return The error that stops the start, with the file left as is
+     */
+    private IOException Corrupt ( long Offset, String Reason )
+    {
+        return new IOException( FileName + " is corrupt at journal record " + Count + ", byte " +
+                                Offset + ": " + Reason + ".  Records after it would be lost," +
+                                " so it is not replayed." );
+    }
+
+    /**
+     * Makes sure the buffer holds at least n unread bytes, reading more
+     * of the file if needed.
+     *
+     * @param File The file being read
+     * @param In The read buffer, in read mode
+     * @param n Bytes needed
+     * @return False if the file ends first
+     * @throws IOException If the read fails
+     */
+    static boolean ReadAtLeast ( FileChannel File, ByteBuffer In, int n ) throws IOException
+    {
+        if ( In.remaining() >= n )
+            return true;
+
+        if ( n > In.capacity() )
+            return false;
+
+        In.compact();
+
+        while ( In.position() < n )
+            if ( File.read( In ) < 0 )
+            {
+                In.flip();
+                return false;
+            }
+
+        In.flip();
+
+        return true;
+    }
+
+    /**
+     * Reads one record, after its length, into c.
+     *
+     * @param In The read buffer, limited to the record
+     * @param c Receives the request
+     * @return False if the record is not valid
+     */
+    private boolean Decode ( ByteBuffer In, EngineCommand c )
+    {
+        long Sequence = In.getLong();
+        char Type = (char) In.get();
+        char Side = (char) In.get();
+        long Price = In.getLong();
+        long Quantity = In.getLong();
+        long Available = In.getLong();
+        long MinFill = In.getLong();
+
+        if ( Sequence != Count )
+            return false;
+
+        if ( Type != EngineCommand.NEW && Type != EngineCommand.AMEND && Type != EngineCommand.CANCEL )
+            return false;
+
+        String OrderID    = GetString( In );
+        String OrigID     = GetString( In );
+        String InternalID = GetString( In );
+        String Symbol     = GetString( In );
+        String Customer   = GetString( In );
+        String Source     = GetString( In );
+        String ArriveDate = GetString( In );
+        String TIF        = GetString( In );
+        String Currency   = GetString( In );
+
+        if ( OrderID == null || OrigID == null || InternalID == null || Symbol == null ||
+             Customer == null || Source == null || ArriveDate == null || TIF == null ||
+             Currency == null )
+            return false;
+
+        Order o = new Order( OrderID, InternalID, Symbol, Customer, Source, ArriveDate,
+                             Price, Quantity, Available, Side, TIF, Currency, MinFill );
+
+        Order.ReserveInternalID( InternalID );
+
+        c.SetOrder( Type, o, OrigID, null );
+        c.Sequence = Sequence;
+
+        return true;
+    }
+
+    /**
+     * @param In The read buffer
+     * @return The next string, or null if it runs past the record
+     */
+    static String GetString ( ByteBuffer In )
+    {
+        if ( In.remaining() < 2 )
+            return null;
+
+        int Length = In.getChar();
+
+        if ( In.remaining() < Length )
+            return null;
+
+        String s = new String( In.array(), In.arrayOffset() + In.position(), Length, StandardCharsets.UTF_8 );
+
+        In.position( In.position() + Length );
+
+        return s;
+    }
+
+    /**
+     * Writes batches of commands to the journal until the Thread is
+     * interrupted, handing each batch on to the shards and releasing
+     * it once it is written.  Market data requests and lookups change
+     * nothing and are not written.  A checkpoint request is not written
+     * either, but is told where in the journal it falls.
+     */
+    public void run ()
+    {
+        long Next = 0;
+
+        while ( true )
+        {
+            long Last = Ring.WaitFor( Next );
+
+            if ( Last < Next )
+                return;
+
+            if ( !Halted && !Write( Next, Last ) )
+                Halt( Next, Last );
+
+            for ( long s = Next; s <= Last; s++ )
+                Forward( Ring.Get( s ) );
+
+            Ring.Release( Consumer, Last );
+            Next = Last + 1;
+        }
+    }
+
+    /**
+     * Writes a batch of commands, and writes it again from the start
+     * of the batch if that fails.  A batch that never gets written is
+     * cut from the file again, if the file allows.
+     *
+     * @param Next Sequence number of the first command of the batch
+     * @param Last Sequence number of the last command of the batch
+     * @return True once the batch is on file, false if every try failed
+     */
+    private boolean Write ( long Next, long Last )
+    {
+        long First = Count;
+        long Offset = -1;
+
+        for ( int Try = 1; Try <= WriteTries; Try++ )
+        {
+            try
+            {
+                if ( Offset < 0 )
+                    Offset = File.position();
+                else
+                    Rewind( First, Offset );
+
+                for ( long s = Next; s <= Last; s++ )
+                {
+                    EngineCommand c = Ring.Get( s );
+
+                    if ( Changes( c ) )
+                        Append( c );
+                    else if ( c.Type == EngineCommand.CHECKPOINT )
+                        c.Snapshot.SetJournal( Count, File.position() + Buffer.position() );
+                }
+
+                Commit();
+
+                return true;
+            }
+            catch ( IOException e )
+            {
+                System.err.println( ThreadName + " failed to write journal, try " + Try +
+                                    " of " + WriteTries + ": " + e.getMessage() );
+            }
+
+            if ( Try == WriteTries )
+                break;
+
+            try
+            {
+                Thread.sleep( RetryMS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        try
+        {
+            Rewind( First, Offset );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( ThreadName + " failed to cut journal: " + e.getMessage() );
+        }
+
+        return false;
+    }
+
+    /**
+     * Cuts a failed batch from the file and the write buffer.
+     *
+     * @param First Journal sequence number of the batch's first record
+     * @param Offset Byte offset of the batch's first record, or -1 if
+     * it could not be read, and nothing was written
+     * @throws IOException If the file cannot be cut
+     */
+    private void Rewind ( long First, long Offset ) throws IOException
+    {
+        Buffer.clear();
+        Count = First;
+
+        if ( Offset < 0 )
+            return;
+
+        File.truncate( Offset );
+        File.position( Offset );
+    }
+
+    /**
+     * Stops applying requests that change a book, after a batch could
+     * not be written, and reports the requests of the batch.
+     *
+     * @param Next Sequence number of the first command of the batch
+     * @param Last Sequence number of the last command of the batch
+     */
+    private void Halt ( long Next, long Last )
+    {
+        int Lost = 0;
+
+        for ( long s = Next; s <= Last; s++ )
+            if ( Changes( Ring.Get( s ) ) )
+                Lost++;
+
+        Halted = true;
+
+        String Message = ThreadName + " halted: " + Lost + " requests from journal record " +
+                         Count + " could not be written and are not applied, and no more" +
+                         " new, amend or cancel requests are accepted";
+
+        System.err.println( Message );
+
+        try
+        {
+            Logger.getInstance().write( Message );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( ThreadName + " failed to log the halt: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @param c A command
+     * @return True for a new, amend or cancel request, which the
+     * Journal writes
+     */
+    private static boolean Changes ( EngineCommand c )
+    {
+        return c.Type == EngineCommand.NEW || c.Type == EngineCommand.AMEND ||
+               c.Type == EngineCommand.CANCEL;
+    }
+
+    /**
+     * Copies a command into the Sequencer of its shard, or of every
+     * shard.  Waits while a shard's Sequencer is full.  Once halted,
+     * drops the requests that change a book; a checkpoint request goes
+     * on without a place in the journal, so nothing is written for it.
+     *
+     * @param c The command
+     */
+    private void Forward ( EngineCommand c )
+    {
+        if ( Halted && Changes( c ) )
+        {
+            System.err.println( ThreadName + " halted, dropping request for OrderID " +
+                                c.Order.getOrderID() );
+
+            // a request Order never reached a book, so it can go back
+            if ( OrderPool.Enabled )
+                OrderPool.Give( c.Order );
+
+            return;
+        }
+
+        int First = ( c.Shard == EngineCommand.ALL ) ? 0 : c.Shard;
+        int Last = ( c.Shard == EngineCommand.ALL ) ? Shards.length - 1 : c.Shard;
+
+        for ( int i = First; i <= Last; i++ )
+        {
+            long Sequence = Shards[i].Claim();
+
+            Shards[i].Get( Sequence ).CopyOf( c );
+            Shards[i].Publish( Sequence );
+        }
+    }
+
+    /**
+     * Adds one request to the write buffer, writing the buffer out first
+     * if it is too full.
+     *
+     * @param c The request
+     * @throws IOException If a write fails
+     */
+    private void Append ( EngineCommand c ) throws IOException
+    {
+        Order o = c.Order;
+
+        byte[] OrderID    = Bytes( o.getOrderID() );
+        byte[] OrigID     = Bytes( c.OrigOrderID );
+        byte[] InternalID = Bytes( o.getInternalID() );
+        byte[] Symbol     = Bytes( o.getSymbol() );
+        byte[] Customer   = Bytes( o.getCustomer() );
+        byte[] Source     = Bytes( o.getSource() );
+        byte[] ArriveDate = Bytes( o.getArriveDate() );
+        byte[] TIF        = Bytes( o.getTIF() );
+        byte[] Currency   = Bytes( o.getCurrency() );
+
+        int Length = FixedSize + 18 + OrderID.length + OrigID.length + InternalID.length +
+                     Symbol.length + Customer.length + Source.length + ArriveDate.length +
+                     TIF.length + Currency.length;
+
+        if ( Buffer.remaining() < 4 + Length + CheckSize )
+            Drain();
+
+        int Start = Buffer.position();
+
+        Buffer.putInt( Length );
+        Buffer.putLong( Count++ );
+        Buffer.put( (byte) c.Type );
+        Buffer.put( (byte) o.getSide() );
+        Buffer.putLong( o.getPriceTicks() );
+        Buffer.putLong( o.getQuantityLots() );
+        Buffer.putLong( o.getAvailableLots() );
+        Buffer.putLong( o.getMinFillLots() );
+
+        PutString( OrderID );
+        PutString( OrigID );
+        PutString( InternalID );
+        PutString( Symbol );
+        PutString( Customer );
+        PutString( Source );
+        PutString( ArriveDate );
+        PutString( TIF );
+        PutString( Currency );
+
+        int End = Buffer.position();
+
+        Sum.reset();
+        Buffer.limit( End ).position( Start );
+        Sum.update( Buffer );
+        Buffer.limit( Buffer.capacity() );
+
+        Buffer.putInt( (int) Sum.getValue() );
+    }
+
+    /**
+     * @param s A string, or null
+     * @return Its UTF-8 bytes, at most 65535 of them
+     */
+    static byte[] Bytes ( String s )
+    {
+        byte[] b = ( s == null ) ? new byte[0] : s.getBytes( StandardCharsets.UTF_8 );
+
+        if ( b.length > 0xffff )
+            b = Arrays.copyOf( b, 0xffff );
+
+        return b;
+    }
+
+    /**
+     * @param b Bytes of a string
+     */
+    private void PutString ( byte[] b )
+    {
+        Buffer.putChar( (char) b.length );
+        Buffer.put( b );
+    }
+
+    /**
+     * Writes out the buffer, forcing it to disk with FSYNC.
+     *
+     * @throws IOException If the write fails
+     */
+    private void Commit () throws IOException
+    {
+        if ( Buffer.position() == 0 )
+            return;
+
+        Drain();
+
+        if ( Fsync )
+            File.force( false );
+    }
+
+    /**
+     * Writes the buffer to the file and empties it.
+     *
+     * @throws IOException If the write fails
+     */
+    private void Drain () throws IOException
+    {
+        Buffer.flip();
+
+        while ( Buffer.hasRemaining() )
+            File.write( Buffer );
+
+        Buffer.clear();
+    }
+
+    /**
+     * Starts the Thread.  Sends a message to Logger to indicate
+     * successful start.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void start () throws IOException
+    {
+        if ( T == null )
+        {
+            try
+            {
+                Logger.getInstance().write("Journaling to " + FileName + " from record " + Count);
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+
+            T = new Thread( this, ThreadName );
+            T.start();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts latencies, or any other non-negative values, in log-linear
+ * buckets so every percentile can be read back within 2% of the value
+ * recorded, however long the tail.  Values below 128 are counted
+ * exactly; above that each power of two is split into 64 buckets.
+ * Recording takes constant time and never allocates.
+ *
+ * A LatencyHistogram is not thread-safe: record from one Thread, and
+ * read it from another only after that Thread has stopped or handed it
+ * over.
+ */
+public class LatencyHistogram {
+
+    /** Values below this are counted exactly. */
+    private static final int Exact = 128;
+
+    /** Buckets per power of two above Exact. */
+    private static final int SubBuckets = 64;
+
+    /** Largest shift needed for a positive long. */
+    private static final int MaxShift = 63 - 6;
+
+    /** Count of each bucket. */
+    private long[] Counts;
+
+    /** Values recorded. */
+    private long Count;
+
+    /** Sum of the values recorded. */
+    private double Total;
+
+    /** Smallest value recorded. */
+    private long Min;
+
+    /** Largest value recorded. */
+    private long Max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram ()
+    {
+        Counts = new long[ Exact + MaxShift * SubBuckets ];
+        Reset();
+    }
+
+    /**
+     * Empties the histogram.
+     */
+    public void Reset ()
+    {
+        Arrays.fill( Counts, 0 );
+        Count = 0;
+        Total = 0D;
+        Min = Long.MAX_VALUE;
+        Max = 0;
+    }
+
+    /**
+     * @param Value A value, negative values count as zero
+     * @return The bucket counting Value
+     */
+    private static int IndexOf ( long Value )
+    {
+        if ( Value < Exact )
+            return (int) Value;
+
+        int Shift = 63 - Long.numberOfLeadingZeros( Value ) - 6;
+
+        return Exact + ( Shift - 1 ) * SubBuckets + (int) ( ( Value >>> Shift ) - SubBuckets );
+    }
+
+    /**
+     * @param Index A bucket
+     * @return The largest value counted by the bucket
+     */
+    private static long HighestOf ( int Index )
+    {
+        if ( Index < Exact )
+            return Index;
+
+        int Shift = ( Index - Exact ) / SubBuckets + 1;
+        long Sub = ( Index - Exact ) % SubBuckets + SubBuckets;
+
+        return ( ( Sub + 1 ) << Shift ) - 1;
+    }
+
+    /**
+     * Counts one value.
+     *
+     * @param Value The value, negative values count as zero
+     */
+    public void Record ( long Value )
+    {
+        if ( Value < 0 )
+            Value = 0;
+
+        Counts[ IndexOf( Value ) ]++;
+        Count++;
+        Total += Value;
+
+        if ( Value < Min )
+            Min = Value;
+        if ( Value > Max )
+            Max = Value;
+    }
+
+    /**
+     * Adds every value counted by another histogram.
+     *
+     * @param h The other histogram
+     */
+    public void Add ( LatencyHistogram h )
+    {
+        for ( int i = 0; i < Counts.length; i++ )
+            Counts[i] += h.Counts[i];
+
+        Count += h.Count;
+        Total += h.Total;
+        Min = Math.min( Min, h.Min );
+        Max = Math.max( Max, h.Max );
+    }
+
+    /**
+     * @return Values recorded
+     */
+    public long getCount ()
+    {
+        return Count;
+    }
+
+    /**
+     * @return Smallest value recorded, zero if none
+     */
+    public long getMin ()
+    {
+        return ( Count == 0 ) ? 0 : Min;
+    }
+
+    /**
+     * @return Largest value recorded
+     */
+    public long getMax ()
+    {
+        return Max;
+    }
+
+    /**
+     * @return Mean of the values recorded, zero if none
+     */
+    public double getMean ()
+    {
+        return ( Count == 0 ) ? 0D : Total / Count;
+    }
+
+    /**
+     * @param Percentile From 0 to 100
+     * @return The value at or below which Percentile percent of the
+     * values fall, rounded up to its bucket, at most the largest value
+     */
+    public long getValueAtPercentile ( double Percentile )
+    {
+        if ( Count == 0 )
+            return 0;
+
+        long Rank = (long) Math.ceil( Math.min( Math.max( Percentile, 0D ), 100D ) / 100D * Count );
+        long Seen = 0;
+
+        Rank = Math.max( Rank, 1 );
+
+        for ( int i = 0; i < Counts.length; i++ )
+        {
+            Seen += Counts[i];
+
+            if ( Seen >= Rank )
+                return Math.min( HighestOf( i ), Max );
+        }
+
+        return Max;
+    }
+
+    /**
+     * Prints the percentile distribution, in the layout of HdrHistogram
+     * so the usual plotting tools read it: the value, the percentile,
+     * the count at or below it and 1/(1-percentile).  Percentiles are
+     * printed more closely together towards the tail.
+     *
+     * @param out Where to print
+     * @param Scale Divides every value, e.g. 1000.0 to print
+     * nanoseconds as microseconds
+     */
+    public void PrintPercentiles ( PrintStream out, double Scale )
+    {
+        out.println( String.format( "%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)" ) );
+        out.println();
+
+        if ( Count > 0 )
+        {
+            double p = 0D;
+
+            while ( true )
+            {
+                long Value = getValueAtPercentile( p );
+                long Below = CountAtOrBelow( Value );
+
+                if ( Below >= Count )
+                    break;
+
+                out.println( String.format( "%12.3f %14.12f %10d %14.2f",
+                    Value / Scale, p / 100D, Below, 100D / ( 100D - p ) ) );
+
+                // five steps per halving of the distance to 100%
+                double Half = Math.pow( 2, Math.floor( Math.log( 100D / ( 100D - p ) ) / Math.log( 2 ) ) + 1 );
+
+                p = Math.min( p + 100D / Half / 5, 100D );
+            }
+
+            out.println( String.format( "%12.3f %14.12f %10d", Max / Scale, 1D, Count ) );
+        }
+
+        out.println( String.format( "#[Mean    = %12.3f, Max     = %12.3f]", getMean() / Scale, Max / Scale ) );
+        out.println( String.format( "#[Count   = %12d, Min     = %12.3f]", Count, getMin() / Scale ) );
+    }
+
+    /**
+     * @param Value A value returned by getValueAtPercentile
+     * @return Number of values counted in buckets up to Value's
+     */
+    private long CountAtOrBelow ( long Value )
+    {
+        int Last = IndexOf( Value );
+        long Seen = 0;
+
+        for ( int i = 0; i <= Last; i++ )
+            Seen += Counts[i];
+
+        return Seen;
+    }
+}
@@ -21,8 +21,17 @@
 package Microssa;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.text.*;
-import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import Microssa.Configuration;
 
@@ -30,9 +39,25 @@ import Microssa.Configuration;
  * This class is responsible for writing MatchingEngine events to
  * a flatfile.
  *
+ * With LOGMODE = SYNC every call writes its line before returning.
+ * With LOGMODE = ASYNC a call only stores the line and its time in a
+ * pre-allocated ring of LOGQUEUESIZE entries, rounded up to a power of
+ * two; a writer Thread formats everything waiting, at most once every
+ * LOGCOMMITMS milliseconds, and writes it with one FileChannel write
+ * per file.  The ring is filled as a Sequencer is, without a lock:
+ * each caller claims the next sequence number, stores its line in that
+ * slot and publishes it, and the writer releases slots once their lines
+ * are formatted.  A caller only wakes the writer when the ring was empty
+ * or is half full, and waits only when the ring is full.
+ *
+ * LOGDURABILITY = WRITE hands each write to the operating system, which
+ * survives Microssa stopping abruptly; FSYNC also forces it to disk,
+ * which survives the machine stopping.  In ASYNC mode lines still in
+ * the ring are lost if Microssa stops without calling close.
+ *
  * @see MatchingEngine
  */
-public class Logger {
+public class Logger implements Runnable {
 
     /** Path and file name of the log file. */
     private static final String FileName = "../log/" + Configuration.getInstance().getString("LOGFILE");
@@ -46,11 +71,76 @@ public class Logger {
     /** Singleton instance of Logger. */
 	protected static volatile Logger LoggerInstance = null;
 
-    /** Logfile stream object. */
-    private FileOutputStream LogFile;
+    /** Logfile channel. */
+    private FileChannel LogFile;
+
+    /** Match Report Logfile channel. */
+    private FileChannel MatchReportLogFile;
+
+    /** True when lines are written by the writer Thread. */
+    private boolean Async;
+
+    /** True to force every write to disk. */
+    private boolean Fsync;
+
+    /** Shortest time between two writes of the writer Thread, in milliseconds. */
+    private long CommitMS;
+
+    /** Formatted lines waiting to be written to the logfile. */
+    private ByteBuffer LogBuffer;
+
+    /** Formatted lines waiting to be written to the match report. */
+    private ByteBuffer MatchBuffer;
+
+    /** Turns lines into bytes. */
+    private CharsetEncoder Encoder;
+
+    /** Formats the time of a line. */
+    private DateFormat TimeFormat;
+
+    /** Millisecond of the last formatted time. */
+    private long LastMillis;
+
+    /** Second of the last formatted time. */
+    private long LastSecond;
+
+    /** Last formatted time. */
+    private String LastStamp;
+
+    /** LastStamp up to and including the decimal point. */
+    private String SecondStamp;
+
+    /** Ring of lines waiting for the writer Thread. */
+    private String[] Texts;
+
+    /** Time of each line in the ring. */
+    private long[] Times;
+
+    /** True for each match report line in the ring. */
+    private boolean[] Matches;
+
+    /** Ring size minus one.  The size is a power of two. */
+    private int Mask;
+
+    /** Sequence number published in each slot, -1 if none yet. */
+    private AtomicLongArray Published;
+
+    /** The next sequence number to hand out. */
+    private AtomicLong NextSequence;
+
+    /** Last sequence number the writer Thread has formatted, whose
+     *  slot may be reused. */
+    private volatile long Released;
+
+    /** True once close was called. */
+    private volatile boolean Closed;
 
-    /** Match Report Logfile stream object. */
-    private FileOutputStream MatchReportLogFile;
+    /** The writer Thread in ASYNC mode. */
+    private Thread T;
+
+    /** Nanoseconds the idle writer Thread sleeps before looking again,
+     *  in case a wake up was missed. */
+    private static final long IdleNS = 100000000L;
 
     /**
      * This is a singleton class.  The constructor is Protected so it
@@ -62,7 +152,8 @@ public class Logger {
 
     /**
      * Creates a new Logger instance, verifies there is only one,
-     * and attempts to open the output file for writing.
+     * and attempts to open the output file for writing.  Starts the
+     * writer Thread in ASYNC mode.
      *
      * @throws IOException If there is already a Logger instance, or
      * if the output file cannot be open
@@ -74,12 +165,12 @@ public class Logger {
             throw new IOException("Logger is already initialized.");
         }
 
-        LoggerInstance = new Logger();
+        Logger l = new Logger();
 
         try
         {
-            LoggerInstance.LogFile =
-                new FileOutputStream(FileName);
+            l.LogFile =
+                new FileOutputStream(FileName).getChannel();
         }
         catch ( IOException e )
         {
@@ -88,12 +179,12 @@ public class Logger {
 
         if ( Configuration.getInstance().getString("MATCHREPORT").equals("YES") )
         {
-            LoggerInstance.WriteMatchReport = true;
+            l.WriteMatchReport = true;
 
             try
             {
-                LoggerInstance.MatchReportLogFile =
-                    new FileOutputStream(MatchReportFileName);
+                l.MatchReportLogFile =
+                    new FileOutputStream(MatchReportFileName).getChannel();
             }
             catch ( IOException e )
             {
@@ -102,8 +193,49 @@ public class Logger {
         }
         else
         {
-            LoggerInstance.WriteMatchReport = false;
+            l.WriteMatchReport = false;
+        }
+
+        l.Async = Configuration.getInstance().getString("LOGMODE").toUpperCase().equals("ASYNC");
+        l.Fsync = Configuration.getInstance().getString("LOGDURABILITY").toUpperCase().equals("FSYNC");
+        l.CommitMS = Math.max( Configuration.getInstance().getInt("LOGCOMMITMS"), 0 );
+
+        l.LogBuffer = ByteBuffer.allocateDirect( 65536 );
+        l.MatchBuffer = ByteBuffer.allocateDirect( 65536 );
+        l.Encoder = StandardCharsets.UTF_8.newEncoder()
+                                           .onMalformedInput( CodingErrorAction.REPLACE )
+                                           .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        l.TimeFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+        l.LastMillis = -1;
+        l.LastSecond = -1;
+        l.Closed = false;
+
+        if ( l.Async )
+        {
+            int Size = Math.max( Configuration.getInstance().getInt("LOGQUEUESIZE"), 1 );
+            int Slots = 1;
+
+            while ( Slots < Size )
+                Slots <<= 1;
+
+            l.Texts = new String[Slots];
+            l.Times = new long[Slots];
+            l.Matches = new boolean[Slots];
+            l.Mask = Slots - 1;
+            l.Published = new AtomicLongArray( Slots );
+
+            for ( int i = 0; i < Slots; i++ )
+                l.Published.set( i, -1 );
+
+            l.NextSequence = new AtomicLong( 0 );
+            l.Released = -1;
+
+            l.T = new Thread( l, "LOGGER" );
+            l.T.setDaemon( true );
+            l.T.start();
         }
+
+        LoggerInstance = l;
     }
 
     /**
@@ -117,59 +249,344 @@ public class Logger {
         return LoggerInstance;
     }
 
+    /**
+     * @return Lines waiting for the writer Thread, always zero in SYNC
+     * mode
+     */
+    public int getQueueDepth ()
+    {
+        return Async ? (int) ( NextSequence.get() - 1 - Released ) : 0;
+    }
+
     /**
      * Writes a string to the logfile with a prepended datetime.
-     * We flush after each write in case the matching engine is
-     * abruptly stopped.
+     * In SYNC mode the line is written before returning, in case the
+     * matching engine is abruptly stopped.
      *
      * @param s The string to be written
-     * @throws IOException If the logfile write or flush fails
+     * @throws IOException If the logfile write fails
      */
     public void write ( String s ) throws IOException
     {
-        DateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
-        String prefix = df.format(Calendar.getInstance().getTime());
+        if ( Async )
+            Append( s, false );
+        else
+            WriteNow( s, false );
+    }
+
+    /**
+     * Writes a string to the match report with a prepended datetime.
+     * In SYNC mode the line is written before returning, in case the
+     * matching engine is abruptly stopped.
+     *
+     * @param s The string to be written
+     * @throws IOException If the match report write fails
+     */
+    public void writeMatch ( String s ) throws IOException
+    {
+        if ( !WriteMatchReport )
+            return;
 
-        String output = prefix + ":" + s + "\n\n";
+        if ( Async )
+            Append( s, true );
+        else
+            WriteNow( s, true );
+    }
+
+    /**
+     * Writes one line in SYNC mode.
+     *
+     * @param s The string to be written
+     * @param Match True for the match report
+     * @throws IOException If the write fails
+     */
+    private synchronized void WriteNow ( String s, boolean Match ) throws IOException
+    {
+        if ( Closed )
+            return;
 
         try
         {
-            LogFile.write(output.getBytes());
-            LogFile.flush();
+            Format( System.currentTimeMillis(), s, Match );
+            Commit();
         }
-        catch (IOException e)
+        catch ( IOException e )
         {
             throw e;
         }
     }
 
     /**
-     * Writes a string to the match report with a prepended datetime.
-     * We flush after each write in case the matching engine is
-     * abruptly stopped.
+     * Stores one line for the writer Thread.  Waits while the ring is
+     * full, and only claims a slot once there is room, so an
+     * interrupted caller leaves no gap in the ring.
      *
      * @param s The string to be written
-     * @throws IOException If the match report write or flush fails
+     * @param Match True for the match report
+     * @throws IOException If interrupted while waiting
      */
-    public void writeMatch ( String s ) throws IOException
+    private void Append ( String s, boolean Match ) throws IOException
+    {
+        long Now = System.currentTimeMillis();
+        long Sequence;
+
+        do
+        {
+            Sequence = NextSequence.get();
+
+            while ( Sequence - Released > Mask + 1 )
+            {
+                if ( Closed )
+                    return;
+
+                if ( Thread.currentThread().isInterrupted() )
+                    throw new InterruptedIOException("Interrupted waiting for the log.");
+
+                LockSupport.unpark( T );
+                Thread.yield();
+            }
+
+            if ( Closed )
+                return;
+        }
+        while ( !NextSequence.compareAndSet( Sequence, Sequence + 1 ) );
+
+        int i = (int) Sequence & Mask;
+
+        Texts[i] = s;
+        Times[i] = Now;
+        Matches[i] = Match;
+
+        // a full write, so the writer either sees this line or its
+        // Released is seen here, and no wake up is lost
+        Published.set( i, Sequence );
+
+        // wake the writer once the ring stops being empty, and early
+        // once it is half full
+        long Waiting = Sequence - Released;
+
+        if ( Waiting == 1 || Waiting == ( Mask + 2 ) / 2 )
+            LockSupport.unpark( T );
+    }
+
+    /**
+     * The writer Thread.  Takes every published line from the ring, at
+     * most once every CommitMS, formats them and releases their slots,
+     * then writes them.
+     */
+    public void run ()
     {
-        if ( WriteMatchReport ) {
-            DateFormat df = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
-            String prefix = df.format(Calendar.getInstance().getTime());
+        long LastCommit = 0;
+        long Next = 0;
+
+        while ( true )
+        {
+            if ( Thread.interrupted() )
+                Closed = true;
+
+            long Last = Next - 1;
 
-            String output = prefix + "," + s + "\n";
+            while ( Last - Next < Mask && Published.get( (int) ( Last + 1 ) & Mask ) == Last + 1 )
+                Last++;
 
+            if ( Last < Next )
+            {
+                if ( Closed )
+                    return;
+
+                LockSupport.parkNanos( this, IdleNS );
+                continue;
+            }
+
+            // group commit: let more lines gather until CommitMS has passed
+            long Wait = LastCommit + CommitMS - System.currentTimeMillis();
+
+            if ( Wait > 0 && !Closed && Last - Next + 1 < ( Mask + 2 ) / 2 )
+            {
+                LockSupport.parkNanos( this, Wait * 1000000L );
+                continue;
+            }
+
+            try
+            {
+                for ( long n = Next; n <= Last; n++ )
+                {
+                    int i = (int) n & Mask;
+
+                    Format( Times[i], Texts[i], Matches[i] );
+                    Texts[i] = null;
+                }
+
+                Released = Last;
+                Next = Last + 1;
+
+                Commit();
+            }
+            catch ( IOException e )
+            {
+                Released = Last;
+                Next = Last + 1;
+
+                System.err.println( "Unable to write log: " + e.getMessage() );
+            }
+
+            LastCommit = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes every waiting line, then closes the files.  Lines written
+     * after this call are dropped.
+     *
+     * @throws IOException If the final write or close fails
+     */
+    public void close () throws IOException
+    {
+        synchronized ( this )
+        {
+            if ( Closed && T == null )
+                return;
+
+            Closed = true;
+        }
+
+        if ( T != null )
+        {
+            LockSupport.unpark( T );
+
+            try
+            {
+                T.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            T = null;
+        }
+
+        synchronized ( this )
+        {
             try
             {
-                MatchReportLogFile.write(output.getBytes());
-                MatchReportLogFile.flush();
+                LogFile.force( false );
+                LogFile.close();
+
+                if ( WriteMatchReport )
+                {
+                    MatchReportLogFile.force( false );
+                    MatchReportLogFile.close();
+                }
             }
-            catch (IOException e)
+            catch ( IOException e )
             {
                 throw e;
             }
         }
     }
 
-}
+    /**
+     * Formats one line into the buffer of its file, writing the buffer
+     * out first if it is full.  Called by one Thread at a time.
+     *
+     * @param Millis Time of the line
+     * @param s The string to be written
+     * @param Match True for the match report
+     * @throws IOException If a write fails
+     */
+    private void Format ( long Millis, String s, boolean Match ) throws IOException
+    {
+        String Line = Timestamp( Millis ) + ( Match ? "," : ":" ) + s + ( Match ? "\n" : "\n\n" );
+
+        ByteBuffer Buffer = Match ? MatchBuffer : LogBuffer;
+        FileChannel File = Match ? MatchReportLogFile : LogFile;
+        CharBuffer In = CharBuffer.wrap( Line );
 
+        Encoder.reset();
+
+        while ( Encoder.encode( In, Buffer, true ).isOverflow() )
+            Drain( Buffer, File );
+
+        while ( Encoder.flush( Buffer ).isOverflow() )
+            Drain( Buffer, File );
+    }
+
+    /**
+     * Writes out both buffers, forcing them to disk with FSYNC.
+     *
+     * @throws IOException If a write fails
+     */
+    private void Commit () throws IOException
+    {
+        boolean Wrote = LogBuffer.position() > 0;
+
+        Drain( LogBuffer, LogFile );
+
+        if ( Fsync && Wrote )
+            LogFile.force( false );
+
+        if ( WriteMatchReport )
+        {
+            Wrote = MatchBuffer.position() > 0;
+
+            Drain( MatchBuffer, MatchReportLogFile );
+
+            if ( Fsync && Wrote )
+                MatchReportLogFile.force( false );
+        }
+    }
+
+    /**
+     * Writes a buffer to its file and empties it.
+     *
+     * @param Buffer Formatted lines
+     * @param File Their file
+     * @throws IOException If the write fails
+     */
+    private static void Drain ( ByteBuffer Buffer, FileChannel File ) throws IOException
+    {
+        Buffer.flip();
+
+        while ( Buffer.hasRemaining() )
+            File.write( Buffer );
+
+        Buffer.clear();
+    }
+
+    /**
+     * Formats a time, reusing the last result within the same
+     * millisecond and the date part within the same second.
+     *
+     * @param Millis The time
+     * @return yyyy/MM/dd HH:mm:ss.SSS
+     */
+    private String Timestamp ( long Millis )
+    {
+        if ( Millis == LastMillis )
+            return LastStamp;
+
+        long Second = Math.floorDiv( Millis, 1000L );
+
+        if ( Second != LastSecond )
+        {
+            String Full = TimeFormat.format( new Date( Millis ) );
+
+            SecondStamp = Full.substring( 0, Full.length() - 3 );
+            LastSecond = Second;
+            LastStamp = Full;
+        }
+        else
+        {
+            int ms = (int) Math.floorMod( Millis, 1000L );
+
+            LastStamp = SecondStamp + (char) ( '0' + ms / 100 ) +
+                        (char) ( '0' + ms / 10 % 10 ) + (char) ( '0' + ms % 10 );
+        }
+
+        LastMillis = Millis;
+
+        return LastStamp;
+    }
+
+}
@@ -24,7 +24,9 @@ import quickfix.*;
 import java.io.FileInputStream;
 
 import Microssa.MatchingEngine;
+import Microssa.ShardedMatchingEngine;
 import Microssa.Logger;
+import Microssa.Statistics;
 
 /**
  * Static class that initializes the MatchingEngine, Logger, OrderSocket
@@ -38,6 +40,9 @@ import Microssa.Logger;
 public class Main
 {
     private static boolean keepRunning = true;
+
+    /** True once start up failed, and main is exiting on its own. */
+    private static volatile boolean failed = false;
     
 	public static void main (String args[])
     {
@@ -45,13 +50,18 @@ public class Main
         {
             boolean useFix;
             Acceptor acceptor = null;
+            Database db = null;
 
             final Thread mainThread = Thread.currentThread();
             Runtime.getRuntime().addShutdownHook( new Thread() {
                 public void run(){
                     try {
                         keepRunning = false;
-                        mainThread.join();
+
+                        // main calls System.exit itself when start up fails
+                        if ( !failed ) {
+                            mainThread.join();
+                        }
                     } catch ( Exception e ) {
                         // do nothing
                     }
@@ -61,7 +71,11 @@ public class Main
             Configuration.initialize();
             Logger.initialize();
 
-            MatchingEngine me = new MatchingEngine();
+            // every interface publishes through the engine's Sequencer
+            ShardedMatchingEngine me =
+                new ShardedMatchingEngine( Configuration.getInstance().getInt("SHARDS") );
+
+            me.start();
 
             OrderSocket os = new OrderSocket( "OS-MAIN", me );
             PriceSocket ps = new PriceSocket( "PS-MAIN", me );
@@ -69,11 +83,16 @@ public class Main
             os.start();
             ps.start();
 
+            Statistics stats = new Statistics( me );
+            stats.SetOrderSocket( os );
+            stats.SetPriceSocket( ps );
+
             if ( Configuration.getInstance().getString("USEDB").toUpperCase().equals("TRUE") ) {
                 
-                Database db = new Database( "DB-MAIN", me );
+                db = new Database( "DB-MAIN", me );
                 
                 db.start();
+                stats.SetDatabase( db );
                 
             }
 
@@ -83,7 +102,8 @@ public class Main
                 
                 String FIXSettingsFilename = "../cfg/fix-session.cfg";
                 
-                Application application = new FIXInterface( me );
+                FIXInterface application = new FIXInterface( me );
+                stats.SetFIXInterface( application );
                 
                 SessionSettings settings = new SessionSettings( new FileInputStream( FIXSettingsFilename ) );
                 MessageStoreFactory storeFactory = new FileStoreFactory( settings );
@@ -95,6 +115,8 @@ public class Main
                 acceptor.start();
             }
 
+            stats.register();
+
             Logger.getInstance().write("Microssa is up.");
 
             while ( keepRunning ) {
@@ -108,13 +130,19 @@ public class Main
                 acceptor.stop();
             }
 
+            if ( db != null ) {
+                db.stop();
+            }
+
             Logger.getInstance().write("Microssa shutdown complete.");
+            Logger.getInstance().close();
 
 		}
         catch ( Exception e )
         {
             System.err.println("Error initializing:\n" + e.getMessage() + "\n");
             e.printStackTrace();
+            failed = true;
             System.exit(1);
         }
         
@@ -0,0 +1,376 @@
+/*
+ * MarketDepth.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.Arrays;
+
+import Microssa.DepthBook;
+import Microssa.FixedPoint;
+
+/**
+ * The price levels of one Symbol as published on the incremental market
+ * data feed: the total available quantity at each bid and offer price.
+ *
+ * The levels themselves are the price points of the Symbol's two
+ * DepthBooks, which already total the lots resting at each of them, so
+ * a BOOK message reads one SkipNode per level.  This class only keeps
+ * the levels changed by the current request.  The MatchingEngine
+ * reports every change to a level right after making it in the book;
+ * the first change to a level in a request takes the lots it had before
+ * it, which are the lots last published.  TakeDelta then turns the
+ * changes into one DELTA message with the next sequence number.  A
+ * level changed several times by one request is sent once, and a level
+ * that ends the request as it started is not sent at all.  Nothing is
+ * allocated once the arrays have grown to the largest request.
+ *
+ * @see MatchingEngine
+ * @see DepthBook
+ */
+public class MarketDepth {
+
+    /** Changed levels the arrays start with room for. */
+    private static final int InitialChanges = 16;
+
+    /** The Symbol. */
+    private final String Symbol;
+
+    /** Tick and lot scale of the Symbol. */
+    private final FixedPoint Scale;
+
+    /** True for each changed bid level, in the order first changed. */
+    private boolean[] ChangedBid;
+
+    /** Price of each changed level, in ticks. */
+    private long[] ChangedPrice;
+
+    /** Available quantity now resting at each changed level, in lots. */
+    private long[] ChangedLots;
+
+    /** Lots of each changed level as of the last published message. */
+    private long[] PublishedLots;
+
+    /** Slot of each changed level in Index. */
+    private int[] ChangedSlot;
+
+    /** Number of changed levels. */
+    private int Changes;
+
+    /**
+     * Finds a changed level by side and price.  Each slot holds the
+     * level's number plus one, or zero if empty.  Linear probing, twice
+     * the size of the arrays above.
+     */
+    private int[] Index;
+
+    /** Changed levels in message order, reused by TakeDelta. */
+    private int[] Sorted;
+
+    /** Prices of one side's levels, reused by Book. */
+    private long[] Prices;
+
+    /** Lots of one side's levels, reused by Book. */
+    private long[] Quantities;
+
+    /** Sequence number of the last DELTA. */
+    private long Sequence;
+
+    /**
+     * @param s Symbol
+     */
+    public MarketDepth ( String s )
+    {
+        Symbol = s;
+        Scale = FixedPoint.getScale( s );
+        ChangedBid = new boolean[InitialChanges];
+        ChangedPrice = new long[InitialChanges];
+        ChangedLots = new long[InitialChanges];
+        PublishedLots = new long[InitialChanges];
+        ChangedSlot = new int[InitialChanges];
+        Sorted = new int[InitialChanges];
+        Index = new int[2 * InitialChanges];
+        Changes = 0;
+        Prices = new long[InitialChanges];
+        Quantities = new long[InitialChanges];
+        Sequence = 0;
+    }
+
+    /**
+     * Records quantity joining a level.  Called once the change is made
+     * in the book.
+     *
+     * @param Side B for bid, otherwise offer
+     * @param Price Price in ticks
+     * @param Lots Quantity in lots, negative when leaving the level
+     * @param Book The DepthBook of Side, already changed
+     */
+    public void Add ( char Side, long Price, long Lots, DepthBook Book )
+    {
+        boolean Bid = ( Side == 'B' );
+        int i = Find( Bid, Price );
+
+        // first change this request: the lots before it were published
+        if ( i < 0 )
+            i = Insert( Bid, Price, Book.getLevelLots( Price ) - Lots );
+
+        ChangedLots[i] += Lots;
+    }
+
+    /**
+     * Records quantity leaving a level.  Called once the change is made
+     * in the book.
+     *
+     * @param Side B for bid, otherwise offer
+     * @param Price Price in ticks
+     * @param Lots Quantity in lots
+     * @param Book The DepthBook of Side, already changed
+     */
+    public void Remove ( char Side, long Price, long Lots, DepthBook Book )
+    {
+        Add( Side, Price, -Lots, Book );
+    }
+
+    /**
+     * Ends a request.  Builds the DELTA message for the levels it
+     * changed and gives it the next sequence number.
+     *
+     * @param Build False to skip building the message when nobody is
+     * subscribed; the sequence number still advances
+     * @return The DELTA message, or null if nothing changed or Build
+     * is false
+     */
+    public String TakeDelta ( boolean Build )
+    {
+        if ( Changes == 0 )
+            return null;
+
+        StringBuilder Output = Build ? new StringBuilder( 32 + 32 * Changes ) : null;
+        int Entries = 0;
+
+        Sort( Build );
+
+        for ( int k = 0; k < Changes; k++ )
+        {
+            int i = Sorted[k];
+            long Lots = ChangedLots[i];
+            long Published = PublishedLots[i];
+
+            Index[ ChangedSlot[i] ] = 0;
+
+            if ( Lots == Published )
+                continue;
+
+            String Action;
+
+            if ( Published == 0 )
+                Action = "ADD";
+            else if ( Lots == 0 )
+                Action = "DELETE";
+            else
+                Action = "UPDATE";
+
+            Entries++;
+
+            if ( Build )
+                Output.append( ChangedBid[i] ? ",BID," : ",OFFER," ).append( Action )
+                      .append( ',' ).append( Scale.FromTicks( ChangedPrice[i] ) )
+                      .append( ',' ).append( Scale.FromLots( Lots ) );
+        }
+
+        Changes = 0;
+
+        if ( Entries == 0 )
+            return null;
+
+        Sequence++;
+
+        if ( !Build )
+            return null;
+
+        return "DELTA," + Symbol + "," + Sequence + Output;
+    }
+
+    /**
+     * Builds a BOOK message with every level and the sequence number of
+     * the last DELTA, so a client can apply later DELTAs on top of it.
+     * Must not be called while a request has unpublished changes.
+     *
+     * @param Bids The bid DepthBook of the Symbol, or null
+     * @param Offers The offer DepthBook of the Symbol, or null
+     * @return The BOOK message
+     */
+    public String Book ( DepthBook Bids, DepthBook Offers )
+    {
+        int Levels = ( ( Bids == null ) ? 0 : Bids.getLevels() ) +
+                     ( ( Offers == null ) ? 0 : Offers.getLevels() );
+        StringBuilder Output = new StringBuilder( 32 + 24 * Levels );
+
+        Output.append( "BOOK," ).append( Symbol ).append( ',' ).append( Sequence );
+
+        AppendLevels( Output, ",BID", Bids );
+        AppendLevels( Output, ",OFFER", Offers );
+
+        return Output.toString();
+    }
+
+    /**
+     * @param Output Message being built
+     * @param Label Side label
+     * @param Book DepthBook of that side, or null
+     */
+    private void AppendLevels ( StringBuilder Output, String Label, DepthBook Book )
+    {
+        if ( Book == null || Book.getLevels() == 0 )
+            return;
+
+        if ( Prices.length < Book.getLevels() )
+        {
+            Prices = new long[ Math.max( Book.getLevels(), 2 * Prices.length ) ];
+            Quantities = new long[ Prices.length ];
+        }
+
+        int n = Book.getDepth( Prices, Quantities, null );
+
+        Output.append( Label );
+
+        for ( int i = 0; i < n; i++ )
+            Output.append( ',' ).append( Scale.FromTicks( Prices[i] ) )
+                  .append( ',' ).append( Scale.FromLots( Quantities[i] ) );
+    }
+
+    /**
+     * @param Bid True for a bid level
+     * @param Price Price in ticks
+     * @return The level's slot in Index, where it is or would go
+     */
+    private int SlotOf ( boolean Bid, long Price )
+    {
+        long Key = 2 * Price + ( Bid ? 1 : 0 );
+        int Mask = Index.length - 1;
+        int Slot = (int) ( ( Key * 0x9E3779B97F4A7C15L ) >>> 32 ) & Mask;
+
+        while ( Index[Slot] != 0 )
+        {
+            int i = Index[Slot] - 1;
+
+            if ( ChangedPrice[i] == Price && ChangedBid[i] == Bid )
+                break;
+
+            Slot = ( Slot + 1 ) & Mask;
+        }
+
+        return Slot;
+    }
+
+    /**
+     * @param Bid True for a bid level
+     * @param Price Price in ticks
+     * @return Number of the changed level, or -1 if it has not changed
+     */
+    private int Find ( boolean Bid, long Price )
+    {
+        return Index[ SlotOf( Bid, Price ) ] - 1;
+    }
+
+    /**
+     * Adds a level to the changed levels, growing the arrays if full.
+     *
+     * @param Bid True for a bid level
+     * @param Price Price in ticks
+     * @param Published Lots as of the last published message
+     * @return Number of the changed level
+     */
+    private int Insert ( boolean Bid, long Price, long Published )
+    {
+        if ( Changes == ChangedPrice.length )
+            Grow();
+
+        int i = Changes++;
+        int Slot = SlotOf( Bid, Price );
+
+        ChangedBid[i] = Bid;
+        ChangedPrice[i] = Price;
+        ChangedLots[i] = Published;
+        PublishedLots[i] = Published;
+        ChangedSlot[i] = Slot;
+        Index[Slot] = i + 1;
+
+        return i;
+    }
+
+    /**
+     * Doubles the arrays of changed levels and rebuilds Index.
+     */
+    private void Grow ()
+    {
+        int Size = 2 * ChangedPrice.length;
+
+        ChangedBid = Arrays.copyOf( ChangedBid, Size );
+        ChangedPrice = Arrays.copyOf( ChangedPrice, Size );
+        ChangedLots = Arrays.copyOf( ChangedLots, Size );
+        PublishedLots = Arrays.copyOf( PublishedLots, Size );
+        ChangedSlot = Arrays.copyOf( ChangedSlot, Size );
+        Sorted = new int[Size];
+        Index = new int[2 * Size];
+
+        for ( int i = 0; i < Changes; i++ )
+        {
+            ChangedSlot[i] = SlotOf( ChangedBid[i], ChangedPrice[i] );
+            Index[ ChangedSlot[i] ] = i + 1;
+        }
+    }
+
+    /**
+     * Fills Sorted with the changed levels, bids then offers, each best
+     * price first.  A sweep changes levels in that order already, so the
+     * insertion sort has little to do.
+     *
+     * @param Order False to leave them in the order first changed, when
+     * no message is built
+     */
+    private void Sort ( boolean Order )
+    {
+        for ( int k = 0; k < Changes; k++ )
+        {
+            int j = k;
+
+            while ( Order && j > 0 && Before( k, Sorted[j - 1] ) )
+            {
+                Sorted[j] = Sorted[j - 1];
+                j--;
+            }
+
+            Sorted[j] = k;
+        }
+    }
+
+    /**
+     * @param a Number of a changed level
+     * @param b Number of another changed level
+     * @return True if a is sent before b
+     */
+    private boolean Before ( int a, int b )
+    {
+        if ( ChangedBid[a] != ChangedBid[b] )
+            return ChangedBid[a];
+
+        return ChangedBid[a] ? ChangedPrice[a] > ChangedPrice[b] : ChangedPrice[a] < ChangedPrice[b];
+    }
+}
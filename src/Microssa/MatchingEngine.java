@@ -24,56 +24,41 @@ import java.util.*;
 import java.io.IOException;
 import quickfix.SessionID;
 
+import Microssa.Checkpoint;
+import Microssa.Metrics;
 import Microssa.Order;
+import Microssa.OrderIndex;
+import Microssa.OrderPool;
+import Microssa.OrderStore;
 import Microssa.Logger;
 import Microssa.DepthBook;
+import Microssa.TopOfBook;
 import Microssa.OrderSocket;
 import Microssa.PriceSocket;
 import Microssa.Configuration;
 import Microssa.Database;
+import Microssa.Engine;
 import Microssa.FIXInterface;
+import Microssa.Statistics;
+import Microssa.Dictionary;
 
 /**
  * This class handles order input, matching, reporting, and market data.
  * It is the central class of the Microssa project which connects all of
- * the other classes together.
+ * the other classes together.  It applies every request on the calling
+ * Thread.
+ *
+ * @see Engine
  */
-public class MatchingEngine {
-
-    /**
-     * Pair key used for the MasterBook.
-     */
-    private class Key<T1, T2> {
-
-        private final T1 x;
-        private final T2 y;
-
-        public Key(T1 x, T2 y) {
-            this.x = x;
-            this.y = y;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof Key)) return false;
-            Key key = (Key) o;
-            return x.equals(key.x) && y.equals(key.y);
-        }
-
-        @Override
-        public int hashCode() {
-            return x.hashCode() * 37 + y.hashCode();
-        }
-
-    }
+public class MatchingEngine implements Engine {
 
     /*
-     * More efficient algorithm exists, and the MEs can be
-     * threaded on symbol or symbol group basis.
-     * But, the goal for version 1 is to just get it to work.
+     * A MatchingEngine is single-threaded.  To use more threads,
+     * ShardedMatchingEngine spreads the symbols over several
+     * MatchingEngines, each owned by one MatchingEngineShard thread.
      *
-     * HashMap MasterBook: (Symbol, OrderID) => Order object
+     * OrderIndex MasterBook: (SymbolID, OrderID) => Order object
+     * OrderStore Store     : (SymbolID, OrderID) => record, off-heap
      * HashMap BidBook   : Symbol => DepthBook object
      * HashMap OfferBook : Symbol => DepthBook object
      *
@@ -84,13 +69,25 @@ public class MatchingEngine {
      */
 
     /**
-     * Master list of Orders.  Key is Symbol and OrderID pair.
+     * Master list of Orders.  Key is the Symbol's Dictionary.Symbols
+     * ID and OrderID pair.
      * We split all books by Symbol for two reasons: Orders for
      * different symbols will never match and, given this, we
-     * may have multiple MatchingEngine threads in a future
-     * release where each one handles a an exclusive subset of Symbols.
+     * may have multiple MatchingEngine threads where each one
+     * handles an exclusive subset of Symbols.
+     *
+     * @see OrderIndex
      */
-    private Map<Key<String,String>, Order> MasterBook;
+    private OrderIndex MasterBook;
+
+    /**
+     * Records of the resting Orders when BOOKLAYOUT is OFFHEAP, taking
+     * the place of MasterBook, otherwise null.  The Orders themselves
+     * are then only copies loaded for one request.
+     *
+     * @see OrderStore
+     */
+    private OrderStore Store;
 
     /** Holds the Bid (Buy) DepthBooks.  Key is Symbol. */
     private Map<String, DepthBook> BidBook;
@@ -98,8 +95,42 @@ public class MatchingEngine {
     /** Holds the Offer (Sell) DepthBooks.  Key is Symbol. */
     private Map<String, DepthBook> OfferBook;
 
-    /** A set of Symbols the PriceSocket is subscribed for market data. */
-    private Set<String> MDSubs;
+    /**
+     * Levels changed by the current request, for the incremental market
+     * data feed; the levels themselves are the price points of BidBook
+     * and OfferBook.  Key is Symbol.  Only kept when Incremental is set.
+     */
+    private Map<String, MarketDepth> Depths;
+
+    /**
+     * Whether market data goes out as DELTA messages once per request
+     * (MDMODE INCREMENTAL) rather than a SNAPSHOT after every change.
+     */
+    private boolean Incremental;
+
+    /**
+     * Whether each price point of a new DepthBook keeps its orders in
+     * a ring array (BOOKLAYOUT ARRAY) rather than linked nodes.
+     */
+    private boolean QueuedBooks;
+
+    /**
+     * Removed nodes each new DepthBook keeps for reuse, of each kind
+     * (NODEPOOLSIZE).
+     */
+    private int NodePoolSize;
+
+    /**
+     * Place of Execute in the contra book, reset for every order, so
+     * no other walk of the book can move it.
+     */
+    private DepthBook.Cursor Matching;
+
+    /** Prices of one side's orders, reused by BuildSnapshot. */
+    private long[] SnapshotPrices;
+
+    /** Available lots of one side's orders, reused by BuildSnapshot. */
+    private long[] SnapshotLots;
 
     /** Indicates whether we should check for valid Symbols. */
     private Boolean UseValidSymbols;
@@ -151,6 +182,28 @@ public class MatchingEngine {
      */
     private FIXInterface FI;
 
+    /**
+     * True while the Journal is being replayed.  Hooks, Logger and the
+     * interfaces are not told about replayed requests.
+     *
+     * @see Journal
+     */
+    private boolean Replaying;
+
+    /**
+     * Matches made since start, including replayed ones.
+     *
+     * @see ShardedMatchingEngine
+     */
+    private long Matches;
+
+    /**
+     * Stage and request timings, empty unless Metrics are enabled.
+     *
+     * @see Metrics
+     */
+    private Metrics.Recorder Stats;
+
     /**
      * Initializes objects, sets references to null, sends notification
      * to Logger that we are up.
@@ -159,19 +212,34 @@ public class MatchingEngine {
      * @throws IOException Passthrough from Logger write
      */
     public MatchingEngine () throws IOException
+    {
+        this( null );
+    }
+
+    /**
+     * Initializes objects, sets references to null, sends notification
+     * to Logger that we are up.
+     *
+     * @param Name Label for the Logger, or null
+     * @see Logger
+     * @throws IOException Passthrough from Logger write
+     */
+    public MatchingEngine ( String Name ) throws IOException
     {
         // we'll build dynamically as new symbols and bid/offers arrive
-        MasterBook  = new HashMap<>();
+        MasterBook  = new OrderIndex();
         BidBook     = new HashMap<>();
         OfferBook   = new HashMap<>();
+        Depths      = new HashMap<>();
         OrderSessionMap = new HashMap<>();
 
-        MDSubs      = new HashSet<>();
-
         OS = null;
         PS = null;
         DB = null;
         FI = null;
+        Replaying = false;
+        Matches = 0;
+        Stats = new Metrics.Recorder();
         
         MaxOrderQuantity = Configuration.getInstance().getDouble("MAXORDERSIZE");
         
@@ -190,6 +258,18 @@ public class MatchingEngine {
                 ValidSymbols.add( SymbolList[i] );
         }
 
+        Incremental = Configuration.getInstance().getString("MDMODE").equals("INCREMENTAL");
+        QueuedBooks = Configuration.getInstance().getString("BOOKLAYOUT").equals("ARRAY");
+        NodePoolSize = Configuration.getInstance().getInt("NODEPOOLSIZE");
+        Matching = new DepthBook.Cursor();
+        SnapshotPrices = new long[0];
+        SnapshotLots = new long[0];
+
+        if ( Configuration.getInstance().getString("BOOKLAYOUT").equals("OFFHEAP") )
+            Store = new OrderStore();
+        else
+            Store = null;
+
         if ( Configuration.getInstance().getString("DARKPOOL").equals("YES") )
         {
             DarkPool = true;
@@ -201,7 +281,10 @@ public class MatchingEngine {
 
         try
         {
-            Logger.getInstance().write("Started Microssa Matching Engine Version 1.4");
+            if ( Name == null )
+                Logger.getInstance().write("Started Microssa Matching Engine Version 1.4");
+            else
+                Logger.getInstance().write("Started Microssa Matching Engine Version 1.4 " + Name);
         }
         catch ( IOException e )
         {
@@ -239,6 +322,8 @@ public class MatchingEngine {
 
     public String NewOrder ( Order o, SessionID session ) throws IOException
     {
+        long Start = Metrics.Now();
+        long Clock;
         String rejectText = "";
 
         Boolean proceed = true;
@@ -271,20 +356,29 @@ public class MatchingEngine {
             proceed = false;
         }
 
+        Stats.Stage( Metrics.VALIDATE, Start );
+
         // Report to Logger
         if ( proceed )
         {
-            Hooks.NewOrderHook( o );
-            WriteOrderSocket( "NEW," + o.toString(), o );
-            FIXSendExecutionReport( o, 'N' );
-
-            try
-            {
-                Logger.getInstance().write( "NEW," + o.toString() );
-            }
-            catch (IOException e)
+            if ( !Replaying )
             {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.NewOrderHook( o );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "NEW," + o.toString(), o );
+                FIXSendExecutionReport( o, 'N' );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "NEW," + o.toString() );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
 
             // The only two times we actually try to match is during
@@ -293,8 +387,8 @@ public class MatchingEngine {
 
             // Was the new order fully filled?  Is the available quantity
             // too small to handle another fill?
-            if ( Double.compare( o.getAvailableQuantity(), 0D ) == 0 ||
-                 Double.compare( o.getAvailableQuantity(), o.getMinFillQuantity() ) < 0 )
+            if ( o.getAvailableLots() == 0 ||
+                 o.getAvailableLots() < o.getMinFillLots() )
                 proceed = false;
 
         }
@@ -309,57 +403,85 @@ public class MatchingEngine {
             }
             else
             {
-                Hooks.OrderExpireHook( o );
-                WriteOrderSocket( "EXPIRED," + o.toString(), o );
-                FIXSendExecutionReport( o, 'E' );
-                RemoveOrderSessionMap( o );
-
-                try
+                if ( !Replaying )
                 {
-                    Logger.getInstance().write( "EXPIRED," + o.toString() );
-                }
-                catch (IOException e)
-                {
-                    throw e;
+                    Clock = Metrics.Now();
+                    Hooks.OrderExpireHook( o );
+                    Stats.Stage( Metrics.HOOKS, Clock );
+                    WriteOrderSocket( "EXPIRED," + o.toString(), o );
+                    FIXSendExecutionReport( o, 'E' );
+                    RemoveOrderSessionMap( o );
+
+                    try
+                    {
+                        Clock = Metrics.Now();
+                        Logger.getInstance().write( "EXPIRED," + o.toString() );
+                        Stats.Stage( Metrics.LOGGER, Clock );
+                    }
+                    catch (IOException e)
+                    {
+                        throw e;
+                    }
                 }
             }
 
-            // future expansion - send an update rather than snapshot
-            MarketDataSnapshot ( o.getSymbol() );
+            MarketDataUpdate ( o.getSymbol() );
 
         }
         else if ( rejectText.equals("") )
         {
-            Hooks.OrderCompleteHook( o );
-            WriteOrderSocket( "COMPLETED," + o.toString(), o );
-			RemoveOrderSessionMap( o );
-
-            try
+            if ( !Replaying )
             {
-                Logger.getInstance().write( "COMPLETED," + o.toString() );
-            }
-            catch (IOException e)
-            {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.OrderCompleteHook( o );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "COMPLETED," + o.toString(), o );
+                RemoveOrderSessionMap( o );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "COMPLETED," + o.toString() );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
         }
         else
         {
-            Hooks.NewOrderRejectHook( o, rejectText );
-            WriteOrderSocket( "REJECTNEW," + o.toString() + ",RejectText=" + rejectText, o );
-            FIXSendReject( o, rejectText );
-            RemoveOrderSessionMap( o );
-
-            try
-            {
-                Logger.getInstance().write( "REJECTNEW," + o.toString() + ",RejectText=" + rejectText );
-            }
-            catch (IOException e)
+            if ( !Replaying )
             {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.NewOrderRejectHook( o, rejectText );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "REJECTNEW," + o.toString() + ",RejectText=" + rejectText, o );
+                FIXSendReject( o, rejectText );
+                RemoveOrderSessionMap( o );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "REJECTNEW," + o.toString() + ",RejectText=" + rejectText );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
         }
 
+        MarketDataFlush ( o.getSymbol() );
+        TopOfBookUpdate ( o );
+
+        Stats.Request( Metrics.NEW, Start, !rejectText.equals("") );
+
+        // kept if it rests, unless the book is off-heap
+        Recycle( o );
+
         return rejectText;
     }
 
@@ -391,6 +513,8 @@ public class MatchingEngine {
 	
     public String CancelOrder ( Order o, SessionID session ) throws IOException
     {
+        long Start = Metrics.Now();
+        long Clock;
         String rejectText = "";
         Order OldOrder = null;
 
@@ -403,45 +527,72 @@ public class MatchingEngine {
             proceed = false;
         }
 
-        if ( proceed ) {
-            OldOrder = MasterBook.get( new Key(o.getSymbol(), o.getOrderID()));
-
-            Hooks.CancelOrderHook( OldOrder );
-            WriteOrderSocket( "CANCEL," + OldOrder.toString(), o );
-            FIXSendExecutionReport( o, 'C' );
-            RemoveOrderSessionMap( o );
+        Stats.Stage( Metrics.VALIDATE, Start );
 
-            InternalCancel(OldOrder);
+        if ( proceed ) {
+            OldOrder = FindResting( o.getSymbolID(), o.getOrderID() );
 
-            try
+            if ( !Replaying )
             {
-                Logger.getInstance().write( "CANCEL," + OldOrder.toString() );
-            }
-            catch (IOException e)
-            {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.CancelOrderHook( OldOrder );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "CANCEL," + OldOrder.toString(), o );
+                FIXSendExecutionReport( o, 'C' );
+                RemoveOrderSessionMap( o );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "CANCEL," + OldOrder.toString() );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
 
-            // future expansion - send an update rather than snapshot
-            MarketDataSnapshot ( o.getSymbol() );
+            InternalCancel(OldOrder);
+
+            MarketDataUpdate ( o.getSymbol() );
 
         }
         else
         {
-            Hooks.CancelOrderRejectHook( o, rejectText );
-            WriteOrderSocket( "REJECTCANCEL," + o.toString() + ",RejectText=" + rejectText, o );
-            FIXSendReject( o, rejectText );
-
-            try
-            {
-                Logger.getInstance().write( "REJECTCANCEL," + o.toString() + ",RejectText=" + rejectText );
-            }
-            catch (IOException e)
+            if ( !Replaying )
             {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.CancelOrderRejectHook( o, rejectText );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "REJECTCANCEL," + o.toString() + ",RejectText=" + rejectText, o );
+                FIXSendReject( o, rejectText );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "REJECTCANCEL," + o.toString() + ",RejectText=" + rejectText );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
         }
 
+        MarketDataFlush ( o.getSymbol() );
+        TopOfBookUpdate ( o );
+
+        Stats.Request( Metrics.CANCEL, Start, !rejectText.equals("") );
+
+        // the request may be the resting Order itself
+        if ( OldOrder != null )
+            Recycle( OldOrder );
+
+        if ( o != OldOrder )
+            Recycle( o );
+
         return rejectText;
     }
 
@@ -475,6 +626,8 @@ public class MatchingEngine {
 	
     public String AmendOrder ( Order o, String OrigOrderID, SessionID session ) throws IOException
     {
+        long Start = Metrics.Now();
+        long Clock;
         String rejectText = "";
         Order OldOrder = null;
         Boolean proceed = true;
@@ -485,17 +638,9 @@ public class MatchingEngine {
         if ( OrigOrderID.equals("") ) {
 			OrigOrderID = o.getOrderID();
 		}
-		Order testOrder = new Order(o);
-		
-		try {
-			testOrder.setOrderID( OrigOrderID );
-		}
-		catch ( Exception e ) {
-			
-		}
 
         // First, check if we already have an order with this ID
-        if ( !IsOrderKnown( testOrder ) )
+        if ( !IsResting( o.getSymbolID(), OrigOrderID ) )
         {
             rejectText = "Cannot amend unknown order";
             proceed = false;
@@ -507,7 +652,7 @@ public class MatchingEngine {
         // cancel and send a new one!
         if ( proceed )
         {
-            OldOrder = MasterBook.get( new Key(o.getSymbol(), OrigOrderID));
+            OldOrder = FindResting( o.getSymbolID(), OrigOrderID );
             String OrderID = o.getOrderID();
 
             // symbol and order ID are the same, otherwise IsOrderKnown would
@@ -541,21 +686,30 @@ public class MatchingEngine {
             proceed = false;
         }
 
+        Stats.Stage( Metrics.VALIDATE, Start );
+
         if ( proceed )
         {
-            Hooks.AmendOrderHook( OldOrder, o );
-            WriteOrderSocket( "AMEND," + o.toString(), o );
+            if ( !Replaying )
+            {
+                Clock = Metrics.Now();
+                Hooks.AmendOrderHook( OldOrder, o );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "AMEND," + o.toString(), o );
             
-            FIXSendExecutionReport( o, 'A' );
-            RemoveOrderSessionMap( OldOrder );
+                FIXSendExecutionReport( o, 'A' );
+                RemoveOrderSessionMap( OldOrder );
 
-            try
-            {
-                Logger.getInstance().write( "AMEND," + o.toString() );
-            }
-            catch (IOException e)
-            {
-                throw e;
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "AMEND," + o.toString() );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
 
             InternalCancel(OldOrder);
@@ -566,8 +720,8 @@ public class MatchingEngine {
 
             // Was the new order fully filled?  Is the available quantity
             // too small to handle another fill?
-            if ( Double.compare( o.getAvailableQuantity(), 0D ) == 0 ||
-                 Double.compare( o.getAvailableQuantity(), o.getMinFillQuantity() ) < 0 )
+            if ( o.getAvailableLots() == 0 ||
+                 o.getAvailableLots() < o.getMinFillLots() )
                 proceed = false;
         }
 
@@ -581,99 +735,170 @@ public class MatchingEngine {
             }
             else
             {
-                Hooks.OrderExpireHook( o );
-                WriteOrderSocket( "EXPIRED," + o.toString(), o );
-                FIXSendExecutionReport( o, 'E' );
-                RemoveOrderSessionMap( o );
-
-                try
+                if ( !Replaying )
                 {
-                    Logger.getInstance().write( "EXPIRED," + o.toString() );
-                }
-                catch (IOException e)
-                {
-                    throw e;
+                    Clock = Metrics.Now();
+                    Hooks.OrderExpireHook( o );
+                    Stats.Stage( Metrics.HOOKS, Clock );
+                    WriteOrderSocket( "EXPIRED," + o.toString(), o );
+                    FIXSendExecutionReport( o, 'E' );
+                    RemoveOrderSessionMap( o );
+
+                    try
+                    {
+                        Clock = Metrics.Now();
+                        Logger.getInstance().write( "EXPIRED," + o.toString() );
+                        Stats.Stage( Metrics.LOGGER, Clock );
+                    }
+                    catch (IOException e)
+                    {
+                        throw e;
+                    }
                 }
             }
 
-            // future expansion - send an update rather than snapshot
-            MarketDataSnapshot ( o.getSymbol() );
+            MarketDataUpdate ( o.getSymbol() );
 
         }
         else if ( rejectText.equals("") )
         {
-            Hooks.OrderCompleteHook( o );
-            WriteOrderSocket( "COMPLETED," + o.toString(), o );
-            RemoveOrderSessionMap( o );
-
-            try
+            if ( !Replaying )
             {
-                Logger.getInstance().write( "COMPLETED," + o.toString() );
-            }
-            catch (IOException e)
-            {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.OrderCompleteHook( o );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "COMPLETED," + o.toString(), o );
+                RemoveOrderSessionMap( o );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "COMPLETED," + o.toString() );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
         }
         else
         {
-            Hooks.AmendOrderRejectHook( OldOrder, o, rejectText );
-            WriteOrderSocket( "REJECTAMEND," + o.toString() + ",RejectText=" + rejectText, o );
-            FIXSendReject( o, rejectText );
-            RemoveOrderSessionMap( o );
-
-            try
+            if ( !Replaying )
             {
-                Logger.getInstance().write( "REJECTAMEND," + o.toString() + ",RejectText=" + rejectText );
-            }
-            catch (IOException e)
-            {
-                throw e;
+                Clock = Metrics.Now();
+                Hooks.AmendOrderRejectHook( OldOrder, o, rejectText );
+                Stats.Stage( Metrics.HOOKS, Clock );
+                WriteOrderSocket( "REJECTAMEND," + o.toString() + ",RejectText=" + rejectText, o );
+                FIXSendReject( o, rejectText );
+                RemoveOrderSessionMap( o );
+
+                try
+                {
+                    Clock = Metrics.Now();
+                    Logger.getInstance().write( "REJECTAMEND," + o.toString() + ",RejectText=" + rejectText );
+                    Stats.Stage( Metrics.LOGGER, Clock );
+                }
+                catch (IOException e)
+                {
+                    throw e;
+                }
             }
         }
+
+        MarketDataFlush ( o.getSymbol() );
+        TopOfBookUpdate ( o );
+
+        Stats.Request( Metrics.AMEND, Start, !rejectText.equals("") );
+
+        // an OldOrder that was not replaced is kept as it still rests,
+        // unless it is a copy from an off-heap book
+        if ( OldOrder != null && OldOrder != o )
+            Recycle( OldOrder );
+
+        Recycle( o );
+
         return rejectText;
     }
 
     /**
-     * Interface for the PriceSocket to subscribe to a Symbol.  Throws
-     * a reject down the connection if already subscribed.
+     * Interface for the PriceSocket to subscribe a connection to a
+     * Symbol.  Sends the connection a snapshot, or throws a reject down
+     * the connection if already subscribed.
      *
      * @param Symbol The name to subscribe
+     * @param Connection The PriceSocket connection
      */
-    public void MarketDataSubscribe ( String Symbol )
+    public void MarketDataSubscribe ( String Symbol, int Connection )
     {
+        if ( PS == null )
+            return;
+
         if ( DarkPool )
         {
-            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=No subscriptions allowed, Dark Pool" );
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=No subscriptions allowed, Dark Pool", Connection );
         }
         else if ( UseValidSymbols && !ValidSymbols.contains( Symbol ) )
         {
-            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Invalid instrument" );
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Invalid instrument", Connection );
+        }
+        else if ( !PS.Subscribe( Symbol, Connection ) )
+        {
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Already subscribed", Connection );
         }
-        else if ( MDSubs.contains( Symbol ) )
+        else if ( Incremental )
         {
-            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Already subscribed" );
+            WritePriceSocket( DepthOf( Symbol ).Book( BidBook.get( Symbol ), OfferBook.get( Symbol ) ), Connection );
         }
         else
         {
-            MDSubs.add( Symbol );
-            MarketDataSnapshot ( Symbol );
+            WritePriceSocket( BuildSnapshot( Symbol ), Connection );
         }
     }
 
     /**
-     * Interface for the PriceSocket to unsubscribe from a Symbol.
-     * Throws a reject down the connection if not currently subscribed.
+     * Interface for the PriceSocket to ask for the whole book of a
+     * Symbol again, for example after a missed DELTA.  Sends the
+     * connection a BOOK in incremental mode, a SNAPSHOT otherwise.
      *
-     * @param Symbol The name to unsubscribe
+     * @param Symbol The name to send
+     * @param Connection The PriceSocket connection
      */
-
-    public void MarketDataUnsubscribe ( String Symbol )
+    public void MarketDataRefresh ( String Symbol, int Connection )
     {
-        if ( MDSubs.contains( Symbol ) )
-            MDSubs.remove( Symbol );
+        if ( PS == null )
+            return;
+
+        if ( DarkPool )
+        {
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=No subscriptions allowed, Dark Pool", Connection );
+        }
+        else if ( UseValidSymbols && !ValidSymbols.contains( Symbol ) )
+        {
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Invalid instrument", Connection );
+        }
+        else if ( Incremental )
+        {
+            WritePriceSocket( DepthOf( Symbol ).Book( BidBook.get( Symbol ), OfferBook.get( Symbol ) ), Connection );
+        }
         else
-            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Not subscribed" );
+        {
+            WritePriceSocket( BuildSnapshot( Symbol ), Connection );
+        }
+    }
+
+    /**
+     * Interface for the PriceSocket to unsubscribe a connection from a
+     * Symbol.  Throws a reject down the connection if not currently
+     * subscribed.
+     *
+     * @param Symbol The name to unsubscribe
+     * @param Connection The PriceSocket connection
+     */
+    public void MarketDataUnsubscribe ( String Symbol, int Connection )
+    {
+        if ( PS != null && !PS.Unsubscribe( Symbol, Connection ) )
+            WritePriceSocket( "REJECT,Symbol=" + Symbol + ",RejectText=Not subscribed", Connection );
     }
 
     /**
@@ -717,14 +942,116 @@ public class MatchingEngine {
     }
 
     /**
-     * Adds a message to the outbound OrderSocket buffer.
+     * Turns replay of the Journal on or off.
+     *
+     * @param r True while replaying
+     */
+    public void SetReplaying ( boolean r )
+    {
+        Replaying = r;
+    }
+
+    /**
+     * @return Matches made since start, including replayed ones
+     */
+    public long getMatches ()
+    {
+        return Matches;
+    }
+
+    /**
+     * Hands the measurements taken since the last call to Metrics, and
+     * starts measuring afresh.
+     *
+     * @param m The Metrics collecting every shard
+     */
+    public void CaptureMetrics ( Metrics m )
+    {
+        m.Collect( Stats );
+    }
+
+    /**
+     * Copies the counts of every book into a Statistics request.  Each
+     * DepthBook keeps its counts as it changes, so this takes time in
+     * the number of Symbols, not Orders.
+     *
+     * @param s The Statistics request
+     */
+    public void CaptureStatistics ( Statistics.Snapshot s )
+    {
+        List<Statistics.Book> Books = new ArrayList<>();
+
+        for ( Map.Entry<String, DepthBook> e : BidBook.entrySet() )
+            Books.add( new Statistics.Book( e.getKey(), e.getValue(), OfferBook.get( e.getKey() ) ) );
+
+        for ( Map.Entry<String, DepthBook> e : OfferBook.entrySet() )
+            if ( !BidBook.containsKey( e.getKey() ) )
+                Books.add( new Statistics.Book( e.getKey(), null, e.getValue() ) );
+
+        s.Captured( Books, RestingCount(), OrderSessionMap.size(), Matches );
+    }
+
+    /**
+     * Copies every resting Order into a Checkpoint, in priority order
+     * per Symbol and Side.  Only the references and the fields that
+     * change after entry are copied, so matching waits only for the
+     * copy and the Checkpoint is written by its own Thread.
+     *
+     * @param cp The Checkpoint being taken
+     */
+    public void Capture ( Checkpoint cp )
+    {
+        Checkpoint.Part Copy = new Checkpoint.Part( RestingCount() );
+
+        CaptureBook( BidBook, Copy );
+        CaptureBook( OfferBook, Copy );
+
+        cp.Captured( Copy );
+    }
+
+    /**
+     * @param Book BidBook or OfferBook
+     * @param Copy Receives the Orders in priority order
+     */
+    private void CaptureBook ( Map<String, DepthBook> Book, Checkpoint.Part Copy )
+    {
+        for ( DepthBook d : Book.values() )
+        {
+            List<Order> Orders = d.getOrderList();
+
+            for ( int i = 0; i < Orders.size(); i++ )
+                Copy.Add( Orders.get(i) );
+        }
+    }
+
+    /**
+     * Puts an Order read back from a Checkpoint into the books, behind
+     * the Orders already restored at its Price.  Nothing is reported.
+     *
+     * @param o The resting Order
+     */
+    public void Restore ( Order o )
+    {
+        InternalEntry( o );
+        MarketDataFlush( o.getSymbol() );
+        TopOfBookUpdate( o );
+    }
+
+    /**
+     * Sends a message to the OrderSocket connection that owns an Order.
      *
      * @param s Outbound message
+     * @param o The Order the message is about
      */
     private void WriteOrderSocket ( String s, Order o )
     {
         if ( OS != null && o.getSource().equals("OS") )
-            OS.WriteReply( s );
+        {
+            long Clock = Metrics.Now();
+
+            OS.WriteReply( s, o.getConnection() );
+            Stats.Stage( Metrics.ORDERSOCKET, Clock );
+        }
     }
     
     /**
@@ -738,74 +1065,149 @@ public class MatchingEngine {
     private void WriteDatabase ( Order a, Order p, double px, double qty )
     {
         if ( DB != null )
+        {
+            long Clock = Metrics.Now();
+
             DB.WriteMatch( a, p, px, qty );
+            Stats.Stage( Metrics.DATABASE, Clock );
+        }
     }
 
 
     /**
-     * Sends a snapshot of the Prices and AvailableQuantities of the
-     * orders for Symbol to the PriceSocket, if subscribed.
+     * Called after every change to the book of Symbol.  In snapshot
+     * mode, sends a snapshot of the Prices and AvailableQuantities of
+     * the orders for Symbol to every PriceSocket connection subscribed.
+     * In incremental mode the change is already recorded in the
+     * MarketDepth and goes out from MarketDataFlush.
      *
      * @param Symbol The name to send market data
      */
-    private void MarketDataSnapshot ( String Symbol )
+    private void MarketDataUpdate ( String Symbol )
     {
-        if ( !MDSubs.contains( Symbol ) )
+        if ( !Incremental && PS != null && PS.HasSubscribers( Symbol ) )
+        {
+            long Clock = Metrics.Now();
+
+            PS.Publish( Symbol, BuildSnapshot( Symbol ) );
+            Stats.Stage( Metrics.MARKETDATA, Clock );
+        }
+    }
+
+    /**
+     * Called at the end of every order request.  In incremental mode,
+     * sends one DELTA with every level of Symbol the request changed.
+     *
+     * @param Symbol The name to send market data
+     */
+    private void MarketDataFlush ( String Symbol )
+    {
+        if ( !Incremental )
             return;
 
-        String output = "SNAPSHOT," + Symbol;
+        MarketDepth Depth = Depths.get( Symbol );
 
-        if ( BidBook.containsKey(Symbol) ){
-            List<String> OrderIDs = BidBook.get(Symbol).getOrderIDs();
+        if ( Depth == null )
+            return;
 
-            if ( OrderIDs.size() > 0 )
-            {
-                output += ",BID";
+        long Clock = Metrics.Now();
+        boolean Subscribed = PS != null && PS.HasSubscribers( Symbol );
+        String Delta = Depth.TakeDelta( Subscribed );
 
-                for (ListIterator<String> it = OrderIDs.listIterator(); it.hasNext(); ) {
-                    String OrderID = it.next();
+        if ( Delta != null )
+            PS.Publish( Symbol, Delta );
 
-                    Order o = MasterBook.get( new Key(Symbol, OrderID) );
+        Stats.Stage( Metrics.MARKETDATA, Clock );
+    }
 
-                    Double Price = o.getPrice();
-                    Double Quantity = o.getAvailableQuantity();
+    /**
+     * @param Symbol The Symbol
+     * @return The MarketDepth of Symbol, created if needed
+     */
+    private MarketDepth DepthOf ( String Symbol )
+    {
+        MarketDepth Depth = Depths.get( Symbol );
 
-                    output += "," + Price + "," + Quantity;
-                }
-            }
+        if ( Depth == null )
+        {
+            Depth = new MarketDepth( Symbol );
+            Depths.put( Symbol, Depth );
         }
 
-        if ( OfferBook.containsKey(Symbol) ){
-            List<String> OrderIDs = OfferBook.get(Symbol).getOrderIDs();
+        return Depth;
+    }
+
+    /**
+     * Called at the end of every order request.  Publishes the best
+     * bid and offer of the Order's Symbol to TopOfBook.
+     *
+     * @param o The Order of the request
+     */
+    private void TopOfBookUpdate ( Order o )
+    {
+        DepthBook Bid = BidBook.get( o.getSymbol() );
+        DepthBook Offer = OfferBook.get( o.getSymbol() );
 
-            if ( OrderIDs.size() > 0 )
-            {
-                output += ",OFFER";
+        TopOfBook.Publish( o.getSymbolID(),
+                           ( Bid == null ) ? 0 : Bid.getBestPrice(),
+                           ( Offer == null ) ? 0 : Offer.getBestPrice() );
+    }
+
+    /**
+     * Builds a snapshot of the Prices and AvailableQuantities of the
+     * orders for Symbol.  Reads them from the books into arrays kept
+     * for the purpose, without copying any Order.
+     *
+     * @param Symbol The name to send market data
+     * @return The SNAPSHOT message
+     */
+    private String BuildSnapshot ( String Symbol )
+    {
+        StringBuilder output = new StringBuilder( "SNAPSHOT," ).append( Symbol );
+        FixedPoint Scale = FixedPoint.getScale( Symbol );
 
-                for (ListIterator<String> it = OrderIDs.listIterator(); it.hasNext(); ) {
-                    String OrderID = it.next();
+        AppendSnapshot( output, ",BID", BidBook.get( Symbol ), Scale );
+        AppendSnapshot( output, ",OFFER", OfferBook.get( Symbol ), Scale );
 
-                    Order o = MasterBook.get( new Key(Symbol, OrderID) );
+        return output.toString();
+    }
 
-                    Double Price = o.getPrice();
-                    Double Quantity = o.getAvailableQuantity();
+    /**
+     * @param output Message being built
+     * @param Label Side label
+     * @param Book DepthBook of that side, or null
+     * @param Scale Tick and lot scale of the Symbol
+     */
+    private void AppendSnapshot ( StringBuilder output, String Label, DepthBook Book, FixedPoint Scale )
+    {
+        if ( Book == null || Book.getOrders() == 0 )
+            return;
 
-                    output += "," + Price + "," + Quantity;
-                }
-            }
+        if ( SnapshotPrices.length < Book.getOrders() )
+        {
+            SnapshotPrices = new long[ Math.max( Book.getOrders(), 2 * SnapshotPrices.length ) ];
+            SnapshotLots = new long[ SnapshotPrices.length ];
         }
-        WritePriceSocket( output );
+
+        int n = Book.getOrderDepth( SnapshotPrices, SnapshotLots );
+
+        output.append( Label );
+
+        for ( int i = 0; i < n; i++ )
+            output.append( ',' ).append( Scale.FromTicks( SnapshotPrices[i] ) )
+                  .append( ',' ).append( Scale.FromLots( SnapshotLots[i] ) );
     }
 
     /**
-     * Adds a message to the outbound PriceSocket buffer.
+     * Sends a message to one PriceSocket connection.
      *
      * @param s Outbound message
+     * @param Connection The PriceSocket connection
      */
-    private void WritePriceSocket ( String s )
+    private void WritePriceSocket ( String s, int Connection )
     {
         if ( PS != null )
-            PS.WriteReply( s );
+            PS.WriteReply( s, Connection );
     }
 
     /**
@@ -816,7 +1218,76 @@ public class MatchingEngine {
      */
     private Boolean IsOrderKnown ( Order o )
     {
-        return MasterBook.containsKey(new Key(o.getSymbol(),o.getOrderID()));
+        return IsResting( o.getSymbolID(), o.getOrderID() );
+    }
+
+    /**
+     * @param SymbolID ID of the Symbol
+     * @param OrderID The OrderID
+     * @return True if the Order rests in the book
+     */
+    private boolean IsResting ( int SymbolID, String OrderID )
+    {
+        if ( Store != null )
+            return Store.Find( SymbolID, OrderID ) != -1;
+
+        return MasterBook.Find( SymbolID, OrderID ) != null;
+    }
+
+    /**
+     * Finds a resting Order.  From an off-heap book this is a copy
+     * loaded from its record, to give back with Recycle once the
+     * request is done.
+     *
+     * @param SymbolID ID of the Symbol
+     * @param OrderID The OrderID
+     * @return The Order, or null if it does not rest in the book
+     */
+    private Order FindResting ( int SymbolID, String OrderID )
+    {
+        if ( Store == null )
+            return MasterBook.Find( SymbolID, OrderID );
+
+        int Slot = Store.Find( SymbolID, OrderID );
+
+        return ( Slot == -1 ) ? null : Store.Load( Slot );
+    }
+
+    /**
+     * @return Number of Orders resting in the book
+     */
+    private int RestingCount ()
+    {
+        return ( Store != null ) ? Store.getSize() : MasterBook.getSize();
+    }
+
+    /**
+     * Gives an Order that left the engine for good back to OrderPool.
+     * An Order still resting in the book is kept.  An off-heap book
+     * keeps records, so every Order is given back, resting copies too.
+     *
+     * @param o The Order
+     * @see OrderPool
+     */
+    private void Recycle ( Order o )
+    {
+        if ( OrderPool.Enabled && o.getBookNode() == null )
+            OrderPool.Give( o );
+    }
+
+    /**
+     * Builds one side of a Symbol's book in the configured layout.
+     *
+     * @param d The sort direction of the prices, true for the offer
+     * @return The empty DepthBook
+     */
+    private DepthBook NewBook ( boolean d )
+    {
+        DepthBook Book = ( Store != null ) ? new DepthBook( d, Store ) : new DepthBook( d, QueuedBooks );
+
+        Book.setPoolSize( NodePoolSize );
+
+        return Book;
     }
 
     /**
@@ -828,20 +1299,22 @@ public class MatchingEngine {
      */
     private void InternalEntry ( Order o )
     {
+        long Clock      = Metrics.Now();
         String Symbol   = o.getSymbol();
-        String OrderID  = o.getOrderID();
-        double Price    = o.getPrice();
+        long Price      = o.getPriceTicks();
         char Side       = o.getSide();
         DepthBook Book  = null;
 
-        //@SuppressWarnings("unchecked")
-        MasterBook.put( new Key(Symbol, OrderID), o );
+        if ( Store != null )
+            Store.Put( o );
+        else
+            MasterBook.Put( o );
 
         if ( Side == 'B' )
         {
             if ( !BidBook.containsKey(Symbol) )
             {
-                Book = new DepthBook(false);
+                Book = NewBook( false );
                 BidBook.put(Symbol, Book);
             }
             else
@@ -853,7 +1326,7 @@ public class MatchingEngine {
         {
             if ( !OfferBook.containsKey(Symbol) )
             {
-                Book = new DepthBook(true);
+                Book = NewBook( true );
                 OfferBook.put(Symbol, Book);
             }
             else
@@ -862,8 +1335,13 @@ public class MatchingEngine {
             }
         }
 
-        Book.AddOrder( Price, OrderID );
+        o.setBookNode( Book.AddOrder( Price, o ) );
+        Book.ChangeLots( o, o.getAvailableLots() );
+
+        if ( Incremental )
+            DepthOf( Symbol ).Add( Side, Price, o.getAvailableLots(), Book );
 
+        Stats.Stage( Metrics.ENTRY, Clock );
     }
 
     /**
@@ -875,15 +1353,11 @@ public class MatchingEngine {
      */
     private void InternalCancel ( Order o )
     {
+        long Clock      = Metrics.Now();
         String Symbol   = o.getSymbol();
-        String OrderID  = o.getOrderID();
-        double Price    = o.getPrice();
         char Side       = o.getSide();
         DepthBook Book  = null;
 
-        //@SuppressWarnings("unchecked")
-        MasterBook.remove( new Key(Symbol, OrderID) );
-
         if ( Side == 'B' )
         {
             Book = BidBook.get(Symbol);
@@ -893,8 +1367,20 @@ public class MatchingEngine {
             Book = OfferBook.get(Symbol);
         }
 
-        Book.RemoveOrder( Price, OrderID );
+        Book.ChangeLots( o, -o.getAvailableLots() );
+        Book.RemoveOrder( o );
+        o.setBookNode( null );
+
+        // the record is only freed once out of the book
+        if ( Store != null )
+            Store.Remove( o );
+        else
+            MasterBook.Remove( o );
+
+        if ( Incremental )
+            DepthOf( Symbol ).Remove( Side, o.getPriceTicks(), o.getAvailableLots(), Book );
 
+        Stats.Stage( Metrics.REMOVE, Clock );
     }
 
     /**
@@ -909,16 +1395,22 @@ public class MatchingEngine {
      */
     private Order Execute ( Order o ) throws IOException
     {
+        long Start      = Metrics.Now();
+        long Clock;
         String Symbol   = o.getSymbol();
         String OrderID  = o.getOrderID();
-        double Price    = o.getPrice();
+        long Price      = o.getPriceTicks();
         char Side       = o.getSide();
+        FixedPoint Scale = o.getScale();
 
         DepthBook Book       = null;
         Order oMatch         = null;
         String MatchOrderID  = "";
-        double TradePrice    = 0D;
-        double TradeQuantity = 0D;
+        long TradePrice      = 0;
+        long TradeQuantity   = 0;
+        long Fills           = 0;
+        long Levels          = 0;
+        long LastPrice       = 0;
 
         // choose opposite depth book to execute against
         if ( Side == 'S' )
@@ -930,104 +1422,149 @@ public class MatchingEngine {
             Book = OfferBook.get(Symbol);
         }
 
-        // find next eligible match
-        if ( Book != null )
+        // find next eligible match, unless the best contra price
+        // alone shows the order cannot cross
+        if ( Book != null && Book.Crosses( Price ) )
         {
-            MatchOrderID = Book.Match( Price, false );
+            // only stop at resting orders this one could trade with
+            Matching.setFilter( o.getCurrency(), o.getMinFillLots(), o.getAvailableLots() );
+            oMatch = Book.MatchOrder( Price, false, Matching );
 
-            while ( !MatchOrderID.equals("") && Double.compare(o.getAvailableQuantity(),0D) != 0)
+            while ( oMatch != null && o.getAvailableLots() != 0 )
             {
-                oMatch = MasterBook.get( new Key(Symbol, MatchOrderID) );
+                MatchOrderID = oMatch.getOrderID();
 
-                // expanded match criteria
+                // expanded match criteria, as the Cursor applied them
                 if ( o.getCurrency().equals( oMatch.getCurrency() ) && 
-                     Double.compare( o.getMinFillQuantity(), 
-                                     oMatch.getAvailableQuantity() ) <= 0 &&
-                    Double.compare( oMatch.getMinFillQuantity(), 
-                                     o.getAvailableQuantity() ) <= 0 ) {
+                     o.getMinFillLots() <= oMatch.getAvailableLots() &&
+                     oMatch.getMinFillLots() <= o.getAvailableLots() ) {
 
-                    // price improve to midpoint
-                    TradePrice = (Price + oMatch.getPrice()) / 2D;
-                    TradePrice = Math.floor ( 100 * TradePrice ) / 100D;
+                    // price improve to midpoint, rounded down to TRADESCALE
+                    TradePrice = (Price + oMatch.getPriceTicks()) / 2;
+                    TradePrice = Scale.RoundTradePrice( TradePrice );
 
                     // resolve execution quantity
-                    TradeQuantity = Math.min( o.getAvailableQuantity(), oMatch.getAvailableQuantity() );
+                    TradeQuantity = Math.min( o.getAvailableLots(), oMatch.getAvailableLots() );
 
 					// execute passive order
 					oMatch.Execute( TradeQuantity, TradePrice );
+                    Book.ChangeLots( oMatch, -TradeQuantity );
+
+                    if ( Store != null )
+                        Store.Update( oMatch );
+
+                    if ( Incremental )
+                        DepthOf( Symbol ).Remove( oMatch.getSide(), oMatch.getPriceTicks(), TradeQuantity, Book );
 
 					// execute aggressive order
 					o.Execute( TradeQuantity, TradePrice );
+					Matching.setAvailableLots( o.getAvailableLots() );
+					Matches++;
+
+                    // count the price levels this order fills against
+                    if ( Fills == 0 || oMatch.getPriceTicks() != LastPrice )
+                        Levels++;
+
+                    LastPrice = oMatch.getPriceTicks();
+                    Fills++;
+
+                    double TradePx  = Scale.FromTicks( TradePrice );
+                    double TradeQty = Scale.FromLots( TradeQuantity );
 
                     // notify of execution
-                    Hooks.ExecutionHook( o, oMatch, TradePrice, TradeQuantity );
+                    if ( !Replaying )
+                    {
+                        Clock = Metrics.Now();
+                        Hooks.ExecutionHook( o, oMatch, TradePx, TradeQty );
+                        Stats.Stage( Metrics.HOOKS, Clock );
 
-                    String MatchDetails = "TradePrice=" + TradePrice + "," +
-                                          "TradeQuantity=" + TradeQuantity;
+                        String MatchDetails = "TradePrice=" + TradePx + "," +
+                                              "TradeQuantity=" + TradeQty;
 
-                    WriteOrderSocket( "MATCH,OrderID=" + OrderID + "," + MatchDetails, o );
+                        WriteOrderSocket( "MATCH,OrderID=" + OrderID + "," + MatchDetails, o );
     
-                    WriteOrderSocket( "MATCH,OrderID=" + MatchOrderID + "," + MatchDetails, oMatch );
+                        WriteOrderSocket( "MATCH,OrderID=" + MatchOrderID + "," + MatchDetails, oMatch );
                     
-                    FIXSendExecutionReport( o, 'F' );
-                    FIXSendExecutionReport( oMatch, 'F' );
+                        FIXSendExecutionReport( o, 'F' );
+                        FIXSendExecutionReport( oMatch, 'F' );
 
-                    WriteDatabase( o, oMatch, TradePrice, TradeQuantity );
+                        WriteDatabase( o, oMatch, TradePx, TradeQty );
 
-                    try
-                    {
-                        String LogNotification = "aggressiveOrderID=" + OrderID + "," +
-                                                 "passiveOrderID=" + MatchOrderID + "," +
-                                                 MatchDetails;
-
-                        Logger.getInstance().write( "MATCH," + LogNotification );
-                        Logger.getInstance().writeMatch( LogNotification );
-                    }
-                    catch (IOException e)
-                    {
-                        throw e;
+                        try
+                        {
+                            String LogNotification = "aggressiveOrderID=" + OrderID + "," +
+                                                     "passiveOrderID=" + MatchOrderID + "," +
+                                                     MatchDetails;
+
+                            Clock = Metrics.Now();
+                            Logger.getInstance().write( "MATCH," + LogNotification );
+                            Logger.getInstance().writeMatch( LogNotification );
+                            Stats.Stage( Metrics.LOGGER, Clock );
+                        }
+                        catch (IOException e)
+                        {
+                            throw e;
+                        }
                     }
 
                     // remove passive order from book if fully filled or min fill quantity
                     // is greater than available quantity
-                    if ( Double.compare( oMatch.getAvailableQuantity(), 0D ) == 0  ||
-                         Double.compare( oMatch.getAvailableQuantity(), oMatch.getMinFillQuantity() ) < 0)
+                    if ( oMatch.getAvailableLots() == 0  ||
+                         oMatch.getAvailableLots() < oMatch.getMinFillLots() )
                     {
                         InternalCancel( oMatch );
 
-                        Hooks.OrderCompleteHook( oMatch );
-                        WriteOrderSocket( "COMPLETED," + oMatch.toString(), oMatch );
-                        RemoveOrderSessionMap( oMatch );
-
-                        try
+                        if ( !Replaying )
                         {
-                            Logger.getInstance().write( "COMPLETED," + oMatch.toString() );
-                        }
-                        catch (IOException e)
-                        {
-                            throw e;
+                            Clock = Metrics.Now();
+                            Hooks.OrderCompleteHook( oMatch );
+                            Stats.Stage( Metrics.HOOKS, Clock );
+                            WriteOrderSocket( "COMPLETED," + oMatch.toString(), oMatch );
+                            RemoveOrderSessionMap( oMatch );
+
+                            try
+                            {
+                                Clock = Metrics.Now();
+                                Logger.getInstance().write( "COMPLETED," + oMatch.toString() );
+                                Stats.Stage( Metrics.LOGGER, Clock );
+                            }
+                            catch (IOException e)
+                            {
+                                throw e;
+                            }
                         }
+
                     }
 
-                    // future expansion - send an update rather than snapshot here
-                    MarketDataSnapshot ( o.getSymbol() );
+                    MarketDataUpdate ( o.getSymbol() );
 
                 }
 
+                // done with oMatch if it left the book or is a copy,
+                // the Cursor has already stepped past it
+                Recycle( oMatch );
+
                 // find next eligible match
-                MatchOrderID = Book.MatchNext( Price, false );
+                oMatch = Book.MatchNextOrder( Price, false, Matching );
             }
         }
 
+        Stats.Stage( Metrics.EXECUTE, Start );
+        Stats.Sweep( Fills, Levels );
+
         return o;
     }
     
     public Order FindOrder( String OrderID, String Symbol ) {
 		
-		if ( MasterBook.containsKey( new Key(Symbol, OrderID) ) )
-			return MasterBook.get( new Key(Symbol, OrderID) );
-		
-		return null;
+		if ( Store == null )
+			return MasterBook.Find( Symbol, OrderID );
+
+		int SymbolID = Dictionary.Symbols.FindID( Symbol );
+		int Slot = ( SymbolID < 0 ) ? -1 : Store.Find( SymbolID, OrderID );
+
+		// a copy the caller may keep
+		return ( Slot == -1 ) ? null : Store.Load( Slot, new Order() );
 	}
 	
 	private void AddOrderSessionMap( Order o, SessionID session ) {
@@ -1069,15 +1606,23 @@ public class MatchingEngine {
 	
 	private void FIXSendReject ( Order o, String RejectText ) {
 		
-		if ( FI != null && OrderSessionMap.containsKey( o.getOrderID() ) )
+		if ( FI != null && OrderSessionMap.containsKey( o.getOrderID() ) ) {
+			long Clock = Metrics.Now();
+
 			FI.SendReject( o.getOrderID(), RejectText, GetOrderSessionMap( o ) );
+			Stats.Stage( Metrics.FIX, Clock );
+		}
 		
 	}
 
 	private void FIXSendExecutionReport ( Order o, char operation ) {
 		
-		if ( FI != null && OrderSessionMap.containsKey( o.getOrderID() ) )
+		if ( FI != null && OrderSessionMap.containsKey( o.getOrderID() ) ) {
+			long Clock = Metrics.Now();
+
 			FI.SendExecutionReport( o, operation, GetOrderSessionMap( o ) );
+			Stats.Stage( Metrics.FIX, Clock );
+		}
 		
 	}
 	
@@ -0,0 +1,150 @@
+/*
+ * MatchingEngineShard.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+
+import Microssa.EngineCommand;
+import Microssa.MatchingEngine;
+import Microssa.Logger;
+import Microssa.Sequencer;
+
+/**
+ * A single-threaded worker that owns one MatchingEngine.  It has a
+ * Sequencer of its own, holding only the EngineCommands for its
+ * Symbols and those for all shards, and applies every one of them in
+ * sequence order.  Only this worker's Thread ever touches its
+ * MatchingEngine, so the books need no locking.
+ *
+ * @see ShardedMatchingEngine
+ * @see Sequencer
+ */
+public class MatchingEngineShard implements Runnable {
+
+    /** Thread object for this class. */
+    private Thread T;
+
+    /** Label of the Thread. */
+    private String ThreadName;
+
+    /** The MatchingEngine owned by this shard. */
+    private MatchingEngine ME;
+
+    /** The ring this shard alone reads commands from. */
+    private Sequencer Ring;
+
+    /** This shard's consumer number in the Sequencer. */
+    private int Consumer;
+
+    /**
+     * The constructor creates the shard's MatchingEngine and registers
+     * with the Sequencer, but does not start the Thread on its own.
+     *
+     * @param Name A string identifier for the future Thread
+     * @param ring The Sequencer of this shard
+     * @throws IOException Passthrough from MatchingEngine
+     */
+    public MatchingEngineShard ( String Name, Sequencer ring ) throws IOException
+    {
+        ThreadName = Name;
+        Ring = ring;
+        Consumer = Ring.AddConsumer();
+        T = null;
+
+        try
+        {
+            ME = new MatchingEngine( Name );
+        }
+        catch ( IOException e )
+        {
+            throw e;
+        }
+    }
+
+    /**
+     * @return The MatchingEngine owned by this shard
+     */
+    public MatchingEngine getEngine ()
+    {
+        return ME;
+    }
+
+    /**
+     * Applies published commands in batches until the Thread is
+     * interrupted.  Slots are released once per batch.  A failing
+     * command is reported and does not stop the shard.
+     */
+    public void run ()
+    {
+        long Next = 0;
+
+        while ( true )
+        {
+            long Last = Ring.WaitFor( Next );
+
+            if ( Last < Next )
+                return;
+
+            for ( long s = Next; s <= Last; s++ )
+            {
+                EngineCommand c = Ring.Get( s );
+
+                try
+                {
+                    c.Apply( ME );
+                }
+                catch ( Exception e )
+                {
+                    System.err.println( ThreadName + " failed to apply command " +
+                                        c.Sequence + " for " + c.Symbol );
+                    System.err.println( e.getMessage() );
+                }
+            }
+
+            Ring.Release( Consumer, Last );
+            Next = Last + 1;
+        }
+    }
+
+    /**
+     * Starts the Thread.  Sends a message to Logger to indicate
+     * successful start.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void start () throws IOException
+    {
+        if ( T == null )
+        {
+            try
+            {
+                Logger.getInstance().write("Starting matching engine shard " + ThreadName);
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+
+            T = new Thread( this, ThreadName );
+            T.start();
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Metrics.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import Microssa.Configuration;
+import Microssa.LatencyHistogram;
+import Microssa.Logger;
+import Microssa.ShardedMatchingEngine;
+
+/**
+ * Where the time goes inside the MatchingEngine.  With METRICS = YES
+ * every MatchingEngine times each stage of its order requests, and each
+ * request as a whole, into a Recorder of LatencyHistograms.  Every
+ * METRICSSECONDS this class's Thread publishes a metrics request to the
+ * Sequencer; each shard, on reaching it, adds its Recorder to this
+ * interval's totals and empties it, and this Thread appends the totals
+ * to METRICSFILE in the log folder.
+ *
+ * Stages are timed around the calls they name, so EXECUTE includes the
+ * reports of its own fills, and the stages of a request add up to more
+ * than the request.  SWEEP counts price levels, not time: the levels an
+ * order filled against, for each order that filled at least once.
+ *
+ * Enabled is read once, when this class is loaded, and is final, so
+ * with METRICS = NO the JIT removes every probe and the MatchingEngine
+ * runs as if none were there.
+ *
+ * @see MatchingEngine
+ * @see LatencyHistogram
+ */
+public class Metrics implements Runnable {
+
+    /** True if METRICS = YES when this class was loaded. */
+    public static final boolean Enabled = IsEnabled();
+
+    /** Stage checking a request before acting on it. */
+    public static final int VALIDATE = 0;
+
+    /** Stage calling Hooks. */
+    public static final int HOOKS = 1;
+
+    /** Stage writing to the OrderSocket. */
+    public static final int ORDERSOCKET = 2;
+
+    /** Stage sending FIX reports. */
+    public static final int FIX = 3;
+
+    /** Stage writing to the Logger. */
+    public static final int LOGGER = 4;
+
+    /** Stage queueing trades for the Database. */
+    public static final int DATABASE = 5;
+
+    /** Stage matching against the book. */
+    public static final int EXECUTE = 6;
+
+    /** Stage adding an Order to the book. */
+    public static final int ENTRY = 7;
+
+    /** Stage removing an Order from the book. */
+    public static final int REMOVE = 8;
+
+    /** Stage building and publishing market data. */
+    public static final int MARKETDATA = 9;
+
+    /** Names of the stages, in order. */
+    private static final String[] StageNames =
+        { "VALIDATE", "HOOKS", "ORDERSOCKET", "FIX", "LOGGER", "DATABASE",
+          "EXECUTE", "ENTRY", "REMOVE", "MARKETDATA" };
+
+    /** Request type of a new order. */
+    public static final int NEW = 0;
+
+    /** Request type of an amendment. */
+    public static final int AMEND = 1;
+
+    /** Request type of a cancel. */
+    public static final int CANCEL = 2;
+
+    /** Names of the request types, in order. */
+    private static final String[] RequestNames = { "NEW", "AMEND", "CANCEL" };
+
+    /**
+     * The measurements of one MatchingEngine.  Only the Thread that owns
+     * the MatchingEngine records into it.
+     */
+    public static class Recorder {
+
+        /** Time of each stage, in nanoseconds. */
+        private final LatencyHistogram[] Stages;
+
+        /** Time of each request type, in nanoseconds. */
+        private final LatencyHistogram[] Requests;
+
+        /** Price levels filled against, per order that filled. */
+        private final LatencyHistogram Sweeps;
+
+        /** Requests rejected. */
+        private long Rejects;
+
+        /** Fills, one per match. */
+        private long Fills;
+
+        /**
+         * Creates an empty Recorder.  Nothing is allocated unless
+         * Enabled.
+         */
+        public Recorder ()
+        {
+            int s = Enabled ? StageNames.length : 0;
+            int r = Enabled ? RequestNames.length : 0;
+
+            Stages = new LatencyHistogram[s];
+            Requests = new LatencyHistogram[r];
+            Sweeps = Enabled ? new LatencyHistogram() : null;
+
+            for ( int i = 0; i < s; i++ )
+                Stages[i] = new LatencyHistogram();
+
+            for ( int i = 0; i < r; i++ )
+                Requests[i] = new LatencyHistogram();
+
+            Rejects = 0;
+            Fills = 0;
+        }
+
+        /**
+         * Records the time of a stage.
+         *
+         * @param Stage One of the stage constants
+         * @param Since Value of Now when the stage began
+         */
+        public void Stage ( int Stage, long Since )
+        {
+            if ( Enabled )
+                Stages[Stage].Record( System.nanoTime() - Since );
+        }
+
+        /**
+         * Records the time of a whole request.
+         *
+         * @param Type One of the request type constants
+         * @param Since Value of Now when the request began
+         * @param Rejected True if the request was rejected
+         */
+        public void Request ( int Type, long Since, boolean Rejected )
+        {
+            if ( !Enabled )
+                return;
+
+            Requests[Type].Record( System.nanoTime() - Since );
+
+            if ( Rejected )
+                Rejects++;
+        }
+
+        /**
+         * Records the fills of one aggressive order.
+         *
+         * @param Count Fills made
+         * @param Levels Price levels filled against
+         */
+        public void Sweep ( long Count, long Levels )
+        {
+            if ( !Enabled || Count == 0 )
+                return;
+
+            Fills += Count;
+            Sweeps.Record( Levels );
+        }
+
+        /**
+         * Adds every measurement of another Recorder.
+         *
+         * @param r The other Recorder
+         */
+        private void Add ( Recorder r )
+        {
+            for ( int i = 0; i < Stages.length; i++ )
+                Stages[i].Add( r.Stages[i] );
+
+            for ( int i = 0; i < Requests.length; i++ )
+                Requests[i].Add( r.Requests[i] );
+
+            Sweeps.Add( r.Sweeps );
+            Rejects += r.Rejects;
+            Fills += r.Fills;
+        }
+
+        /**
+         * Empties this Recorder.
+         */
+        private void Reset ()
+        {
+            for ( int i = 0; i < Stages.length; i++ )
+                Stages[i].Reset();
+
+            for ( int i = 0; i < Requests.length; i++ )
+                Requests[i].Reset();
+
+            Sweeps.Reset();
+            Rejects = 0;
+            Fills = 0;
+        }
+    }
+
+    /** Thread object for this class. */
+    private Thread T;
+
+    /** Label of the Thread. */
+    private String ThreadName;
+
+    /** Path of the metrics file. */
+    private String FileName;
+
+    /** The engine whose shards are measured. */
+    private ShardedMatchingEngine ME;
+
+    /** Number of shards that add their Recorders. */
+    private int Shards;
+
+    /** Time between reports, in milliseconds. */
+    private long IntervalMS;
+
+    /** Totals of the interval being reported. */
+    private Recorder Totals;
+
+    /** Counted down by each shard once its Recorder is added. */
+    private CountDownLatch Collected;
+
+    /**
+     * @return True if METRICS is YES
+     */
+    private static boolean IsEnabled ()
+    {
+        Configuration c = Configuration.getInstance();
+
+        return c != null && "YES".equals( c.getString("METRICS") );
+    }
+
+    /**
+     * @return The current time for a stage or request, or zero if not
+     * Enabled
+     */
+    public static long Now ()
+    {
+        return Enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * The constructor stores information for when the Thread is started,
+     * but does not start it on its own.
+     *
+     * @param name A string identifier for the future Thread
+     * @param me The engine to measure
+     * @param shards Number of shards in me
+     */
+    public Metrics ( String name, ShardedMatchingEngine me, int shards )
+    {
+        T = null;
+        ThreadName = name;
+        ME = me;
+        Shards = shards;
+        Totals = new Recorder();
+        Collected = null;
+
+        FileName = "../log/" + Configuration.getInstance().getString("METRICSFILE");
+        IntervalMS = 1000L * Math.max( Configuration.getInstance().getInt("METRICSSECONDS"), 1 );
+    }
+
+    /**
+     * Called by each shard, from its own Thread, to hand over its
+     * Recorder.  The Recorder is emptied for the next interval.
+     *
+     * @param r The shard's Recorder
+     */
+    void Collect ( Recorder r )
+    {
+        synchronized ( Totals )
+        {
+            Totals.Add( r );
+        }
+
+        r.Reset();
+        Collected.countDown();
+    }
+
+    /**
+     * Reports every IntervalMS until the Thread is interrupted.  A
+     * failed report is reported and its interval is lost.
+     */
+    public void run ()
+    {
+        while ( true )
+        {
+            try
+            {
+                Thread.sleep( IntervalMS );
+                Report();
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+            catch ( IOException e )
+            {
+                System.err.println( ThreadName + " failed to write metrics: " + e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Has every shard hand over its Recorder, then appends the totals
+     * to the metrics file.
+     *
+     * @throws IOException If the file cannot be written
+     * @throws InterruptedException If the Thread is interrupted
+     */
+    private void Report () throws IOException, InterruptedException
+    {
+        Totals.Reset();
+        Collected = new CountDownLatch( Shards );
+
+        ME.PublishMetrics( this );
+        Collected.await();
+
+        try ( PrintStream out = new PrintStream( new FileOutputStream( FileName, true ) ) )
+        {
+            String Time = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" ).format( new Date() );
+            long Requests = 0;
+
+            for ( int i = 0; i < RequestNames.length; i++ )
+                Requests += Totals.Requests[i].getCount();
+
+            out.println( "# " + Time + " interval=" + ( IntervalMS / 1000 ) + "s requests=" + Requests +
+                         " rejects=" + Totals.Rejects + " fills=" + Totals.Fills );
+            out.println( String.format( "%-12s %10s %10s %10s %10s %10s %10s %10s",
+                         "us", "count", "mean", "p50", "p90", "p99", "p99.9", "max" ) );
+
+            for ( int i = 0; i < RequestNames.length; i++ )
+                Print( out, RequestNames[i], Totals.Requests[i], 1000D );
+
+            for ( int i = 0; i < StageNames.length; i++ )
+                Print( out, StageNames[i], Totals.Stages[i], 1000D );
+
+            Print( out, "SWEEP", Totals.Sweeps, 1D );
+            out.println();
+        }
+        catch ( IOException e )
+        {
+            throw e;
+        }
+    }
+
+    /**
+     * Prints one line of the report.
+     *
+     * @param out The metrics file
+     * @param Name Label of the line
+     * @param h The measurements
+     * @param Scale Divides every value
+     */
+    private static void Print ( PrintStream out, String Name, LatencyHistogram h, double Scale )
+    {
+        out.println( String.format( "%-12s %10d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f",
+                     Name, h.getCount(), h.getMean() / Scale,
+                     h.getValueAtPercentile( 50 ) / Scale, h.getValueAtPercentile( 90 ) / Scale,
+                     h.getValueAtPercentile( 99 ) / Scale, h.getValueAtPercentile( 99.9 ) / Scale,
+                     h.getMax() / Scale ) );
+    }
+
+    /**
+     * Starts the Thread.  Sends a message to Logger to indicate
+     * successful start.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void start () throws IOException
+    {
+        if ( T == null )
+        {
+            try
+            {
+                Logger.getInstance().write("Writing metrics to " + FileName + " every " +
+                                           ( IntervalMS / 1000 ) + "s");
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+
+            T = new Thread( this, ThreadName );
+            T.setDaemon( true );
+            T.start();
+        }
+    }
+}
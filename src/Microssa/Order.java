@@ -22,9 +22,11 @@ package Microssa;
 
 import java.util.*;
 import java.util.zip.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.text.*;
 
 import Microssa.Configuration;
+import Microssa.Dictionary;
 
 /**
  * Object used to store order details.  An order is a willingness
@@ -37,15 +39,31 @@ public class Order {
     /** The identifier of the Order.  Should be unique. */
     private String OrderID;
 
-    /** The internal identifier of the Order.  Should be unique. */
+    /**
+     * The internal identifier of the Order.  Should be unique.  Null
+     * until first asked for, then rendered from InternalNumber, so an
+     * Order that is never reported never builds it.
+     */
     private String InternalID;
 
+    /** The number InternalID is rendered from. */
+    private int InternalNumber;
+
     /** The next internal identifier to use for a new Order. */
-    private static int nextInternalID = 1;
+    private static final AtomicInteger nextInternalID = new AtomicInteger( 1 );
+
+    /** Today as yyyyMMdd, the ArriveDate of Orders that give none. */
+    private static String Today = "";
+
+    /** Time Today stops being today, in milliseconds. */
+    private static long TodayEnds = 0;
 
     /** The label/code for the real or virtual good of this Order. */
     private String Symbol;
 
+    /** ID of Symbol in Dictionary.Symbols. */
+    private int SymbolID;
+
     /** The customer's identifier. */
     private String Customer;
 
@@ -64,20 +82,21 @@ public class Order {
      */
     private String TIF;
 
-    /** The price the Order would like to buy or sell.  Actual match
-     * prices may be better depending on market conditions, meaning
-     * lower than a buy Order's price or higher than a sell Order's price.
+    /** The price the Order would like to buy or sell, in ticks.
+     * Actual match prices may be better depending on market conditions,
+     * meaning lower than a buy Order's price or higher than a sell
+     * Order's price.
      */
-    private double Price;
+    private long Price;
 
-    /** The maximum amount of goods to buy or sell. */
-    private double Quantity;
+    /** The maximum amount of goods to buy or sell, in lots. */
+    private long Quantity;
 
-    /** The remaining quantity on the order.  Would be less than Quantity
-     * if the order was partially filled, or zero if the order was fully
-     * filled.
+    /** The remaining quantity on the order, in lots.  Would be less than
+     * Quantity if the order was partially filled, or zero if the order
+     * was fully filled.
      */
-    private double AvailableQuantity;
+    private long AvailableQuantity;
 
     /** Whether this is a buy or sell Order. */
     private char Side;
@@ -88,14 +107,40 @@ public class Order {
     /** The currency of the order. */
     private String Currency;
 
-    /** Minimum fill quantity for a partial execution. */
-    private double MinFillQuantity;
+    /** ID of Currency in Dictionary.Currencies. */
+    private int CurrencyID;
 
-    /** Minimum fill quantity for a partial execution. */
+    /** Minimum fill quantity for a partial execution, in lots. */
+    private long MinFillQuantity;
+
+    /** Average price of the executions. */
     private double AveragePrice;
 
-	/** Total amount executed */
-	private double CumulativeQuantity;
+	/** Total amount executed, in lots. */
+	private long CumulativeQuantity;
+
+    /** Tick and lot scale of the Symbol. */
+    private FixedPoint Scale;
+
+    /**
+     * Handle of this Order in its DepthBook while it rests in the
+     * book, null otherwise.  Lets the MatchingEngine remove the Order
+     * without searching the book.
+     */
+    private DepthBook.PriceNode BookNode;
+
+    /**
+     * Record of this Order in an OrderStore while it rests in an
+     * off-heap book, -1 otherwise.  Such an Order is only a copy of the
+     * record, loaded for one request.
+     */
+    private int Slot;
+
+    /**
+     * The OrderSocket connection that sent this Order, zero if it did
+     * not come from the OrderSocket.  Replies go to this connection.
+     */
+    private int Connection;
 
     /**
      * Full constructor; all private variables passed.
@@ -110,36 +155,23 @@ public class Order {
      * @param aq AvailableQuantity
      * @param buySell Side
      * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity
      * @throws DataFormatException Passed up from error checking functions
      */
     public Order (String oID, String s, String c, String sID, String a,
                   double p, double q, double aq, char buySell, String t,
-                  String ccy, Double mfq )
+                  String ccy, double mfq )
                   throws DataFormatException
     {
         try
         {
-            setOrderID(oID);
-            setSymbol(s);
-            setCustomer(c);
-            setSource(sID);
-            setArriveDate(a);
-            setPrice(p);
-            setQuantity(q);
-            setAvailableQuantity(aq);
-            setSide(buySell);
-            setTIF(t);
-            setCurrency(ccy);
-            setMinFillQuantity(mfq);
-            AveragePrice = CumulativeQuantity = 0D;
+            Init( oID, s, c, sID, a, p, q, aq, buySell, t, ccy, mfq );
         }
         catch ( DataFormatException e )
         {
-            // pass it up so the order manager can handle the reject
             throw e;
         }
-
-        InternalID = String.format("%010d", nextInternalID++) + "MC";
     }
 
     /**
@@ -151,6 +183,7 @@ public class Order {
     {
         OrderID             = o.OrderID;
         Symbol              = o.Symbol;
+        SymbolID            = o.SymbolID;
         Customer            = o.Customer;
         Source              = o.Source;
         ArriveDate          = o.ArriveDate;
@@ -160,10 +193,321 @@ public class Order {
         Side                = o.Side;
         TIF                 = o.TIF;
         Currency            = o.Currency;
+        CurrencyID          = o.CurrencyID;
         MinFillQuantity     = o.MinFillQuantity;
-        AveragePrice = CumulativeQuantity = 0D;
+        Scale               = o.Scale;
+        Connection          = o.Connection;
+        Slot                = -1;
+        AveragePrice = 0D;
+        CumulativeQuantity = 0;
+
+        InternalID = null;
+        InternalNumber = nextInternalID.getAndIncrement();
+    }
+
+    /**
+     * Rebuilds an Order read back from the Journal, keeping its
+     * InternalID.  The values were checked when the Order first arrived.
+     *
+     * @param oID OrderID
+     * @param iID InternalID
+     * @param s Symbol
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price in ticks
+     * @param q Quantity in lots
+     * @param aq AvailableQuantity in lots
+     * @param buySell Side
+     * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity in lots
+     */
+    Order ( String oID, String iID, String s, String c, String sID, String a,
+            long p, long q, long aq, char buySell, String t, String ccy, long mfq )
+    {
+        OrderID             = oID;
+        InternalID          = iID;
+        InternalNumber      = 0;
+        Symbol              = s;
+        SymbolID            = Dictionary.Symbols.getID( s );
+        Customer            = c;
+        Source              = sID;
+        ArriveDate          = a;
+        Price               = p;
+        Quantity            = q;
+        AvailableQuantity   = aq;
+        Side                = buySell;
+        TIF                 = t;
+        Currency            = ccy;
+        CurrencyID          = Dictionary.Currencies.getID( ccy );
+        MinFillQuantity     = mfq;
+        Scale               = FixedPoint.getScale( s );
+        Slot                = -1;
+        AveragePrice = 0D;
+        CumulativeQuantity = 0;
+    }
+
+    /**
+     * Blank Order, for OrderStore to fill in from a record.
+     */
+    Order ()
+    {
+        Clear();
+    }
+
+    /**
+     * Sets every field as the full constructor does, starting from a
+     * blank Order, then takes the next internal number.  Lets OrderPool
+     * refill a recycled Order.
+     *
+     * @param oID OrderID
+     * @param s Symbol
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price
+     * @param q Quantity
+     * @param aq AvailableQuantity
+     * @param buySell Side
+     * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity
+     * @throws DataFormatException Passed up from error checking functions
+     */
+    void Init ( String oID, String s, String c, String sID, String a,
+                double p, double q, double aq, char buySell, String t,
+                String ccy, double mfq )
+                throws DataFormatException
+    {
+        Clear();
+
+        try
+        {
+            setOrderID(oID);
+            setSymbol(s);
+            setCustomer(c);
+            setSource(sID);
+            setArriveDate(a);
+            setPrice(p);
+            setQuantity(q);
+            setAvailableQuantity(aq);
+            setSide(buySell);
+            setTIF(t);
+            setCurrency(ccy);
+            setMinFillQuantity(mfq);
+        }
+        catch ( DataFormatException e )
+        {
+            // pass it up so the order manager can handle the reject
+            throw e;
+        }
+
+        InternalNumber = nextInternalID.getAndIncrement();
+    }
+
+    /**
+     * Init with the prices and quantities as text, each read exactly
+     * into ticks or lots without going through a double.
+     *
+     * @param oID OrderID
+     * @param s Symbol
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price
+     * @param q Quantity
+     * @param aq AvailableQuantity
+     * @param buySell Side
+     * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity
+     * @throws DataFormatException Passed up from error checking functions
+     */
+    void Init ( String oID, String s, String c, String sID, String a,
+                String p, String q, String aq, char buySell, String t,
+                String ccy, String mfq )
+                throws DataFormatException
+    {
+        Clear();
+
+        try
+        {
+            setOrderID(oID);
+            setSymbol(s);
+            setCustomer(c);
+            setSource(sID);
+            setArriveDate(a);
+            setPrice(p);
+            setQuantity(q);
+            setAvailableQuantity(aq);
+            setSide(buySell);
+            setTIF(t);
+            setCurrency(ccy);
+            setMinFillQuantity(mfq);
+        }
+        catch ( DataFormatException e )
+        {
+            // pass it up so the order manager can handle the reject
+            throw e;
+        }
+
+        InternalNumber = nextInternalID.getAndIncrement();
+    }
+
+    /**
+     * Blanks every field, so a recycled Order holds on to nothing.
+     */
+    void Clear ()
+    {
+        OrderID = InternalID = Symbol = Customer = Source = null;
+        ArriveDate = TIF = SettlementDate = Currency = null;
+        InternalNumber = 0;
+        SymbolID = CurrencyID = -1;
+        Price = Quantity = AvailableQuantity = MinFillQuantity = 0;
+        CumulativeQuantity = 0;
+        AveragePrice = 0D;
+        Side = ' ';
+        Scale = null;
+        BookNode = null;
+        Slot = -1;
+        Connection = 0;
+    }
+
+    /**
+     * Sets every field from a record of an OrderStore.  The values were
+     * checked when the Order first arrived.
+     *
+     * @param oID OrderID
+     * @param iID InternalID, or null to render it from iNumber
+     * @param iNumber The number InternalID is rendered from
+     * @param symID ID of the Symbol in Dictionary.Symbols
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price in ticks
+     * @param q Quantity in lots
+     * @param aq AvailableQuantity in lots
+     * @param buySell Side
+     * @param t TIF
+     * @param ccyID ID of the Currency in Dictionary.Currencies, or -1
+     * @param mfq MinFillQuantity in lots
+     * @param cq CumulativeQuantity in lots
+     * @param ap AveragePrice
+     * @param conn Connection
+     * @param s Slot of the record
+     */
+    void Fill ( String oID, String iID, int iNumber, int symID, String c, String sID, String a,
+                long p, long q, long aq, char buySell, String t, int ccyID, long mfq,
+                long cq, double ap, int conn, int s )
+    {
+        OrderID             = oID;
+        InternalID          = iID;
+        InternalNumber      = iNumber;
+        SymbolID            = symID;
+        Symbol              = Dictionary.Symbols.getName( symID );
+        Customer            = c;
+        Source              = sID;
+        ArriveDate          = a;
+        Price               = p;
+        Quantity            = q;
+        AvailableQuantity   = aq;
+        Side                = buySell;
+        TIF                 = t;
+        CurrencyID          = ccyID;
+        Currency            = Dictionary.Currencies.getName( ccyID );
+        MinFillQuantity     = mfq;
+        Scale               = FixedPoint.getScale( Symbol );
+        CumulativeQuantity  = cq;
+        AveragePrice        = ap;
+        Connection          = conn;
+        Slot                = s;
+    }
+
+    /**
+     * Copies every field into a new Order, keeping the InternalID, for
+     * another Thread to read once this one may have been recycled.
+     *
+     * @return The copy
+     */
+    Order Detach ()
+    {
+        Order o = new Order( OrderID, getInternalID(), Symbol, Customer, Source, ArriveDate,
+                             Price, Quantity, AvailableQuantity, Side, TIF, Currency,
+                             MinFillQuantity );
+
+        o.setExecuted( CumulativeQuantity, AveragePrice );
+        o.Connection = Connection;
+
+        return o;
+    }
+
+    /**
+     * Makes sure new Orders never reuse an InternalID read back from
+     * the Journal.
+     *
+     * @param iID An InternalID in use
+     */
+    static void ReserveInternalID ( String iID )
+    {
+        int n = Integer.parseInt( iID.substring( 0, iID.length() - 2 ) );
+
+        ReserveInternalID( n + 1 );
+    }
+
+    /**
+     * Makes sure new Orders start numbering at n or later.
+     *
+     * @param n The next internal number, read back from a Checkpoint
+     */
+    static void ReserveInternalID ( int n )
+    {
+        nextInternalID.accumulateAndGet( n, Math::max );
+    }
+
+    /**
+     * @return The number InternalID is rendered from, read back from
+     * InternalID if the Order came from the Journal, or -1 if that
+     * InternalID was not rendered from a number
+     */
+    int getInternalNumber ()
+    {
+        if ( InternalNumber != 0 || InternalID == null )
+            return InternalNumber;
+
+        if ( InternalID.length() <= 2 || !InternalID.endsWith( "MC" ) )
+            return -1;
+
+        try
+        {
+            int n = Integer.parseInt( InternalID.substring( 0, InternalID.length() - 2 ) );
+
+            return ( n > 0 && RenderInternalID( n ).equals( InternalID ) ) ? n : -1;
+        }
+        catch ( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
 
-        InternalID = String.format("%010d", nextInternalID++) + "MC";
+    /**
+     * @return The internal number the next new Order will use
+     */
+    static int getNextInternalID ()
+    {
+        return nextInternalID.get();
+    }
+
+    /**
+     * Restores the executions of an Order read back from a Checkpoint.
+     *
+     * @param cq CumulativeQuantity in lots
+     * @param ap AveragePrice
+     */
+    void setExecuted ( long cq, double ap )
+    {
+        CumulativeQuantity = cq;
+        AveragePrice = ap;
     }
 
     /**
@@ -179,9 +523,28 @@ public class Order {
      */
     public String getInternalID ()
     {
+        // two Threads may render it at once, both get equal Strings
+        if ( InternalID == null )
+            InternalID = RenderInternalID( InternalNumber );
+
         return InternalID;
     }
 
+    /**
+     * @param n An internal number
+     * @return n as ten or more digits followed by MC
+     */
+    private static String RenderInternalID ( int n )
+    {
+        String Digits = Integer.toString( n );
+        StringBuilder b = new StringBuilder( 12 );
+
+        for ( int i = Digits.length(); i < 10; i++ )
+            b.append( '0' );
+
+        return b.append( Digits ).append( "MC" ).toString();
+    }
+
     /**
      * @return Symbol
      */
@@ -190,6 +553,14 @@ public class Order {
         return Symbol;
     }
 
+    /**
+     * @return ID of Symbol in Dictionary.Symbols
+     */
+    public int getSymbolID ()
+    {
+        return SymbolID;
+    }
+
     /**
      * @return Customer
      */
@@ -219,7 +590,7 @@ public class Order {
      */
     public double getPrice ()
     {
-        return Price;
+        return Scale.FromTicks( Price );
     }
 
     /**
@@ -227,7 +598,7 @@ public class Order {
      */
     public double getQuantity ()
     {
-        return Quantity;
+        return Scale.FromLots( Quantity );
     }
 
     /**
@@ -235,7 +606,7 @@ public class Order {
      */
     public double getAvailableQuantity ()
     {
-        return AvailableQuantity;
+        return Scale.FromLots( AvailableQuantity );
     }
 
     /**
@@ -262,12 +633,20 @@ public class Order {
         return Currency;
     }
 
+    /**
+     * @return ID of Currency in Dictionary.Currencies, -1 if unset
+     */
+    public int getCurrencyID ()
+    {
+        return CurrencyID;
+    }
+
     /**
      * @return MinFillQuantity
      */
     public double getMinFillQuantity ()
     {
-        return MinFillQuantity;
+        return Scale.FromLots( MinFillQuantity );
     }
     
     /**
@@ -282,10 +661,107 @@ public class Order {
      * @return CumulativeQuantity
      */
     public double getCumulativeQuantity ()
+    {
+        return Scale.FromLots( CumulativeQuantity );
+    }
+
+    /**
+     * @return CumulativeQuantity in lots
+     */
+    public long getCumulativeLots ()
     {
         return CumulativeQuantity;
     }
 
+    /**
+     * @return Quantity in lots
+     */
+    public long getQuantityLots ()
+    {
+        return Quantity;
+    }
+
+    /**
+     * @return Price in ticks
+     */
+    public long getPriceTicks ()
+    {
+        return Price;
+    }
+
+    /**
+     * @return AvailableQuantity in lots
+     */
+    public long getAvailableLots ()
+    {
+        return AvailableQuantity;
+    }
+
+    /**
+     * @return MinFillQuantity in lots
+     */
+    public long getMinFillLots ()
+    {
+        return MinFillQuantity;
+    }
+
+    /**
+     * @return Tick and lot scale of the Order's Symbol
+     */
+    public FixedPoint getScale ()
+    {
+        return Scale;
+    }
+
+    /**
+     * @return BookNode
+     */
+    public DepthBook.PriceNode getBookNode ()
+    {
+        return BookNode;
+    }
+
+    /**
+     * @param n BookNode, null when the Order leaves the book
+     */
+    public void setBookNode ( DepthBook.PriceNode n )
+    {
+        BookNode = n;
+    }
+
+    /**
+     * @return Slot of the record in an OrderStore, -1 if there is none
+     */
+    public int getSlot ()
+    {
+        return Slot;
+    }
+
+    /**
+     * @param s Slot of the record in an OrderStore, -1 when the Order
+     * leaves the book
+     */
+    public void setSlot ( int s )
+    {
+        Slot = s;
+    }
+
+    /**
+     * @return Connection
+     */
+    public int getConnection ()
+    {
+        return Connection;
+    }
+
+    /**
+     * @param c Connection, the OrderSocket connection that sent this Order
+     */
+    public void setConnection ( int c )
+    {
+        Connection = c;
+    }
+
     /**
      * @param oID OrderID
      * @throws DataFormatException If oID is a blank string
@@ -308,6 +784,8 @@ public class Order {
             throw new DataFormatException("Symbol cannot be blank");
 
         Symbol = s;
+        SymbolID = Dictionary.Symbols.getID( s );
+        Scale = FixedPoint.getScale( s );
     }
 
     /**
@@ -339,18 +817,41 @@ public class Order {
      */
     public void setArriveDate ( String a )
     {
-        if ( a.equals("") ) {
-			Format formatter = new SimpleDateFormat("yyyyMMdd");
-			Date today = Calendar.getInstance().getTime();
-			a = formatter.format(today);
-		}
+        if ( a.equals("") )
+            a = getToday();
 
         ArriveDate = a;
     }
 
+    /**
+     * @return Today as yyyyMMdd, formatted once a day
+     */
+    private static synchronized String getToday ()
+    {
+        long Now = System.currentTimeMillis();
+
+        if ( Now >= TodayEnds )
+        {
+            Calendar c = Calendar.getInstance();
+
+            Today = new SimpleDateFormat("yyyyMMdd").format( c.getTime() );
+
+            c.set( Calendar.HOUR_OF_DAY, 0 );
+            c.set( Calendar.MINUTE, 0 );
+            c.set( Calendar.SECOND, 0 );
+            c.set( Calendar.MILLISECOND, 0 );
+            c.add( Calendar.DAY_OF_MONTH, 1 );
+
+            TodayEnds = c.getTimeInMillis();
+        }
+
+        return Today;
+    }
+
     /**
      * @param p Price
-     * @throws DataFormatException If p is less than or equal to zero
+     * @throws DataFormatException If p is less than or equal to zero,
+     * or not a whole number of ticks
      */
     public void setPrice ( double p ) throws DataFormatException
     {
@@ -358,7 +859,23 @@ public class Order {
             throw new DataFormatException("Price " + p +
                 " is zero or negative");
 
-        Price = p;
+        Price = Scale.ToTicks( p );
+    }
+
+    /**
+     * @param p Price as text, read exactly
+     * @throws DataFormatException If p is not a number, less than or
+     * equal to zero, or not a whole number of ticks
+     */
+    public void setPrice ( String p ) throws DataFormatException
+    {
+        long Ticks = Scale.ToTicks( p );
+
+        if ( Ticks <= 0 )
+            throw new DataFormatException("Price " + Scale.FromTicks( Ticks ) +
+                " is zero or negative");
+
+        Price = Ticks;
     }
 
     /**
@@ -366,23 +883,52 @@ public class Order {
      *
      * @param q Quantity
      * @throws DataFormatException If q is less than or equal to zero,
-     * or if the updated AvailableQuantity would be less than or
-     * equal to zero
+     * not a whole number of lots, or if the updated AvailableQuantity
+     * would be less than or equal to zero
      */
     public void setQuantity ( double q ) throws DataFormatException
     {
-        double aq = AvailableQuantity + (q - Quantity);
-
         if ( Double.compare( q, 0D ) <= 0 )
             throw new DataFormatException("Quantity " + q +
                 " is zero or negative");
 
-        if ( Double.compare( aq, 0D ) < 0 )
+        ChangeQuantity( Scale.ToLots( q ) );
+    }
+
+    /**
+     * Also updates AvailableQuantity by the amount Quantity changes.
+     *
+     * @param q Quantity as text, read exactly
+     * @throws DataFormatException If q is not a number, less than or
+     * equal to zero, not a whole number of lots, or if the updated
+     * AvailableQuantity would be less than or equal to zero
+     */
+    public void setQuantity ( String q ) throws DataFormatException
+    {
+        long ql = Scale.ToLots( q );
+
+        if ( ql <= 0 )
+            throw new DataFormatException("Quantity " + Scale.FromLots( ql ) +
+                " is zero or negative");
+
+        ChangeQuantity( ql );
+    }
+
+    /**
+     * @param ql Quantity in lots, greater than zero
+     * @throws DataFormatException If the updated AvailableQuantity
+     * would be less than zero
+     */
+    private void ChangeQuantity ( long ql ) throws DataFormatException
+    {
+        long aq = AvailableQuantity + (ql - Quantity);
+
+        if ( aq < 0 )
             throw new DataFormatException("New " +
-                "AvailableQuantity " + aq + " would be negative");
+                "AvailableQuantity " + Scale.FromLots( aq ) + " would be negative");
 
         AvailableQuantity = aq;
-        Quantity = q;
+        Quantity = ql;
     }
 
     /**
@@ -396,12 +942,35 @@ public class Order {
             throw new DataFormatException("New available " +
                 "Quantity " + aq + " is negative");
 
-        if ( Double.compare( aq, Quantity ) > 0 )
+        long aql = Scale.ToLots( aq );
+
+        if ( aql > Quantity )
             throw new DataFormatException("New " +
                 "AvailableQuantity " + aq + " is greater than " +
-                "total Quantity " + Quantity);
+                "total Quantity " + Scale.FromLots( Quantity ));
 
-        AvailableQuantity = aq;
+        AvailableQuantity = aql;
+    }
+
+    /**
+     * @param aq AvailableQuantity as text, read exactly
+     * @throws DataFormatException If aq is not a number, less than
+     * zero, not a whole number of lots, or greater than Quantity
+     */
+    public void setAvailableQuantity ( String aq ) throws DataFormatException
+    {
+        long aql = Scale.ToLots( aq );
+
+        if ( aql < 0 )
+            throw new DataFormatException("New available " +
+                "Quantity " + Scale.FromLots( aql ) + " is negative");
+
+        if ( aql > Quantity )
+            throw new DataFormatException("New " +
+                "AvailableQuantity " + Scale.FromLots( aql ) + " is greater than " +
+                "total Quantity " + Scale.FromLots( Quantity ));
+
+        AvailableQuantity = aql;
     }
 
     /**
@@ -442,7 +1011,10 @@ public class Order {
         if ( ccy.equals("") )
             throw new DataFormatException("Currency cannot be blank");
         else
+        {
             Currency = ccy;
+            CurrencyID = Dictionary.Currencies.getID( ccy );
+        }
     }
 
     /**
@@ -452,11 +1024,29 @@ public class Order {
      */
     public void setMinFillQuantity ( double mfq ) throws DataFormatException
     {
-        if ( Double.compare( mfq, AvailableQuantity ) <= 0 )
-            MinFillQuantity = mfq;
+        long mfl = Scale.ToLots( mfq );
+
+        if ( mfl <= AvailableQuantity )
+            MinFillQuantity = mfl;
         else
             throw new DataFormatException("MinFillQuantity " + mfq + 
-            " is greater than AvailableQuantity " + AvailableQuantity);
+            " is greater than AvailableQuantity " + Scale.FromLots( AvailableQuantity ));
+    }
+
+    /**
+     * @param mfq MinFillQuantity as text, read exactly
+     * @throws DataFormatException If mfq is not a number, not a whole
+     * number of lots, or greater than available quantity
+     */
+    public void setMinFillQuantity ( String mfq ) throws DataFormatException
+    {
+        long mfl = Scale.ToLots( mfq );
+
+        if ( mfl <= AvailableQuantity )
+            MinFillQuantity = mfl;
+        else
+            throw new DataFormatException("MinFillQuantity " + Scale.FromLots( mfl ) +
+            " is greater than AvailableQuantity " + Scale.FromLots( AvailableQuantity ));
     }
 
     /**
@@ -464,17 +1054,17 @@ public class Order {
      * of its executions for FIX reporting. It also updates the
      * available quantity.
      * 
-     * @param qty Quantity of execution
-     * @param px Price of Execution
+     * @param qty Quantity of execution, in lots
+     * @param px Price of Execution, in ticks
      */
-    public void Execute ( double qty, double px )
+    public void Execute ( long qty, long px )
     {
-		if ( Double.compare( AveragePrice, 0D ) == 0 ) {
-			AveragePrice = px;
+		if ( CumulativeQuantity == 0 ) {
+			AveragePrice = Scale.FromTicks( px );
 		} else {
-			Double TotalQuantity = qty + CumulativeQuantity;
+			double TotalQuantity = qty + CumulativeQuantity;
 			AveragePrice = ( ( AveragePrice * CumulativeQuantity )  +
-			                 ( px * qty ) )  / TotalQuantity ;
+			                 ( Scale.FromTicks( px ) * qty ) )  / TotalQuantity ;
 		}
 		
 		AvailableQuantity -= qty;
@@ -490,18 +1080,18 @@ public class Order {
     public String toString ()
     {
         String returnVal = "OrderID=" + OrderID + "," +
-                           "InternalID=" + InternalID + "," +
+                           "InternalID=" + getInternalID() + "," +
                            "Customer=" + Customer + "," +
                            "Source=" + Source + "," +
                            "Symbol=" + Symbol + "," +
                            "Side=" + Side + "," +
-                           "Price=" + Price + "," +
-                           "Quantity=" + Quantity + "," +
-                           "AvailableQuantity=" + AvailableQuantity + "," +
+                           "Price=" + getPrice() + "," +
+                           "Quantity=" + getQuantity() + "," +
+                           "AvailableQuantity=" + getAvailableQuantity() + "," +
                            "TIF=" + TIF + "," +
                            "ArriveDate=" + ArriveDate + "," +
                            "Currency=" + Currency + "," +
-                           "MinFillQuantity=" + MinFillQuantity;
+                           "MinFillQuantity=" + getMinFillQuantity();
         return returnVal;
     }
 
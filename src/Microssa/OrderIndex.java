@@ -0,0 +1,232 @@
+/*
+ * OrderIndex.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import Microssa.Order;
+import Microssa.Dictionary;
+
+/**
+ * The resting Orders of one MatchingEngine, found by Symbol and
+ * OrderID.  An open addressing hash table keyed by the Symbol's ID in
+ * Dictionary.Symbols and the OrderID: the hash of each Order's key
+ * is kept in an int array beside the Order, so a lookup compares ints
+ * until it finds a likely slot, then the Symbol as an int and only
+ * then the OrderID as text.  No key object is ever built, and Strings
+ * cache their own hash, so hashing is cheap too.
+ *
+ * Slots are probed linearly.  Removal shifts the rest of the run back
+ * instead of leaving a marker, so lookups never slow down as Orders
+ * come and go.  The table doubles once it is half full and never
+ * shrinks, so once the book reaches its usual size nothing is
+ * allocated.
+ *
+ * Not thread safe; only the Thread that owns the MatchingEngine uses it.
+ *
+ * @see MatchingEngine
+ */
+public class OrderIndex {
+
+    /** Slots in a new table, a power of two. */
+    private static final int InitialSlots = 1024;
+
+    /** Hash of each slot's Order. */
+    private int[] Hashes;
+
+    /** Order in each slot, null if the slot is free. */
+    private Order[] Orders;
+
+    /** Slots minus one, to wrap a position. */
+    private int Mask;
+
+    /** Number of Orders held. */
+    private int Size;
+
+    /**
+     * Creates an empty OrderIndex.
+     */
+    public OrderIndex ()
+    {
+        Hashes = new int[InitialSlots];
+        Orders = new Order[InitialSlots];
+        Mask = InitialSlots - 1;
+        Size = 0;
+    }
+
+    /**
+     * @param SymbolID ID of the Symbol
+     * @param OrderID The OrderID
+     * @return Hash of the pair, spread over every bit
+     */
+    static int Hash ( int SymbolID, String OrderID )
+    {
+        int h = ( SymbolID * 0x9E3779B9 + OrderID.hashCode() ) * 0x9E3779B9;
+
+        return h ^ ( h >>> 16 );
+    }
+
+    /**
+     * @param SymbolID ID of the Symbol
+     * @param OrderID The OrderID
+     * @return The Order, or null if none is held
+     */
+    public Order Find ( int SymbolID, String OrderID )
+    {
+        int h = Hash( SymbolID, OrderID );
+
+        for ( int i = h & Mask; Orders[i] != null; i = ( i + 1 ) & Mask )
+        {
+            Order o = Orders[i];
+
+            if ( Hashes[i] == h && o.getSymbolID() == SymbolID &&
+                 o.getOrderID().equals( OrderID ) )
+                return o;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @param OrderID The OrderID
+     * @return The Order, or null if none is held
+     */
+    public Order Find ( String Symbol, String OrderID )
+    {
+        int SymbolID = Dictionary.Symbols.FindID( Symbol );
+
+        return ( SymbolID < 0 ) ? null : Find( SymbolID, OrderID );
+    }
+
+    /**
+     * Adds an Order.  The caller makes sure no Order with the same
+     * Symbol and OrderID is held.
+     *
+     * @param o The Order
+     */
+    public void Put ( Order o )
+    {
+        if ( ( Size + 1 ) * 2 > Orders.length )
+            Grow();
+
+        Insert( Hash( o.getSymbolID(), o.getOrderID() ), o );
+        Size++;
+    }
+
+    /**
+     * Removes an Order.
+     *
+     * @param o The Order
+     * @return The Order removed, or null if none was held
+     */
+    public Order Remove ( Order o )
+    {
+        int h = Hash( o.getSymbolID(), o.getOrderID() );
+        int i = h & Mask;
+
+        while ( Orders[i] != null )
+        {
+            if ( Orders[i] == o )
+            {
+                Delete( i );
+                Size--;
+                return o;
+            }
+
+            i = ( i + 1 ) & Mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Number of Orders held
+     */
+    public int getSize ()
+    {
+        return Size;
+    }
+
+    /**
+     * Puts an Order in the first free slot from its hash.
+     *
+     * @param h Hash of the Order
+     * @param o The Order
+     */
+    private void Insert ( int h, Order o )
+    {
+        int i = h & Mask;
+
+        while ( Orders[i] != null )
+            i = ( i + 1 ) & Mask;
+
+        Hashes[i] = h;
+        Orders[i] = o;
+    }
+
+    /**
+     * Frees a slot, moving back any later Order of the run that would
+     * otherwise no longer be found from its hash.
+     *
+     * @param Free The slot to free
+     */
+    private void Delete ( int Free )
+    {
+        int i = Free;
+
+        while ( true )
+        {
+            i = ( i + 1 ) & Mask;
+
+            if ( Orders[i] == null )
+                break;
+
+            int Home = Hashes[i] & Mask;
+
+            // move it back unless its home lies after the free slot,
+            // allowing for the run wrapping round the end of the table
+            if ( ( ( i - Home ) & Mask ) >= ( ( i - Free ) & Mask ) )
+            {
+                Hashes[Free] = Hashes[i];
+                Orders[Free] = Orders[i];
+                Free = i;
+            }
+        }
+
+        Orders[Free] = null;
+    }
+
+    /**
+     * Doubles the table and puts every Order back.
+     */
+    private void Grow ()
+    {
+        int[] OldHashes = Hashes;
+        Order[] OldOrders = Orders;
+
+        Hashes = new int[OldHashes.length * 2];
+        Orders = new Order[OldOrders.length * 2];
+        Mask = Orders.length - 1;
+
+        for ( int i = 0; i < OldOrders.length; i++ )
+            if ( OldOrders[i] != null )
+                Insert( OldHashes[i], OldOrders[i] );
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * OrderPool.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+
+import Microssa.Configuration;
+import Microssa.Order;
+
+/**
+ * Orders that have left the MatchingEngine for good, kept to be filled
+ * in again for new requests.  With ORDERPOOL = YES the gateways take
+ * their Orders from here, and the MatchingEngine gives back every
+ * Order once it is completed, expired, canceled, replaced or rejected,
+ * so in a steady state no Order is allocated.  At most ORDERPOOLSIZE
+ * Orders are kept; the rest are left to the garbage collector.
+ *
+ * The gateways take on their own Threads and the shards give back on
+ * theirs, so the free Orders are kept in a bounded ring that any
+ * Thread may take from or give to without a lock.  Each slot carries a
+ * sequence number saying whether it is waiting for a give or a take at
+ * a given position; a Thread claims a position by compare and set of
+ * Head or Tail and then fills or empties the slot, so the hot path
+ * neither locks nor allocates.  A given back Order is blanked first.  Anything holding on to an Order past the request that ended
+ * it, such as a custom Hook, must copy what it needs.
+ *
+ * Enabled is read once, when this class is loaded, and is final, so
+ * with ORDERPOOL = NO Take is plain construction.
+ *
+ * @see Order
+ * @see MatchingEngine
+ */
+public class OrderPool {
+
+    /** True if ORDERPOOL = YES when this class was loaded. */
+    public static final boolean Enabled = IsEnabled();
+
+    /** Slots of the ring, a power of two of them. */
+    private static final AtomicReferenceArray<Order> Free =
+        new AtomicReferenceArray<>( Enabled ? Slots() : 1 );
+
+    /** Slots minus one. */
+    private static final int Mask = Free.length() - 1;
+
+    /**
+     * Position each slot is ready for: a give when equal to it, a take
+     * when one more than it.
+     */
+    private static final AtomicLongArray Ready = NewReady( Free.length() );
+
+    /** Position of the next take. */
+    private static final AtomicLong Head = new AtomicLong( 0 );
+
+    /** Position of the next give. */
+    private static final AtomicLong Tail = new AtomicLong( 0 );
+
+    /**
+     * @return True if ORDERPOOL is YES
+     */
+    private static boolean IsEnabled ()
+    {
+        Configuration c = Configuration.getInstance();
+
+        return c != null && "YES".equals( c.getString("ORDERPOOL") );
+    }
+
+    /**
+     * @return ORDERPOOLSIZE, at least one, rounded up to a power of two
+     */
+    private static int Slots ()
+    {
+        int Size = Math.max( Configuration.getInstance().getInt("ORDERPOOLSIZE"), 1 );
+        int n = 1;
+
+        while ( n < Size )
+            n <<= 1;
+
+        return n;
+    }
+
+    /**
+     * @param n Number of slots
+     * @return Every slot ready for a give at its own position
+     */
+    private static AtomicLongArray NewReady ( int n )
+    {
+        AtomicLongArray r = new AtomicLongArray( n );
+
+        for ( int i = 0; i < n; i++ )
+            r.set( i, i );
+
+        return r;
+    }
+
+    /**
+     * @return A free Order, or null if there is none
+     */
+    private static Order Poll ()
+    {
+        long Position = Head.get();
+
+        while ( true )
+        {
+            int i = (int) Position & Mask;
+            long Difference = Ready.get( i ) - ( Position + 1 );
+
+            if ( Difference == 0 )
+            {
+                if ( Head.compareAndSet( Position, Position + 1 ) )
+                {
+                    Order o = Free.get( i );
+
+                    Free.lazySet( i, null );
+                    Ready.set( i, Position + Mask + 1 );
+
+                    return o;
+                }
+
+                Position = Head.get();
+            }
+            else if ( Difference < 0 )
+                return null;
+            else
+                Position = Head.get();
+        }
+    }
+
+    /**
+     * @param o A blank Order to keep
+     */
+    private static void Offer ( Order o )
+    {
+        long Position = Tail.get();
+
+        while ( true )
+        {
+            int i = (int) Position & Mask;
+            long Difference = Ready.get( i ) - Position;
+
+            if ( Difference == 0 )
+            {
+                if ( Tail.compareAndSet( Position, Position + 1 ) )
+                {
+                    Free.lazySet( i, o );
+                    Ready.set( i, Position + 1 );
+                    return;
+                }
+
+                Position = Tail.get();
+            }
+            else if ( Difference < 0 )
+                return;
+            else
+                Position = Tail.get();
+        }
+    }
+
+    /**
+     * Takes a free Order and fills it in, or constructs one if none is
+     * free.  The arguments are those of the full Order constructor.
+     *
+     * @param oID OrderID
+     * @param s Symbol
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price
+     * @param q Quantity
+     * @param aq AvailableQuantity
+     * @param buySell Side
+     * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity
+     * @return The Order
+     * @throws DataFormatException Passed up from the Order, which is
+     * given back first
+     */
+    public static Order Take ( String oID, String s, String c, String sID, String a,
+                               double p, double q, double aq, char buySell, String t,
+                               String ccy, double mfq )
+                               throws DataFormatException
+    {
+        Order o = Enabled ? Poll() : null;
+
+        if ( o == null )
+            return new Order( oID, s, c, sID, a, p, q, aq, buySell, t, ccy, mfq );
+
+        try
+        {
+            o.Init( oID, s, c, sID, a, p, q, aq, buySell, t, ccy, mfq );
+        }
+        catch ( DataFormatException e )
+        {
+            Give( o );
+            throw e;
+        }
+
+        return o;
+    }
+
+    /**
+     * Take with the prices and quantities as text, each read exactly
+     * into ticks or lots.
+     *
+     * @param oID OrderID
+     * @param s Symbol
+     * @param c Customer
+     * @param sID Source
+     * @param a ArriveDate
+     * @param p Price
+     * @param q Quantity
+     * @param aq AvailableQuantity
+     * @param buySell Side
+     * @param t TIF
+     * @param ccy Currency
+     * @param mfq MinFillQuantity
+     * @return The Order
+     * @throws DataFormatException Passed up from the Order, which is
+     * given back first
+     */
+    public static Order Take ( String oID, String s, String c, String sID, String a,
+                               String p, String q, String aq, char buySell, String t,
+                               String ccy, String mfq )
+                               throws DataFormatException
+    {
+        Order o = Take();
+
+        try
+        {
+            o.Init( oID, s, c, sID, a, p, q, aq, buySell, t, ccy, mfq );
+        }
+        catch ( DataFormatException e )
+        {
+            Give( o );
+            throw e;
+        }
+
+        return o;
+    }
+
+    /**
+     * Takes a free Order as it is, blank, or constructs a blank one if
+     * none is free.  For OrderStore to fill in from a record.
+     *
+     * @return The blank Order
+     */
+    static Order Take ()
+    {
+        Order o = Enabled ? Poll() : null;
+
+        return ( o == null ) ? new Order() : o;
+    }
+
+    /**
+     * Blanks an Order and keeps it for Take, if there is room.  The
+     * caller must hold no other reference that is still in use.
+     *
+     * @param o The Order
+     */
+    public static void Give ( Order o )
+    {
+        if ( !Enabled )
+            return;
+
+        o.Clear();
+        Offer( o );
+    }
+
+    /**
+     * @return Number of free Orders
+     */
+    public static int getFree ()
+    {
+        return (int) Math.max( Tail.get() - Head.get(), 0 );
+    }
+}
@@ -22,9 +22,18 @@ package Microssa;
 
 import java.io.*;
 import java.net.*;
-
-import Microssa.MatchingEngine;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import Microssa.Engine;
 import Microssa.Order;
+import Microssa.OrderPool;
 import Microssa.Logger;
 import Microssa.Configuration;
 
@@ -33,12 +42,95 @@ import Microssa.Configuration;
  * amends, and cancel requests to be sent to the MatchingEngine.  The
  * MatchingEngine replies to these requests, as
  * well as sending match, complete, and expiration notifications.
- * This socket runs on its own thread.
+ *
+ * Any number of clients may connect at once.  All connections are
+ * served by one Thread using a Selector.  Each Order remembers the
+ * connection that sent it, and every reply about that Order is sent
+ * back to that connection as soon as the MatchingEngine produces it.
+ * A reply for a connection that has closed belongs to nobody else, so
+ * it is written to the Logger and dropped.  A line longer than
+ * MaxLineBytes is refused and the connection closed, and so is a
+ * connection with more than ORDERQUEUEBYTES of replies waiting, so a
+ * client that stops reading cannot fill the heap.
  *
  * @see MatchingEngine
  */
 public class OrderSocket implements Runnable {
 
+    /**
+     * One client connection.  Only the OrderSocket Thread touches it,
+     * except for Replies, Queued, Overflow and Scheduled which the
+     * MatchingEngine threads use to hand over replies.
+     */
+    private static class Session {
+
+        /** Connection number, never zero. */
+        private final int ID;
+
+        /** The client's channel. */
+        private final SocketChannel Channel;
+
+        /** The channel's registration with the Selector. */
+        private SelectionKey Key;
+
+        /** Bytes read but not yet ending in a newline. */
+        private ByteBuffer In;
+
+        /** Replies waiting to be written, in the order produced. */
+        private final ConcurrentLinkedQueue<String> Replies;
+
+        /** Characters in Replies plus bytes in Out. */
+        private final AtomicLong Queued;
+
+        /** True once Queued went past MaxQueuedBytes; we close. */
+        private volatile boolean Overflow;
+
+        /** True while this Session is waiting in Pending. */
+        private final AtomicBoolean Scheduled;
+
+        /** Encoded replies the channel has not accepted yet. */
+        private final ArrayDeque<ByteBuffer> Out;
+
+        /** Number of erroneous messages.  Three in a row results in a
+         *  disconnect. */
+        private int ErrorCount;
+
+        /** Time of the last message received or PING sent. */
+        private long LastActivity;
+
+        /** True once BYE is queued; we close after writing it. */
+        private boolean Closing;
+
+        /** True once the channel is closed. */
+        private volatile boolean Closed;
+
+        /**
+         * @param id Connection number
+         * @param c The client's channel
+         */
+        private Session ( int id, SocketChannel c )
+        {
+            ID = id;
+            Channel = c;
+            In = ByteBuffer.allocate( 4096 );
+            Replies = new ConcurrentLinkedQueue<>();
+            Queued = new AtomicLong( 0 );
+            Overflow = false;
+            Scheduled = new AtomicBoolean( false );
+            Out = new ArrayDeque<>();
+            ErrorCount = 0;
+            LastActivity = System.currentTimeMillis();
+            Closing = false;
+            Closed = false;
+        }
+    }
+
+    /** Line ending written after every message. */
+    private static final String LineSeparator = System.lineSeparator();
+
+    /** Longest line taken from a client, in bytes. */
+    private static final int MaxLineBytes = 65536;
+
     /** Thread object for this class. */
     private Thread T;
 
@@ -48,20 +140,38 @@ public class OrderSocket implements Runnable {
     /** Port number to listen. */
     private int PortNumber;
 
-    /** Reference to MatchingEngine object. */
-    private MatchingEngine ME;
+    /** Reference to the Engine. */
+    private Engine ME;
 
-    /** Buffered output to be written to the connection. */
-    private String OutputBuffer;
-
-    /** Number of erroneous messages.  Three in a row results in a
-     *  disconnect. */
-    private int ErrorCount;
-    
     /** Milliseconds between PING messages.  These messages can be
      *  ignored on the client side. */
     private int PingMS;
 
+    /** Most reply bytes waiting for one connection before it is
+     *  closed. */
+    private long MaxQueuedBytes;
+
+    /** Selector serving every connection, null until the Thread runs. */
+    private volatile Selector Sel;
+
+    /** Open connections.  Key is the connection number. */
+    private final ConcurrentHashMap<Integer, Session> Sessions;
+
+    /** Connections with new replies for the OrderSocket Thread. */
+    private final ConcurrentLinkedQueue<Session> Pending;
+
+    /** True while a Selector wakeup is outstanding. */
+    private final AtomicBoolean WakeupPending;
+
+    /** The last connection number handed out. */
+    private int LastSessionID;
+
+    /** Lines received from every connection since start. */
+    private final AtomicLong Received;
+
+    /** Bytes of replies encoded but not yet accepted by a channel. */
+    private final AtomicLong Unsent;
+
     /**
      * The constructor stores information for when the Thread is started,
      * but does not start it on its own.
@@ -70,29 +180,122 @@ public class OrderSocket implements Runnable {
      * @param me A reference to the MatchingEngine this socket is
      * supposed to connect
      */
-    public OrderSocket ( String Name, MatchingEngine me )
+    public OrderSocket ( String Name, Engine me )
     {
         ThreadName = Name;
         PortNumber = Configuration.getInstance().getInt("ORDERPORT");
         PingMS = Configuration.getInstance().getInt("PINGMS");
+        MaxQueuedBytes = Configuration.getInstance().getInt("ORDERQUEUEBYTES");
         ME = me;
         T = null;
-        ErrorCount = 0;
-        OutputBuffer = "";
+        Sessions = new ConcurrentHashMap<>();
+        Pending = new ConcurrentLinkedQueue<>();
+        WakeupPending = new AtomicBoolean( false );
+        LastSessionID = 0;
+        Received = new AtomicLong( 0 );
+        Unsent = new AtomicLong( 0 );
     }
 
     /**
-     * Interface for the MatchingEngine to queue a reply on the
-     * connection.
+     * Interface for the MatchingEngine to send a reply to a connection.
+     * May be called from any Thread; the reply is written by the
+     * OrderSocket Thread right away.
      *
      * @param s The message to be sent out
+     * @param Connection The connection that owns the Order
      */
-    public void WriteReply ( String s )
+    public void WriteReply ( String s, int Connection )
     {
-        if ( OutputBuffer.length() > 0 )
-            OutputBuffer += "\n" + s;
+        Session c = Sessions.get( Connection );
+
+        if ( c == null )
+        {
+            Drop( s, Connection );
+            return;
+        }
+
+        Queue( c, s );
+        Schedule( c );
+    }
+
+    /**
+     * Adds a reply to a connection's Replies.  Marks the connection for
+     * closing, and logs the reply instead, once more than
+     * MaxQueuedBytes are waiting.  May be called from any Thread.
+     *
+     * @param c The connection
+     * @param s The reply
+     */
+    private void Queue ( Session c, String s )
+    {
+        if ( c.Overflow )
+        {
+            Drop( s, c.ID );
+            return;
+        }
+
+        long Length = s.length() + LineSeparator.length();
+
+        if ( c.Queued.addAndGet( Length ) > MaxQueuedBytes )
+        {
+            c.Queued.addAndGet( -Length );
+            c.Overflow = true;
+            Drop( s, c.ID );
+        }
         else
-            OutputBuffer = s;
+            c.Replies.add( s );
+    }
+
+    /**
+     * Logs a reply whose connection has closed, instead of sending it.
+     * May be called from any Thread.
+     *
+     * @param s The reply
+     * @param Connection The connection it was for
+     */
+    private void Drop ( String s, int Connection )
+    {
+        try
+        {
+            Logger.getInstance().write( "UNDELIVERED,Connection=" + Connection + "," + s );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "Unable to log undelivered reply: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * @return Lines received from every connection since start
+     */
+    public long getReceived ()
+    {
+        return Received.get();
+    }
+
+    /**
+     * @return Bytes of replies encoded but not yet accepted by a
+     * channel
+     */
+    public long getOutboundBytes ()
+    {
+        return Unsent.get();
+    }
+
+    /**
+     * Hands a connection with new replies to the OrderSocket Thread.
+     *
+     * @param c The connection
+     */
+    private void Schedule ( Session c )
+    {
+        if ( c.Scheduled.compareAndSet( false, true ) )
+        {
+            Pending.add( c );
+
+            if ( Sel != null && WakeupPending.compareAndSet( false, true ) )
+                Sel.wakeup();
+        }
     }
 
     /**
@@ -103,9 +306,10 @@ public class OrderSocket implements Runnable {
      * if there are three consecutive errors.
      *
      * @param InputLine The message received on the connection
+     * @param c The connection it was received on
      * @return An error message, or blank string if there was no error
      */
-    private String ProcessInput ( String InputLine )
+    private String ProcessInput ( String InputLine, Session c )
     {
         if ( InputLine.equals("END") )
             return "BYE";
@@ -113,56 +317,76 @@ public class OrderSocket implements Runnable {
         if ( InputLine.equals("PING") )
             return "";
 
-        String[] token = InputLine.split(",");
-        String cmd = token[0];
+        int End = InputLine.indexOf( ',' );
+        String cmd = ( End < 0 ) ? InputLine : InputLine.substring( 0, End );
 
-        if ( cmd.matches("(NEW|AMEND|CANCEL)") ) {
+        if ( cmd.equals("NEW") || cmd.equals("AMEND") || cmd.equals("CANCEL") ) {
             String OrderID, Symbol, Customer, Source, ArriveDate, TIF;
             String Currency;
-            double Price, Quantity, AvailableQuantity, MinFillQuantity;
+
+            // kept as text and read exactly into ticks and lots
+            String Price, Quantity, AvailableQuantity, MinFillQuantity;
             char Side;
 
             OrderID = Symbol = Customer = Source = ArriveDate = "";
             TIF = Currency = "";
-            Price = Quantity = AvailableQuantity = MinFillQuantity = 0D;
+            Price = Quantity = AvailableQuantity = MinFillQuantity = "0";
             Side = ' ';
 
             // valid command, reset disconnect counter
-            ErrorCount = 0;
+            c.ErrorCount = 0;
 
-            for ( int x=1; x<token.length; x++)
+            // walk the Key=Value pairs in place rather than splitting,
+            // only the values kept become Strings
+            while ( End >= 0 )
             {
-                String[] parameter = token[x].split("=");
-                if ( parameter.length == 2 )
-                {
-                    if ( parameter[0].equalsIgnoreCase("OrderID") )
-                        OrderID = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("Symbol") )
-                        Symbol = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("Customer") )
-                        Customer = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("ArriveDate") )
-                        ArriveDate = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("TIF") )
-                        TIF = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("Price") )
-                        Price = Double.parseDouble(parameter[1]);
-                    else if ( parameter[0].equalsIgnoreCase("Quantity") )
-                        Quantity = Double.parseDouble(parameter[1]);
-                    else if ( parameter[0].equalsIgnoreCase("AvailableQuantity") )
-                        AvailableQuantity = Double.parseDouble(parameter[1]);
-                    else if ( parameter[0].equalsIgnoreCase("Side") )
-                        Side = parameter[1].charAt(0);
-                    else if ( parameter[0].equalsIgnoreCase("Currency") )
-                        Currency = parameter[1];
-                    else if ( parameter[0].equalsIgnoreCase("MinFillQuantity") )
-                        MinFillQuantity = Double.parseDouble(parameter[1]);
-                }
+                int Start = End + 1;
+
+                End = InputLine.indexOf( ',', Start );
+
+                int Stop = ( End < 0 ) ? InputLine.length() : End;
+
+                // trailing '=' are ignored, as String.split did
+                while ( Stop > Start && InputLine.charAt( Stop - 1 ) == '=' )
+                    Stop--;
+
+                int Equals = InputLine.indexOf( '=', Start );
+
+                // exactly one '=' and a value after it
+                if ( Equals < 0 || Equals >= Stop - 1 ||
+                     InputLine.lastIndexOf( '=', Stop - 1 ) != Equals )
+                    continue;
+
+                int KeyLength = Equals - Start;
+                String Value = InputLine.substring( Equals + 1, Stop );
+
+                if ( IsKey( InputLine, Start, KeyLength, "OrderID" ) )
+                    OrderID = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "Symbol" ) )
+                    Symbol = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "Customer" ) )
+                    Customer = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "ArriveDate" ) )
+                    ArriveDate = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "TIF" ) )
+                    TIF = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "Price" ) )
+                    Price = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "Quantity" ) )
+                    Quantity = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "AvailableQuantity" ) )
+                    AvailableQuantity = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "Side" ) )
+                    Side = Value.charAt(0);
+                else if ( IsKey( InputLine, Start, KeyLength, "Currency" ) )
+                    Currency = Value;
+                else if ( IsKey( InputLine, Start, KeyLength, "MinFillQuantity" ) )
+                    MinFillQuantity = Value;
             }
-            
+
             Source = "OS";
 
-            if ( Double.compare(Quantity,0D) > 0 && Double.compare(AvailableQuantity,0D) == 0)
+            if ( IsZero( AvailableQuantity ) )
                 AvailableQuantity = Quantity;
 
             try
@@ -170,10 +394,12 @@ public class OrderSocket implements Runnable {
                 String RejectText = "";
 
                 // create order
-                Order o = new Order(OrderID,Symbol,Customer,Source,ArriveDate,
+                Order o = OrderPool.Take(OrderID,Symbol,Customer,Source,ArriveDate,
                                     Price,Quantity,AvailableQuantity,Side,TIF,
                                     Currency,MinFillQuantity);
 
+                o.setConnection( c.ID );
+
                 // send to matching engine
                 if ( cmd.equals("NEW") )
                     RejectText = ME.NewOrder(o);
@@ -191,83 +417,379 @@ public class OrderSocket implements Runnable {
 
         }
 
-        ErrorCount++;
-        if ( ErrorCount >= 3 )
+        c.ErrorCount++;
+        if ( c.ErrorCount >= 3 )
             return "BYE";
         else
             return "UNKNOWN COMMAND";
     }
 
+    /**
+     * @param Value A decimal number as text
+     * @return True if Value is a zero, such as 0, -0 or 0.00
+     */
+    private static boolean IsZero ( String Value )
+    {
+        boolean Digits = false;
+        int i = ( Value.startsWith("-") || Value.startsWith("+") ) ? 1 : 0;
+
+        for ( ; i < Value.length(); i++ )
+        {
+            char ch = Value.charAt( i );
+
+            if ( ch == '0' )
+                Digits = true;
+            else if ( ch != '.' )
+                return false;
+        }
+
+        return Digits;
+    }
+
+    /**
+     * @param Line An input line
+     * @param Start Offset of a key in Line
+     * @param Length Length of the key
+     * @param Key A field name
+     * @return True if the key is Key, ignoring case
+     */
+    private static boolean IsKey ( String Line, int Start, int Length, String Key )
+    {
+        return Length == Key.length() && Line.regionMatches( true, Start, Key, 0, Length );
+    }
+
+    /**
+     * Accepts a new connection and greets it.
+     *
+     * @param Server The listening channel
+     * @throws IOException If the connection cannot be set up
+     */
+    private void Accept ( ServerSocketChannel Server ) throws IOException
+    {
+        SocketChannel Channel = Server.accept();
+
+        if ( Channel == null )
+            return;
+
+        Channel.configureBlocking( false );
+        Channel.socket().setTcpNoDelay( true );
+
+        // zero means no connection, so skip it if we ever wrap around
+        if ( ++LastSessionID == 0 )
+            ++LastSessionID;
+
+        Session c = new Session( LastSessionID, Channel );
+        c.Key = Channel.register( Sel, SelectionKey.OP_READ, c );
+        Sessions.put( c.ID, c );
+
+        Queue( c, "CONNECTED" );
+
+        Flush( c );
+    }
+
+    /**
+     * Reads from a connection and processes every complete line.
+     *
+     * @param c The connection
+     */
+    private void Read ( Session c )
+    {
+        int Count;
+
+        try
+        {
+            Count = c.Channel.read( c.In );
+        }
+        catch ( IOException e )
+        {
+            Close( c );
+            return;
+        }
+
+        if ( Count < 0 )
+        {
+            Close( c );
+            return;
+        }
+
+        c.In.flip();
+
+        int Start = c.In.position();
+
+        for ( int i = Start; i < c.In.limit() && !c.Closing && !c.Overflow; i++ )
+        {
+            if ( c.In.get( i ) != '\n' )
+                continue;
+
+            int End = i;
+            if ( End > Start && c.In.get( End - 1 ) == '\r' )
+                End--;
+
+            byte[] Line = new byte[ End - Start ];
+            for ( int j = 0; j < Line.length; j++ )
+                Line[j] = c.In.get( Start + j );
+
+            Start = i + 1;
+            c.LastActivity = System.currentTimeMillis();
+            Received.incrementAndGet();
+
+            String OutputLine = ProcessInput( new String( Line, StandardCharsets.UTF_8 ), c );
+
+            if ( !OutputLine.equals("") )
+                Queue( c, OutputLine );
+
+            if ( OutputLine.equals("BYE") )
+                c.Closing = true;
+        }
+
+        c.In.position( Start );
+        c.In.compact();
+
+        // nothing more is read from a connection on its way out
+        if ( c.Closing || c.Overflow )
+            c.In.clear();
+
+        // a line longer than the buffer, make room for the rest of it,
+        // up to MaxLineBytes
+        if ( !c.In.hasRemaining() && c.In.capacity() >= MaxLineBytes )
+        {
+            c.In.clear();
+            Queue( c, "LINE TOO LONG" );
+            Queue( c, "BYE" );
+            c.Closing = true;
+        }
+        else if ( !c.In.hasRemaining() )
+        {
+            ByteBuffer Bigger = ByteBuffer.allocate( c.In.capacity() * 2 );
+            c.In.flip();
+            Bigger.put( c.In );
+            c.In = Bigger;
+        }
+
+        Flush( c );
+    }
+
+    /**
+     * Moves a connection's queued replies to its output and writes as
+     * much as the channel will take.  Replies for a closed connection
+     * are dropped.  Closes a connection with too many replies waiting.
+     *
+     * @param c The connection
+     */
+    private void Flush ( Session c )
+    {
+        if ( c.Closed )
+        {
+            String s;
+            while ( ( s = c.Replies.poll() ) != null )
+                Drop( s, c.ID );
+            return;
+        }
+
+        if ( c.Overflow )
+        {
+            try
+            {
+                Logger.getInstance().write( ThreadName + " dropped connection " + c.ID +
+                                            ", more than " + MaxQueuedBytes + " bytes of replies behind" );
+            }
+            catch ( IOException e )
+            {
+                // nothing more we can do
+            }
+
+            // encoded replies are logged too; the first may have been
+            // partly sent
+            for ( ByteBuffer b : c.Out )
+            {
+                byte[] Bytes = new byte[ b.remaining() ];
+                b.duplicate().get( Bytes );
+
+                for ( String Line : new String( Bytes, StandardCharsets.UTF_8 ).split( LineSeparator ) )
+                    if ( !Line.equals("") )
+                        Drop( Line, c.ID );
+            }
+
+            Close( c );
+            return;
+        }
+
+        String s = c.Replies.poll();
+
+        if ( s != null )
+        {
+            StringBuilder Output = new StringBuilder();
+
+            for ( ; s != null; s = c.Replies.poll() )
+                Output.append( s ).append( LineSeparator );
+
+            ByteBuffer b = ByteBuffer.wrap( Output.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+            // count what was encoded in bytes from now on
+            c.Queued.addAndGet( b.remaining() - Output.length() );
+            c.Out.add( b );
+            Unsent.addAndGet( b.remaining() );
+        }
+
+        Write( c );
+    }
+
+    /**
+     * Writes pending output until done or the channel is full.  Asks
+     * the Selector to tell us when the rest can be written.
+     *
+     * @param c The connection
+     */
+    private void Write ( Session c )
+    {
+        try
+        {
+            while ( !c.Out.isEmpty() )
+            {
+                ByteBuffer b = c.Out.peek();
+
+                int Count = c.Channel.write( b );
+                Unsent.addAndGet( -Count );
+                c.Queued.addAndGet( -Count );
+
+                if ( b.hasRemaining() )
+                {
+                    c.Key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+                    return;
+                }
+
+                c.Out.poll();
+            }
+        }
+        catch ( IOException e )
+        {
+            Close( c );
+            return;
+        }
+
+        if ( c.Closing )
+            Close( c );
+        else
+            c.Key.interestOps( SelectionKey.OP_READ );
+    }
+
+    /**
+     * Closes a connection.  Later replies for it are dropped.
+     *
+     * @param c The connection
+     */
+    private void Close ( Session c )
+    {
+        if ( c.Closed )
+            return;
+
+        c.Closed = true;
+        Sessions.remove( c.ID );
+        c.Key.cancel();
+
+        try
+        {
+            c.Channel.close();
+        }
+        catch ( IOException e )
+        {
+            // already gone
+        }
+
+        for ( ByteBuffer b : c.Out )
+            Unsent.addAndGet( -b.remaining() );
+
+        c.Out.clear();
+
+        Flush( c );
+    }
+
+    /**
+     * Sends a PING to every connection that has been quiet for PingMS.
+     */
+    private void Ping ()
+    {
+        long Now = System.currentTimeMillis();
+
+        for ( Session c : Sessions.values() )
+        {
+            if ( Now - c.LastActivity >= PingMS )
+            {
+                c.LastActivity = Now;
+                Queue( c, "PING" );
+                Flush( c );
+            }
+        }
+    }
+
     /**
      * Notifies the MatchingEngine that this socket exists.  Opens the
-     * PortNumber and listens for connections.  Establishes connections
-     * and reads/writes data.  This function never exits, which requires
+     * PortNumber and serves every connection from one Selector: accepts
+     * clients, reads requests, and writes replies as the MatchingEngine
+     * hands them over.  This function never exits, which requires
      * killing Microssa to stop.
      */
     public void run ()
     {
         ME.SetOrderSocket(this);
 
-        while ( true )
-        {
-            try (
-                ServerSocket serverSocket = new ServerSocket(PortNumber);
-                Socket clientSocket = serverSocket.accept();
-                PrintWriter out =
-                    new PrintWriter(clientSocket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()));
-            ) {
+        try (
+            Selector selector = Selector.open();
+            ServerSocketChannel Server = ServerSocketChannel.open();
+        ) {
+            Sel = selector;
 
-                String InputLine, OutputLine;
+            Server.bind( new InetSocketAddress( PortNumber ) );
+            Server.configureBlocking( false );
+            Server.register( Sel, SelectionKey.OP_ACCEPT );
 
-                int PingCheck = 0;
-                boolean AbortSession = false;
+            long Timeout = Math.max( PingMS / 4, 1 );
 
-                out.println("CONNECTED");
+            while ( true )
+            {
+                Sel.select( Timeout );
 
-                // messages from a previous, disconnected session?
-                if ( !OutputBuffer.equals("") )
+                for ( Iterator<SelectionKey> it = Sel.selectedKeys().iterator(); it.hasNext(); )
                 {
-                    out.println(OutputBuffer);
-                    OutputBuffer = "";
-                }
+                    SelectionKey k = it.next();
+                    it.remove();
 
-                while ((InputLine = in.readLine()) != null && !AbortSession)
-                {
-                    OutputLine = ProcessInput(InputLine);
-                    if ( !OutputLine.equals("") )
-                        out.println(OutputLine);
-                    if ( OutputLine.equals("BYE") )
-                        break;
+                    if ( !k.isValid() )
+                        continue;
 
-                    while(!in.ready() && !AbortSession)
+                    if ( k.isAcceptable() )
                     {
-                        OutputLine = OutputBuffer;
-                        if ( OutputLine.length() > 0 )
-                        {
-                            out.println(OutputLine);
-                            OutputBuffer = "";
-                        }
-
-                        Thread.sleep(50);
-                        PingCheck += 50;
-
-                        if (PingCheck >= PingMS) {
-                            out.println("PING");
-                            PingCheck = 0;
-                            AbortSession = out.checkError();
-                        }
+                        Accept( Server );
+                        continue;
                     }
-                    PingCheck = 0;
+
+                    Session c = (Session) k.attachment();
+
+                    if ( k.isReadable() )
+                        Read( c );
+
+                    if ( k.isValid() && k.isWritable() )
+                        Write( c );
                 }
 
-            } catch (Exception e)
-            {
-                System.err.println("Exception caught when trying to listen on port "
-                    + PortNumber + " or listening for a connection");
-                System.err.println(e.getMessage());
+                // must clear before draining so a new reply always wakes us
+                WakeupPending.set( false );
+
+                Session c;
+                while ( ( c = Pending.poll() ) != null )
+                {
+                    c.Scheduled.set( false );
+                    Flush( c );
+                }
+
+                Ping();
             }
+
+        } catch (Exception e)
+        {
+            System.err.println("Exception caught when trying to listen on port "
+                + PortNumber + " or listening for a connection");
+            System.err.println(e.getMessage());
         }
     }
 
@@ -295,4 +817,3 @@ public class OrderSocket implements Runnable {
         }
     }
 }
-
@@ -0,0 +1,658 @@
+/*
+ * OrderStore.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import Microssa.Order;
+import Microssa.OrderIndex;
+import Microssa.OrderPool;
+
+/**
+ * The resting Orders of one MatchingEngine kept outside the Java heap,
+ * for BOOKLAYOUT = OFFHEAP.  Each Order is a fixed record of RecordSize
+ * bytes in a direct ByteBuffer, found by its slot number, so a book of
+ * millions of Orders is a few large buffers rather than millions of
+ * objects for the garbage collector to mark.
+ *
+ * A record keeps the Symbol as its Dictionary.Symbols ID, the Currency
+ * as its Dictionary.Currencies ID, and the Customer, Source, TIF and
+ * ArriveDate as IDs in a dictionary of this OrderStore, so equal
+ * Strings are held once.  The OrderID is
+ * kept in the record as Latin-1 text if it fits, otherwise on the heap,
+ * as is an InternalID read back from the Journal that was not rendered
+ * from a number.
+ * The Prev and Next fields are the slots either side of the Order at
+ * its price point, linked by an off-heap DepthBook.
+ *
+ * Orders are found by Symbol and OrderID through a table of slot
+ * numbers laid out as OrderIndex is.  The MatchingEngine works on an
+ * Order loaded from its record for the length of one request, writes
+ * back the executions, and gives the copy back to OrderPool.
+ *
+ * Buffers are added as needed and never freed, and freed slots are
+ * reused newest first.  Not thread safe; only the Thread that owns the
+ * MatchingEngine uses it.
+ *
+ * @see DepthBook
+ * @see MatchingEngine
+ * @see Dictionary
+ */
+public class OrderStore {
+
+    /** Bytes in a record. */
+    public static final int RecordSize = 128;
+
+    /** Records per buffer, as a power of two. */
+    private static final int SlabBits = 16;
+
+    /** Records per buffer. */
+    private static final int SlabSize = 1 << SlabBits;
+
+    /** Slots in a new table, a power of two. */
+    private static final int InitialSlots = 1024;
+
+    /** Longest OrderID kept in the record. */
+    private static final int MaxIDLength = 38;
+
+    /** Offset of Price, in ticks, a long. */
+    private static final int PriceAt = 0;
+
+    /** Offset of Quantity, in lots, a long. */
+    private static final int QuantityAt = 8;
+
+    /** Offset of AvailableQuantity, in lots, a long. */
+    private static final int AvailableAt = 16;
+
+    /** Offset of MinFillQuantity, in lots, a long. */
+    private static final int MinFillAt = 24;
+
+    /** Offset of CumulativeQuantity, in lots, a long. */
+    private static final int CumulativeAt = 32;
+
+    /** Offset of AveragePrice, a double. */
+    private static final int AverageAt = 40;
+
+    /** Offset of the Dictionary.Symbols ID of the Symbol, an int. */
+    private static final int SymbolAt = 48;
+
+    /** Offset of the dictionary ID of the Customer, an int. */
+    private static final int CustomerAt = 52;
+
+    /** Offset of the dictionary ID of the Source, an int. */
+    private static final int SourceAt = 56;
+
+    /** Offset of the Dictionary.Currencies ID of the Currency, an int. */
+    private static final int CurrencyAt = 60;
+
+    /** Offset of the dictionary ID of the TIF, an int. */
+    private static final int TIFAt = 64;
+
+    /** Offset of the dictionary ID of the ArriveDate, an int. */
+    private static final int ArriveAt = 68;
+
+    /** Offset of the number InternalID is rendered from, an int, -1 if
+     *  the InternalID is kept on the heap. */
+    private static final int InternalAt = 72;
+
+    /** Offset of the OrderSocket connection, an int. */
+    private static final int ConnectionAt = 76;
+
+    /** Offset of the previous slot at the price point, an int. */
+    private static final int PrevAt = 80;
+
+    /** Offset of the next slot at the price point, an int. */
+    private static final int NextAt = 84;
+
+    /** Offset of Side, a byte. */
+    private static final int SideAt = 88;
+
+    /** Offset of the length of the OrderID, a byte, -1 if kept on the heap. */
+    private static final int IDLengthAt = 89;
+
+    /** Offset of OrderID, MaxIDLength bytes of Latin-1. */
+    private static final int OrderIDAt = 90;
+
+    /** Buffers of records, SlabSize records each. */
+    private ByteBuffer[] Slabs;
+
+    /** Slots handed out so far, free or not. */
+    private int Used;
+
+    /** Most recently freed slot, -1 if none is free.  Freed slots are
+     *  chained through Prev, so Next stays as it was for MatchNext. */
+    private int FreeHead;
+
+    /** Number of records held. */
+    private int Size;
+
+    /** OrderIDs too long for their record.  Key is slot. */
+    private HashMap<Integer, String> LongIDs;
+
+    /** InternalIDs not rendered from a number.  Key is slot. */
+    private HashMap<Integer, String> OddIDs;
+
+    /** IDs of the other Strings given so far.  Key is the String. */
+    private HashMap<String, Integer> IDs;
+
+    /** String of each ID in IDs. */
+    private ArrayList<String> Strings;
+
+    /** Hash of the Symbol and OrderID of each table slot's record. */
+    private int[] Hashes;
+
+    /** Record slot in each table slot, -1 if the table slot is free. */
+    private int[] Slots;
+
+    /** Table slots minus one, to wrap a position. */
+    private int Mask;
+
+    /** Scratch for building OrderIDs. */
+    private char[] Text;
+
+    /**
+     * Creates an empty OrderStore.  No buffer is allocated until the
+     * first Order is put.
+     */
+    public OrderStore ()
+    {
+        Slabs = new ByteBuffer[16];
+        Used = 0;
+        FreeHead = -1;
+        Size = 0;
+        LongIDs = new HashMap<>();
+        OddIDs = new HashMap<>();
+        IDs = new HashMap<>();
+        Strings = new ArrayList<>();
+        Hashes = new int[InitialSlots];
+        Slots = new int[InitialSlots];
+        Mask = InitialSlots - 1;
+        Text = new char[MaxIDLength];
+
+        Arrays.fill( Slots, -1 );
+    }
+
+    /**
+     * Writes an Order to a free record and sets its Slot.  The caller
+     * makes sure no Order with the same Symbol and OrderID is held.
+     *
+     * @param o The Order
+     * @return The slot
+     */
+    public int Put ( Order o )
+    {
+        int Slot = Allocate();
+        ByteBuffer b = Slabs[Slot >>> SlabBits];
+        int i = Offset( Slot );
+        String OrderID = o.getOrderID();
+        int InternalNumber = o.getInternalNumber();
+
+        b.putLong( i + PriceAt, o.getPriceTicks() );
+        b.putLong( i + QuantityAt, o.getQuantityLots() );
+        b.putLong( i + AvailableAt, o.getAvailableLots() );
+        b.putLong( i + MinFillAt, o.getMinFillLots() );
+        b.putLong( i + CumulativeAt, o.getCumulativeLots() );
+        b.putDouble( i + AverageAt, o.getAveragePrice() );
+        b.putInt( i + SymbolAt, o.getSymbolID() );
+        b.putInt( i + CustomerAt, Intern( o.getCustomer() ) );
+        b.putInt( i + SourceAt, Intern( o.getSource() ) );
+        b.putInt( i + CurrencyAt, o.getCurrencyID() );
+        b.putInt( i + TIFAt, Intern( o.getTIF() ) );
+        b.putInt( i + ArriveAt, Intern( o.getArriveDate() ) );
+        b.putInt( i + InternalAt, InternalNumber );
+        b.putInt( i + ConnectionAt, o.getConnection() );
+        b.putInt( i + PrevAt, -1 );
+        b.putInt( i + NextAt, -1 );
+        b.put( i + SideAt, (byte) o.getSide() );
+
+        if ( IsShort( OrderID ) )
+        {
+            b.put( i + IDLengthAt, (byte) OrderID.length() );
+
+            for ( int c = 0; c < OrderID.length(); c++ )
+                b.put( i + OrderIDAt + c, (byte) OrderID.charAt( c ) );
+        }
+        else
+        {
+            b.put( i + IDLengthAt, (byte) -1 );
+            LongIDs.put( Slot, OrderID );
+        }
+
+        if ( InternalNumber < 0 )
+            OddIDs.put( Slot, o.getInternalID() );
+
+        if ( ( Size + 1 ) * 2 > Slots.length )
+            Grow();
+
+        Insert( OrderIndex.Hash( o.getSymbolID(), OrderID ), Slot );
+        Size++;
+        o.setSlot( Slot );
+
+        return Slot;
+    }
+
+    /**
+     * Writes back the quantities an execution changes.
+     *
+     * @param o The Order, loaded from its record
+     */
+    public void Update ( Order o )
+    {
+        ByteBuffer b = Slabs[o.getSlot() >>> SlabBits];
+        int i = Offset( o.getSlot() );
+
+        b.putLong( i + AvailableAt, o.getAvailableLots() );
+        b.putLong( i + CumulativeAt, o.getCumulativeLots() );
+        b.putDouble( i + AverageAt, o.getAveragePrice() );
+    }
+
+    /**
+     * Frees the record of an Order and clears its Slot.  The Order must
+     * already be out of its DepthBook.
+     *
+     * @param o The Order, loaded from its record
+     */
+    public void Remove ( Order o )
+    {
+        int Slot = o.getSlot();
+        int h = OrderIndex.Hash( o.getSymbolID(), o.getOrderID() );
+
+        for ( int i = h & Mask; Slots[i] != -1; i = ( i + 1 ) & Mask )
+        {
+            if ( Slots[i] == Slot )
+            {
+                Delete( i );
+                break;
+            }
+        }
+
+        if ( Slabs[Slot >>> SlabBits].get( Offset( Slot ) + IDLengthAt ) < 0 )
+            LongIDs.remove( Slot );
+
+        if ( Slabs[Slot >>> SlabBits].getInt( Offset( Slot ) + InternalAt ) < 0 )
+            OddIDs.remove( Slot );
+
+        setPrev( Slot, FreeHead );
+        FreeHead = Slot;
+        Size--;
+        o.setSlot( -1 );
+    }
+
+    /**
+     * @param SymbolID ID of the Symbol
+     * @param OrderID The OrderID
+     * @return Slot of the Order, or -1 if none is held
+     */
+    public int Find ( int SymbolID, String OrderID )
+    {
+        int h = OrderIndex.Hash( SymbolID, OrderID );
+
+        for ( int i = h & Mask; Slots[i] != -1; i = ( i + 1 ) & Mask )
+        {
+            int Slot = Slots[i];
+
+            if ( Hashes[i] == h &&
+                 Slabs[Slot >>> SlabBits].getInt( Offset( Slot ) + SymbolAt ) == SymbolID &&
+                 HasOrderID( Slot, OrderID ) )
+                return Slot;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Fills in an Order from a record.
+     *
+     * @param Slot The slot
+     * @param o A blank Order, or one that may be overwritten
+     * @return o
+     */
+    public Order Load ( int Slot, Order o )
+    {
+        ByteBuffer b = Slabs[Slot >>> SlabBits];
+        int i = Offset( Slot );
+        int InternalNumber = b.getInt( i + InternalAt );
+
+        o.Fill( getOrderID( Slot ), ( InternalNumber < 0 ) ? OddIDs.get( Slot ) : null,
+                Math.max( InternalNumber, 0 ), b.getInt( i + SymbolAt ),
+                Lookup( b.getInt( i + CustomerAt ) ), Lookup( b.getInt( i + SourceAt ) ),
+                Lookup( b.getInt( i + ArriveAt ) ),
+                b.getLong( i + PriceAt ), b.getLong( i + QuantityAt ), b.getLong( i + AvailableAt ),
+                (char) b.get( i + SideAt ), Lookup( b.getInt( i + TIFAt ) ),
+                b.getInt( i + CurrencyAt ), b.getLong( i + MinFillAt ),
+                b.getLong( i + CumulativeAt ), b.getDouble( i + AverageAt ),
+                b.getInt( i + ConnectionAt ), Slot );
+
+        return o;
+    }
+
+    /**
+     * Fills in an Order from a record, taking it from OrderPool.  The
+     * caller gives it back once the request is done.
+     *
+     * @param Slot The slot
+     * @return The Order
+     */
+    public Order Load ( int Slot )
+    {
+        return Load( Slot, OrderPool.Take() );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return OrderID of the record
+     */
+    public String getOrderID ( int Slot )
+    {
+        ByteBuffer b = Slabs[Slot >>> SlabBits];
+        int i = Offset( Slot );
+        int Length = b.get( i + IDLengthAt );
+
+        if ( Length < 0 )
+            return LongIDs.get( Slot );
+
+        for ( int c = 0; c < Length; c++ )
+            Text[c] = (char) ( b.get( i + OrderIDAt + c ) & 0xFF );
+
+        return new String( Text, 0, Length );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return Previous slot at the record's price point, -1 if none
+     */
+    int getPrev ( int Slot )
+    {
+        return Slabs[Slot >>> SlabBits].getInt( Offset( Slot ) + PrevAt );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return Next slot at the record's price point, -1 if none
+     */
+    int getNext ( int Slot )
+    {
+        return Slabs[Slot >>> SlabBits].getInt( Offset( Slot ) + NextAt );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return Dictionary.Currencies ID of the record's Currency
+     */
+    int getCurrencyID ( int Slot )
+    {
+        return Slabs[Slot >>> SlabBits].getInt( Offset( Slot ) + CurrencyAt );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return The record's AvailableQuantity, in lots
+     */
+    long getAvailableLots ( int Slot )
+    {
+        return Slabs[Slot >>> SlabBits].getLong( Offset( Slot ) + AvailableAt );
+    }
+
+    /**
+     * @param Slot The slot
+     * @return The record's MinFillQuantity, in lots
+     */
+    long getMinFillLots ( int Slot )
+    {
+        return Slabs[Slot >>> SlabBits].getLong( Offset( Slot ) + MinFillAt );
+    }
+
+    /**
+     * @param Slot The slot
+     * @param Prev Previous slot at the record's price point, -1 if none
+     */
+    void setPrev ( int Slot, int Prev )
+    {
+        Slabs[Slot >>> SlabBits].putInt( Offset( Slot ) + PrevAt, Prev );
+    }
+
+    /**
+     * @param Slot The slot
+     * @param Next Next slot at the record's price point, -1 if none
+     */
+    void setNext ( int Slot, int Next )
+    {
+        Slabs[Slot >>> SlabBits].putInt( Offset( Slot ) + NextAt, Next );
+    }
+
+    /**
+     * Checks a record against a contra Order's terms without loading
+     * it, for DepthBook to skip records that cannot trade.
+     *
+     * @param Slot The slot
+     * @param CurrencyID Dictionary.Currencies ID of the contra Currency
+     * @param MinFillLots The contra MinFillQuantity, in lots
+     * @param AvailableLots The contra AvailableQuantity, in lots
+     * @return True if the record is in the Currency, has MinFillLots
+     * available and no MinFillQuantity above AvailableLots
+     */
+    boolean Eligible ( int Slot, int CurrencyID, long MinFillLots, long AvailableLots )
+    {
+        ByteBuffer b = Slabs[Slot >>> SlabBits];
+        int i = Offset( Slot );
+
+        return b.getInt( i + CurrencyAt ) == CurrencyID &&
+               b.getLong( i + AvailableAt ) >= MinFillLots &&
+               b.getLong( i + MinFillAt ) <= AvailableLots;
+    }
+
+    /**
+     * @return Number of Orders held
+     */
+    public int getSize ()
+    {
+        return Size;
+    }
+
+    /**
+     * @return Bytes of the buffers allocated so far
+     */
+    public long getBytes ()
+    {
+        return (long) ( ( Used + SlabSize - 1 ) >>> SlabBits ) * SlabSize * RecordSize;
+    }
+
+    /**
+     * @param Slot The slot
+     * @return Offset of the record in its buffer
+     */
+    private static int Offset ( int Slot )
+    {
+        return ( Slot & ( SlabSize - 1 ) ) * RecordSize;
+    }
+
+    /**
+     * Takes the newest free slot, or the next unused one, adding a
+     * buffer when the last is full.
+     *
+     * @return The slot
+     */
+    private int Allocate ()
+    {
+        if ( FreeHead != -1 )
+        {
+            int Slot = FreeHead;
+
+            FreeHead = getPrev( Slot );
+
+            return Slot;
+        }
+
+        int Slab = Used >>> SlabBits;
+
+        if ( Slab == Slabs.length )
+            Slabs = Arrays.copyOf( Slabs, Slabs.length * 2 );
+
+        if ( Slabs[Slab] == null )
+            Slabs[Slab] = ByteBuffer.allocateDirect( SlabSize * RecordSize )
+                                    .order( ByteOrder.nativeOrder() );
+
+        return Used++;
+    }
+
+    /**
+     * @param OrderID An OrderID
+     * @return True if OrderID fits in a record as Latin-1
+     */
+    private static boolean IsShort ( String OrderID )
+    {
+        if ( OrderID.length() > MaxIDLength )
+            return false;
+
+        for ( int c = 0; c < OrderID.length(); c++ )
+            if ( OrderID.charAt( c ) > 0xFF )
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Compares the OrderID of a record without building it.
+     *
+     * @param Slot The slot
+     * @param OrderID The OrderID
+     * @return True if the record has OrderID
+     */
+    private boolean HasOrderID ( int Slot, String OrderID )
+    {
+        ByteBuffer b = Slabs[Slot >>> SlabBits];
+        int i = Offset( Slot );
+        int Length = b.get( i + IDLengthAt );
+
+        if ( Length < 0 )
+            return OrderID.equals( LongIDs.get( Slot ) );
+
+        if ( Length != OrderID.length() )
+            return false;
+
+        for ( int c = 0; c < Length; c++ )
+            if ( (char) ( b.get( i + OrderIDAt + c ) & 0xFF ) != OrderID.charAt( c ) )
+                return false;
+
+        return true;
+    }
+
+    /**
+     * @param s A String, may be null
+     * @return ID of s in IDs, given now if it has none, -1 for null
+     */
+    private int Intern ( String s )
+    {
+        if ( s == null )
+            return -1;
+
+        Integer ID = IDs.get( s );
+
+        if ( ID == null )
+        {
+            ID = Strings.size();
+            Strings.add( s );
+            IDs.put( s, ID );
+        }
+
+        return ID;
+    }
+
+    /**
+     * @param ID An ID in IDs, or -1
+     * @return The String with that ID, null for -1
+     */
+    private String Lookup ( int ID )
+    {
+        return ( ID < 0 ) ? null : Strings.get( ID );
+    }
+
+    /**
+     * Puts a slot in the first free table slot from its hash.
+     *
+     * @param h Hash of the record
+     * @param Slot The slot
+     */
+    private void Insert ( int h, int Slot )
+    {
+        int i = h & Mask;
+
+        while ( Slots[i] != -1 )
+            i = ( i + 1 ) & Mask;
+
+        Hashes[i] = h;
+        Slots[i] = Slot;
+    }
+
+    /**
+     * Frees a table slot, moving back any later slot of the run that
+     * would otherwise no longer be found from its hash, as OrderIndex
+     * does.
+     *
+     * @param Free The table slot to free
+     */
+    private void Delete ( int Free )
+    {
+        int i = Free;
+
+        while ( true )
+        {
+            i = ( i + 1 ) & Mask;
+
+            if ( Slots[i] == -1 )
+                break;
+
+            int Home = Hashes[i] & Mask;
+
+            if ( ( ( i - Home ) & Mask ) >= ( ( i - Free ) & Mask ) )
+            {
+                Hashes[Free] = Hashes[i];
+                Slots[Free] = Slots[i];
+                Free = i;
+            }
+        }
+
+        Slots[Free] = -1;
+    }
+
+    /**
+     * Doubles the table and puts every slot back.
+     */
+    private void Grow ()
+    {
+        int[] OldHashes = Hashes;
+        int[] OldSlots = Slots;
+
+        Hashes = new int[OldHashes.length * 2];
+        Slots = new int[OldSlots.length * 2];
+        Mask = Slots.length - 1;
+
+        Arrays.fill( Slots, -1 );
+
+        for ( int i = 0; i < OldSlots.length; i++ )
+            if ( OldSlots[i] != -1 )
+                Insert( OldHashes[i], OldSlots[i] );
+    }
+}
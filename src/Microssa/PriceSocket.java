@@ -22,9 +22,17 @@ package Microssa;
 
 import java.io.*;
 import java.net.*;
-
-import Microssa.MatchingEngine;
-import Microssa.Order;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Microssa.Engine;
 import Microssa.Logger;
 import Microssa.Configuration;
 
@@ -32,14 +40,98 @@ import Microssa.Configuration;
  * This class creates a TCP socket interface to allow market data
  * subscribe/unsubscribe requests to be sent to the MatchingEngine.  The
  * MatchingEngine replies with snapshots of the current prices in
- * the books.
- * This socket runs on its own thread.
+ * the book.
+ *
+ * Any number of clients may connect at once, each with its own set of
+ * subscribed Symbols.  All connections are served by one Thread using
+ * a Selector.  An update for a Symbol is encoded once and the same
+ * bytes are queued to every connection subscribed to it.  Each
+ * connection's queue holds at most MDQUEUESIZE messages; a client that
+ * falls further behind is disconnected rather than slowing down the
+ * MatchingEngine or the other clients.  A line longer than
+ * MaxLineBytes is refused and the connection closed.
  *
  * @see MatchingEngine
  */
-
 public class PriceSocket implements Runnable {
 
+    /**
+     * One client connection.  Only the PriceSocket Thread reads and
+     * writes the channel; the MatchingEngine threads add to Queue and
+     * Subs.
+     */
+    private static class Session {
+
+        /** Connection number, never zero. */
+        private final int ID;
+
+        /** The client's channel. */
+        private final SocketChannel Channel;
+
+        /** The channel's registration with the Selector. */
+        private SelectionKey Key;
+
+        /** Bytes read but not yet ending in a newline. */
+        private ByteBuffer In;
+
+        /** Encoded messages waiting to be written, in order. */
+        private final ConcurrentLinkedQueue<ByteBuffer> Queue;
+
+        /** Number of messages in Queue. */
+        private final AtomicInteger Queued;
+
+        /** Symbols this connection is subscribed to. */
+        private final Set<String> Subs;
+
+        /** True while this Session is waiting in Pending. */
+        private final AtomicBoolean Scheduled;
+
+        /** Number of erroneous messages.  Three in a row results in a
+         *  disconnect. */
+        private int ErrorCount;
+
+        /** Time of the last message received or PING sent. */
+        private long LastActivity;
+
+        /** True once BYE is queued; we close after writing it. */
+        private boolean Closing;
+
+        /** True once Queue has overflowed; we close the connection. */
+        private volatile boolean Overflow;
+
+        /** True once the channel is closed. */
+        private volatile boolean Closed;
+
+        /**
+         * @param id Connection number
+         * @param c The client's channel
+         */
+        private Session ( int id, SocketChannel c )
+        {
+            ID = id;
+            Channel = c;
+            In = ByteBuffer.allocate( 4096 );
+            Queue = new ConcurrentLinkedQueue<>();
+            Queued = new AtomicInteger( 0 );
+            Subs = ConcurrentHashMap.newKeySet();
+            Scheduled = new AtomicBoolean( false );
+            ErrorCount = 0;
+            LastActivity = System.currentTimeMillis();
+            Closing = false;
+            Overflow = false;
+            Closed = false;
+        }
+    }
+
+    /** Line ending written after every message. */
+    private static final String LineSeparator = System.lineSeparator();
+
+    /** Longest line taken from a client, in bytes. */
+    private static final int MaxLineBytes = 65536;
+
+    /** Most buffers handed to one gathering write. */
+    private static final int MaxGather = 64;
+
     /** Thread object for this class. */
     private Thread T;
 
@@ -49,20 +141,37 @@ public class PriceSocket implements Runnable {
     /** Port number to listen. */
     private int PortNumber;
 
-    /** Reference to MatchingEngine object. */
-    private MatchingEngine ME;
-
-    /** Buffered output to be written to the connection. */
-    private String OutputBuffer;
-
-    /** Number of erroneous messages.  Three in a row results in a
-     *  disconnect. */
-    private int ErrorCount;
+    /** Reference to the Engine. */
+    private Engine ME;
 
     /** Milliseconds between PING messages.  These messages can be
      *  ignored on the client side. */
     private int PingMS;
 
+    /** Most messages queued to one connection before it is dropped. */
+    private int MaxQueue;
+
+    /** Selector serving every connection, null until the Thread runs. */
+    private volatile Selector Sel;
+
+    /** Open connections.  Key is the connection number. */
+    private final ConcurrentHashMap<Integer, Session> Sessions;
+
+    /** Subscribed connections.  Key is Symbol. */
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<Session>> Subscribers;
+
+    /** Connections with new messages for the PriceSocket Thread. */
+    private final ConcurrentLinkedQueue<Session> Pending;
+
+    /** True while a Selector wakeup is outstanding. */
+    private final AtomicBoolean WakeupPending;
+
+    /** The last connection number handed out. */
+    private int LastSessionID;
+
+    /** Scratch array for gathering writes. */
+    private final ByteBuffer[] Gather;
+
     /**
      * The constructor stores information for when the Thread is started,
      * but does not start it on its own.
@@ -71,42 +180,197 @@ public class PriceSocket implements Runnable {
      * @param me A reference to the MatchingEngine this socket is
      * supposed to connect
      */
-    public PriceSocket ( String Name, MatchingEngine me )
+    public PriceSocket ( String Name, Engine me )
     {
         ThreadName = Name;
         PortNumber = Configuration.getInstance().getInt("PRICEPORT");
         PingMS = Configuration.getInstance().getInt("PINGMS");
+        MaxQueue = Configuration.getInstance().getInt("MDQUEUESIZE");
         ME = me;
         T = null;
-        ErrorCount = 0;
-        OutputBuffer = "";
+        Sessions = new ConcurrentHashMap<>();
+        Subscribers = new ConcurrentHashMap<>();
+        Pending = new ConcurrentLinkedQueue<>();
+        WakeupPending = new AtomicBoolean( false );
+        LastSessionID = 0;
+        Gather = new ByteBuffer[MaxGather];
+    }
+
+    /**
+     * @return Messages queued to every connection and not yet written
+     */
+    public long getOutboundMessages ()
+    {
+        long Total = 0;
+
+        for ( Session c : Sessions.values() )
+            Total += c.Queued.get();
+
+        return Total;
     }
 
     /**
-     * Interface for the MatchingEngine to queue a reply on the
-     * connection.
+     * Interface for the MatchingEngine to check whether anyone wants
+     * market data for a Symbol.
+     *
+     * @param Symbol The Symbol
+     * @return True if at least one connection is subscribed
+     */
+    public boolean HasSubscribers ( String Symbol )
+    {
+        CopyOnWriteArrayList<Session> Subs = Subscribers.get( Symbol );
+
+        return Subs != null && !Subs.isEmpty();
+    }
+
+    /**
+     * Interface for the MatchingEngine to subscribe a connection to a
+     * Symbol.  Called from the Thread that owns the Symbol, so the
+     * connection's snapshot and later updates arrive in order.
+     *
+     * @param Symbol The Symbol
+     * @param Connection The connection
+     * @return False if the connection was already subscribed
+     */
+    public boolean Subscribe ( String Symbol, int Connection )
+    {
+        Session c = Sessions.get( Connection );
+
+        if ( c == null )
+            return true;
+
+        if ( !c.Subs.add( Symbol ) )
+            return false;
+
+        CopyOnWriteArrayList<Session> Subs =
+            Subscribers.computeIfAbsent( Symbol, k -> new CopyOnWriteArrayList<>() );
+
+        Subs.addIfAbsent( c );
+
+        // closed while we were adding it
+        if ( c.Closed )
+            Subs.remove( c );
+
+        return true;
+    }
+
+    /**
+     * Interface for the MatchingEngine to unsubscribe a connection from
+     * a Symbol.
+     *
+     * @param Symbol The Symbol
+     * @param Connection The connection
+     * @return False if the connection was not subscribed
+     */
+    public boolean Unsubscribe ( String Symbol, int Connection )
+    {
+        Session c = Sessions.get( Connection );
+
+        if ( c == null )
+            return true;
+
+        if ( !c.Subs.remove( Symbol ) )
+            return false;
+
+        CopyOnWriteArrayList<Session> Subs = Subscribers.get( Symbol );
+
+        if ( Subs != null )
+            Subs.remove( c );
+
+        return true;
+    }
+
+    /**
+     * Interface for the MatchingEngine to send a message to every
+     * connection subscribed to a Symbol.  The message is encoded once.
+     *
+     * @param Symbol The Symbol
+     * @param s The message to be sent out
+     */
+    public void Publish ( String Symbol, String s )
+    {
+        CopyOnWriteArrayList<Session> Subs = Subscribers.get( Symbol );
+
+        if ( Subs == null || Subs.isEmpty() )
+            return;
+
+        ByteBuffer Encoded = Encode( s ).asReadOnlyBuffer();
+
+        for ( Session c : Subs )
+        {
+            if ( c.Closed )
+                Subs.remove( c );
+            else
+                Enqueue( c, Encoded.duplicate() );
+        }
+    }
+
+    /**
+     * Interface for the MatchingEngine to send a message to a single
+     * connection, such as a reject or a new subscriber's snapshot.
      *
      * @param s The message to be sent out
+     * @param Connection The connection
      */
-    public void WriteReply ( String s )
+    public void WriteReply ( String s, int Connection )
     {
-        if ( OutputBuffer.length() > 0 )
-            OutputBuffer += "\n" + s;
+        Session c = Sessions.get( Connection );
+
+        if ( c != null )
+            Enqueue( c, Encode( s ) );
+    }
+
+    /**
+     * @param s A message
+     * @return The message and a line ending, encoded for the wire
+     */
+    private static ByteBuffer Encode ( String s )
+    {
+        return ByteBuffer.wrap( ( s + LineSeparator ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Queues a message to a connection and hands the connection to the
+     * PriceSocket Thread.  Marks the connection for closing if its queue
+     * is full.
+     *
+     * @param c The connection
+     * @param b The encoded message
+     */
+    private void Enqueue ( Session c, ByteBuffer b )
+    {
+        if ( c.Closed || c.Overflow )
+            return;
+
+        if ( c.Queued.incrementAndGet() > MaxQueue )
+        {
+            c.Queued.decrementAndGet();
+            c.Overflow = true;
+        }
         else
-            OutputBuffer = s;
+            c.Queue.add( b );
+
+        if ( c.Scheduled.compareAndSet( false, true ) )
+        {
+            Pending.add( c );
+
+            if ( Sel != null && WakeupPending.compareAndSet( false, true ) )
+                Sel.wakeup();
+        }
     }
 
     /**
      * Parses the input received on the connection.  Will disconnect
      * when receiving a "BYE", otherwise will attempt to parse the
-     * message as a subscribe/unsubscribe request.  If all fails, returns
+     * message as a subscribe/unsubscribe/snapshot request.  If all fails, returns
      * an error message and increments the ErrorCount.  Disconnects
      * if there are three consecutive errors.
      *
      * @param InputLine The message received on the connection
+     * @param c The connection it was received on
      * @return An error message, or blank string if there was no error
      */
-    private String ProcessInput ( String InputLine )
+    private String ProcessInput ( String InputLine, Session c )
     {
         if ( InputLine.equals("END") )
             return "BYE";
@@ -117,102 +381,332 @@ public class PriceSocket implements Runnable {
         String[] token = InputLine.split(",");
         String cmd = token[0];
 
-        if ( cmd.matches("(SUB|UNSUB)") ) {
+        if ( cmd.matches("(SUB|UNSUB|SNAP)") ) {
 
             // valid command, reset disconnect counter
-            ErrorCount = 0;
+            c.ErrorCount = 0;
 
             for ( int x=1; x<token.length; x++)
             {
                 if ( cmd.equals("SUB") )
-                    ME.MarketDataSubscribe( token[x] );
+                    ME.MarketDataSubscribe( token[x], c.ID );
+                else if ( cmd.equals("SNAP") )
+                    ME.MarketDataRefresh( token[x], c.ID );
                 else
-                    ME.MarketDataUnsubscribe( token[x] );
+                    ME.MarketDataUnsubscribe( token[x], c.ID );
             }
 
             return "";
         }
 
-        ErrorCount++;
-        if ( ErrorCount >= 3 )
+        c.ErrorCount++;
+        if ( c.ErrorCount >= 3 )
             return "BYE";
         else
             return "UNKNOWN COMMAND";
     }
 
     /**
-     * Notifies the MatchingEngine that this socket exists.  Opens the
-     * PortNumber and listens for connections.  Establishes connections
-     * and reads/writes data.  This function never exits, which requires
-     * killing Microssa to stop.
+     * Accepts a new connection and greets it.
+     *
+     * @param Server The listening channel
+     * @throws IOException If the connection cannot be set up
      */
-    public void run ()
+    private void Accept ( ServerSocketChannel Server ) throws IOException
     {
-        ME.SetPriceSocket(this);
+        SocketChannel Channel = Server.accept();
+
+        if ( Channel == null )
+            return;
+
+        Channel.configureBlocking( false );
+        Channel.socket().setTcpNoDelay( true );
+
+        // zero means no connection, so skip it if we ever wrap around
+        if ( ++LastSessionID == 0 )
+            ++LastSessionID;
+
+        Session c = new Session( LastSessionID, Channel );
+        c.Key = Channel.register( Sel, SelectionKey.OP_READ, c );
+        Sessions.put( c.ID, c );
+
+        Enqueue( c, Encode( "CONNECTED" ) );
+        Flush( c );
+    }
+
+    /**
+     * Reads from a connection and processes every complete line.
+     *
+     * @param c The connection
+     */
+    private void Read ( Session c )
+    {
+        int Count;
+
+        try
+        {
+            Count = c.Channel.read( c.In );
+        }
+        catch ( IOException e )
+        {
+            Close( c );
+            return;
+        }
+
+        if ( Count < 0 )
+        {
+            Close( c );
+            return;
+        }
+
+        c.In.flip();
 
-        while ( true )
+        int Start = c.In.position();
+
+        for ( int i = Start; i < c.In.limit() && !c.Closing; i++ )
+        {
+            if ( c.In.get( i ) != '\n' )
+                continue;
+
+            int End = i;
+            if ( End > Start && c.In.get( End - 1 ) == '\r' )
+                End--;
+
+            byte[] Line = new byte[ End - Start ];
+            for ( int j = 0; j < Line.length; j++ )
+                Line[j] = c.In.get( Start + j );
+
+            Start = i + 1;
+            c.LastActivity = System.currentTimeMillis();
+
+            String OutputLine = ProcessInput( new String( Line, StandardCharsets.UTF_8 ), c );
+
+            if ( !OutputLine.equals("") )
+                Enqueue( c, Encode( OutputLine ) );
+
+            if ( OutputLine.equals("BYE") )
+                c.Closing = true;
+        }
+
+        c.In.position( Start );
+        c.In.compact();
+
+        // nothing more is read from a connection on its way out
+        if ( c.Closing )
+            c.In.clear();
+
+        // a line longer than the buffer, make room for the rest of it,
+        // up to MaxLineBytes
+        if ( !c.In.hasRemaining() && c.In.capacity() >= MaxLineBytes )
+        {
+            c.In.clear();
+            Enqueue( c, Encode( "LINE TOO LONG" ) );
+            Enqueue( c, Encode( "BYE" ) );
+            c.Closing = true;
+        }
+        else if ( !c.In.hasRemaining() )
         {
-            try (
-                ServerSocket serverSocket = new ServerSocket(PortNumber);
-                Socket clientSocket = serverSocket.accept();
-                PrintWriter out =
-                    new PrintWriter(clientSocket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()));
-            ) {
+            ByteBuffer Bigger = ByteBuffer.allocate( c.In.capacity() * 2 );
+            c.In.flip();
+            Bigger.put( c.In );
+            c.In = Bigger;
+        }
 
-                String InputLine, OutputLine;
+        Flush( c );
+    }
 
-                int PingCheck = 0;
-                boolean AbortSession = false;
+    /**
+     * Writes queued messages until done or the channel is full.  Asks
+     * the Selector to tell us when the rest can be written.  Closes a
+     * connection whose queue has overflowed.
+     *
+     * @param c The connection
+     */
+    private void Flush ( Session c )
+    {
+        if ( c.Closed )
+            return;
 
-                out.println("CONNECTED");
+        if ( c.Overflow )
+        {
+            try
+            {
+                Logger.getInstance().write( ThreadName + " dropped connection " + c.ID +
+                                            ", more than " + MaxQueue + " messages behind" );
+            }
+            catch ( IOException e )
+            {
+                // nothing more we can do
+            }
 
-                // messages from a previous, disconnected session?
-                if ( !OutputBuffer.equals("") )
+            Close( c );
+            return;
+        }
+
+        try
+        {
+            while ( !c.Queue.isEmpty() )
+            {
+                int n = 0;
+
+                for ( ByteBuffer b : c.Queue )
                 {
-                    out.println(OutputBuffer);
-                    OutputBuffer = "";
+                    Gather[n++] = b;
+
+                    if ( n == MaxGather )
+                        break;
                 }
 
-                while ((InputLine = in.readLine()) != null && !AbortSession)
+                c.Channel.write( Gather, 0, n );
+
+                int Done = 0;
+                while ( Done < n && !Gather[Done].hasRemaining() )
                 {
-                    OutputLine = ProcessInput(InputLine);
-                    if ( !OutputLine.equals("") )
-                        out.println(OutputLine);
-                    if ( OutputLine.equals("BYE") )
-                        break;
+                    c.Queue.poll();
+                    Done++;
+                }
 
-                    while(!in.ready() && !AbortSession)
-                    {
-                        OutputLine = OutputBuffer;
-                        if ( OutputLine.length() > 0 )
-                        {
-                            out.println(OutputLine);
-                            OutputBuffer = "";
-                        }
-
-                        Thread.sleep(50);
-                        PingCheck += 50;
-
-                        if (PingCheck >= PingMS) {
-                            out.println("PING");
-                            PingCheck = 0;
-                            AbortSession = out.checkError();
-                        }
+                c.Queued.addAndGet( -Done );
+                Arrays.fill( Gather, 0, n, null );
 
+                if ( Done < n )
+                {
+                    c.Key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+                    return;
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            Close( c );
+            return;
+        }
+
+        if ( c.Closing )
+            Close( c );
+        else
+            c.Key.interestOps( SelectionKey.OP_READ );
+    }
+
+    /**
+     * Closes a connection and drops its subscriptions.
+     *
+     * @param c The connection
+     */
+    private void Close ( Session c )
+    {
+        if ( c.Closed )
+            return;
+
+        c.Closed = true;
+        Sessions.remove( c.ID );
+        c.Key.cancel();
+
+        for ( String Symbol : c.Subs )
+        {
+            CopyOnWriteArrayList<Session> Subs = Subscribers.get( Symbol );
+
+            if ( Subs != null )
+                Subs.remove( c );
+        }
+
+        try
+        {
+            c.Channel.close();
+        }
+        catch ( IOException e )
+        {
+            // already gone
+        }
+
+        c.Queue.clear();
+    }
+
+    /**
+     * Sends a PING to every connection that has been quiet for PingMS.
+     */
+    private void Ping ()
+    {
+        long Now = System.currentTimeMillis();
+
+        for ( Session c : Sessions.values() )
+        {
+            if ( Now - c.LastActivity >= PingMS )
+            {
+                c.LastActivity = Now;
+                Enqueue( c, Encode( "PING" ) );
+            }
+        }
+    }
+
+    /**
+     * Notifies the MatchingEngine that this socket exists.  Opens the
+     * PortNumber and serves every connection from one Selector: accepts
+     * clients, reads requests, and writes market data as the
+     * MatchingEngine hands it over.  This function never exits, which
+     * requires killing Microssa to stop.
+     */
+    public void run ()
+    {
+        ME.SetPriceSocket(this);
+
+        try (
+            Selector selector = Selector.open();
+            ServerSocketChannel Server = ServerSocketChannel.open();
+        ) {
+            Sel = selector;
+
+            Server.bind( new InetSocketAddress( PortNumber ) );
+            Server.configureBlocking( false );
+            Server.register( Sel, SelectionKey.OP_ACCEPT );
+
+            long Timeout = Math.max( PingMS / 4, 1 );
+
+            while ( true )
+            {
+                Sel.select( Timeout );
+
+                for ( Iterator<SelectionKey> it = Sel.selectedKeys().iterator(); it.hasNext(); )
+                {
+                    SelectionKey k = it.next();
+                    it.remove();
+
+                    if ( !k.isValid() )
+                        continue;
+
+                    if ( k.isAcceptable() )
+                    {
+                        Accept( Server );
+                        continue;
                     }
 
-                    PingCheck = 0;
+                    Session c = (Session) k.attachment();
+
+                    if ( k.isReadable() )
+                        Read( c );
+
+                    if ( k.isValid() && k.isWritable() )
+                        Flush( c );
                 }
 
-            } catch (Exception e)
-            {
-                System.err.println("Exception caught when trying to listen on port "
-                    + PortNumber + " or listening for a connection");
-                System.err.println(e.getMessage());
-                e.printStackTrace();
+                // must clear before draining so a new message always wakes us
+                WakeupPending.set( false );
+
+                Session c;
+                while ( ( c = Pending.poll() ) != null )
+                {
+                    c.Scheduled.set( false );
+                    Flush( c );
+                }
+
+                Ping();
             }
+
+        } catch (Exception e)
+        {
+            System.err.println("Exception caught when trying to listen on port "
+                + PortNumber + " or listening for a connection");
+            System.err.println(e.getMessage());
         }
     }
 
@@ -240,4 +734,3 @@ public class PriceSocket implements Runnable {
         }
     }
 }
-
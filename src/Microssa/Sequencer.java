@@ -0,0 +1,246 @@
+/*
+ * Sequencer.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import Microssa.EngineCommand;
+
+/**
+ * A ring buffer of pre-allocated EngineCommands which gives every
+ * inbound request a sequence number.  Any number of interface threads
+ * may publish and any number of consumers may read every command, all
+ * without locks.
+ *
+ * To publish, a thread claims the next sequence number, fills in the
+ * EngineCommand at that position and then publishes it:
+ *
+ *      long s = Ring.Claim();
+ *      Ring.Get( s ).SetOrder( ... );
+ *      Ring.Publish( s );
+ *
+ * Consumers call WaitFor to get every command published so far, apply
+ * them, and then Release the whole batch at once.  A slot is reused
+ * only after every consumer has released it, so a publisher waits when
+ * the ring is full.
+ *
+ * @see ShardedMatchingEngine
+ * @see MatchingEngineShard
+ */
+public class Sequencer {
+
+    /** Number of empty polls a consumer spins before yielding. */
+    private static final int SpinTries = 100;
+
+    /** Number of empty polls a consumer yields before sleeping. */
+    private static final int YieldTries = 100;
+
+    /** Nanoseconds an idle consumer sleeps between polls. */
+    private static final long IdleSleepNS = 50000;
+
+    /** The pre-allocated commands. */
+    private final EngineCommand[] Ring;
+
+    /** Ring size minus one.  The size is a power of two. */
+    private final int Mask;
+
+    /** Sequence number published in each slot, -1 if none yet. */
+    private final AtomicLongArray Published;
+
+    /** The next sequence number to hand out. */
+    private final AtomicLong NextSequence;
+
+    /** Last sequence number released by each consumer. */
+    private AtomicLong[] Released;
+
+    /**
+     * Allocates the ring and all of its EngineCommands.
+     *
+     * @param Size Minimum number of slots, rounded up to a power of two
+     */
+    public Sequencer ( int Size )
+    {
+        int Slots = 1;
+
+        while ( Slots < Size )
+            Slots <<= 1;
+
+        Ring = new EngineCommand[Slots];
+        Mask = Slots - 1;
+        Published = new AtomicLongArray( Slots );
+
+        for ( int i = 0; i < Slots; i++ )
+        {
+            Ring[i] = new EngineCommand();
+            Published.set( i, -1 );
+        }
+
+        NextSequence = new AtomicLong( 0 );
+        Released = new AtomicLong[0];
+    }
+
+    /**
+     * Registers a consumer.  Must be called before anything is
+     * published.
+     *
+     * @return The consumer's number, for Release
+     */
+    public int AddConsumer ()
+    {
+        AtomicLong[] r = new AtomicLong[ Released.length + 1 ];
+
+        System.arraycopy( Released, 0, r, 0, Released.length );
+        r[ Released.length ] = new AtomicLong( -1 );
+        Released = r;
+
+        return Released.length - 1;
+    }
+
+    /**
+     * Claims the next sequence number, waiting while the ring is full.
+     *
+     * @return The claimed sequence number
+     */
+    public long Claim ()
+    {
+        long Sequence = NextSequence.getAndIncrement();
+        long WrapPoint = Sequence - Ring.length;
+
+        while ( WrapPoint > SlowestConsumer() )
+            Thread.yield();
+
+        Ring[ (int) Sequence & Mask ].Sequence = Sequence;
+
+        return Sequence;
+    }
+
+    /**
+     * @param Sequence A claimed or published sequence number
+     * @return The EngineCommand in that slot
+     */
+    public EngineCommand Get ( long Sequence )
+    {
+        return Ring[ (int) Sequence & Mask ];
+    }
+
+    /**
+     * Makes a claimed command visible to the consumers.
+     *
+     * @param Sequence The claimed sequence number
+     */
+    public void Publish ( long Sequence )
+    {
+        Published.lazySet( (int) Sequence & Mask, Sequence );
+    }
+
+    /**
+     * Waits until at least one command from Next onwards is published.
+     *
+     * @param Next The first sequence number the consumer has not seen
+     * @return The last sequence number of the published batch starting
+     * at Next, or Next minus one if the Thread was interrupted
+     */
+    public long WaitFor ( long Next )
+    {
+        int Tries = 0;
+
+        while ( Published.get( (int) Next & Mask ) != Next )
+        {
+            if ( Thread.currentThread().isInterrupted() )
+                return Next - 1;
+
+            Tries = Idle( Tries );
+        }
+
+        long Last = Next;
+
+        while ( Last - Next < Mask && Published.get( (int) ( Last + 1 ) & Mask ) == Last + 1 )
+            Last++;
+
+        return Last;
+    }
+
+    /**
+     * Spins, then yields, then sleeps, the longer a consumer has been
+     * waiting.
+     *
+     * @param Tries Empty polls so far
+     * @return Empty polls including this one
+     */
+    private static int Idle ( int Tries )
+    {
+        if ( Tries < SpinTries )
+            return Tries + 1;
+
+        if ( Tries < SpinTries + YieldTries )
+        {
+            Thread.yield();
+            return Tries + 1;
+        }
+
+        LockSupport.parkNanos( IdleSleepNS );
+
+        return Tries;
+    }
+
+    /**
+     * Frees every slot up to and including Sequence for reuse.
+     *
+     * @param Consumer The consumer's number from AddConsumer
+     * @param Sequence The last sequence number it has applied
+     */
+    public void Release ( int Consumer, long Sequence )
+    {
+        Released[ Consumer ].lazySet( Sequence );
+    }
+
+    /**
+     * @return The last sequence number claimed, -1 if none
+     */
+    public long getClaimed ()
+    {
+        return NextSequence.get() - 1;
+    }
+
+    /**
+     * @param Consumer A consumer's number from AddConsumer
+     * @return The last sequence number it has released, -1 if none
+     */
+    public long getReleased ( int Consumer )
+    {
+        return Released[ Consumer ].get();
+    }
+
+    /**
+     * @return The lowest sequence number released by all consumers
+     */
+    long SlowestConsumer ()
+    {
+        long Min = Long.MAX_VALUE;
+
+        for ( int i = 0; i < Released.length; i++ )
+            Min = Math.min( Min, Released[i].get() );
+
+        return Min;
+    }
+}
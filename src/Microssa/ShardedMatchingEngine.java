@@ -0,0 +1,603 @@
+/*
+ * ShardedMatchingEngine.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import quickfix.SessionID;
+
+import Microssa.Checkpoint;
+import Microssa.Configuration;
+import Microssa.Engine;
+import Microssa.EngineCommand;
+import Microssa.Journal;
+import Microssa.Logger;
+import Microssa.MatchingEngine;
+import Microssa.MatchingEngineShard;
+import Microssa.Metrics;
+import Microssa.Order;
+import Microssa.Sequencer;
+import Microssa.Statistics;
+
+/**
+ * An Engine that spreads Symbols over several single-threaded
+ * MatchingEngineShards, one Thread each.  Orders for different Symbols
+ * never match, so each Symbol is always sent to the same shard and
+ * shards never need to talk to each other.
+ *
+ * The interfaces use this class exactly like a MatchingEngine, through
+ * Engine; it holds no books of its own.  Every order and market data
+ * request is published to the Sequencer of the shard owning its Symbol,
+ * and returns at once with a blank reject text; replies and rejects
+ * arrive through the interfaces as before.  Each shard reads only its
+ * own Sequencer and applies the requests in sequence order.
+ *
+ * The number of shards is read from SHARDS and the size of each
+ * Sequencer from SEQUENCERSIZE.
+ *
+ * With JOURNAL = YES every request is instead published to one more
+ * Sequencer, which puts all of them in a single order.  The Journal
+ * writes each order request, then hands every request on to the
+ * Sequencer of its shard, so the shards apply them in journal order.
+ * Once the Journal halts after a failed write, every new, amend and
+ * cancel request is refused with an IOException.  start replays the
+ * Journal into the shards before anything else is accepted.  With CHECKPOINTSECONDS
+ * as well, start first restores the newest Checkpoint and replays only
+ * the Journal records after it.
+ *
+ * With METRICS = YES the shards' measurements are collected and
+ * written every METRICSSECONDS.
+ *
+ * @see Engine
+ * @see MatchingEngineShard
+ * @see Sequencer
+ * @see Journal
+ * @see Checkpoint
+ * @see Metrics
+ */
+public class ShardedMatchingEngine implements Engine {
+
+    /** Longest a lookup waits for its shard, in milliseconds. */
+    private static final long FindTimeoutMS = 5000;
+
+    /** The shards.  A Symbol always goes to the same one. */
+    private MatchingEngineShard[] Shards;
+
+    /** One Sequencer for each shard, read by that shard alone. */
+    private Sequencer[] Rings;
+
+    /** Orders every request for the Journal, or null without JOURNAL. */
+    private Sequencer Ring;
+
+    /** Where a request for every shard is published: Ring, or else Rings. */
+    private Sequencer[] Broadcast;
+
+    /** Records every order request, or null without JOURNAL. */
+    private Journal Log;
+
+    /** Copies the books periodically, or null without CHECKPOINTSECONDS. */
+    private Checkpoint Snapshots;
+
+    /** Writes the shards' measurements, or null without METRICS. */
+    private Metrics Reporter;
+
+    /** The FIXInterface, or null. */
+    private FIXInterface FI;
+
+    /** No FIX ExecID below this was sent before the last restart. */
+    private int NextExecID;
+
+    /**
+     * Creates the shards, but does not start their Threads.
+     *
+     * @param Count Number of shards, at least one
+     * @throws IOException Passthrough from MatchingEngineShard and Logger
+     */
+    public ShardedMatchingEngine ( int Count ) throws IOException
+    {
+        int Size = Configuration.getInstance().getInt("SEQUENCERSIZE");
+
+        Shards = new MatchingEngineShard[ Math.max( Count, 1 ) ];
+        Rings = new Sequencer[ Shards.length ];
+        Ring = null;
+        Log = null;
+        Snapshots = null;
+        Reporter = null;
+        FI = null;
+        NextExecID = 1;
+
+        for ( int i = 0; i < Shards.length; i++ )
+        {
+            Rings[i] = new Sequencer( Size );
+            Shards[i] = new MatchingEngineShard( "ME-SHARD-" + i, Rings[i] );
+        }
+
+        Broadcast = Rings;
+
+        if ( Configuration.getInstance().getString("JOURNAL").toUpperCase().equals("YES") )
+        {
+            Ring = new Sequencer( Size );
+            Broadcast = new Sequencer[] { Ring };
+            Log = new Journal( "JOURNAL", Ring, Rings );
+
+            if ( Configuration.getInstance().getInt("CHECKPOINTSECONDS") > 0 )
+                Snapshots = new Checkpoint( "CHECKPOINT", this, Shards.length );
+        }
+
+        if ( Metrics.Enabled )
+            Reporter = new Metrics( "METRICS", this, Shards.length );
+    }
+
+    /**
+     * Restores the newest Checkpoint and replays the Journal after it,
+     * if any, then starts the Journal, the Checkpoint, every shard
+     * Thread and the Metrics.
+     *
+     * @throws IOException Passthrough from Journal, Checkpoint, Metrics
+     * and Logger
+     */
+    public void start () throws IOException
+    {
+        if ( Log != null )
+        {
+            long Start = System.currentTimeMillis();
+            long From = 0;
+            long Records;
+            long Matches = 0;
+
+            for ( int i = 0; i < Shards.length; i++ )
+                Shards[i].getEngine().SetReplaying( true );
+
+            try
+            {
+                Journal.Handler Replay = c -> c.Apply( Shards[ ShardOf( c.Symbol ) ].getEngine() );
+
+                boolean Restoring = ( Snapshots != null && Snapshots.Open() );
+
+                if ( Restoring && !Log.Contains( Snapshots.getJournalCount(), Snapshots.getJournalOffset() ) )
+                {
+                    Logger.getInstance().write( "Ignoring checkpoint at journal record " +
+                                                Snapshots.getJournalCount() + ", not in the journal" );
+                    Restoring = false;
+                }
+
+                if ( Restoring )
+                {
+                    long Orders = Snapshots.Restore( o ->
+                        Shards[ ShardOf( o.getSymbol() ) ].getEngine().Restore( o ) );
+
+                    From = Snapshots.getJournalCount();
+                    NextExecID = Snapshots.getExecID();
+
+                    Logger.getInstance().write( "Restored " + Orders + " orders from checkpoint at journal record " +
+                                                From + " in " + ( System.currentTimeMillis() - Start ) + "ms" );
+
+                    Records = Log.Replay( Replay, From, Snapshots.getJournalOffset() );
+                }
+                else
+                {
+                    Records = Log.Replay( Replay );
+                }
+            }
+            catch ( IOException e )
+            {
+                throw e;
+            }
+
+            for ( int i = 0; i < Shards.length; i++ )
+            {
+                Shards[i].getEngine().SetReplaying( false );
+                Matches += Shards[i].getEngine().getMatches();
+            }
+
+            // each request sends at most two execution reports, each match two more
+            NextExecID += (int) ( 2 * ( Records - From ) + 2 * Matches );
+
+            Logger.getInstance().write( "Replayed " + ( Records - From ) + " journal records in " +
+                                        ( System.currentTimeMillis() - Start ) + "ms" );
+
+            Log.start();
+
+            if ( Snapshots != null )
+                Snapshots.start();
+        }
+
+        for ( int i = 0; i < Shards.length; i++ )
+            Shards[i].start();
+
+        if ( Reporter != null )
+            Reporter.start();
+    }
+
+    /**
+     * Publishes a checkpoint request for every shard.
+     *
+     * @param cp The Checkpoint each shard copies its books into
+     */
+    void PublishCheckpoint ( Checkpoint cp )
+    {
+        for ( int i = 0; i < Broadcast.length; i++ )
+        {
+            long Sequence = Broadcast[i].Claim();
+            EngineCommand c = Broadcast[i].Get( Sequence );
+
+            c.SetCheckpoint( cp );
+            c.Shard = EngineCommand.ALL;
+
+            Broadcast[i].Publish( Sequence );
+        }
+    }
+
+    /**
+     * Publishes a metrics request for every shard.
+     *
+     * @param m The Metrics each shard hands its measurements to
+     */
+    void PublishMetrics ( Metrics m )
+    {
+        for ( int i = 0; i < Broadcast.length; i++ )
+        {
+            long Sequence = Broadcast[i].Claim();
+            EngineCommand c = Broadcast[i].Get( Sequence );
+
+            c.SetMetrics( m );
+            c.Shard = EngineCommand.ALL;
+
+            Broadcast[i].Publish( Sequence );
+        }
+    }
+
+    /**
+     * Publishes a statistics request for every shard.
+     *
+     * @param s The Snapshot each shard copies its book counts into
+     */
+    void PublishStatistics ( Statistics.Snapshot s )
+    {
+        for ( int i = 0; i < Broadcast.length; i++ )
+        {
+            long Sequence = Broadcast[i].Claim();
+            EngineCommand c = Broadcast[i].Get( Sequence );
+
+            c.SetStatistics( s );
+            c.Shard = EngineCommand.ALL;
+
+            Broadcast[i].Publish( Sequence );
+        }
+    }
+
+    /**
+     * @return Number of shards
+     */
+    public int getShards ()
+    {
+        return Shards.length;
+    }
+
+    /**
+     * @return Requests published but not yet applied by their shard,
+     * including those the Journal has yet to hand on
+     */
+    public long getSequencerDepth ()
+    {
+        long Depth = ( Ring == null ) ? 0 : Ring.getClaimed() - Ring.SlowestConsumer();
+
+        for ( int i = 0; i < Rings.length; i++ )
+            Depth += Rings[i].getClaimed() - Rings[i].SlowestConsumer();
+
+        return Depth;
+    }
+
+    /**
+     * @return Requests published but not yet written by the Journal,
+     * zero without JOURNAL
+     */
+    public long getJournalDepth ()
+    {
+        return ( Log == null ) ? 0 : Ring.getClaimed() - Ring.getReleased( Log.getConsumer() );
+    }
+
+    /**
+     * @return The FIX ExecID the next execution report will use
+     */
+    int getExecID ()
+    {
+        return ( FI == null ) ? NextExecID : Math.max( FI.getExecID(), NextExecID );
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @return The number of the shard owning Symbol
+     */
+    private int ShardOf ( String Symbol )
+    {
+        return ( Symbol.hashCode() & 0x7fffffff ) % Shards.length;
+    }
+
+    /**
+     * @param Shard The number of a shard
+     * @return The Sequencer a request for Shard is published to
+     */
+    private Sequencer RingOf ( int Shard )
+    {
+        return ( Ring == null ) ? Rings[ Shard ] : Ring;
+    }
+
+    /**
+     * Publishes a new, amend or cancel request.
+     *
+     * @param Type EngineCommand type
+     * @param o The Order
+     * @param OrigOrderID The OrderID being amended, or blank
+     * @param session FIX session, or null
+     * @throws IOException If the Journal has halted
+     */
+    private void PublishOrder ( char Type, Order o, String OrigOrderID, SessionID session )
+                                throws IOException
+    {
+        if ( Log != null && Log.IsHalted() )
+            throw new IOException( "The journal has halted after a failed write, no request is accepted" );
+
+        int Shard = ShardOf( o.getSymbol() );
+        Sequencer r = RingOf( Shard );
+        long Sequence = r.Claim();
+        EngineCommand c = r.Get( Sequence );
+
+        c.SetOrder( Type, o, OrigOrderID, session );
+        c.Shard = Shard;
+
+        r.Publish( Sequence );
+    }
+
+    /**
+     * Publishes a market data request or lookup.
+     *
+     * @param Type EngineCommand type
+     * @param Symbol The Symbol
+     * @param OrderID OrderID of a lookup, otherwise null
+     * @param Connection PriceSocket connection, otherwise zero
+     * @param Result Future for the lookup result, otherwise null
+     */
+    private void PublishSymbol ( char Type, String Symbol, String OrderID, int Connection,
+                                 CompletableFuture<Order> Result )
+    {
+        int Shard = ShardOf( Symbol );
+        Sequencer r = RingOf( Shard );
+        long Sequence = r.Claim();
+        EngineCommand c = r.Get( Sequence );
+
+        c.SetSymbol( Type, Symbol, OrderID, Connection, Result );
+        c.Shard = Shard;
+
+        r.Publish( Sequence );
+    }
+
+    /**
+     * Publishes a new Order, not from a FIX session, for its Symbol's
+     * shard.
+     *
+     * @param o The new Order
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String NewOrder ( Order o ) throws IOException
+    {
+        return NewOrder( o, null );
+    }
+
+    /**
+     * Publishes a new Order for its Symbol's shard.
+     *
+     * @param o The new Order
+     * @param session FIX session, or null
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String NewOrder ( Order o, SessionID session ) throws IOException
+    {
+        PublishOrder( EngineCommand.NEW, o, "", session );
+
+        return "";
+    }
+
+    /**
+     * Publishes a cancel, not from a FIX session, for its Symbol's shard.
+     *
+     * @param o The Order to cancel
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String CancelOrder ( Order o ) throws IOException
+    {
+        return CancelOrder( o, null );
+    }
+
+    /**
+     * Publishes a cancel for its Symbol's shard.
+     *
+     * @param o The Order to cancel
+     * @param session FIX session, or null
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String CancelOrder ( Order o, SessionID session ) throws IOException
+    {
+        PublishOrder( EngineCommand.CANCEL, o, "", session );
+
+        return "";
+    }
+
+    /**
+     * Publishes an amendment keeping the OrderID, not from a FIX
+     * session, for its Symbol's shard.
+     *
+     * @param o The amended Order
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String AmendOrder ( Order o ) throws IOException
+    {
+        return AmendOrder( o, "", null );
+    }
+
+    /**
+     * Publishes an amendment for its Symbol's shard.
+     *
+     * @param o The amended Order
+     * @param OrigOrderID The OrderID being amended, blank if unchanged
+     * @param session FIX session, or null
+     * @return Blank, rejects are reported by the shard
+     * @throws IOException If the Journal has halted
+     */
+    @Override
+    public String AmendOrder ( Order o, String OrigOrderID, SessionID session ) throws IOException
+    {
+        PublishOrder( EngineCommand.AMEND, o, OrigOrderID, session );
+
+        return "";
+    }
+
+    /**
+     * Publishes a market data subscription for its Symbol's shard.
+     *
+     * @param Symbol The name to subscribe
+     * @param Connection The PriceSocket connection
+     */
+    @Override
+    public void MarketDataSubscribe ( String Symbol, int Connection )
+    {
+        PublishSymbol( EngineCommand.SUBSCRIBE, Symbol, null, Connection, null );
+    }
+
+    /**
+     * Publishes a market data unsubscription for its Symbol's shard.
+     *
+     * @param Symbol The name to unsubscribe
+     * @param Connection The PriceSocket connection
+     */
+    @Override
+    public void MarketDataUnsubscribe ( String Symbol, int Connection )
+    {
+        PublishSymbol( EngineCommand.UNSUBSCRIBE, Symbol, null, Connection, null );
+    }
+
+    /**
+     * Publishes a market data book request for its Symbol's shard.
+     *
+     * @param Symbol The name to send
+     * @param Connection The PriceSocket connection
+     */
+    @Override
+    public void MarketDataRefresh ( String Symbol, int Connection )
+    {
+        PublishSymbol( EngineCommand.REFRESH, Symbol, null, Connection, null );
+    }
+
+    /**
+     * Looks up a resting Order.  Waits, at most FindTimeoutMS, for the
+     * owning shard to apply every request published before this one.
+     *
+     * @param OrderID The OrderID
+     * @param Symbol The Symbol
+     * @return The Order, or null if not found
+     * @throws IOException If the shard did not answer in time
+     */
+    @Override
+    public Order FindOrder ( String OrderID, String Symbol ) throws IOException
+    {
+        CompletableFuture<Order> Result = new CompletableFuture<>();
+
+        PublishSymbol( EngineCommand.FIND, Symbol, OrderID, 0, Result );
+
+        try
+        {
+            return Result.get( FindTimeoutMS, TimeUnit.MILLISECONDS );
+        }
+        catch ( TimeoutException e )
+        {
+            throw new IOException( "Lookup of OrderID " + OrderID + " timed out after " +
+                                   FindTimeoutMS + "ms" );
+        }
+        catch ( InterruptedException | ExecutionException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the OrderSocket reference of every shard.
+     *
+     * @param os OrderSocket
+     */
+    @Override
+    public void SetOrderSocket ( OrderSocket os )
+    {
+        for ( int i = 0; i < Shards.length; i++ )
+            Shards[i].getEngine().SetOrderSocket( os );
+    }
+
+    /**
+     * Sets the PriceSocket reference of every shard.
+     *
+     * @param ps PriceSocket
+     */
+    @Override
+    public void SetPriceSocket ( PriceSocket ps )
+    {
+        for ( int i = 0; i < Shards.length; i++ )
+            Shards[i].getEngine().SetPriceSocket( ps );
+    }
+
+    /**
+     * Sets the Database reference of every shard.
+     *
+     * @param db Database
+     */
+    @Override
+    public void SetDatabase ( Database db )
+    {
+        for ( int i = 0; i < Shards.length; i++ )
+            Shards[i].getEngine().SetDatabase( db );
+    }
+
+    /**
+     * Sets the FIXInterface reference of every shard.
+     *
+     * @param fi FIXInterface
+     */
+    @Override
+    public void SetFIXInterface ( FIXInterface fi )
+    {
+        FI = fi;
+        FI.ReserveExecID( NextExecID );
+
+        for ( int i = 0; i < Shards.length; i++ )
+            Shards[i].getEngine().SetFIXInterface( fi );
+    }
+}
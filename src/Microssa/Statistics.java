@@ -0,0 +1,585 @@
+/*
+ * Statistics.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import Microssa.Database;
+import Microssa.FIXInterface;
+import Microssa.Logger;
+import Microssa.OrderSocket;
+import Microssa.PriceSocket;
+import Microssa.ShardedMatchingEngine;
+import Microssa.StatisticsMXBean;
+import Microssa.TradeWriter;
+
+/**
+ * Answers questions about the running Microssa over JMX, so any local
+ * JMX client such as jconsole can read the books, the gateways and the
+ * queues between them.
+ *
+ * Nothing here locks the engine.  Gateway counters and queue depths
+ * are read from atomics the gateways keep anyway.  The books belong to
+ * the shard Threads, so a read of a book attribute publishes a
+ * statistics request to the Sequencer like any order request; each
+ * shard, on reaching it, copies the counts it keeps for every Symbol
+ * and carries on.  The copy is reused for a second, so a client
+ * reading several attributes sends one request.
+ *
+ * The gateway rates are worked out by a Thread of this class, which
+ * samples the counters every SampleMS; reading a rate only returns the
+ * last one, so any number of clients see the same rates.
+ *
+ * @see StatisticsMXBean
+ * @see ShardedMatchingEngine
+ */
+public class Statistics implements StatisticsMXBean, Runnable {
+
+    /**
+     * Both sides of one Symbol's book.  Quantities and prices are in
+     * the Symbol's units.
+     */
+    public static class Book {
+
+        /** The Symbol. */
+        private final String Symbol;
+
+        /** Orders on the bid. */
+        private final int BidOrders;
+
+        /** Price points on the bid. */
+        private final int BidLevels;
+
+        /** Available quantity on the bid. */
+        private final double BidQuantity;
+
+        /** Best bid price, zero if none. */
+        private final double BestBid;
+
+        /** Orders on the offer. */
+        private final int OfferOrders;
+
+        /** Price points on the offer. */
+        private final int OfferLevels;
+
+        /** Available quantity on the offer. */
+        private final double OfferQuantity;
+
+        /** Best offer price, zero if none. */
+        private final double BestOffer;
+
+        /** Book nodes of both sides reused from their pools. */
+        private final long PoolHits;
+
+        /** Book nodes of both sides allocated as their pool was empty. */
+        private final long PoolMisses;
+
+        /**
+         * Copies the counts of both sides.
+         *
+         * @param s The Symbol
+         * @param Bid The bid DepthBook, or null
+         * @param Offer The offer DepthBook, or null
+         */
+        Book ( String s, DepthBook Bid, DepthBook Offer )
+        {
+            FixedPoint Scale = FixedPoint.getScale( s );
+
+            Symbol = s;
+
+            BidOrders = ( Bid == null ) ? 0 : Bid.getOrders();
+            BidLevels = ( Bid == null ) ? 0 : Bid.getLevels();
+            BidQuantity = ( Bid == null ) ? 0D : Scale.FromLots( Bid.getLots() );
+            BestBid = ( Bid == null ) ? 0D : Scale.FromTicks( Bid.getBestPrice() );
+
+            OfferOrders = ( Offer == null ) ? 0 : Offer.getOrders();
+            OfferLevels = ( Offer == null ) ? 0 : Offer.getLevels();
+            OfferQuantity = ( Offer == null ) ? 0D : Scale.FromLots( Offer.getLots() );
+            BestOffer = ( Offer == null ) ? 0D : Scale.FromTicks( Offer.getBestPrice() );
+
+            PoolHits = ( ( Bid == null ) ? 0 : Bid.getPoolHits() ) +
+                       ( ( Offer == null ) ? 0 : Offer.getPoolHits() );
+            PoolMisses = ( ( Bid == null ) ? 0 : Bid.getPoolMisses() ) +
+                         ( ( Offer == null ) ? 0 : Offer.getPoolMisses() );
+        }
+
+        /**
+         * @return The Symbol
+         */
+        public String getSymbol ()
+        {
+            return Symbol;
+        }
+
+        /**
+         * @return Orders on the bid
+         */
+        public int getBidOrders ()
+        {
+            return BidOrders;
+        }
+
+        /**
+         * @return Price points on the bid
+         */
+        public int getBidLevels ()
+        {
+            return BidLevels;
+        }
+
+        /**
+         * @return Available quantity on the bid
+         */
+        public double getBidQuantity ()
+        {
+            return BidQuantity;
+        }
+
+        /**
+         * @return Best bid price, zero if none
+         */
+        public double getBestBid ()
+        {
+            return BestBid;
+        }
+
+        /**
+         * @return Orders on the offer
+         */
+        public int getOfferOrders ()
+        {
+            return OfferOrders;
+        }
+
+        /**
+         * @return Price points on the offer
+         */
+        public int getOfferLevels ()
+        {
+            return OfferLevels;
+        }
+
+        /**
+         * @return Available quantity on the offer
+         */
+        public double getOfferQuantity ()
+        {
+            return OfferQuantity;
+        }
+
+        /**
+         * @return Best offer price, zero if none
+         */
+        public double getBestOffer ()
+        {
+            return BestOffer;
+        }
+
+        /**
+         * @return Book nodes of both sides reused from their pools
+         */
+        public long getPoolHits ()
+        {
+            return PoolHits;
+        }
+
+        /**
+         * @return Book nodes of both sides allocated as their pool was
+         * empty
+         */
+        public long getPoolMisses ()
+        {
+            return PoolMisses;
+        }
+    }
+
+    /**
+     * The books of every shard, as copied for one statistics request.
+     */
+    static class Snapshot {
+
+        /** Books of every shard. */
+        private final List<Book> Books;
+
+        /** Counted down by each shard once its books are copied. */
+        private final CountDownLatch Copied;
+
+        /** Orders resting in every shard. */
+        private long MasterBookSize;
+
+        /** Orders with a session in every shard. */
+        private long OrderSessionMapSize;
+
+        /** Matches of every shard. */
+        private long Matches;
+
+        /** Time the request was published, in milliseconds. */
+        private final long Taken;
+
+        /**
+         * @param Shards Number of shards that copy their books
+         */
+        private Snapshot ( int Shards )
+        {
+            Books = new ArrayList<>();
+            Copied = new CountDownLatch( Shards );
+            MasterBookSize = 0;
+            OrderSessionMapSize = 0;
+            Matches = 0;
+            Taken = System.currentTimeMillis();
+        }
+
+        /**
+         * Called by each shard, from its own Thread, with its copy.
+         *
+         * @param b The shard's books
+         * @param Orders Orders in the shard's MasterBook
+         * @param Sessions Entries in the shard's OrderSessionMap
+         * @param m Matches made by the shard
+         */
+        void Captured ( List<Book> b, long Orders, long Sessions, long m )
+        {
+            synchronized ( this )
+            {
+                Books.addAll( b );
+                MasterBookSize += Orders;
+                OrderSessionMapSize += Sessions;
+                Matches += m;
+            }
+
+            Copied.countDown();
+        }
+    }
+
+    /** Name the MXBean is registered under. */
+    public static final String Name = "Microssa:type=Statistics";
+
+    /** Milliseconds a Snapshot is reused for. */
+    private static final long MaxAgeMS = 1000;
+
+    /** Milliseconds between samples of the gateway counters. */
+    private static final long SampleMS = 1000;
+
+    /** Milliseconds to wait for the shards before giving up. */
+    private static final long WaitMS = 5000;
+
+    /** The engine whose shards are asked. */
+    private ShardedMatchingEngine ME;
+
+    /** The OrderSocket, or null. */
+    private OrderSocket OS;
+
+    /** The Database, or null. */
+    private Database DB;
+
+    /** The FIXInterface, or null. */
+    private FIXInterface FI;
+
+    /** The PriceSocket, or null. */
+    private PriceSocket PS;
+
+    /** The newest complete Snapshot, or null. */
+    private Snapshot Last;
+
+    /** Thread that samples the gateway counters. */
+    private Thread T;
+
+    /** OrderSocket, Database and FIX counters at the last sample. */
+    private long[] Counts;
+
+    /** Time of the last sample, from System.nanoTime. */
+    private long SampleTime;
+
+    /** Increase per second of each counter between the last two
+     *  samples.  Replaced whole by every sample. */
+    private volatile double[] Rates;
+
+    /**
+     * Does not register; call register once the interfaces are set.
+     *
+     * @param me The engine to ask
+     */
+    public Statistics ( ShardedMatchingEngine me )
+    {
+        ME = me;
+        OS = null;
+        DB = null;
+        FI = null;
+        PS = null;
+        Last = null;
+        T = null;
+        Counts = new long[3];
+        SampleTime = 0;
+        Rates = new double[3];
+    }
+
+    /**
+     * @param os OrderSocket
+     */
+    public void SetOrderSocket ( OrderSocket os )
+    {
+        OS = os;
+    }
+
+    /**
+     * @param ps PriceSocket
+     */
+    public void SetPriceSocket ( PriceSocket ps )
+    {
+        PS = ps;
+    }
+
+    /**
+     * @param db Database
+     */
+    public void SetDatabase ( Database db )
+    {
+        DB = db;
+    }
+
+    /**
+     * @param fi FIXInterface
+     */
+    public void SetFIXInterface ( FIXInterface fi )
+    {
+        FI = fi;
+    }
+
+    /**
+     * Registers with the platform MBeanServer as Name, and starts the
+     * Thread that samples the gateway counters.
+     *
+     * @throws JMException If the name is taken or the bean is refused
+     */
+    public void register () throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().registerMBean( this, new ObjectName( Name ) );
+
+        if ( T == null )
+        {
+            Sample();
+
+            T = new Thread( this, "STATISTICS" );
+            T.setDaemon( true );
+            T.start();
+        }
+    }
+
+    /**
+     * Samples the gateway counters every SampleMS until the Thread is
+     * interrupted.
+     */
+    public void run ()
+    {
+        while ( true )
+        {
+            try
+            {
+                Thread.sleep( SampleMS );
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+
+            Sample();
+        }
+    }
+
+    /**
+     * Reads the gateway counters and works out their rates since the
+     * last sample.  Only called by register and the Thread.
+     */
+    private void Sample ()
+    {
+        long Now = System.nanoTime();
+        long[] Count = { getOrderSocketMessages(), getDatabaseMessages(), getFIXMessages() };
+        double[] Rate = new double[Count.length];
+
+        for ( int i = 0; SampleTime != 0 && Now > SampleTime && i < Count.length; i++ )
+            Rate[i] = ( Count[i] - Counts[i] ) * 1e9 / ( Now - SampleTime );
+
+        Counts = Count;
+        SampleTime = Now;
+        Rates = Rate;
+    }
+
+    /**
+     * @return A Snapshot at most MaxAgeMS old, or the last one if the
+     * shards did not answer within WaitMS, or null if none ever did
+     */
+    private synchronized Snapshot Take ()
+    {
+        if ( Last != null && System.currentTimeMillis() - Last.Taken < MaxAgeMS )
+            return Last;
+
+        Snapshot s = new Snapshot( ME.getShards() );
+
+        ME.PublishStatistics( s );
+
+        try
+        {
+            if ( s.Copied.await( WaitMS, TimeUnit.MILLISECONDS ) )
+                Last = s;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        return Last;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List<Book> getBooks ()
+    {
+        Snapshot s = Take();
+
+        if ( s == null )
+            return Collections.emptyList();
+
+        synchronized ( s )
+        {
+            return new ArrayList<>( s.Books );
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMasterBookSize ()
+    {
+        Snapshot s = Take();
+
+        return ( s == null ) ? 0 : s.MasterBookSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getOrderSessionMapSize ()
+    {
+        Snapshot s = Take();
+
+        return ( s == null ) ? 0 : s.OrderSessionMapSize;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMatches ()
+    {
+        Snapshot s = Take();
+
+        return ( s == null ) ? 0 : s.Matches;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getOrderSocketMessages ()
+    {
+        return ( OS == null ) ? 0 : OS.getReceived();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getOrderSocketRate ()
+    {
+        return Rates[0];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getDatabaseMessages ()
+    {
+        return ( DB == null ) ? 0 : DB.getReceived();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getDatabaseRate ()
+    {
+        return Rates[1];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getFIXMessages ()
+    {
+        return ( FI == null ) ? 0 : FI.getReceived();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getFIXRate ()
+    {
+        return Rates[2];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getOrderSocketOutboundBytes ()
+    {
+        return ( OS == null ) ? 0 : OS.getOutboundBytes();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getPriceSocketOutboundMessages ()
+    {
+        return ( PS == null ) ? 0 : PS.getOutboundMessages();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSequencerDepth ()
+    {
+        return ME.getSequencerDepth();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getJournalDepth ()
+    {
+        return ME.getJournalDepth();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getLoggerDepth ()
+    {
+        return Logger.getInstance().getQueueDepth();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getTradeWriterDepth ()
+    {
+        TradeWriter w = ( DB == null ) ? null : DB.getTradeWriter();
+
+        return ( w == null ) ? 0 : w.getQueueDepth();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * StatisticsMXBean.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.List;
+
+/**
+ * The attributes Statistics publishes over JMX, registered as
+ * Microssa:type=Statistics.  Every attribute is read only.  Rates are
+ * per second over the last second, sampled on a timer, so reading one
+ * changes nothing.
+ *
+ * @see Statistics
+ */
+public interface StatisticsMXBean {
+
+    /**
+     * @return Orders, price points, resting quantity and best price of
+     * each side of every Symbol with a book, and the nodes its book
+     * reused and allocated
+     */
+    List<Statistics.Book> getBooks ();
+
+    /**
+     * @return Orders resting in every shard
+     */
+    long getMasterBookSize ();
+
+    /**
+     * @return Orders with a FIX session or OrderSocket connection held
+     * by every shard
+     */
+    long getOrderSessionMapSize ();
+
+    /**
+     * @return Matches made since start
+     */
+    long getMatches ();
+
+    /**
+     * @return Messages received by the OrderSocket since start
+     */
+    long getOrderSocketMessages ();
+
+    /**
+     * @return Messages received by the OrderSocket per second
+     */
+    double getOrderSocketRate ();
+
+    /**
+     * @return Order actions read by the Database since start
+     */
+    long getDatabaseMessages ();
+
+    /**
+     * @return Order actions read by the Database per second
+     */
+    double getDatabaseRate ();
+
+    /**
+     * @return Application messages received by the FIXInterface since
+     * start
+     */
+    long getFIXMessages ();
+
+    /**
+     * @return Application messages received by the FIXInterface per
+     * second
+     */
+    double getFIXRate ();
+
+    /**
+     * @return Bytes of OrderSocket replies not yet accepted by the
+     * network
+     */
+    long getOrderSocketOutboundBytes ();
+
+    /**
+     * @return PriceSocket messages waiting to be written
+     */
+    long getPriceSocketOutboundMessages ();
+
+    /**
+     * @return Requests in the Sequencer not yet applied by every shard
+     */
+    long getSequencerDepth ();
+
+    /**
+     * @return Requests in the Sequencer not yet written by the Journal,
+     * zero without JOURNAL
+     */
+    long getJournalDepth ();
+
+    /**
+     * @return Lines waiting for the Logger's writer Thread, zero with
+     * LOGMODE = SYNC
+     */
+    int getLoggerDepth ();
+
+    /**
+     * @return Matches waiting for the TradeWriter, zero without USEDB
+     */
+    int getTradeWriterDepth ();
+}
@@ -0,0 +1,166 @@
+/*
+ * TopOfBook.java
+ *
+ * Copyright (C) 2015 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import Microssa.FixedPoint;
+import Microssa.Dictionary;
+
+/**
+ * The best bid and offer of every Symbol.  The MatchingEngine that owns
+ * a Symbol publishes its quote at the end of every request, and any
+ * Thread may read it without a lock and without going through the
+ * Sequencer, so market data and risk checks that only need the top of
+ * the book never wait for matching.
+ *
+ * Quotes are kept by Dictionary.Symbols ID, in blocks that are made the
+ * first time one of their Symbols is published and never move, so no
+ * write is lost to a resize.  Each Symbol has a version that is odd
+ * while its quote is being written.  A reader tries again until it
+ * sees the same even version before and after, so the bid and offer it
+ * gets were in the book at the same moment.
+ *
+ * @see MatchingEngine
+ * @see Dictionary
+ */
+public class TopOfBook {
+
+    /** Symbols per block, as a power of two. */
+    private static final int BlockBits = 8;
+
+    /** Symbols per block. */
+    private static final int BlockSize = 1 << BlockBits;
+
+    /** Most blocks, so quotes are kept for the first million Symbols. */
+    private static final int MaxBlocks = 4096;
+
+    /** Longs per Symbol: version, best bid and best offer. */
+    private static final int Width = 3;
+
+    /** Blocks of quotes, null until first used. */
+    private static final AtomicReferenceArray<AtomicLongArray> Blocks =
+        new AtomicReferenceArray<>( MaxBlocks );
+
+    /**
+     * Not instantiated, every method is static.
+     */
+    private TopOfBook ()
+    {
+    }
+
+    /**
+     * Sets the quote of a Symbol.  Only the MatchingEngine that owns
+     * the Symbol may call this, as a quote has a single writer.
+     *
+     * @param SymbolID ID of the Symbol
+     * @param Bid Best bid, in ticks, zero if there is none
+     * @param Offer Best offer, in ticks, zero if there is none
+     */
+    static void Publish ( int SymbolID, long Bid, long Offer )
+    {
+        if ( ( SymbolID >>> BlockBits ) >= MaxBlocks )
+            return;
+
+        AtomicLongArray Block = Blocks.get( SymbolID >>> BlockBits );
+
+        if ( Block == null )
+        {
+            Blocks.compareAndSet( SymbolID >>> BlockBits, null,
+                                  new AtomicLongArray( BlockSize * Width ) );
+            Block = Blocks.get( SymbolID >>> BlockBits );
+        }
+
+        int i = ( SymbolID & ( BlockSize - 1 ) ) * Width;
+        long Version = Block.get( i );
+
+        // most requests leave the top of the book alone
+        if ( Version != 0 && Block.get( i + 1 ) == Bid && Block.get( i + 2 ) == Offer )
+            return;
+
+        Block.set( i, Version + 1 );
+        Block.set( i + 1, Bid );
+        Block.set( i + 2, Offer );
+        Block.set( i, Version + 2 );
+    }
+
+    /**
+     * Reads the quote of a Symbol.
+     *
+     * @param Symbol The Symbol
+     * @param Quote Receives the best bid in Quote[0] and the best offer
+     * in Quote[1], in ticks, zero for an empty side
+     * @return False if no quote was ever published for Symbol
+     */
+    public static boolean Read ( String Symbol, long[] Quote )
+    {
+        int SymbolID = Dictionary.Symbols.FindID( Symbol );
+
+        if ( SymbolID < 0 || ( SymbolID >>> BlockBits ) >= MaxBlocks )
+            return false;
+
+        AtomicLongArray Block = Blocks.get( SymbolID >>> BlockBits );
+
+        if ( Block == null )
+            return false;
+
+        int i = ( SymbolID & ( BlockSize - 1 ) ) * Width;
+
+        while ( true )
+        {
+            long Version = Block.get( i );
+
+            if ( Version == 0 )
+                return false;
+
+            Quote[0] = Block.get( i + 1 );
+            Quote[1] = Block.get( i + 2 );
+
+            if ( ( Version & 1 ) == 0 && Block.get( i ) == Version )
+                return true;
+
+            Thread.yield();
+        }
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @return Best bid price, or zero if there is none
+     */
+    public static double getBestBid ( String Symbol )
+    {
+        long[] Quote = new long[2];
+
+        return Read( Symbol, Quote ) ? FixedPoint.getScale( Symbol ).FromTicks( Quote[0] ) : 0D;
+    }
+
+    /**
+     * @param Symbol The Symbol
+     * @return Best offer price, or zero if there is none
+     */
+    public static double getBestOffer ( String Symbol )
+    {
+        long[] Quote = new long[2];
+
+        return Read( Symbol, Quote ) ? FixedPoint.getScale( Symbol ).FromTicks( Quote[1] ) : 0D;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * TradeWriter.java
+ *
+ * Copyright (C) 2017 Michael Dinolfo
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Microssa;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import Microssa.Configuration;
+import Microssa.Logger;
+import Microssa.Order;
+
+/**
+ * Writes matches to the trades table behind the MatchingEngine's back.
+ *
+ * The MatchingEngine only copies each match into a queue.  This class's
+ * Thread takes matches off the queue and inserts them with one batched
+ * PreparedStatement and one commit per batch.  A batch is written when
+ * it holds DBBATCHSIZE matches, or DBFLUSHMS milliseconds after its
+ * first match arrived, whichever comes first.  If the queue holds
+ * DBQUEUESIZE matches the MatchingEngine waits for room rather than
+ * lose a match.
+ *
+ * A batch that fails is rolled back and written again one match at a
+ * time, each match in its own commit, so only the matches that fail on
+ * their own are lost.  Each of those is written to the Logger in full.
+ *
+ * @see Database
+ */
+public class TradeWriter implements Runnable {
+
+    /**
+     * Both sides of one match, copied when it happened.
+     */
+    private static class Trade {
+
+        /** Aggressive order fields. */
+        private final String AOrderID, AInternalID, ACustomer, ACurrency;
+
+        /** Passive order fields. */
+        private final String POrderID, PInternalID, PCustomer, PCurrency;
+
+        /** The Symbol. */
+        private final String Symbol;
+
+        /** Aggressive side. */
+        private final char ASide;
+
+        /** Passive side. */
+        private final char PSide;
+
+        /** Trade price. */
+        private final double Price;
+
+        /** Trade quantity. */
+        private final double Quantity;
+
+        /**
+         * @param a Aggressive order
+         * @param p Passive order
+         * @param px Trade price
+         * @param qty Trade quantity
+         */
+        private Trade ( Order a, Order p, double px, double qty )
+        {
+            AOrderID    = a.getOrderID();
+            AInternalID = a.getInternalID();
+            ACustomer   = a.getCustomer();
+            ACurrency   = a.getCurrency();
+            ASide       = a.getSide();
+            POrderID    = p.getOrderID();
+            PInternalID = p.getInternalID();
+            PCustomer   = p.getCustomer();
+            PCurrency   = p.getCurrency();
+            PSide       = p.getSide();
+            Symbol      = a.getSymbol();
+            Price       = px;
+            Quantity    = qty;
+        }
+
+        /**
+         * Builds the end marker.
+         */
+        private Trade ()
+        {
+            AOrderID = AInternalID = ACustomer = ACurrency = null;
+            POrderID = PInternalID = PCustomer = PCurrency = null;
+            Symbol = null;
+            ASide = PSide = ' ';
+            Price = Quantity = 0D;
+        }
+
+        /**
+         * @return Every field of the match, aggressive side first
+         */
+        @Override
+        public String toString ()
+        {
+            return Symbol + "," + Price + "," + Quantity + "," +
+                   AOrderID + "," + AInternalID + "," + ACustomer + "," + ACurrency + "," + ASide + "," +
+                   POrderID + "," + PInternalID + "," + PCustomer + "," + PCurrency + "," + PSide;
+        }
+    }
+
+    /** Marks the end of the queue on shutdown. */
+    private static final Trade STOP = new Trade();
+
+    /** Insert statement for one side of a match. */
+    private static final String INSERT = "insert into trades (order_id,internal_id,symbol," +
+        "customer,currency,side,price,quantity,role) values (?,?,?,?,?,?,?,?,?)";
+
+    /** Thread object for this class. */
+    private Thread T;
+
+    /** Label of the Thread. */
+    private String ThreadName;
+
+    /** Connection used only by this Thread. */
+    private Connection DbConnection;
+
+    /** Matches waiting to be written. */
+    private ArrayBlockingQueue<Trade> Queue;
+
+    /** Most matches written in one batch. */
+    private int BatchSize;
+
+    /** Longest a match waits for its batch to fill, in milliseconds. */
+    private long FlushMS;
+
+    /** True while the Thread is taking matches off the queue. */
+    private volatile boolean Alive;
+
+    /** Batches written. */
+    private volatile long Flushes;
+
+    /** Rows inserted. */
+    private volatile long Rows;
+
+    /** Time taken by the last batch, in microseconds. */
+    private volatile long LastFlushMicros;
+
+    /** Time taken by the slowest batch, in microseconds. */
+    private volatile long MaxFlushMicros;
+
+    /**
+     * The constructor stores information for when the Thread is started,
+     * but does not start it on its own.
+     *
+     * @param name A string identifier for the future Thread
+     * @param db A Connection this class may use on its own
+     */
+    public TradeWriter ( String name, Connection db )
+    {
+        T = null;
+        ThreadName = name;
+        DbConnection = db;
+
+        BatchSize = Math.max( Configuration.getInstance().getInt("DBBATCHSIZE"), 1 );
+        FlushMS = Math.max( Configuration.getInstance().getInt("DBFLUSHMS"), 0 );
+        Queue = new ArrayBlockingQueue<>( Math.max( Configuration.getInstance().getInt("DBQUEUESIZE"), 1 ) );
+
+        Alive = false;
+        Flushes = 0;
+        Rows = 0;
+        LastFlushMicros = 0;
+        MaxFlushMicros = 0;
+    }
+
+    /**
+     * Queues a match to be written.  Waits only if the queue is full.
+     * Drops the match if the Thread has stopped.
+     *
+     * @param a Aggressive order
+     * @param p Passive order
+     * @param px Trade price
+     * @param qty Trade quantity
+     */
+    public void Enqueue ( Order a, Order p, double px, double qty )
+    {
+        Trade t = new Trade( a, p, px, qty );
+
+        try
+        {
+            while ( !Queue.offer( t, 100, TimeUnit.MILLISECONDS ) )
+                if ( !Alive )
+                    return;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Matches waiting to be written
+     */
+    public int getQueueDepth ()
+    {
+        return Queue.size();
+    }
+
+    /**
+     * @return Batches written
+     */
+    public long getFlushes ()
+    {
+        return Flushes;
+    }
+
+    /**
+     * @return Rows inserted
+     */
+    public long getRows ()
+    {
+        return Rows;
+    }
+
+    /**
+     * @return Time taken by the last batch, in microseconds
+     */
+    public long getLastFlushMicros ()
+    {
+        return LastFlushMicros;
+    }
+
+    /**
+     * @return Time taken by the slowest batch, in microseconds
+     */
+    public long getMaxFlushMicros ()
+    {
+        return MaxFlushMicros;
+    }
+
+    /**
+     * Takes batches of matches off the queue and writes them until the
+     * end marker is taken.
+     */
+    public void run ()
+    {
+        ArrayList<Trade> Batch = new ArrayList<>( BatchSize );
+        PreparedStatement stmt;
+        boolean Running = true;
+
+        try
+        {
+            DbConnection.setAutoCommit( false );
+            stmt = DbConnection.prepareStatement( INSERT );
+        }
+        catch ( SQLException e )
+        {
+            Report( ThreadName + " cannot prepare the trades insert, no match is written: " +
+                    e.getMessage() );
+            Alive = false;
+            return;
+        }
+
+        while ( Running )
+        {
+            try
+            {
+                // wait for the first match, then give the batch FlushMS to fill
+                Trade t = Queue.take();
+                long Deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( FlushMS );
+
+                while ( t != STOP )
+                {
+                    Batch.add( t );
+
+                    if ( Batch.size() >= BatchSize )
+                        break;
+
+                    t = Queue.poll();
+
+                    if ( t == null )
+                    {
+                        long Wait = Deadline - System.nanoTime();
+
+                        if ( Wait <= 0 )
+                            break;
+
+                        t = Queue.poll( Wait, TimeUnit.NANOSECONDS );
+
+                        if ( t == null )
+                            break;
+                    }
+                }
+
+                if ( t == STOP )
+                    Running = false;
+            }
+            catch ( InterruptedException e )
+            {
+                Running = false;
+            }
+
+            Flush( stmt, Batch );
+        }
+
+        Alive = false;
+
+        try
+        {
+            stmt.close();
+            DbConnection.close();
+        }
+        catch ( SQLException e )
+        {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Inserts both sides of every match in Batch and commits, then
+     * clears Batch.  A failed batch is rolled back and written again one
+     * match at a time.
+     *
+     * @param stmt The prepared insert
+     * @param Batch Matches to write
+     */
+    private void Flush ( PreparedStatement stmt, ArrayList<Trade> Batch )
+    {
+        if ( Batch.isEmpty() )
+            return;
+
+        long Start = System.nanoTime();
+
+        try
+        {
+            for ( int i = 0; i < Batch.size(); i++ )
+            {
+                Trade t = Batch.get( i );
+
+                AddRow( stmt, t.AOrderID, t.AInternalID, t.Symbol, t.ACustomer, t.ACurrency,
+                        t.ASide, t.Price, t.Quantity, 'A' );
+                AddRow( stmt, t.POrderID, t.PInternalID, t.Symbol, t.PCustomer, t.PCurrency,
+                        t.PSide, t.Price, t.Quantity, 'P' );
+            }
+
+            stmt.executeBatch();
+            DbConnection.commit();
+
+            Rows += 2 * Batch.size();
+        }
+        catch ( SQLException e )
+        {
+            Rollback( stmt );
+            Report( ThreadName + " failed to write a batch of " + Batch.size() +
+                    " matches, writing them one at a time: " + e.getMessage() );
+
+            for ( int i = 0; i < Batch.size(); i++ )
+                FlushOne( stmt, Batch.get( i ) );
+        }
+
+        Batch.clear();
+
+        long Micros = ( System.nanoTime() - Start ) / 1000;
+
+        LastFlushMicros = Micros;
+        if ( Micros > MaxFlushMicros )
+            MaxFlushMicros = Micros;
+        Flushes++;
+    }
+
+    /**
+     * Inserts both sides of one match and commits.  A match that fails
+     * is rolled back and written to the Logger in full.
+     *
+     * @param stmt The prepared insert, with an empty batch
+     * @param t The match
+     */
+    private void FlushOne ( PreparedStatement stmt, Trade t )
+    {
+        try
+        {
+            AddRow( stmt, t.AOrderID, t.AInternalID, t.Symbol, t.ACustomer, t.ACurrency,
+                    t.ASide, t.Price, t.Quantity, 'A' );
+            AddRow( stmt, t.POrderID, t.PInternalID, t.Symbol, t.PCustomer, t.PCurrency,
+                    t.PSide, t.Price, t.Quantity, 'P' );
+
+            stmt.executeBatch();
+            DbConnection.commit();
+
+            Rows += 2;
+        }
+        catch ( SQLException e )
+        {
+            Rollback( stmt );
+            Report( "TRADE NOT WRITTEN," + t + "," + e.getMessage() );
+        }
+    }
+
+    /**
+     * Drops what is left of a failed batch and rolls it back.
+     *
+     * @param stmt The prepared insert
+     */
+    private void Rollback ( PreparedStatement stmt )
+    {
+        try
+        {
+            stmt.clearBatch();
+            DbConnection.rollback();
+        }
+        catch ( SQLException e )
+        {
+            Report( ThreadName + " failed to roll back: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Writes a message to the Logger, or to standard error if the
+     * Logger cannot take it.
+     *
+     * @param Message The message
+     */
+    private void Report ( String Message )
+    {
+        try
+        {
+            Logger.getInstance().write( Message );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( Message );
+        }
+    }
+
+    /**
+     * Adds one trades row to the batch.
+     */
+    private static void AddRow ( PreparedStatement stmt, String OrderID, String InternalID,
+                                 String Symbol, String Customer, String Currency, char Side,
+                                 double Price, double Quantity, char Role ) throws SQLException
+    {
+        stmt.setString( 1, OrderID );
+        stmt.setString( 2, InternalID );
+        stmt.setString( 3, Symbol );
+        stmt.setString( 4, Customer );
+        stmt.setString( 5, Currency );
+        stmt.setString( 6, String.valueOf( Side ) );
+        stmt.setDouble( 7, Price );
+        stmt.setDouble( 8, Quantity );
+        stmt.setString( 9, String.valueOf( Role ) );
+        stmt.addBatch();
+    }
+
+    /**
+     * Starts the Thread.  Sends a message to Logger to indicate
+     * successful start.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void start () throws IOException
+    {
+        if ( T == null )
+        {
+            try
+            {
+                Logger.getInstance().write("Starting trade writer " + ThreadName);
+            }
+            catch ( IOException e )
+            {
+                throw e;
+            }
+
+            Alive = true;
+            T = new Thread( this, ThreadName );
+            T.start();
+        }
+    }
+
+    /**
+     * Writes every queued match, then stops the Thread.  Matches queued
+     * after this call are not written.
+     *
+     * @throws IOException Passthrough from Logger
+     */
+    public void stop () throws IOException
+    {
+        if ( T == null )
+            return;
+
+        try
+        {
+            while ( Alive && !Queue.offer( STOP, 100, TimeUnit.MILLISECONDS ) );
+            T.join();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        T = null;
+
+        try
+        {
+            Logger.getInstance().write("Stopped trade writer " + ThreadName + ", " + Rows +
+                " rows in " + Flushes + " batches, slowest batch " + MaxFlushMicros + "us");
+        }
+        catch ( IOException e )
+        {
+            throw e;
+        }
+    }
+}